@@ -0,0 +1,61 @@
+package fr.bananasmoothii.rulesgeneration;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.rules.ProximityRule;
+import fr.bananasmoothii.rulesgeneration.rules.RelativeRule;
+
+import java.util.Random;
+
+/**
+ * The {@link CubicChunk}s and rules used by all benchmarks, a small "real" world: stone wants some stone around, dirt
+ * is not above air or grass, nothing solid is above grass and there is no stone above air. Rules mostly say what
+ * should not be there, so the solver doesn't have to fill what is around the generated box.
+ * <p>
+ * Ids are global, so everything is created only once per JVM, when this class is loaded. The chunks are not filled
+ * with blocs as there is no server.
+ */
+public final class BenchmarkWorld {
+
+    public static final CubicChunk STONE = new CubicChunk(1, 30f, false) {};
+    public static final CubicChunk DIRT = new CubicChunk(2, 0f, false) {};
+    public static final CubicChunk GRASS = new CubicChunk(3, 0f, false) {};
+    public static final CubicChunk AIR = CubicChunk.AIR_CHUNK;
+    /** all the chunks, air included */
+    public static final CubicChunk[] ALL = {AIR, STONE, DIRT, GRASS};
+
+    static {
+        STONE.rules.add(new ProximityRule(1, 2, STONE));
+        DIRT.rules.add(new RelativeRule(0, -1, 0, false, AIR, GRASS));
+        GRASS.rules.add(new RelativeRule(0, 1, 0, false, STONE, DIRT));
+        GRASS.rules.add(new RelativeRule(0, -1, 0, false, AIR));
+        AIR.rules.add(new RelativeRule(0, 1, 0, false, STONE));
+    }
+
+    private BenchmarkWorld() {
+    }
+
+    /**
+     * Loads this class, so the rules are there
+     */
+    public static void init() {
+    }
+
+    /**
+     * @return an environment with every cell of [0; size[ x [0; size[ x [0; size[ set to one of {@link #ALL} at
+     * random, without any rule check
+     */
+    public static CubicChunkEnvironment randomBox(long seed, int size) {
+        Random random = new Random(seed);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(seed, size, size);
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                for (int z = 0; z < size; z++) {
+                    environment.set(ALL[random.nextInt(ALL.length)], x, y, z);
+                }
+            }
+        }
+        environment.clearDirty();
+        return environment;
+    }
+}
@@ -0,0 +1,96 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.BenchmarkWorld;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CubicChunkEnvironment#get(int, int, int)}, {@link CubicChunkEnvironment#getId(int, int, int)} and
+ * {@link CubicChunkEnvironment#set(CubicChunk, int, int, int)} at random cells of a box of 64x64x64 cells that is already
+ * full, and {@link #setGrowing()} that sets cells further and further away in a new environment, so each set has to
+ * create a region and to push the bounds. {@link #iterator()} and {@link #forEach()} go through the whole box, the
+ * score is per cell.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class AccessBenchmark {
+
+    private static final int SIZE = 64;
+    /** number of precomputed coordinates, a power of 2 */
+    private static final int COORDINATES = 4096;
+    private static final int GROWING_CELLS = 512;
+
+    private CubicChunkEnvironment environment;
+    private final int[] xs = new int[COORDINATES], ys = new int[COORDINATES], zs = new int[COORDINATES];
+    private final CubicChunk[] chunks = new CubicChunk[COORDINATES];
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment = BenchmarkWorld.randomBox(7, SIZE);
+        Random random = new Random(8);
+        for (int i = 0; i < COORDINATES; i++) {
+            xs[i] = random.nextInt(SIZE);
+            ys[i] = random.nextInt(SIZE);
+            zs[i] = random.nextInt(SIZE);
+            chunks[i] = BenchmarkWorld.ALL[random.nextInt(BenchmarkWorld.ALL.length)];
+        }
+    }
+
+    @Benchmark
+    public @Nullable CubicChunk get() {
+        int i = next++ & (COORDINATES - 1);
+        return environment.get(xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public int getId() {
+        int i = next++ & (COORDINATES - 1);
+        return environment.getId(xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    public void set() {
+        int i = next++ & (COORDINATES - 1);
+        environment.set(chunks[i], xs[i], ys[i], zs[i]);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE * SIZE)
+    public int iterator() {
+        int sum = 0;
+        for (CubicChunkCoords coords : environment) {
+            if (coords.cubicChunk != null) sum += coords.cubicChunk.getId();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE * SIZE * SIZE)
+    public int forEach() {
+        int[] sum = new int[1];
+        environment.forEach((x, y, z, id) -> sum[0] += id);
+        return sum[0];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(GROWING_CELLS)
+    public CubicChunkEnvironment setGrowing() {
+        CubicChunkEnvironment growing = new CubicChunkEnvironment(7, 16, 16);
+        for (int i = 0; i < GROWING_CELLS; i++) {
+            // one of the 6 directions depending on i % 6, one region further at each round
+            int distance = (i / 6 + 1) * CubicChunkRegion.SIZE;
+            int sign = (i & 1) == 0 ? 1 : -1;
+            int axis = i % 3;
+            growing.set(chunks[i], axis == 0 ? sign * distance : 0, axis == 1 ? sign * distance : 0, axis == 2 ? sign * distance : 0);
+        }
+        return growing;
+    }
+}
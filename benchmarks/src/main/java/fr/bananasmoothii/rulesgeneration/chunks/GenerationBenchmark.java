@@ -0,0 +1,60 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.BenchmarkWorld;
+import fr.bananasmoothii.rulesgeneration.solvers.BackjumpingSolver;
+import fr.bananasmoothii.rulesgeneration.solvers.SolverResult;
+import fr.bananasmoothii.rulesgeneration.solvers.WorklistSolver;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link CubicChunkEnvironment#generate(int, int, int, int, int, int)} of a cube of {@link #size} cells of side in
+ * a new environment, and {@link CubicChunkEnvironment#validateAll()} of an environment where that cube was
+ * generated, with the {@link WorklistSolver} or the {@link BackjumpingSolver}, and in each {@link GenerationOrder}.
+ * The seed is always the same, so each operation does the same work.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class GenerationBenchmark {
+
+    @Param({"4", "8", "16", "32"})
+    public int size;
+
+    @Param({"worklist", "backjumping"})
+    public String solver;
+
+    @Param({"SHELLS", "MIN_ENTROPY"})
+    public GenerationOrder order;
+
+    private CubicChunkEnvironment generated;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkWorld.init();
+        generated = newEnvironment();
+        generated.generate(0, 0, 0, size - 1, size - 1, size - 1);
+    }
+
+    private CubicChunkEnvironment newEnvironment() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(42, size, size);
+        if (solver.equals("backjumping")) environment.setSolver(new BackjumpingSolver(environment));
+        environment.setGenerationOrder(order);
+        return environment;
+    }
+
+    @Benchmark
+    public SolverResult generate() {
+        CubicChunkEnvironment environment = newEnvironment();
+        return environment.generate(0, 0, 0, size - 1, size - 1, size - 1);
+    }
+
+    @Benchmark
+    public SolverResult validateAll() {
+        return generated.validateAll();
+    }
+}
@@ -0,0 +1,58 @@
+package fr.bananasmoothii.rulesgeneration.rules;
+
+import fr.bananasmoothii.rulesgeneration.BenchmarkWorld;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ProximityRule#test(CubicChunkEnvironment, int, int, int)} and
+ * {@link ProximityRule#count(CubicChunkEnvironment, int, int, int)} with radii from 1 to 8, in an environment
+ * filled at random. The rule wants stone in a quarter of the cells around.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ProximityRuleBenchmark {
+
+    private static final int SIZE = 48;
+
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8"})
+    public int radius;
+
+    private CubicChunkEnvironment environment;
+    private ProximityRule rule;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        environment = BenchmarkWorld.randomBox(4, SIZE);
+        int side = 2 * radius + 1;
+        rule = new ProximityRule(radius, side * side * side / 4, BenchmarkWorld.STONE);
+    }
+
+    /**
+     * @return the next cell to test, packed in an int, far enough from the border of the box
+     */
+    private int nextCell() {
+        int cell = next++;
+        int inner = SIZE - 2 * radius;
+        return (cell % inner + radius) << 16 | (cell / inner % inner + radius) << 8 | (cell / inner / inner % inner + radius);
+    }
+
+    @Benchmark
+    public boolean test() {
+        int cell = nextCell();
+        return rule.test(environment, cell >> 16, cell >> 8 & 0xFF, cell & 0xFF);
+    }
+
+    @Benchmark
+    public int count() {
+        int cell = nextCell();
+        return rule.count(environment, cell >> 16, cell >> 8 & 0xFF, cell & 0xFF);
+    }
+}
@@ -0,0 +1,77 @@
+package fr.bananasmoothii.rulesgeneration.rules;
+
+import fr.bananasmoothii.rulesgeneration.BenchmarkWorld;
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link RuleList#test(CubicChunkEnvironment, int, int, int)} and
+ * {@link RuleList#testAndSuggest(CubicChunkEnvironment, int, int, int)} of a list of 6 {@link RelativeRule}s (one
+ * per face) in an environment filled at random, so most of the time the list is not valid and there are suggestions.
+ * With {@link LogicalOperator#OR OR}, at least 3 of the 6 rules must be valid. Both {@link CompiledRule.Backend}s
+ * are measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class RuleListBenchmark {
+
+    private static final int SIZE = 32;
+
+    @Param({"AND", "OR"})
+    public LogicalOperator operator;
+
+    @Param({"INTERPRETER", "METHOD_HANDLES"})
+    public CompiledRule.Backend backend;
+
+    private CubicChunkEnvironment environment;
+    private RuleList<RelativeRule> ruleList;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        CompiledRule.setBackend(backend);
+        environment = BenchmarkWorld.randomBox(3, SIZE);
+        ruleList = operator == LogicalOperator.AND ? new RuleList<>(LogicalOperator.AND) : new RuleList<>(3);
+        ruleList.add(new RelativeRule(1, 0, 0, BenchmarkWorld.STONE, BenchmarkWorld.DIRT));
+        ruleList.add(new RelativeRule(-1, 0, 0, BenchmarkWorld.STONE));
+        ruleList.add(new RelativeRule(0, 1, 0, BenchmarkWorld.AIR, BenchmarkWorld.GRASS));
+        ruleList.add(new RelativeRule(0, -1, 0, BenchmarkWorld.STONE, BenchmarkWorld.DIRT));
+        ruleList.add(new RelativeRule(0, 0, 1, false, BenchmarkWorld.AIR));
+        ruleList.add(new RelativeRule(0, 0, -1, BenchmarkWorld.DIRT, BenchmarkWorld.GRASS));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        CompiledRule.setBackend(CompiledRule.Backend.INTERPRETER);
+    }
+
+    /**
+     * @return the next cell to test, packed in an int, inside the box but not on its border
+     */
+    private int nextCell() {
+        int cell = next++;
+        int inner = SIZE - 2;
+        return (cell % inner + 1) << 16 | (cell / inner % inner + 1) << 8 | (cell / inner / inner % inner + 1);
+    }
+
+    @Benchmark
+    public boolean test() {
+        int cell = nextCell();
+        return ruleList.test(environment, cell >> 16, cell >> 8 & 0xFF, cell & 0xFF);
+    }
+
+    @Benchmark
+    public @Nullable SuggestionList testAndSuggest() {
+        int cell = nextCell();
+        return ruleList.testAndSuggest(environment, cell >> 16, cell >> 8 & 0xFF, cell & 0xFF);
+    }
+}
@@ -0,0 +1,55 @@
+package fr.bananasmoothii.rulesgeneration.suggestions;
+
+import fr.bananasmoothii.rulesgeneration.BenchmarkWorld;
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import org.jetbrains.annotations.Nullable;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link SuggestionList#choose()} of an {@link LogicalOperator#OR OR} list of {@link #size} suggestions with random
+ * weights: {@link #choose()} when the sampler is already built, and {@link #chooseAfterChange()} when the list just
+ * changed so the sampler has to be built again. It is in the same package as {@link SuggestionList} because
+ * {@link SuggestionList#choose()} is package-private.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class SuggestionListBenchmark {
+
+    @Param({"2", "8", "64"})
+    public int size;
+
+    private SuggestionList suggestions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        BenchmarkWorld.init();
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(5);
+        suggestions = new SuggestionList(environment, LogicalOperator.OR, 0, 0, 0);
+        Random random = new Random(6);
+        for (int i = 0; i < size; i++) {
+            suggestions.add(new SimpleSuggestion(environment, i, 0, 0, BenchmarkWorld.ALL[i % BenchmarkWorld.ALL.length],
+                    random.nextFloat() * 200 - 100));
+        }
+    }
+
+    @Benchmark
+    public @Nullable Suggestion choose() {
+        suggestions.choose();
+        return suggestions.chosenSuggestion;
+    }
+
+    @Benchmark
+    public @Nullable Suggestion chooseAfterChange() {
+        suggestions.listChanged();
+        suggestions.choose();
+        return suggestions.chosenSuggestion;
+    }
+}
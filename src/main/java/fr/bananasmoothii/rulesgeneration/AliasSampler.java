@@ -0,0 +1,77 @@
+package fr.bananasmoothii.rulesgeneration;
+
+import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
+
+import java.util.Random;
+
+/**
+ * Picks random indexes where each index has a weight, using Vose's alias method: building it costs O(n), but then
+ * each {@link #sample(Random)} is O(1) (one random index, one random float and two array reads).
+ * <p>
+ * The idea is to cut the weights into n columns of the same height, each column containing at most two indexes: the
+ * index of the column, with a probability of {@code probabilities[i]}, and {@code aliases[i]} the rest of the time.
+ * @see SuggestionList#choose()
+ */
+public class AliasSampler {
+
+    private final float[] probabilities;
+    private final int[] aliases;
+
+    /**
+     * @param weights negative weights are treated as 0. If all weights are 0, all indexes have the same chance.
+     */
+    public AliasSampler(float[] weights) {
+        int n = weights.length;
+        if (n == 0) throw new IllegalArgumentException("there must be at least one weight");
+        probabilities = new float[n];
+        aliases = new int[n];
+        double total = 0;
+        for (float weight : weights) {
+            if (weight > 0) total += weight;
+        }
+        // scaled weights, so their average is 1
+        double[] scaled = new double[n];
+        for (int i = 0; i < n; i++) {
+            scaled[i] = total == 0 ? 1 : Math.max(weights[i], 0) * n / total;
+        }
+        // two stacks in the same array: small ones from the start, large ones from the end
+        int[] work = new int[n];
+        int small = 0, large = n;
+        for (int i = 0; i < n; i++) {
+            if (scaled[i] < 1) work[small++] = i;
+            else work[--large] = i;
+        }
+        while (small > 0 && large < n) {
+            int less = work[--small], more = work[large++];
+            probabilities[less] = (float) scaled[less];
+            aliases[less] = more;
+            scaled[more] = scaled[more] + scaled[less] - 1;
+            if (scaled[more] < 1) work[small++] = more;
+            else work[--large] = more;
+        }
+        // what remains is 1 (or almost, because of rounding)
+        while (large < n) {
+            int i = work[large++];
+            probabilities[i] = 1f;
+            aliases[i] = i;
+        }
+        while (small > 0) {
+            int i = work[--small];
+            probabilities[i] = 1f;
+            aliases[i] = i;
+        }
+    }
+
+    /**
+     * @return an index between 0 (inclusive) and the number of weights (exclusive), with a chance proportional to its
+     * weight
+     */
+    public int sample(Random random) {
+        int column = random.nextInt(probabilities.length);
+        return random.nextFloat() < probabilities[column] ? column : aliases[column];
+    }
+
+    public int size() {
+        return probabilities.length;
+    }
+}
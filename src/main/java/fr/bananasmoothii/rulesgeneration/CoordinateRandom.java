@@ -0,0 +1,79 @@
+package fr.bananasmoothii.rulesgeneration;
+
+import java.util.Random;
+
+/**
+ * A {@link Random} whose values only depend on a seed and on a position (x, y, z) and an "attempt", so whatever is
+ * generated at some place is the same whatever the thread or the order things were generated in. Call
+ * {@link #at(int, int, int, int)} to get the values for a position, it doesn't allocate anything.
+ * <p>
+ * It is a SplitMix64 generator: the state is a hash of (seed, x, y, z, attempt), and each value is the state hashed
+ * again after adding a constant. It is not thread-safe, as {@link #at(int, int, int, int)} changes the state, but it is
+ * cheap to have one per thread or per environment. {@link #setSeed(long)} changes the seed.
+ */
+public class CoordinateRandom extends Random {
+
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+    private long seed;
+    private long state;
+
+    public CoordinateRandom(long seed) {
+        super(seed);
+        this.seed = seed;
+        this.state = seed;
+    }
+
+    /**
+     * Starts the sequence of values for that position and attempt
+     * @return this
+     */
+    public CoordinateRandom at(int x, int y, int z, int attempt) {
+        state = hash(seed, x, y, z, attempt);
+        return this;
+    }
+
+    /**
+     * @return a well mixed hash of all these values
+     */
+    public static long hash(long seed, int x, int y, int z, int attempt) {
+        long h = mix64(seed + GOLDEN_GAMMA);
+        h = mix64(h ^ (x * GOLDEN_GAMMA));
+        h = mix64(h ^ (y + ((long) z << 32)));
+        return mix64(h ^ attempt);
+    }
+
+    private static long mix64(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public synchronized void setSeed(long seed) {
+        // also called by the constructor of Random, before the fields of this class are set
+        this.seed = seed;
+        this.state = seed;
+    }
+
+    public long getSeed() {
+        return seed;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public long nextLong() {
+        return mix64(state += GOLDEN_GAMMA);
+    }
+
+    @Override
+    public String toString() {
+        return "CoordinateRandom{" +
+                "seed=" + seed +
+                '}';
+    }
+}
@@ -0,0 +1,166 @@
+package fr.bananasmoothii.rulesgeneration;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A hash map with primitive {@code long} keys, so there is no {@link Long} boxing when you {@link #get(long) get} or
+ * {@link #put(long, Object) put}. It uses open addressing with linear probing, so a lookup is most of the time just
+ * one or two array reads. {@code null} values are not allowed, as a {@code null} value is what marks a free slot.
+ * <p>
+ * You can iterate over it without allocating anything with {@link #capacity()}, {@link #keyAt(int)} and
+ * {@link #valueAt(int)} (skip the slots where {@link #valueAt(int)} is {@code null}).
+ * @param <V> the type of the values
+ */
+public class LongObjectHashMap<V> {
+
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private long[] keys;
+    private Object[] values;
+    private int size;
+    /** {@code keys.length - 1}, keys.length is always a power of 2 */
+    private int mask;
+
+    public LongObjectHashMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of elements you expect to put in, so it doesn't have to grow until then
+     */
+    public LongObjectHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(2, (int) (expectedSize / LOAD_FACTOR)) - 1) << 1;
+        keys = new long[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int hash(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+
+    @SuppressWarnings("unchecked")
+    public @Nullable V get(long key) {
+        int i = hash(key) & mask;
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) return (V) value;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * @return the previous value for that key, or {@code null} if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V put(long key, @NotNull V value) {
+        //noinspection ConstantConditions
+        if (value == null) throw new NullPointerException("null values are not allowed");
+        int i = hash(key) & mask;
+        Object old;
+        while ((old = values[i]) != null) {
+            if (keys[i] == key) {
+                values[i] = value;
+                return (V) old;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = key;
+        values[i] = value;
+        if (++size > keys.length * LOAD_FACTOR) grow();
+        return null;
+    }
+
+    /**
+     * @return the removed value, or {@code null} if there was nothing for that key
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V remove(long key) {
+        int i = hash(key) & mask;
+        Object value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == key) {
+                shiftBack(i);
+                size--;
+                return (V) value;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    /**
+     * Removes the element at slot {@code free} and moves back the elements after it that would otherwise become
+     * unreachable, so we don't need tombstones.
+     */
+    private void shiftBack(int free) {
+        int i = free;
+        while (true) {
+            i = (i + 1) & mask;
+            if (values[i] == null) break;
+            int wanted = hash(keys[i]) & mask;
+            // can the element at i be moved to free ? (it can if its wanted slot is not between free and i, cyclically)
+            if (free <= i ? (wanted <= free || wanted > i) : (wanted <= free && wanted > i)) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                free = i;
+            }
+        }
+        values[free] = null;
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        keys = new long[oldKeys.length << 1];
+        values = new Object[oldValues.length << 1];
+        mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == null) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (values[i] != null) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of slots, for iterating with {@link #keyAt(int)} and {@link #valueAt(int)}
+     */
+    public int capacity() {
+        return keys.length;
+    }
+
+    /**
+     * @return the key at that slot, meaningless if {@link #valueAt(int)} is {@code null} for that slot
+     */
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    /**
+     * @return the value at that slot, or {@code null} if that slot is free
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable V valueAt(int slot) {
+        return (V) values[slot];
+    }
+}
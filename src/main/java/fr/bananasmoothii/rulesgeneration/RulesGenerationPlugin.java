@@ -0,0 +1,117 @@
+package fr.bananasmoothii.rulesgeneration;
+
+import fr.bananasmoothii.rulesgeneration.generators.RulesChunkGenerator;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+import fr.bananasmoothii.rulesgeneration.rules.CompiledRule;
+import fr.bananasmoothii.rulesgeneration.templates.TemplateLoader;
+import org.bukkit.Bukkit;
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.generator.ChunkGenerator;
+import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.JMException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+
+/**
+ * Gives a {@link RulesChunkGenerator} to worlds using this plugin as generator (for exemple with
+ * {@code generator: RulesGeneration} in bukkit.yml), and precomputes columns around players in these worlds.
+ * Templates in the {@code templates} folder of the plugin are loaded with {@link TemplateLoader}, and
+ * {@link GenerationMetrics} are registered in JMX (they are only recorded once enabled there).
+ * <p>
+ * If {@code streaming-memory-budget-mb} is set in the config, generators keep the regions around players in memory
+ * and write the others in the world folder when there are too many, see {@link RulesChunkGenerator#keepLoadedAround(int[])}.
+ */
+public class RulesGenerationPlugin extends JavaPlugin {
+
+    /** in ticks */
+    private static final long PRECOMPUTE_PERIOD = 20L;
+
+    /** by world name */
+    private final Map<String, RulesChunkGenerator> generators = new HashMap<>();
+    private @Nullable BukkitTask precomputeTask;
+
+    @Override
+    public void onEnable() {
+        saveDefaultConfig();
+        if (getConfig().getBoolean("method-handle-rules", false)) CompiledRule.setBackend(CompiledRule.Backend.METHOD_HANDLES);
+        try {
+            GenerationMetrics.registerMBean();
+        } catch (JMException e) {
+            getLogger().log(Level.WARNING, "Could not register the metrics in JMX", e);
+        }
+        Path templates = getDataFolder().toPath().resolve("templates");
+        if (Files.isDirectory(templates)) {
+            try {
+                int firstId = getConfig().getInt("templates-first-id", TemplateLoader.DEFAULT_FIRST_ID);
+                int loaded = TemplateLoader.loadDirectory(templates, firstId).size();
+                getLogger().info("Loaded " + loaded + " templates");
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, "Could not read the templates", e);
+            }
+        }
+        // on the main thread, because players should not be read from another thread. It is cheap anyway, the
+        // generation itself is done by the thread of each generator.
+        precomputeTask = Bukkit.getScheduler().runTaskTimer(this, this::precomputeAroundPlayers, PRECOMPUTE_PERIOD, PRECOMPUTE_PERIOD);
+    }
+
+    @Override
+    public void onDisable() {
+        if (precomputeTask != null) {
+            precomputeTask.cancel();
+            precomputeTask = null;
+        }
+        for (Map.Entry<String, RulesChunkGenerator> entry : generators.entrySet()) {
+            entry.getValue().shutdown();
+            try {
+                entry.getValue().save();
+            } catch (IOException e) {
+                getLogger().log(Level.SEVERE, "Could not save the generation of " + entry.getKey(), e);
+            }
+        }
+        try {
+            GenerationMetrics.unregisterMBean();
+        } catch (JMException e) {
+            getLogger().log(Level.WARNING, "Could not unregister the metrics from JMX", e);
+        }
+    }
+
+    @Override
+    public @NotNull ChunkGenerator getDefaultWorldGenerator(@NotNull String worldName, @Nullable String id) {
+        long memoryBudget = getConfig().getLong("streaming-memory-budget-mb", 0) << 20;
+        return generators.computeIfAbsent(worldName, name -> new RulesChunkGenerator(16, RulesChunkGenerator.DEFAULT_MAX_PENDING_COLUMNS, memoryBudget));
+    }
+
+    private void precomputeAroundPlayers() {
+        int radius = Bukkit.getViewDistance() + 1;
+        // radius then columns of the players, by generator
+        Map<RulesChunkGenerator, int[]> playerColumns = new IdentityHashMap<>();
+        for (Player player : Bukkit.getOnlinePlayers()) {
+            World world = player.getWorld();
+            ChunkGenerator generator = world.getGenerator();
+            if (!(generator instanceof RulesChunkGenerator)) continue;
+            Location location = player.getLocation();
+            int chunkX = location.getBlockX() >> 4, chunkZ = location.getBlockZ() >> 4;
+            int[] columns = playerColumns.getOrDefault(generator, new int[] {radius});
+            columns = Arrays.copyOf(columns, columns.length + 2);
+            columns[columns.length - 2] = chunkX;
+            columns[columns.length - 1] = chunkZ;
+            playerColumns.put((RulesChunkGenerator) generator, columns);
+            ((RulesChunkGenerator) generator).precomputeAround(world, chunkX, chunkZ, radius);
+        }
+        for (RulesChunkGenerator generator : generators.values()) {
+            generator.keepLoadedAround(playerColumns.getOrDefault(generator, new int[] {radius}));
+        }
+    }
+}
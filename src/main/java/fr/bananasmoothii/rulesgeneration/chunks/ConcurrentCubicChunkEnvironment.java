@@ -0,0 +1,568 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.LongObjectHashMap;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+import fr.bananasmoothii.rulesgeneration.solvers.SolverResult;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link CubicChunkEnvironment} that can be shared between threads, for exemple between generation workers, async
+ * chunk loaders and map renderers.
+ * <p>
+ * Regions are spread in {@link #getStripeCount()} stripes by their key, each stripe having its own map of regions and
+ * its own read-write lock:
+ * <ul>
+ *     <li>{@link #get(int, int, int)} and {@link #getId(int, int, int)} only take the read lock of the stripe of that
+ *     cell, so they never wait for anything happening in regions of other stripes, creating regions included.</li>
+ *     <li>{@link #set(CubicChunk, int, int, int)} and {@link #compareAndSet(CubicChunk, CubicChunk, int, int, int)}
+ *     only take the write lock of the stripe of that cell, so threads writing in different stripes don't wait for each
+ *     other. Each cell is linearizable: a {@link #get(int, int, int)} sees the cell before or after a set, never
+ *     something in between. What is shared by the whole environment is updated with its own small lock, always
+ *     taken after the stripe's: the bounds, the dirty cells, and the {@link #modificationStamp() stamp}, that is an
+ *     {@link AtomicLong} taken after the cell was changed. Metrics are {@link java.util.concurrent.atomic.LongAdder}s.</li>
+ *     <li>methods that read more than one cell ({@link #count(int, int, int, int, int, int, int)},
+ *     {@link #row(int, int, int, int)}, {@link #forEach(CellVisitor)}...) take the read lock of each region they read,
+ *     one at a time. Each region is seen in a state where no change is half done, but cells of different regions may
+ *     be seen before and after the same set. {@link #forEach(CellVisitor)} copies the cells of a region before
+ *     visiting them, so the visitor can change cells.</li>
+ *     <li>generating and validating use the solver, the {@link UndoTrail trail} and the
+ *     {@link #getRuleCache() rule cache}, that are shared by the whole environment, so they are {@code synchronized} on
+ *     the environment (and so is {@link #setUndoable(CubicChunk, int, int, int)}, that records in the trail). They
+ *     don't stop other threads from reading or setting cells in stripes they didn't change, they see these changes
+ *     like any other.</li>
+ *     <li>but changes in the trail may be tried then undone, and undoing them must not overwrite what another thread
+ *     set in the meantime. So the thread that records a change in the trail keeps the write lock of its stripe until
+ *     the trail is empty again (everything was {@link UndoTrail#commit(int) committed} or
+ *     {@link UndoTrail#rollback(int) rolled back}), and other threads wait to read or set cells there. This thread
+ *     must be the one that empties the trail.</li>
+ *     <li>starting to {@link #count(int, int, int, int, int, int, int) count} or
+ *     {@link #row(int, int, int, int) read rows} of a new type and {@link #clearDirty() clearing dirty cells} take the
+ *     write locks of all stripes, but it only happens once per type and when validating. It waits until the trail is
+ *     empty, as the thread using it may be waiting for one of these stripes.</li>
+ * </ul>
+ * Streaming is not supported.
+ */
+public class ConcurrentCubicChunkEnvironment extends CubicChunkEnvironment {
+
+    public static final int DEFAULT_STRIPE_COUNT = 64;
+
+    private final Stripe[] stripes;
+    private final int stripeMask;
+    /** see {@link #stripeOf(long)} */
+    private final int stripeShift;
+    /** see {@link #modificationStamp()}, the one of the superclass is not used */
+    private final AtomicLong stamp = new AtomicLong();
+    /** see {@link #regionsReplaced()}, the one of the superclass is not used either */
+    private final AtomicLong regionsReplacedAt = new AtomicLong();
+    private final Object boundsLock = new Object(), dirtyLock = new Object();
+    /**
+     * Held by the thread that has changes in the trail, see {@link #holdStripe(Stripe)}, and by {@link #lockAll()}.
+     * Taken before any stripe lock.
+     */
+    private final ReentrantLock trailLock = new ReentrantLock();
+    /** stripes whose write lock is kept until the trail is empty, in the order they were locked. Guarded by {@link #trailLock} */
+    private final List<Stripe> heldStripes = new ArrayList<>();
+    /** if {@link #trailLock} is held for {@link #heldStripes}. Guarded by it */
+    private boolean holdingStripes;
+
+    private static final class Stripe {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final LongObjectHashMap<CubicChunkRegion> regions = new LongObjectHashMap<>();
+    }
+
+    public ConcurrentCubicChunkEnvironment(long seed) {
+        this(seed, DEFAULT_STRIPE_COUNT);
+    }
+
+    /**
+     * @param stripeCount the number of stripes, rounded up to a power of 2. More stripes means less waiting between
+     *                    readers and writers of different regions.
+     */
+    public ConcurrentCubicChunkEnvironment(long seed, int stripeCount) {
+        super(seed, CubicChunkRegion.SIZE, CubicChunkRegion.SIZE); // the regions of the superclass are not used
+        if (stripeCount < 1) throw new IllegalArgumentException("stripeCount must be >= 1");
+        int count = stripeCount == 1 ? 1 : Integer.highestOneBit(stripeCount - 1) << 1;
+        stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+        stripeMask = count - 1;
+        stripeShift = 64 - Integer.numberOfTrailingZeros(count);
+    }
+
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Takes the top bits of the hash: the x of a region is in the top bits of its key, so it only changes the top bits
+     * of the product, and regions next to each other on x would all be in the same stripe otherwise
+     */
+    private Stripe stripeOf(long key) {
+        return stripes[(int) (key * 0x9E3779B97F4A7C15L >>> stripeShift) & stripeMask]; // with 1 stripe, the mask is 0
+    }
+
+    private Stripe stripeOf(CubicChunkRegion region) {
+        return stripeOf(CubicChunkRegion.key(region.regionX, region.regionY, region.regionZ));
+    }
+
+    @Override
+    @Nullable CubicChunkRegion getRegion(int x, int y, int z) {
+        return getRegionByKey(CubicChunkRegion.keyOfCell(x, y, z));
+    }
+
+    @Override
+    @Nullable CubicChunkRegion getRegionByKey(long key) {
+        Stripe stripe = stripeOf(key);
+        ReentrantReadWriteLock.ReadLock lock = stripe.lock.readLock();
+        lock.lock();
+        try {
+            return stripe.regions.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    CubicChunkRegion getOrCreateRegion(int x, int y, int z) {
+        long key = CubicChunkRegion.keyOfCell(x, y, z);
+        Stripe stripe = stripeOf(key);
+        ReentrantReadWriteLock.WriteLock lock = stripe.lock.writeLock();
+        lock.lock();
+        try {
+            CubicChunkRegion region = stripe.regions.get(key);
+            if (region == null) {
+                region = new CubicChunkRegion(x >> CubicChunkRegion.SHIFT, y >> CubicChunkRegion.SHIFT, z >> CubicChunkRegion.SHIFT);
+                stripe.regions.put(key, region);
+                GenerationMetrics.regionCreated();
+            }
+            return region;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void removeRegion(CubicChunkRegion region) {
+        long key = CubicChunkRegion.key(region.regionX, region.regionY, region.regionZ);
+        Stripe stripe = stripeOf(key);
+        ReentrantReadWriteLock.WriteLock lock = stripe.lock.writeLock();
+        lock.lock();
+        try {
+            stripe.regions.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return a new map with the regions of all stripes. The regions are not copied.
+     */
+    @Override
+    LongObjectHashMap<CubicChunkRegion> regions() {
+        LongObjectHashMap<CubicChunkRegion> regions = new LongObjectHashMap<>();
+        for (Stripe stripe : stripes) {
+            ReentrantReadWriteLock.ReadLock lock = stripe.lock.readLock();
+            lock.lock();
+            try {
+                for (int i = 0; i < stripe.regions.capacity(); i++) {
+                    CubicChunkRegion region = stripe.regions.valueAt(i);
+                    if (region != null) regions.put(stripe.regions.keyAt(i), region);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return regions;
+    }
+
+    @Override
+    public @Nullable CubicChunk get(int x, int y, int z) {
+        return CubicChunkRegion.chunkOf(getId(x, y, z) + 1);
+    }
+
+    @Override
+    public int getId(int x, int y, int z) {
+        long key = CubicChunkRegion.keyOfCell(x, y, z);
+        Stripe stripe = stripeOf(key);
+        ReentrantReadWriteLock.ReadLock lock = stripe.lock.readLock();
+        lock.lock();
+        try {
+            CubicChunkRegion region = stripe.regions.get(key);
+            if (region == null) return NO_ID;
+            return region.getSlot(CubicChunkRegion.index(x, y, z)) - 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    int setSlot(int x, int y, int z, int slot) {
+        ReentrantReadWriteLock.WriteLock lock = stripeOf(CubicChunkRegion.keyOfCell(x, y, z)).lock.writeLock();
+        lock.lock();
+        try {
+            return super.setSlot(x, y, z, slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    int setSlotTemporarily(int x, int y, int z, int slot) {
+        ReentrantReadWriteLock.WriteLock lock = stripeOf(CubicChunkRegion.keyOfCell(x, y, z)).lock.writeLock();
+        lock.lock();
+        try {
+            return super.setSlotTemporarily(x, y, z, slot);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets that cell only if it is what was expected, atomically
+     * @param expected what should be there, {@code null} for nothing
+     * @return {@code true} if it was set
+     */
+    public boolean compareAndSet(@Nullable CubicChunk expected, @Nullable CubicChunk chunk, int x, int y, int z) {
+        ReentrantReadWriteLock.WriteLock lock = stripeOf(CubicChunkRegion.keyOfCell(x, y, z)).lock.writeLock();
+        lock.lock();
+        try {
+            if (getId(x, y, z) + 1 != CubicChunkRegion.slotOf(expected)) return false;
+            set(chunk, x, y, z);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The write lock of the stripe of that cell is kept until the trail is empty, see the class documentation
+     */
+    @Override
+    public synchronized void setUndoable(@Nullable CubicChunk chunk, int x, int y, int z) {
+        holdStripe(stripeOf(CubicChunkRegion.keyOfCell(x, y, z)));
+        super.setUndoable(chunk, x, y, z);
+    }
+
+    private void holdStripe(Stripe stripe) {
+        if (!trailLock.isHeldByCurrentThread() || !holdingStripes) {
+            trailLock.lock();
+            holdingStripes = true;
+        }
+        if (stripe.lock.isWriteLockedByCurrentThread()) return;
+        stripe.lock.writeLock().lock();
+        heldStripes.add(stripe);
+    }
+
+    /**
+     * Releases what {@link #holdStripe(Stripe)} took
+     */
+    @Override
+    void trailEmptied() {
+        if (!trailLock.isHeldByCurrentThread() || !holdingStripes) return;
+        for (int i = heldStripes.size() - 1; i >= 0; i--) {
+            heldStripes.get(i).lock.writeLock().unlock();
+        }
+        heldStripes.clear();
+        holdingStripes = false;
+        trailLock.unlock();
+    }
+
+    @Override
+    public int regionCount() {
+        int count = 0;
+        for (Stripe stripe : stripes) {
+            ReentrantReadWriteLock.ReadLock lock = stripe.lock.readLock();
+            lock.lock();
+            try {
+                count += stripe.regions.size();
+            } finally {
+                lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public long residentMemory() {
+        long bytes = 0;
+        for (Stripe stripe : stripes) {
+            ReentrantReadWriteLock.ReadLock lock = stripe.lock.readLock();
+            lock.lock();
+            try {
+                for (int i = 0; i < stripe.regions.capacity(); i++) {
+                    CubicChunkRegion region = stripe.regions.valueAt(i);
+                    if (region != null) bytes += region.memoryUsage();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        synchronized (boundsLock) {
+            return super.isEmpty();
+        }
+    }
+
+    @Override
+    public int[] bounds() {
+        synchronized (boundsLock) {
+            return super.bounds();
+        }
+    }
+
+    @Override
+    void includeInBounds(int x, int y, int z) {
+        synchronized (boundsLock) {
+            super.includeInBounds(x, y, z);
+        }
+    }
+
+    @Override
+    public long modificationStamp() {
+        return stamp.get();
+    }
+
+    @Override
+    long nextStamp() {
+        return stamp.incrementAndGet();
+    }
+
+    @Override
+    void regionsReplaced() {
+        // two threads could set their stamps in the wrong order, it must never go back
+        regionsReplacedAt.accumulateAndGet(nextStamp(), Math::max);
+    }
+
+    @Override
+    long regionsReplacedAt() {
+        return regionsReplacedAt.get();
+    }
+
+    @Override
+    boolean changedSince(CubicChunkRegion region, long stamp, int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        ReentrantReadWriteLock.ReadLock lock = stripeOf(region).lock.readLock();
+        lock.lock();
+        try {
+            return super.changedSince(region, stamp, xFrom, yFrom, zFrom, xTo, yTo, zTo);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    void addDirty(int x, int y, int z, int oldSlot) {
+        synchronized (dirtyLock) {
+            super.addDirty(x, y, z, oldSlot);
+        }
+    }
+
+    @Override
+    public int dirtyCount() {
+        synchronized (dirtyLock) {
+            return super.dirtyCount();
+        }
+    }
+
+    /**
+     * Takes the write locks of all stripes, as the dirty bits of the regions are cleared too
+     */
+    @Override
+    public void clearDirty() {
+        lockAll();
+        try {
+            synchronized (dirtyLock) {
+                super.clearDirty();
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    int[] takeDirty() {
+        lockAll();
+        try {
+            synchronized (dirtyLock) {
+                return super.takeDirty();
+            }
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    int count(CubicChunkRegion region, int tracked, int x0, int y0, int z0, int x1, int y1, int z1) {
+        ReentrantReadWriteLock.ReadLock lock = stripeOf(region).lock.readLock();
+        lock.lock();
+        try {
+            return super.count(region, tracked, x0, y0, z0, x1, y1, z1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the write locks of all stripes, as the counts are built in every region
+     */
+    @Override
+    int track(int slot) {
+        lockAll();
+        try {
+            int tracked = trackedIndex(slot); // another thread may have done it in the meantime
+            return tracked != -1 ? tracked : super.track(slot);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    @Override
+    long row(CubicChunkRegion region, int plane, int x, int y) {
+        ReentrantReadWriteLock.ReadLock lock = stripeOf(region).lock.readLock();
+        lock.lock();
+        try {
+            return super.row(region, plane, x, y);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the write locks of all stripes, as the planes are built in every region
+     */
+    @Override
+    int trackPlane(int slot) {
+        lockAll();
+        try {
+            int plane = planeIndex(slot);
+            return plane != -1 ? plane : super.trackPlane(slot);
+        } finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * The cells of each region are copied while holding its read lock, and visited after
+     */
+    @Override
+    void forEach(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo, boolean presentOnly, CellVisitor visitor) {
+        int[] slots = new int[CubicChunkRegion.VOLUME];
+        for (int regionX = xFrom >> CubicChunkRegion.SHIFT; regionX <= xTo >> CubicChunkRegion.SHIFT; regionX++) {
+            int xStart = Math.max(xFrom, regionX << CubicChunkRegion.SHIFT), xEnd = Math.min(xTo, xStart | CubicChunkRegion.MASK);
+            for (int regionY = yFrom >> CubicChunkRegion.SHIFT; regionY <= yTo >> CubicChunkRegion.SHIFT; regionY++) {
+                int yStart = Math.max(yFrom, regionY << CubicChunkRegion.SHIFT), yEnd = Math.min(yTo, yStart | CubicChunkRegion.MASK);
+                for (int regionZ = zFrom >> CubicChunkRegion.SHIFT; regionZ <= zTo >> CubicChunkRegion.SHIFT; regionZ++) {
+                    int zStart = Math.max(zFrom, regionZ << CubicChunkRegion.SHIFT), zEnd = Math.min(zTo, zStart | CubicChunkRegion.MASK);
+                    long key = CubicChunkRegion.key(regionX, regionY, regionZ);
+                    Stripe stripe = stripeOf(key);
+                    ReentrantReadWriteLock.ReadLock lock = stripe.lock.readLock();
+                    lock.lock();
+                    try {
+                        CubicChunkRegion region = stripe.regions.get(key);
+                        if (region == null) {
+                            if (presentOnly) continue;
+                            Arrays.fill(slots, CubicChunkRegion.EMPTY);
+                        } else {
+                            for (int x = xStart; x <= xEnd; x++) {
+                                for (int y = yStart; y <= yEnd; y++) {
+                                    for (int z = zStart; z <= zEnd; z++) {
+                                        int index = CubicChunkRegion.index(x, y, z);
+                                        slots[index] = region.getSlot(index);
+                                    }
+                                }
+                            }
+                        }
+                    } finally {
+                        lock.unlock();
+                    }
+                    for (int x = xStart; x <= xEnd; x++) {
+                        for (int y = yStart; y <= yEnd; y++) {
+                            for (int z = zStart; z <= zEnd; z++) {
+                                int slot = slots[CubicChunkRegion.index(x, y, z)];
+                                if (presentOnly && slot == CubicChunkRegion.EMPTY) continue;
+                                visitor.visit(x, y, z, slot - 1);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the write locks of all stripes, in order
+     */
+    private void lockAll() {
+        trailLock.lock();
+        for (Stripe stripe : stripes) {
+            stripe.lock.writeLock().lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (int i = stripes.length - 1; i >= 0; i--) {
+            stripes[i].lock.writeLock().unlock();
+        }
+        trailLock.unlock();
+    }
+
+    @Override
+    public synchronized SolverResult generate(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        return super.generate(xFrom, yFrom, zFrom, xTo, yTo, zTo);
+    }
+
+    /**
+     * The workers of the pool generate their block in an environment of their own, copied before they start, so they
+     * don't need the lock that this method holds.
+     */
+    @Override
+    public synchronized SolverResult generateParallel(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo, ForkJoinPool pool) {
+        return super.generateParallel(xFrom, yFrom, zFrom, xTo, yTo, zTo, pool);
+    }
+
+    @Override
+    public synchronized SolverResult generate(int x, int y, int z) {
+        return super.generate(x, y, z);
+    }
+
+    @Override
+    public synchronized SolverResult regenerate(int x, int y, int z) {
+        return super.regenerate(x, y, z);
+    }
+
+    @Override
+    public synchronized SolverResult validateAll() {
+        return super.validateAll();
+    }
+
+    @Override
+    public synchronized SolverResult validateDirty() {
+        return super.validateDirty();
+    }
+
+    @Override
+    public synchronized void debugPrint() {
+        super.debugPrint();
+    }
+
+    /**
+     * @throws UnsupportedOperationException always, evicting regions while other threads may be using them is not
+     * supported
+     */
+    @Override
+    public void enableStreaming(RegionFileStorage storage, long memoryBudget) {
+        throw new UnsupportedOperationException("a ConcurrentCubicChunkEnvironment can't stream");
+    }
+}
@@ -15,16 +15,36 @@ import java.util.*;
 /**
  * A CubicChunk is the base bloc of generation. It is 16x16x16 minecraft blocs.
  * The world (should) generate only with pre-built CubicChunk.
+ * <p>
+ * Blocs are stored like minecraft sections: a palette of the different {@link BlockData}s of this chunk, and the
+ * index in the palette of each bloc packed in a {@code long[]} with as few bits as possible (at least
+ * {@link #MIN_BITS}). Entries never span over two longs. The index of a bloc is {@code y << 8 | z << 4 | x}, so a
+ * Y-layer is 256 contiguous blocs, see {@link #copyLayer(int, BlockData[], int)}.
  */
 public class CubicChunk implements Iterable<BlockData> {
 
-    private final BlockData[][][] blockDatas;
+    public static final int VOLUME = 16 * 16 * 16;
+    public static final int LAYER_SIZE = 16 * 16;
+    private static final int MIN_BITS = 4;
+
+    /** palette index 0 is always null, it is what is there when nothing was set */
+    private BlockData[] blockPalette;
+    private int paletteSize;
+    private final Map<BlockData, Integer> paletteIndexes = new HashMap<>();
+    private long[] packedIndexes;
+    private int bits;
+    /** if the blocs are not there yet, see {@link #deferBlocks()} */
+    private volatile boolean deferred;
+    /** guarded by this */
+    private boolean materializing;
     private final int id;
     public final RuleList<Rule> rules = new RuleList<>(LogicalOperator.AND);
     /** 0 = common (default), positive = very common, negative = rare. Please keep values in the range [-100; 100] */
     public final @Range(from = -100, to = 100) float rarity;
 
     private static final TreeMap<Integer, CubicChunk> instances = new TreeMap<>();
+    /** same as {@link #instances} but as an array indexed by id, for the fast {@link #getInstance(int)} */
+    private static CubicChunk[] palette = new CubicChunk[16];
 
     public static final CubicChunk AIR_CHUNK;
 
@@ -59,13 +79,21 @@ public class CubicChunk implements Iterable<BlockData> {
         return instances.lastKey() + 1;
     }
 
+    /**
+     * @param id must be positive, and it is better if ids are not too sparse as they are used as array indexes
+     */
     protected CubicChunk(int id, float rarity, boolean fillWithAir) {
+        if (id < 0)
+            throw new IllegalArgumentException("id must be positive");
         if (instances.containsKey(id))
             throw new IllegalArgumentException("That id is already taken");
         this.id = id;
         this.rarity = rarity;
-        blockDatas = new BlockData[16][16][16];
+        clear();
         instances.put(id, this);
+        if (id >= palette.length)
+            palette = Arrays.copyOf(palette, Math.max(id + 1, palette.length * 2));
+        palette[id] = this;
         if (fillWithAir)
             fill(Material.AIR);
     }
@@ -75,17 +103,81 @@ public class CubicChunk implements Iterable<BlockData> {
      * @param material the {@link Material} to fill with
      */
     public void fill(Material material) {
-        for (byte x = 0; x < 16; x++) {
-            blockDatas[x] = new BlockData[16][16];
-            for (byte y = 0; y < 16; y++) {
-                blockDatas[x][y] = new BlockData[16];
-                Arrays.fill(blockDatas[x][y], Bukkit.createBlockData(material));
+        fill(Bukkit.createBlockData(material));
+    }
+
+    /**
+     * Fills all 4096 minecraft blocs (16x16x16) with the same {@link BlockData}. The palette is then only that
+     * {@link BlockData}.
+     */
+    public void fill(@Nullable BlockData blockData) {
+        if (deferred) {
+            synchronized (this) {
+                if (!materializing) deferred = false; // everything is replaced anyway
+            }
+        }
+        clear();
+        if (blockData == null) return;
+        int paletteIndex = paletteIndexOf(blockData);
+        int perLong = 64 / bits;
+        long word = 0;
+        for (int i = 0; i < perLong; i++) {
+            word |= (long) paletteIndex << (i * bits);
+        }
+        Arrays.fill(packedIndexes, word);
+    }
+
+    /**
+     * Removes all blocs and empties the palette
+     */
+    private void clear() {
+        blockPalette = new BlockData[1 << MIN_BITS];
+        paletteSize = 1;
+        paletteIndexes.clear();
+        bits = MIN_BITS;
+        packedIndexes = new long[VOLUME / (64 / bits)];
+    }
+
+    /**
+     * Tells that the blocs of this chunk will only be set by {@link #materialize()}, the first time they are needed
+     * (when a bloc is read or set). Call it from the constructor of a subclass, so for exemple templates loaded from
+     * files only take memory once they are really placed somewhere.
+     */
+    protected final void deferBlocks() {
+        deferred = true;
+    }
+
+    /**
+     * Sets the blocs of a chunk that {@link #deferBlocks() deferred} them. This is called only once, before the first
+     * access to the blocs. The default implementation does nothing.
+     */
+    protected void materialize() {
+    }
+
+    /**
+     * @return {@code false} if the blocs were {@link #deferBlocks() deferred} and are not there yet
+     */
+    public boolean isMaterialized() {
+        return !deferred;
+    }
+
+    private void materializeIfNeeded() {
+        if (!deferred) return;
+        synchronized (this) {
+            // materialize() sets blocs, so it comes back here
+            if (!deferred || materializing) return;
+            materializing = true;
+            try {
+                materialize();
+                deferred = false;
+            } finally {
+                materializing = false;
             }
         }
     }
 
     public @Nullable static CubicChunk getInstance(int id) {
-        return instances.get(id);
+        return id >= 0 && id < palette.length ? palette[id] : null;
     }
 
     public @NotNull static CubicChunk getInstanceOrNew(int id) {
@@ -93,11 +185,31 @@ public class CubicChunk implements Iterable<BlockData> {
     }
 
     public @NotNull static CubicChunk getInstanceOrNew(int id, float rarity) {
-        CubicChunk candidate = instances.get(id);
+        CubicChunk candidate = getInstance(id);
         if (candidate != null) return candidate;
         return new CubicChunk(id, rarity, true);
     }
 
+    /**
+     * @return the greatest id of all instances, so all ids are in the range [0; maxId()]
+     */
+    public static int maxId() {
+        return instances.lastKey();
+    }
+
+    /**
+     * @return the greatest {@link Rule#reach() reach} of the rules of all instances, or -1 if it is unknown
+     */
+    public static int maxReach() {
+        int reach = 0;
+        for (CubicChunk chunk : instances.values()) {
+            int chunkReach = chunk.rules.reach();
+            if (chunkReach == -1) return -1;
+            reach = Math.max(reach, chunkReach);
+        }
+        return reach;
+    }
+
     /**
      * @return all instances of {@link CubicChunk}
      */
@@ -113,18 +225,132 @@ public class CubicChunk implements Iterable<BlockData> {
             throw new IndexOutOfBoundsException("indexes must be be between 0 and 15");
     }
 
-    public void set(BlockData blockData, int x, int y, int z) {
+    private static int index(int x, int y, int z) {
+        return y << 8 | z << 4 | x;
+    }
+
+    public void set(@Nullable BlockData blockData, int x, int y, int z) {
         checkIndex(x, y, z);
-        blockDatas[x][y][z] = blockData;
+        materializeIfNeeded();
+        setPaletteIndex(index(x, y, z), blockData == null ? 0 : paletteIndexOf(blockData));
     }
 
     public void set(Material material, int x, int y, int z) {
         set(Bukkit.createBlockData(material), x, y, z);
     }
 
-    public BlockData get(int x, int y, int z) {
+    public @Nullable BlockData get(int x, int y, int z) {
         checkIndex(x, y, z);
-        return blockDatas[x][y][z];
+        materializeIfNeeded();
+        return blockPalette[getPaletteIndex(index(x, y, z))];
+    }
+
+    /**
+     * Copies the 256 blocs of a Y-layer into {@code destination}, starting at {@code offset}. Blocs are in the order
+     * {@code z << 4 | x}. Null is copied for blocs that were never set.
+     */
+    public void copyLayer(int y, @Nullable BlockData @NotNull [] destination, int offset) {
+        checkIndex(0, y, 0);
+        materializeIfNeeded();
+        unpack(y * LAYER_SIZE, LAYER_SIZE, destination, offset);
+    }
+
+    /**
+     * Copies all 4096 blocs into {@code destination}, starting at {@code offset}. Blocs are in the order
+     * {@code y << 8 | z << 4 | x}, so the same as {@link #copyLayer(int, BlockData[], int)} for each layer.
+     */
+    public void copyTo(@Nullable BlockData @NotNull [] destination, int offset) {
+        materializeIfNeeded();
+        unpack(0, VOLUME, destination, offset);
+    }
+
+    /**
+     * @return the {@link BlockData} if all blocs are the same, so you can copy them all at once
+     */
+    public @Nullable BlockData uniform() {
+        materializeIfNeeded();
+        int first = getPaletteIndex(0);
+        if (first == 0) return null;
+        if (VOLUME % (64 / bits) == 0) {
+            // all longs are full, so they are all equal if all blocs are the same
+            long firstWord = packedIndexes[0];
+            for (long word : packedIndexes) {
+                if (word != firstWord) return null;
+            }
+        } else {
+            for (int i = 1; i < VOLUME; i++) {
+                if (getPaletteIndex(i) != first) return null;
+            }
+        }
+        return blockPalette[first];
+    }
+
+    /**
+     * @return the number of different {@link BlockData}s that were put in this chunk (some may not be used anymore)
+     */
+    public int paletteSize() {
+        materializeIfNeeded();
+        return paletteSize - 1;
+    }
+
+    private void unpack(int from, int length, @Nullable BlockData[] destination, int offset) {
+        if (offset < 0 || offset + length > destination.length)
+            throw new IndexOutOfBoundsException("destination is too small");
+        int perLong = 64 / bits;
+        long mask = (1L << bits) - 1;
+        int wordIndex = from / perLong, shift = (from % perLong) * bits;
+        long word = packedIndexes[wordIndex];
+        for (int i = 0; i < length; i++) {
+            if (shift + bits > 64) {
+                word = packedIndexes[++wordIndex];
+                shift = 0;
+            }
+            destination[offset + i] = blockPalette[(int) (word >>> shift & mask)];
+            shift += bits;
+        }
+    }
+
+    private int getPaletteIndex(int index) {
+        int perLong = 64 / bits;
+        return (int) (packedIndexes[index / perLong] >>> ((index % perLong) * bits) & ((1L << bits) - 1));
+    }
+
+    private void setPaletteIndex(int index, int paletteIndex) {
+        int perLong = 64 / bits;
+        int shift = (index % perLong) * bits;
+        long mask = (1L << bits) - 1;
+        int wordIndex = index / perLong;
+        packedIndexes[wordIndex] = packedIndexes[wordIndex] & ~(mask << shift) | (long) paletteIndex << shift;
+    }
+
+    /**
+     * @return the index of that {@link BlockData} in the palette, adding it (and using more bits per bloc if needed)
+     * if it is not there yet
+     */
+    private int paletteIndexOf(@NotNull BlockData blockData) {
+        Integer existing = paletteIndexes.get(blockData);
+        if (existing != null) return existing;
+        int paletteIndex = paletteSize++;
+        if (paletteIndex == blockPalette.length) {
+            blockPalette = Arrays.copyOf(blockPalette, blockPalette.length * 2);
+        }
+        if (paletteIndex >= 1 << bits) resize(bits + 1);
+        blockPalette[paletteIndex] = blockData;
+        paletteIndexes.put(blockData, paletteIndex);
+        return paletteIndex;
+    }
+
+    private void resize(int newBits) {
+        int oldBits = bits;
+        long[] old = packedIndexes;
+        int oldPerLong = 64 / oldBits;
+        long oldMask = (1L << oldBits) - 1;
+        bits = newBits;
+        int perLong = 64 / newBits;
+        packedIndexes = new long[(VOLUME + perLong - 1) / perLong];
+        for (int i = 0; i < VOLUME; i++) {
+            setPaletteIndex(i, (int) (old[i / oldPerLong] >>> ((i % oldPerLong) * oldBits) & oldMask));
+        }
     }
 
     public int getId() {
@@ -132,30 +358,24 @@ public class CubicChunk implements Iterable<BlockData> {
     }
 
     /**
-     * Iterates over all 4096 blocs
+     * Iterates over all 4096 blocs, in the order of {@link #copyTo(BlockData[], int)}
      */
     @NotNull
     @Override
-    public Iterator<@NotNull BlockData> iterator() {
+    public Iterator<@Nullable BlockData> iterator() {
+        materializeIfNeeded();
         return new Iterator<BlockData>() {
-            private int x, y, z;
+            private int index;
 
             @Override
             public boolean hasNext() {
-                return x < 16 && y < 16 && z < 16;
+                return index < VOLUME;
             }
 
             @Override
-            public @NotNull BlockData next() {
-                if (z == 15) {
-                    y++;
-                    z = 0;
-                }
-                if (y == 15) {
-                    x++;
-                    y = 0;
-                }
-                return blockDatas[x][y][z++];
+            public @Nullable BlockData next() {
+                if (index >= VOLUME) throw new NoSuchElementException();
+                return blockPalette[getPaletteIndex(index++)];
             }
         };
     }
@@ -1,251 +1,900 @@
 package fr.bananasmoothii.rulesgeneration.chunks;
 
+import fr.bananasmoothii.rulesgeneration.CoordinateRandom;
+import fr.bananasmoothii.rulesgeneration.LongObjectHashMap;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+import fr.bananasmoothii.rulesgeneration.rules.RuleDependencyIndex;
+import fr.bananasmoothii.rulesgeneration.rules.RuleList;
+import fr.bananasmoothii.rulesgeneration.rules.RuleResultCache;
+import fr.bananasmoothii.rulesgeneration.solvers.Solver;
+import fr.bananasmoothii.rulesgeneration.solvers.SolverResult;
+import fr.bananasmoothii.rulesgeneration.solvers.WorklistSolver;
 import org.jetbrains.annotations.Contract;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * This is where all {@link CubicChunk} are generated. It acts like a 3-dimensional (x, y and z) auto-extending
- * (you can set and get at any index without worrying about out of bounds exceptions (well there are currently still
- * some out of bounds exceptions that I did not manage to fix)) negative-allowing (index can be negative) list.
+ * (you can set and get at any index without worrying about out of bounds exceptions) negative-allowing (index can be
+ * negative) list. It is stored sparsely in {@link CubicChunkRegion regions} of 16x16x16 cells.
  */
 public class CubicChunkEnvironment implements Iterable<CubicChunkCoords> {
 
     /**
-     * There is a random bound to each instance as there is a random bound to each minecraft world (seed)
+     * There is a seed bound to each instance as there is a seed bound to each minecraft world. All randomness comes
+     * from it and from coordinates, see {@link #randomAt(int, int, int, int)}.
      */
-    public final Random random;
-    private static final HashMap<Random, CubicChunkEnvironment> instances = new HashMap<>();
-    private static int enlargeAtOnce = 10;
+    public final long seed;
+    private final CoordinateRandom random;
+    /** returned by {@link #getId(int, int, int)} when there is nothing */
+    public static final int NO_ID = CubicChunkRegion.EMPTY - 1;
 
-    /** main data */
-    private CubicChunk[][][] cubicChunks;
+    /** what makes rules valid after a change */
+    private Solver solver;
+    /** see {@link #setRuleCacheCapacity(int)} */
+    private @Nullable RuleResultCache ruleCache;
+    /** see {@link #setGenerationOrder(GenerationOrder)} */
+    private GenerationOrder generationOrder = GenerationOrder.SHELLS;
+    /** changes that can be undone, see {@link #setUndoable(CubicChunk, int, int, int)} */
+    private final UndoTrail trail = new UndoTrail(this);
+
+    /** main data, only the regions where something was set exist. See {@link CubicChunkRegion#key(int, int, int)} */
+    private final LongObjectHashMap<CubicChunkRegion> regions;
+    /** where regions that are not in {@link #regions} yet can be read from */
+    private @Nullable RegionFileStorage storage;
+    /** the region that was used last, because most of the time the next access is right next to the previous one */
+    private @Nullable CubicChunkRegion lastRegion;
+    /** see {@link #modificationStamp()} */
+    private long modificationStamp;
+    /** see {@link #regionsReplaced()} */
+    private long regionsReplacedAt;
+    /** number of {@link #beginTemporary()} without their {@link #endTemporary()} */
+    private int temporaryDepth;
+    /** see {@link #enableStreaming(RegionFileStorage, long)}, 0 while streaming is off */
+    private long memoryBudget;
+    /** see {@link #residentMemory()}, kept up to date when regions come, go and grow */
+    private long residentMemory;
+    /** incremented each time a region is looked up in {@link #regions}, see {@link CubicChunkRegion#lastUse} */
+    private long useClock;
+    /** boxes of regions that are never evicted, 6 ints each (region coordinates, inclusive). See {@link #addAnchor(int, int, int, int)} */
+    private int[] anchors = new int[0];
+    private int anchorCount;
 
     /*
-        The internal working is: when you set or get something at certains coordinates, the coordinates you give are
-        offset by x, y and zOffset. x, y and zMin/Max are to determine when the arrays needs to be copied in larger arrays.
-        It does not mean the array will be copied in a larger one, it just means it will call enlarge... methods. Then,
-        the enlarge... methods will maybe copy the array(s) in larger ones, or do nothing apart saying "hey, you don't
-        need to call me for this index", and this means raising ...Max fields or lowering ...Min fields.
-     */
-    private int xOffset, yOffset, zOffset,
-                xMin, yMin, zMin, // inclusive
-                xMax, yMax, zMax, // inclusive too
-                // these are always equal to cubicChunks.length, cubicChunks[0].length and cubicChunks[0][0].length
-                xArraySize, yArraySize, zArraySize;
+        x, y and zMin/Max are the bounds of everything that was ever set in this environment, they are used for
+        iterating. They don't mean anything while isEmpty is true. The storage itself doesn't need them: it is made of
+        regions (pages) of 16x16x16 cells that are created only when something is set inside, so growing in any
+        direction just means putting one more region in the map.
+     */
+    private boolean isEmpty = true;
+    private int xMin, yMin, zMin, // inclusive
+                xMax, yMax, zMax; // inclusive too
+
+    /**
+     * slot ({@link CubicChunk#getId() id} + 1) -> index of the prefix sums in regions, or -1 if that slot is not
+     * counted. See {@link #count(int, int, int, int, int, int, int)}
+     */
+    private volatile int[] trackedIndexes = new int[0];
+    private int trackedCount;
+    /** same as {@link #trackedIndexes}, for the occupancy planes. See {@link #row(int, int, int, int)} */
+    private volatile int[] planeIndexes = new int[0];
+    private int planeCount;
+
+    /**
+     * x, y, z and previous slot of the cells that changed since they were last validated, see
+     * {@link #validateDirty()}. A cell is only once in there thanks to the dirty bits of the regions, with the slot it
+     * had before its first change.
+     */
+    private int[] dirtyCells = new int[4 * 64];
+    private int dirtyCount;
 
     public CubicChunkEnvironment() {
-        this(new Random());
+        this(new Random().nextLong());
     }
 
-    public CubicChunkEnvironment(Random random) {
-        this(random, 16);
+    public CubicChunkEnvironment(long seed) {
+        this(seed, 16);
     }
 
-    public CubicChunkEnvironment(Random random, int ySize) {
-        this(random, ySize, 50);
+    public CubicChunkEnvironment(long seed, int ySize) {
+        this(seed, ySize, 50);
     }
 
     /**
-     * @param ySize the height of this environment
-     * @param size the length en width of this environment
+     * The sizes are only a hint for how many regions will be needed, the environment grows anyway.
+     * @param ySize the expected height of this environment
+     * @param size the expected length en width of this environment
      */
-    public CubicChunkEnvironment(Random random, int ySize, int size) {
-        instances.put(random, this);
-        this.random = random;
-        xArraySize = size; yArraySize = ySize; zArraySize = size;
-        cubicChunks = new CubicChunk[xArraySize][ySize][zArraySize];
-        int halfSize = size / 2;
-        xOffset = halfSize; yOffset = 0; zOffset = halfSize;
+    public CubicChunkEnvironment(long seed, int ySize, int size) {
+        this.seed = seed;
+        random = new CoordinateRandom(seed);
+        int horizontalRegions = (size + CubicChunkRegion.MASK) >> CubicChunkRegion.SHIFT,
+            verticalRegions = (ySize + CubicChunkRegion.MASK) >> CubicChunkRegion.SHIFT;
+        regions = new LongObjectHashMap<>(horizontalRegions * horizontalRegions * verticalRegions);
+        solver = new WorklistSolver(this);
     }
 
-    public static CubicChunkEnvironment withSeed(Random random) {
-        return withSeed(random, 16);
+    /**
+     * Random values for something happening at x, y, z. They only depend on the {@link #seed}, the coordinates, the
+     * number of {@link Solver#getSteps() steps} of the solver and the stream, so the result of a generation doesn't
+     * depend on what was generated before somewhere else, or on the thread doing it.
+     * <p>
+     * The same {@link Random} is returned each time, so use it right away: the next call starts another sequence.
+     * @param stream a different number for each different use at the same place, so they don't get the same values
+     */
+    public Random randomAt(int x, int y, int z, int stream) {
+        return random.at(x, y, z, solver.getSteps() << 3 ^ stream);
     }
 
-    public static CubicChunkEnvironment withSeed(Random random, int ySize) {
-        return withSeed(random, ySize, 50);
+    /**
+     * @return the region containing that cell, or {@code null} if there is nothing there
+     */
+    @Nullable CubicChunkRegion getRegion(int x, int y, int z) {
+        int regionX = x >> CubicChunkRegion.SHIFT, regionY = y >> CubicChunkRegion.SHIFT, regionZ = z >> CubicChunkRegion.SHIFT;
+        CubicChunkRegion region = lastRegion;
+        if (region != null && region.regionX == regionX && region.regionY == regionY && region.regionZ == regionZ)
+            return region;
+        region = getRegionByKey(CubicChunkRegion.key(regionX, regionY, regionZ));
+        if (region != null) lastRegion = region;
+        return region;
     }
 
-    public static CubicChunkEnvironment withSeed(Random random, int ySize, int size) {
-        @Nullable CubicChunkEnvironment candidate = instances.get(random);
-        if (candidate != null) return candidate;
-        else return new CubicChunkEnvironment(random, ySize, size);
+    /**
+     * @return the region of that {@link CubicChunkRegion#key(int, int, int) key}, read from the {@link #storage} if
+     * it is not loaded yet, or {@code null} if there is nothing there
+     */
+    @Nullable CubicChunkRegion getRegionByKey(long key) {
+        CubicChunkRegion region = regions.get(key);
+        if (region == null && storage != null) {
+            region = storage.loadRegion(key);
+            if (region != null) {
+                if (region.isEmpty()) return null;
+                regions.put(key, region);
+                adopt(region);
+                for (int slot = 0; slot < trackedIndexes.length; slot++) {
+                    if (trackedIndexes[slot] != -1) region.buildCounts(trackedIndexes[slot], slot);
+                }
+                for (int slot = 0; slot < planeIndexes.length; slot++) {
+                    if (planeIndexes[slot] != -1) region.buildPlane(planeIndexes[slot], slot);
+                }
+            }
+        }
+        if (region != null) region.lastUse = ++useClock;
+        return region;
     }
 
-    public @Nullable CubicChunk get(int x, int y, int z) {
-        try {
-            return cubicChunks[x + xOffset][y + yOffset][z + zOffset];
-        } catch (IndexOutOfBoundsException e) {
-            return null;
+    /**
+     * Loads all regions from the {@link #storage} that are not loaded yet
+     */
+    void loadAllRegions() {
+        if (storage == null) return;
+        for (long key : storage.unloadedKeys()) {
+            getRegionByKey(key);
+        }
+    }
+
+    void setStorage(@Nullable RegionFileStorage storage) {
+        this.storage = storage;
+        regionsReplaced();
+    }
+
+    /**
+     * @return the {@link RegionFileStorage} this environment was loaded from or is {@link #enableStreaming(RegionFileStorage, long) streaming} to, or {@code null}
+     */
+    public @Nullable RegionFileStorage getStorage() {
+        return storage;
+    }
+
+    /**
+     * @return the loaded regions
+     */
+    LongObjectHashMap<CubicChunkRegion> regions() {
+        return regions;
+    }
+
+    /**
+     * @return {@code true} if nothing was ever set in this environment
+     */
+    public boolean isEmpty() {
+        return isEmpty;
+    }
+
+    /**
+     * @return xMin, yMin, zMin, xMax, yMax, zMax, all inclusive. Meaningless if {@link #isEmpty()}
+     */
+    public int[] bounds() {
+        return new int[] {xMin, yMin, zMin, xMax, yMax, zMax};
+    }
+
+    /**
+     * @param bounds as returned by {@link #bounds()}
+     */
+    void restoreBounds(boolean isEmpty, int[] bounds) {
+        this.isEmpty = isEmpty;
+        xMin = bounds[0];
+        yMin = bounds[1];
+        zMin = bounds[2];
+        xMax = bounds[3];
+        yMax = bounds[4];
+        zMax = bounds[5];
+    }
+
+    /**
+     * @return the region containing that cell, created if needed
+     */
+    CubicChunkRegion getOrCreateRegion(int x, int y, int z) {
+        CubicChunkRegion region = getRegion(x, y, z);
+        if (region == null) {
+            region = new CubicChunkRegion(x >> CubicChunkRegion.SHIFT, y >> CubicChunkRegion.SHIFT, z >> CubicChunkRegion.SHIFT);
+            region.lastUse = ++useClock;
+            regions.put(CubicChunkRegion.key(region.regionX, region.regionY, region.regionZ), region);
+            adopt(region);
+            lastRegion = region;
+            GenerationMetrics.regionCreated();
         }
+        return region;
+    }
+
+    public @Nullable CubicChunk get(int x, int y, int z) {
+        CubicChunkRegion region = getRegion(x, y, z);
+        if (region == null) return null;
+        return region.get(CubicChunkRegion.index(x, y, z));
+    }
+
+    /**
+     * @return the {@link CubicChunk#getId() id} of the {@link CubicChunk} at these coordinates, or {@link #NO_ID} if
+     * there is nothing there. This doesn't need to look up the {@link CubicChunk} so it is a bit faster than
+     * {@link #get(int, int, int)}.
+     */
+    public int getId(int x, int y, int z) {
+        CubicChunkRegion region = getRegion(x, y, z);
+        if (region == null) return NO_ID;
+        return region.getSlot(CubicChunkRegion.index(x, y, z)) - 1;
     }
 
     public void set(@Nullable CubicChunk chunk, int x, int y, int z) {
-        ensureCapacityForElement(x, y, z);
-        cubicChunks[x + xOffset][y + yOffset][z + zOffset] = chunk;
+        setSlot(x, y, z, CubicChunkRegion.slotOf(chunk));
     }
 
-    public void set(CubicChunkCoords chunkCoords) {
-        set(chunkCoords.cubicChunk, chunkCoords.x, chunkCoords.y, chunkCoords.z);
+    /**
+     * Same as {@link #set(CubicChunk, int, int, int)}, but the change is recorded in the {@link #getTrail() trail} so
+     * it can be undone. During a {@link UndoTrail#markTrial() trial}, the change is
+     * {@link #setSlotTemporarily(int, int, int, int) temporary}.
+     */
+    public void setUndoable(@Nullable CubicChunk chunk, int x, int y, int z) {
+        int slot = CubicChunkRegion.slotOf(chunk);
+        if (temporaryDepth == 0) trail.record(x, y, z, setSlot(x, y, z, slot), false);
+        else trail.record(x, y, z, setSlot(x, y, z, slot, false), true);
     }
 
     /**
-     * Ensures that an element can be set at the given coordinates
+     * @return the previous slot
      */
-    public void ensureCapacityForElement(int x, int y, int z) {
-        if (x < xMin) {
-            enlargeX(x - xMin); // = -(xMin - x)
-        } else if (x > xMax) {
-            enlargeX(x - xMax);
-        }
-        if (y < yMin) {
-            enlargeY(y - yMin); // = -(yMin - y)
-        } else if (y > xMax) {
-            enlargeY(y - yMax);
-        }
-        if (z < zMin) {
-            enlargeZ(z - zMin); // = -(zMin - z)
-        } else if (z > zMax) {
-            enlargeZ(z - zMax);
-        }
-    }
-
-    void enlargeX(final int addingSpace) {
-        final int totalAddingSpace = Math.abs(addingSpace) + enlargeAtOnce;
-        if (addingSpace < 0) {
-            if (xMin + addingSpace + xOffset < 0) {
-                CubicChunk[][][] old = cubicChunks;
-                cubicChunks = new CubicChunk[xArraySize + totalAddingSpace][yArraySize][zArraySize];
-                System.arraycopy(old, 0, cubicChunks, totalAddingSpace, xArraySize);
-                xArraySize += totalAddingSpace;
-                xOffset += totalAddingSpace;
-            }
-            xMin += addingSpace; // so xMin -= abs(addingSpace)
-        } else if (addingSpace > 0) {
-            if (xMax + addingSpace + xOffset >= xArraySize) {
-                CubicChunk[][][] old = cubicChunks;
-                cubicChunks = new CubicChunk[xArraySize + totalAddingSpace][yArraySize][zArraySize];
-                System.arraycopy(old, 0, cubicChunks, 0, xArraySize);
-                xArraySize += totalAddingSpace;
+    int setSlot(int x, int y, int z, int slot) {
+        return setSlot(x, y, z, slot, true);
+    }
+
+    /**
+     * For trying something that is put back right after, between {@link #beginTemporary()} and
+     * {@link #endTemporary()}: the cell is not dirty, it doesn't change the bounds or the
+     * {@link #modificationStamp() stamp}, it is not counted in the metrics and regions that had lasting changes are not
+     * removed. Only the counts
+     * and the planes are updated, so rules give the right results in the meantime.
+     * @return the previous slot
+     */
+    int setSlotTemporarily(int x, int y, int z, int slot) {
+        if (temporaryDepth == 0) throw new IllegalStateException("temporary change outside of beginTemporary()");
+        return setSlot(x, y, z, slot, false);
+    }
+
+    /**
+     * Starts a time where {@link #setSlotTemporarily(int, int, int, int) temporary changes} can be made. Until
+     * {@link #endTemporary()}, the {@link #getRuleCache() rule cache} is not used, as temporary changes don't change the
+     * stamp it relies on.
+     */
+    void beginTemporary() {
+        temporaryDepth++;
+    }
+
+    /**
+     * Ends what {@link #beginTemporary()} started, all temporary changes must have been put back
+     */
+    void endTemporary() {
+        if (temporaryDepth == 0) throw new IllegalStateException("endTemporary() without beginTemporary()");
+        temporaryDepth--;
+    }
+
+    private int setSlot(int x, int y, int z, int slot, boolean lasting) {
+        CubicChunkRegion region;
+        if (slot == CubicChunkRegion.EMPTY) {
+            region = getRegion(x, y, z);
+            if (region == null) return CubicChunkRegion.EMPTY; // already nothing there
+        } else {
+            region = getOrCreateRegion(x, y, z);
+            if (lasting) includeInBounds(x, y, z);
+        }
+        int index = CubicChunkRegion.index(x, y, z);
+        int old = region.setSlot(index, slot);
+        if (lasting && old != slot) {
+            region.touch(index, nextStamp());
+            if (region.markDirty(index)) addDirty(x, y, z, old);
+            if (slot != CubicChunkRegion.EMPTY) GenerationMetrics.cellPlaced();
+        }
+        if (trackedCount != 0 && old != slot) {
+            int tracked = trackedIndex(old);
+            if (tracked != -1) region.addToCounts(tracked, index, -1);
+            tracked = trackedIndex(slot);
+            if (tracked != -1) region.addToCounts(tracked, index, 1);
+        }
+        if (planeCount != 0 && old != slot) {
+            int plane = planeIndex(old);
+            if (plane != -1) region.setInPlane(plane, index, false);
+            plane = planeIndex(slot);
+            if (plane != -1) region.setInPlane(plane, index, true);
+        }
+        if (region.isEmpty()) {
+            if (lasting) {
+                removeRegion(region);
+                regionsReplaced();
+            } else if (storage == null && region.neverChanged()) {
+                removeRegion(region); // it only existed for temporary changes, nothing depends on it
             }
-            xMax += addingSpace;
         }
+        return old;
     }
 
-    void enlargeY(final int addingSpace) {
-        final int totalAddingSpace = Math.abs(addingSpace) + enlargeAtOnce;
-        if (addingSpace < 0) {
-            if (yMin + addingSpace + yOffset < 0) {
-                for (int x = 0; x < xArraySize; x++) {
-                    CubicChunk[][] old = cubicChunks[x];
-                    cubicChunks[x] = new CubicChunk[yArraySize + totalAddingSpace][zArraySize];
-                    System.arraycopy(old, 0, cubicChunks[x], totalAddingSpace, yArraySize);
-                }
-                yArraySize += totalAddingSpace;
-                yOffset += totalAddingSpace;
-            }
-            yMin += addingSpace;
-        } else if (addingSpace > 0) {
-            if (yMax + addingSpace + yOffset >= yArraySize) {
-                for (int x = 0; x < xArraySize; x++) {
-                    CubicChunk[][] old = cubicChunks[x];
-                    cubicChunks[x] = new CubicChunk[yArraySize + totalAddingSpace][zArraySize];
-                    System.arraycopy(old, 0, cubicChunks[x], 0, yArraySize);
+    /**
+     * Forgets that region, because it is empty or was evicted
+     */
+    void removeRegion(CubicChunkRegion region) {
+        regions.remove(CubicChunkRegion.key(region.regionX, region.regionY, region.regionZ));
+        if (lastRegion == region) lastRegion = null;
+        if (region.owner == this) {
+            residentMemory -= region.memoryUsage();
+            region.owner = null;
+        }
+    }
+
+    /**
+     * Starts counting a region that was just put in {@link #regions} in {@link #residentMemory()}
+     */
+    private void adopt(CubicChunkRegion region) {
+        region.owner = this;
+        residentMemory += region.memoryUsage();
+    }
+
+    /**
+     * @see CubicChunkRegion#owner
+     */
+    void regionGrew(long bytes) {
+        residentMemory += bytes;
+    }
+
+    /**
+     * @return a number that grows each time a cell changes, not counting temporary changes
+     * @see #changedSince(long, int, int, int, int, int, int)
+     */
+    public long modificationStamp() {
+        return modificationStamp;
+    }
+
+    /**
+     * @return the stamp of a change that was just made, after the cell was changed
+     */
+    long nextStamp() {
+        return ++modificationStamp;
+    }
+
+    /**
+     * To call when a region disappeared or could come from somewhere else, that may change anything, so
+     * {@link #changedSince(long, int, int, int, int, int, int)} says yes to every older stamp
+     */
+    void regionsReplaced() {
+        regionsReplacedAt = nextStamp();
+    }
+
+    /**
+     * @return the stamp given by the last {@link #regionsReplaced()}
+     */
+    long regionsReplacedAt() {
+        return regionsReplacedAt;
+    }
+
+    /**
+     * Tells if something may have changed in that box (all inclusive) since {@link #modificationStamp()} returned
+     * that stamp. It can say {@code true} when nothing changed, as it is precise to blocks of 4x4x4 cells only, but
+     * never {@code false} when something changed. It costs a few region lookups, so it is for things that are more
+     * expensive to compute again, like the {@link RuleResultCache}.
+     */
+    public boolean changedSince(long stamp, int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        if (regionsReplacedAt() > stamp) return true;
+        for (int regionX = xFrom >> CubicChunkRegion.SHIFT; regionX <= xTo >> CubicChunkRegion.SHIFT; regionX++) {
+            int x = regionX << CubicChunkRegion.SHIFT;
+            int localXFrom = Math.max(xFrom, x) & CubicChunkRegion.MASK, localXTo = Math.min(xTo, x + CubicChunkRegion.MASK) & CubicChunkRegion.MASK;
+            for (int regionY = yFrom >> CubicChunkRegion.SHIFT; regionY <= yTo >> CubicChunkRegion.SHIFT; regionY++) {
+                int y = regionY << CubicChunkRegion.SHIFT;
+                int localYFrom = Math.max(yFrom, y) & CubicChunkRegion.MASK, localYTo = Math.min(yTo, y + CubicChunkRegion.MASK) & CubicChunkRegion.MASK;
+                for (int regionZ = zFrom >> CubicChunkRegion.SHIFT; regionZ <= zTo >> CubicChunkRegion.SHIFT; regionZ++) {
+                    int z = regionZ << CubicChunkRegion.SHIFT;
+                    CubicChunkRegion region = getRegion(x, y, z);
+                    if (region != null && changedSince(region, stamp, localXFrom, localYFrom, Math.max(zFrom, z) & CubicChunkRegion.MASK,
+                            localXTo, localYTo, Math.min(zTo, z + CubicChunkRegion.MASK) & CubicChunkRegion.MASK)) {
+                        return true;
+                    }
                 }
-                yArraySize += totalAddingSpace;
             }
-            yMax += addingSpace;
         }
+        return false;
     }
 
-    void enlargeZ(final int addingSpace) {
-        final int totalAddingSpace = Math.abs(addingSpace) + enlargeAtOnce;
-        if (addingSpace < 0) {
-            if (zMin + addingSpace + zOffset < 0) {
-                for (int x = 0; x < xArraySize; x++) {
-                    for (int y = 0; y < yArraySize; y++) {
-                        CubicChunk[] old = cubicChunks[x][y];
-                        cubicChunks[x][y] = new CubicChunk[zArraySize + totalAddingSpace];
-                        System.arraycopy(old, 0, cubicChunks[x][y], totalAddingSpace, zArraySize);
-                    }
+    /**
+     * {@link CubicChunkRegion#changedSince(long, int, int, int, int, int, int)} of that region. What reads a region of
+     * this environment (its slots, counts or planes) goes through methods like this one, so that
+     * {@link ConcurrentCubicChunkEnvironment} can lock it.
+     */
+    boolean changedSince(CubicChunkRegion region, long stamp, int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        return region.changedSince(stamp, xFrom, yFrom, zFrom, xTo, yTo, zTo);
+    }
+
+    public void set(CubicChunkCoords chunkCoords) {
+        set(chunkCoords.cubicChunk, chunkCoords.x, chunkCoords.y, chunkCoords.z);
+    }
+
+    void addDirty(int x, int y, int z, int oldSlot) {
+        int i = dirtyCount * 4;
+        if (i == dirtyCells.length) dirtyCells = Arrays.copyOf(dirtyCells, dirtyCells.length << 1);
+        dirtyCells[i] = x;
+        dirtyCells[i + 1] = y;
+        dirtyCells[i + 2] = z;
+        dirtyCells[i + 3] = oldSlot;
+        dirtyCount++;
+    }
+
+    /**
+     * @return the number of cells that changed since they were last validated
+     */
+    public int dirtyCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * Forgets which cells changed, as if they were all validated
+     */
+    public void clearDirty() {
+        for (int i = 0; i < dirtyCount * 4; i += 4) {
+            CubicChunkRegion region = getRegion(dirtyCells[i], dirtyCells[i + 1], dirtyCells[i + 2]);
+            if (region != null) region.clearDirty(CubicChunkRegion.index(dirtyCells[i], dirtyCells[i + 1], dirtyCells[i + 2]));
+        }
+        dirtyCount = 0;
+    }
+
+    /**
+     * Same as {@link #clearDirty()}, but the dirty cells are copied first
+     * @return x, y, z and previous slot of each dirty cell
+     */
+    int[] takeDirty() {
+        int[] cells = Arrays.copyOf(dirtyCells, dirtyCount * 4);
+        clearDirty();
+        return cells;
+    }
+
+    /**
+     * Ensures that an element can be set at the given coordinates without having to allocate anything then.
+     */
+    public void ensureCapacityForElement(int x, int y, int z) {
+        getOrCreateRegion(x, y, z);
+    }
+
+    void includeInBounds(int x, int y, int z) {
+        if (isEmpty) {
+            xMin = xMax = x;
+            yMin = yMax = y;
+            zMin = zMax = z;
+            isEmpty = false;
+            return;
+        }
+        if (x >= xMin && x <= xMax && y >= yMin && y <= yMax && z >= zMin && z <= zMax) return;
+        GenerationMetrics.boundsGrown();
+        if (x < xMin) xMin = x;
+        else if (x > xMax) xMax = x;
+        if (y < yMin) yMin = y;
+        else if (y > yMax) yMax = y;
+        if (z < zMin) zMin = z;
+        else if (z > zMax) zMax = z;
+    }
+
+    /**
+     * Counts the cells having a {@link CubicChunk} of that id in a box. The first time you count an id, the
+     * environment starts to keep 3D prefix sums for that id in every region (and updates them on each
+     * {@link #set(CubicChunk, int, int, int) set}), so after that a count only costs a few array reads per region
+     * touched by the box, whatever its size. Empty cells ({@link #NO_ID}) are counted with the occupancy bitboards of
+     * {@link #row(int, int, int, int)} instead.
+     * @return the number of cells containing the {@link CubicChunk} with that id in [xFrom; xTo] x [yFrom; yTo] x
+     * [zFrom; zTo] (all inclusive)
+     */
+    public int count(int id, int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        int slot = id + 1;
+        int tracked = -1; // empty cells are counted with the occupancy bitboards instead
+        if (slot != CubicChunkRegion.EMPTY) {
+            tracked = trackedIndex(slot);
+            if (tracked == -1) tracked = track(slot);
+        }
+        int result = 0;
+        for (int regionX = xFrom >> CubicChunkRegion.SHIFT; regionX <= xTo >> CubicChunkRegion.SHIFT; regionX++) {
+            int x0 = Math.max(xFrom - (regionX << CubicChunkRegion.SHIFT), 0),
+                x1 = Math.min(xTo - (regionX << CubicChunkRegion.SHIFT), CubicChunkRegion.MASK);
+            for (int regionY = yFrom >> CubicChunkRegion.SHIFT; regionY <= yTo >> CubicChunkRegion.SHIFT; regionY++) {
+                int y0 = Math.max(yFrom - (regionY << CubicChunkRegion.SHIFT), 0),
+                    y1 = Math.min(yTo - (regionY << CubicChunkRegion.SHIFT), CubicChunkRegion.MASK);
+                for (int regionZ = zFrom >> CubicChunkRegion.SHIFT; regionZ <= zTo >> CubicChunkRegion.SHIFT; regionZ++) {
+                    CubicChunkRegion region = getRegionByKey(CubicChunkRegion.key(regionX, regionY, regionZ));
+                    int z0 = Math.max(zFrom - (regionZ << CubicChunkRegion.SHIFT), 0),
+                        z1 = Math.min(zTo - (regionZ << CubicChunkRegion.SHIFT), CubicChunkRegion.MASK);
+                    if (region != null) result += count(region, tracked, x0, y0, z0, x1, y1, z1);
+                    else if (tracked == -1) result += (x1 - x0 + 1) * (y1 - y0 + 1) * (z1 - z0 + 1);
                 }
-                zArraySize += totalAddingSpace;
-                zOffset += totalAddingSpace;
             }
-            zMin -= addingSpace;
-        } else if (addingSpace > 0) {
-            if (zMax + addingSpace + zOffset >= zArraySize) {
-                for (int x = 0; x < xArraySize; x++) {
-                    for (int y = 0; y < yArraySize; y++) {
-                        CubicChunk[] old = cubicChunks[x][y];
-                        cubicChunks[x][y] = new CubicChunk[zArraySize + totalAddingSpace];
-                        System.arraycopy(old, 0, cubicChunks[x][y], 0, zArraySize);
+        }
+        return result;
+    }
+
+    /**
+     * @see #changedSince(CubicChunkRegion, long, int, int, int, int, int, int)
+     */
+    int count(CubicChunkRegion region, int tracked, int x0, int y0, int z0, int x1, int y1, int z1) {
+        if (tracked == -1) return region.countEmpty(x0, y0, z0, x1, y1, z1);
+        return region.count(tracked, x0, y0, z0, x1, y1, z1);
+    }
+
+    int trackedIndex(int slot) {
+        int[] trackedIndexes = this.trackedIndexes;
+        return slot < trackedIndexes.length ? trackedIndexes[slot] : -1;
+    }
+
+    /**
+     * Starts tracking the number of cells of that slot
+     * @return the tracked index
+     */
+    int track(int slot) {
+        if (slot >= trackedIndexes.length) {
+            int oldLength = trackedIndexes.length;
+            int[] grown = Arrays.copyOf(trackedIndexes, Math.max(slot + 1, oldLength * 2));
+            Arrays.fill(grown, oldLength, grown.length, -1);
+            trackedIndexes = grown;
+        }
+        int tracked = trackedCount++;
+        trackedIndexes[slot] = tracked;
+        LongObjectHashMap<CubicChunkRegion> regions = regions();
+        for (int i = 0; i < regions.capacity(); i++) {
+            CubicChunkRegion region = regions.valueAt(i);
+            if (region != null) region.buildCounts(tracked, slot);
+        }
+        return tracked;
+    }
+
+    /**
+     * Bitboard of a row of 64 cells along z. The first time a row of an id is asked, the environment starts to keep
+     * occupancy planes for that id in every region (16 bits per row of a region, updated on each
+     * {@link #set(CubicChunk, int, int, int) set}), so after that a row only costs 4 or 5 region lookups. Rules can
+     * then be tested for the 64 cells at once with shifts and masks, see
+     * {@link fr.bananasmoothii.rulesgeneration.rules.CompiledRule#testRow(CubicChunkEnvironment, int, int, int, long)}.
+     * @param id the {@link CubicChunk#getId() id}, or {@link #NO_ID} for empty cells
+     * @return a {@code long} where bit i is set if the cell x, y, zFrom + i has that id
+     */
+    public long row(int id, int x, int y, int zFrom) {
+        int slot = id + 1;
+        int plane = -1;
+        if (slot != CubicChunkRegion.EMPTY) {
+            plane = planeIndex(slot);
+            if (plane == -1) plane = trackPlane(slot);
+        }
+        long result = 0;
+        for (int regionZ = zFrom >> CubicChunkRegion.SHIFT; regionZ <= (zFrom + 63) >> CubicChunkRegion.SHIFT; regionZ++) {
+            CubicChunkRegion region = getRegion(x, y, regionZ << CubicChunkRegion.SHIFT);
+            long bits;
+            if (region == null) bits = plane == -1 ? 0xFFFF : 0;
+            else bits = row(region, plane, x, y);
+            int shift = (regionZ << CubicChunkRegion.SHIFT) - zFrom;
+            result |= shift >= 0 ? bits << shift : bits >>> -shift;
+        }
+        return result;
+    }
+
+    /**
+     * @param plane -1 for empty cells
+     * @return the 16 bits of that row of the region
+     * @see #changedSince(CubicChunkRegion, long, int, int, int, int, int, int)
+     */
+    long row(CubicChunkRegion region, int plane, int x, int y) {
+        return plane == -1 ? ~region.occupiedRow(x, y) & 0xFFFF : region.row(plane, x, y);
+    }
+
+    int planeIndex(int slot) {
+        int[] planeIndexes = this.planeIndexes;
+        return slot < planeIndexes.length ? planeIndexes[slot] : -1;
+    }
+
+    /**
+     * Starts keeping occupancy planes for that slot
+     * @return the plane index
+     */
+    int trackPlane(int slot) {
+        if (slot >= planeIndexes.length) {
+            int oldLength = planeIndexes.length;
+            int[] grown = Arrays.copyOf(planeIndexes, Math.max(slot + 1, oldLength * 2));
+            Arrays.fill(grown, oldLength, grown.length, -1);
+            planeIndexes = grown;
+        }
+        int plane = planeCount++;
+        planeIndexes[slot] = plane;
+        LongObjectHashMap<CubicChunkRegion> regions = regions();
+        for (int i = 0; i < regions.capacity(); i++) {
+            CubicChunkRegion region = regions.valueAt(i);
+            if (region != null) region.buildPlane(plane, slot);
+        }
+        return plane;
+    }
+
+    @FunctionalInterface
+    public interface CellVisitor {
+        /**
+         * @param id the {@link CubicChunk#getId() id} of what is at x, y, z, or {@link #NO_ID}. Use
+         *           {@link CubicChunk#getInstance(int)} if you need the {@link CubicChunk}.
+         */
+        void visit(int x, int y, int z, int id);
+    }
+
+    /**
+     * Visits every cell in the {@link #bounds() bounds} (all inclusive), empty ones too. Nothing is allocated for each
+     * cell. The order is the memory order: region by region, and x, y, z inside each region, so it is not the order
+     * of {@link #iterator()}. The bounds are the ones at the start, the visitor can change cells.
+     */
+    public void forEach(CellVisitor visitor) {
+        if (isEmpty()) return;
+        int[] bounds = bounds();
+        forEach(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5], false, visitor);
+    }
+
+    /**
+     * Same as {@link #forEach(CellVisitor)} but only in that box (all inclusive)
+     */
+    public void forEach(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo, CellVisitor visitor) {
+        forEach(xFrom, yFrom, zFrom, xTo, yTo, zTo, false, visitor);
+    }
+
+    /**
+     * Same as {@link #forEach(CellVisitor)} but only the cells where there is something. Regions where there is
+     * nothing are skipped entirely.
+     */
+    public void forEachPresent(CellVisitor visitor) {
+        if (isEmpty()) return;
+        int[] bounds = bounds();
+        forEach(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5], true, visitor);
+    }
+
+    /**
+     * Same as {@link #forEachPresent(CellVisitor)} but only in that box (all inclusive)
+     */
+    public void forEachPresent(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo, CellVisitor visitor) {
+        forEach(xFrom, yFrom, zFrom, xTo, yTo, zTo, true, visitor);
+    }
+
+    void forEach(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo, boolean presentOnly, CellVisitor visitor) {
+        for (int regionX = xFrom >> CubicChunkRegion.SHIFT; regionX <= xTo >> CubicChunkRegion.SHIFT; regionX++) {
+            int xStart = Math.max(xFrom, regionX << CubicChunkRegion.SHIFT), xEnd = Math.min(xTo, xStart | CubicChunkRegion.MASK);
+            for (int regionY = yFrom >> CubicChunkRegion.SHIFT; regionY <= yTo >> CubicChunkRegion.SHIFT; regionY++) {
+                int yStart = Math.max(yFrom, regionY << CubicChunkRegion.SHIFT), yEnd = Math.min(yTo, yStart | CubicChunkRegion.MASK);
+                for (int regionZ = zFrom >> CubicChunkRegion.SHIFT; regionZ <= zTo >> CubicChunkRegion.SHIFT; regionZ++) {
+                    int zStart = Math.max(zFrom, regionZ << CubicChunkRegion.SHIFT), zEnd = Math.min(zTo, zStart | CubicChunkRegion.MASK);
+                    CubicChunkRegion region = getRegion(xStart, yStart, zStart);
+                    if (region == null && presentOnly) continue;
+                    for (int x = xStart; x <= xEnd; x++) {
+                        for (int y = yStart; y <= yEnd; y++) {
+                            for (int z = zStart; z <= zEnd; z++) {
+                                int slot = region == null ? CubicChunkRegion.EMPTY : region.getSlot(CubicChunkRegion.index(x, y, z));
+                                if (presentOnly && slot == CubicChunkRegion.EMPTY) continue;
+                                visitor.visit(x, y, z, slot - 1);
+                                // the visitor may have emptied the region (so it is not in the map anymore) or created it
+                                if (region == null || region.isEmpty()) region = getRegion(xStart, yStart, zStart);
+                            }
+                        }
                     }
                 }
-                zArraySize += totalAddingSpace;
             }
-            zMax += addingSpace;
         }
     }
 
     /**
-     * when the arrays need to be enlarged, it will directly grow for example 10, so it hasn't to copy arrays each time.
+     * @return the number of regions of 16x16x16 cells currently allocated
+     */
+    public int regionCount() {
+        return regions.size();
+    }
+
+    /**
+     * @return about how many bytes the regions in memory use. It is a running total, so it costs nothing.
+     */
+    public long residentMemory() {
+        return residentMemory;
+    }
+
+    /**
+     * Streaming mode, for environments that don't fit in memory (like the one of a big survival server). Once the
+     * regions in memory use more than the budget, {@link #evictColdRegions()} writes the least recently used ones to
+     * that storage and forgets them. They are read back transparently the next time something needs them, so rules
+     * looking across the border of an evicted region see the same neighbours as if it was never evicted.
+     * <p>
+     * If this environment was not {@link RegionFileStorage#load(long) loaded} from that storage, what was stored there
+     * is deleted.
+     * @param memoryBudget in bytes, see {@link #residentMemory()}
+     * @throws UncheckedIOException if the storage could not be cleared
+     */
+    public void enableStreaming(RegionFileStorage storage, long memoryBudget) {
+        if (memoryBudget <= 0) throw new IllegalArgumentException("memoryBudget must be positive");
+        if (this.storage != null && this.storage != storage)
+            throw new IllegalStateException("this environment was loaded from another storage");
+        try {
+            storage.bind(this);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (this.storage == null) setStorage(storage);
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Stops evicting regions. Regions that were evicted are still read back when needed.
+     */
+    public void disableStreaming() {
+        memoryBudget = 0;
+    }
+
+    public boolean isStreaming() {
+        return memoryBudget != 0;
+    }
+
+    /**
+     * Regions in that radius around that cell (a player, or where generation is going on) are never
+     * {@link #evictColdRegions() evicted}, even if they were not used for a long time.
+     * @param radius in cells
      */
-    public static void setEnlargeAtOnce(int enlargeAtOnce) {
-        if (enlargeAtOnce < 1) throw new IllegalArgumentException("enlargeAtOnce must be >= 1");
-        CubicChunkEnvironment.enlargeAtOnce = enlargeAtOnce;
+    public void addAnchor(int x, int y, int z, int radius) {
+        if (anchorCount * 6 == anchors.length) anchors = Arrays.copyOf(anchors, Math.max(anchors.length * 2, 6));
+        int i = anchorCount++ * 6;
+        anchors[i] = (x - radius) >> CubicChunkRegion.SHIFT;
+        anchors[i + 1] = (y - radius) >> CubicChunkRegion.SHIFT;
+        anchors[i + 2] = (z - radius) >> CubicChunkRegion.SHIFT;
+        anchors[i + 3] = (x + radius) >> CubicChunkRegion.SHIFT;
+        anchors[i + 4] = (y + radius) >> CubicChunkRegion.SHIFT;
+        anchors[i + 5] = (z + radius) >> CubicChunkRegion.SHIFT;
+    }
+
+    public void clearAnchors() {
+        anchorCount = 0;
+    }
+
+    private boolean isAnchored(CubicChunkRegion region) {
+        for (int i = 0; i < anchorCount * 6; i += 6) {
+            if (region.regionX >= anchors[i] && region.regionY >= anchors[i + 1] && region.regionZ >= anchors[i + 2]
+                    && region.regionX <= anchors[i + 3] && region.regionY <= anchors[i + 4] && region.regionZ <= anchors[i + 5])
+                return true;
+        }
+        return false;
     }
 
     /**
-     * @see #setEnlargeAtOnce(int)
+     * If {@link #enableStreaming(RegionFileStorage, long) streaming} is on and the regions in memory use more than the
+     * budget, writes the least recently used ones to the storage and forgets them, until they use less than 3/4 of the
+     * budget (so it doesn't happen again right after). Regions near an {@link #addAnchor(int, int, int, int) anchor}
+     * and regions with dirty cells (see {@link #validateDirty()}) are kept.
+     * <p>
+     * It is never called during a generation, call it between two, when it doesn't matter if it takes some time.
+     * @return the number of regions evicted
+     * @throws UncheckedIOException if regions could not be written, then nothing is evicted
      */
-    public static int getEnlargeAtOnce() {
-        return enlargeAtOnce;
+    public int evictColdRegions() {
+        if (memoryBudget == 0 || storage == null) return 0;
+        long used = residentMemory();
+        if (used <= memoryBudget) return 0;
+        CubicChunkRegion[] candidates = new CubicChunkRegion[regions.size()];
+        int candidateCount = 0;
+        for (int i = 0; i < regions.capacity(); i++) {
+            CubicChunkRegion region = regions.valueAt(i);
+            if (region != null && !region.hasDirty() && !isAnchored(region)) candidates[candidateCount++] = region;
+        }
+        Arrays.sort(candidates, 0, candidateCount, Comparator.comparingLong(region -> region.lastUse));
+        long target = memoryBudget - memoryBudget / 4;
+        int evicted = 0;
+        while (evicted < candidateCount && used > target) {
+            used -= candidates[evicted++].memoryUsage();
+        }
+        // everything left is anchored or dirty, don't rewrite the index and throw away cached results for nothing
+        if (evicted == 0) return 0;
+        try {
+            storage.evict(this, candidates, evicted);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        for (int i = 0; i < evicted; i++) {
+            removeRegion(candidates[i]);
+        }
+        // a region read back has no stamps, so results computed before can't know if it changed
+        regionsReplaced();
+        GenerationMetrics.regionsEvicted(evicted);
+        return evicted;
     }
 
     /**
      * Iterates over all {@link CubicChunk} but wrapped int {@link CubicChunkCoords} so you can have the coordinates
      * along.
+     * @see #forEach(CellVisitor) forEach, that doesn't allocate anything for each cell
      */
     @NotNull
     @Override
     public Iterator<CubicChunkCoords> iterator() {
+        int[] bounds = bounds();
+        boolean isEmpty = isEmpty();
         return new Iterator<CubicChunkCoords>() {
-            private int currentX = xMin, currentY = yMin, currentZ = zMin;
+            private int currentX = bounds[0], currentY = bounds[1], currentZ = bounds[2];
+            private boolean hasNext = !isEmpty;
 
             @Override
             @Contract(pure = true)
             public boolean hasNext() {
-                return currentZ < zMax && currentY < yMax && currentX < xMax;
+                return hasNext;
             }
 
             @Override
             public CubicChunkCoords next() {
-                if (++currentZ >= zMax) {
-                    currentZ = zMin;
-                    currentY++;
-                }
-                if (currentY >= yMax) {
-                    currentY = yMin;
-                    currentX++;
-                }
-                if (currentX >= xMax) throw new NoSuchElementException();
+                if (!hasNext) throw new NoSuchElementException();
                 CubicChunk c = get(currentX, currentY, currentZ);
-                return new CubicChunkCoords(c, currentX, currentY, currentZ);
+                CubicChunkCoords result = new CubicChunkCoords(c, currentX, currentY, currentZ);
+                // bounds are inclusive
+                if (++currentZ > bounds[5]) {
+                    currentZ = bounds[2];
+                    if (++currentY > bounds[4]) {
+                        currentY = bounds[1];
+                        if (++currentX > bounds[3]) hasNext = false;
+                    }
+                }
+                return result;
             }
         };
     }
 
-    public void generate(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+    /**
+     * Generates everything in that box, in the {@link #getGenerationOrder() generation order} of this environment
+     * @return the worst {@link SolverResult} of all cells generated, generation goes on even if a cell failed
+     */
+    public SolverResult generate(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
         if (xTo <= xFrom || yTo <= yFrom || zTo <= zFrom) throw new IllegalArgumentException("To coordinates must be greater than From coordinates");
+        long start = GenerationMetrics.startTimer();
+        SolverResult result;
+        if (generationOrder == GenerationOrder.MIN_ENTROPY) {
+            result = new MinEntropyGenerator(this, xFrom, yFrom, zFrom, xTo, yTo, zTo).generate();
+        } else {
+            result = generateInShells(xFrom, yFrom, zFrom, xTo, yTo, zTo);
+        }
+        GenerationMetrics.generated(start);
+        return result;
+    }
+
+    /**
+     * @see GenerationOrder#SHELLS
+     */
+    private SolverResult generateInShells(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
         int xMiddle = (xFrom + xTo) / 2, yMiddle = (yFrom + yTo) / 2, zMiddle = (zFrom + zTo) / 2;
-        regenerate(xMiddle, yMiddle, zMiddle);
+        SolverResult result = regenerate(xMiddle, yMiddle, zMiddle);
 
         int maxRadius = xTo - xFrom;
         {
@@ -269,37 +918,183 @@ public class CubicChunkEnvironment implements Iterable<CubicChunkCoords> {
                 for (int y = yMinBound; y <= yMaxBound; y++) {
                     if (x == xMinBound || x == xMaxBound || y == yMinBound || y == yMaxBound) {
                         for (int z = zMinBound; z <= zMaxBound; z++) {
-                            generate(x, y, z);
+                            result = result.worst(generate(x, y, z));
                         }
                     } else {
-                        generate(x, y, zMinBound);
-                        generate(x, y, zMaxBound);
+                        result = result.worst(generate(x, y, zMinBound));
+                        result = result.worst(generate(x, y, zMaxBound));
                     }
                 }
             }
         }
+        return result;
+    }
+
+    /**
+     * Same as {@link #generate(int, int, int, int, int, int)} but using several threads of the
+     * {@link ForkJoinPool#commonPool() common pool}. See {@link #generateParallel(int, int, int, int, int, int, ForkJoinPool)}
+     */
+    public SolverResult generateParallel(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        return generateParallel(xFrom, yFrom, zFrom, xTo, yTo, zTo, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Generates everything in that box (all inclusive) with several threads: the box is cut in blocks that are
+     * generated at the same time, then the borders between blocks are validated again. For the same seed the result
+     * is always the same, no matter how many threads the pool has, but it is not the same result as
+     * {@link #generate(int, int, int, int, int, int)}.
+     * @see ParallelGenerator
+     */
+    public SolverResult generateParallel(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo, ForkJoinPool pool) {
+        return new ParallelGenerator(this, pool).generate(xFrom, yFrom, zFrom, xTo, yTo, zTo);
     }
 
-    public void regenerate(int x, int y, int z) {
+    /**
+     * Puts a random {@link CubicChunk} there and lets the {@link #getSolver() solver} make its rules valid
+     */
+    public SolverResult regenerate(int x, int y, int z) {
         CubicChunk[] allAvailable = CubicChunk.allAvailable().toArray(new CubicChunk[0]);
-        CubicChunk chunk = allAvailable[random.nextInt(allAvailable.length)];
+        // what was there before is part of the attempt, so regenerating again gives something else
+        CubicChunk chunk = allAvailable[random.at(x, y, z, getId(x, y, z)).nextInt(allAvailable.length)];
         set(chunk, x, y, z);
-        chunk.rules.apply(this, x, y, z);
+        return solver.solve(x, y, z);
     }
 
-    public void generate(int x, int y, int z) {
-        if (get(x, y, z) == null) regenerate(x, y, z);
+    /**
+     * {@link #regenerate(int, int, int) regenerates} only if there is nothing there
+     */
+    public SolverResult generate(int x, int y, int z) {
+        if (get(x, y, z) == null) return regenerate(x, y, z);
+        return SolverResult.SOLVED;
     }
 
     /**
      * re-applies all rules everywhere
+     * @return the worst {@link SolverResult} of all cells
+     * @see #validateDirty()
      */
-    public void validateAll() {
-        for (CubicChunkCoords cubicChunkCoords : this) {
-            if (cubicChunkCoords.cubicChunk != null) {
-                cubicChunkCoords.cubicChunk.rules.apply(this, cubicChunkCoords.x, cubicChunkCoords.y, cubicChunkCoords.z);
+    public SolverResult validateAll() {
+        clearDirty();
+        if (isEmpty()) return SolverResult.SOLVED;
+        int[] bounds = bounds();
+        SolverResult result = SolverResult.SOLVED;
+        for (int x = bounds[0]; x <= bounds[3]; x++) {
+            for (int y = bounds[1]; y <= bounds[4]; y++) {
+                for (int zFrom = bounds[2]; zFrom <= bounds[5]; zFrom += 64) {
+                    long invalid = invalidInRow(x, y, zFrom);
+                    while (invalid != 0) {
+                        int i = Long.numberOfTrailingZeros(invalid);
+                        long stamp = modificationStamp();
+                        result = result.worst(solver.solve(x, y, zFrom + i));
+                        long after = -2L << i;
+                        // if the solver changed something, cells after this one may not be valid anymore
+                        invalid = modificationStamp() == stamp ? invalid & after : invalidInRow(x, y, zFrom) & after;
+                    }
+                }
             }
         }
+        return result;
+    }
+
+    /**
+     * Tests the rules of the 64 cells x, y, zFrom + i at once, type by type, with
+     * {@link fr.bananasmoothii.rulesgeneration.rules.CompiledRule#testRow(CubicChunkEnvironment, int, int, int, long)}
+     * @return bit i set if there is something in the cell x, y, zFrom + i and its rules are not valid
+     */
+    private long invalidInRow(int x, int y, int zFrom) {
+        long remaining = ~row(NO_ID, x, y, zFrom);
+        long invalid = 0;
+        while (remaining != 0) {
+            CubicChunk chunk = get(x, y, zFrom + Long.numberOfTrailingZeros(remaining));
+            if (chunk == null) throw new IllegalStateException("occupancy planes out of sync");
+            long ofType = row(chunk.getId(), x, y, zFrom);
+            invalid |= ofType & ~chunk.rules.compiled().testRow(this, x, y, zFrom, ofType);
+            remaining &= ~ofType;
+        }
+        return invalid;
+    }
+
+    /**
+     * Re-applies the rules only where they could have changed: every cell that changed since last time (its "dirty"
+     * cells), and every cell having a rule that looks at a dirty cell and mentions what was there before or what is
+     * there now, found with the {@link RuleDependencyIndex}. So the cost depends on how much changed, not on the size
+     * of the environment. If the reach of a rule is unknown, this is the same as {@link #validateAll()}.
+     * <p>
+     * Cells changed by the solver during this call are dirty again after, as the cells around them were not checked.
+     * @return the worst {@link SolverResult}
+     */
+    public SolverResult validateDirty() {
+        if (dirtyCount() == 0) return SolverResult.SOLVED;
+        RuleDependencyIndex index = RuleDependencyIndex.current();
+        if (index.hasUnknownReach()) return validateAll();
+        int[] cells = takeDirty();
+        SolverResult result = SolverResult.SOLVED;
+        boolean[] queueFull = new boolean[1];
+        for (int i = 0; i < cells.length; i += 4) {
+            int x = cells[i], y = cells[i + 1], z = cells[i + 2];
+            int oldId = cells[i + 3] - 1, newId = getId(x, y, z);
+            if (oldId == newId) continue; // it came back to what it was
+            if (newId != NO_ID && !solver.enqueue(x, y, z)) queueFull[0] = true;
+            index.forEachDependent(this, x, y, z, oldId, newId, (dependentX, dependentY, dependentZ, dependency) -> {
+                if (!solver.enqueue(dependentX, dependentY, dependentZ)) queueFull[0] = true;
+            });
+            result = result.worst(solver.solve());
+            if (queueFull[0]) {
+                result = result.worst(SolverResult.QUEUE_LIMIT_REACHED);
+                queueFull[0] = false;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the {@link Solver} used to make rules valid, by default a {@link WorklistSolver}
+     */
+    public Solver getSolver() {
+        return solver;
+    }
+
+    public void setSolver(Solver solver) {
+        this.solver = Objects.requireNonNull(solver);
+    }
+
+    /**
+     * @return how {@link #generate(int, int, int, int, int, int)} fills a box, {@link GenerationOrder#SHELLS} by default
+     */
+    public GenerationOrder getGenerationOrder() {
+        return generationOrder;
+    }
+
+    public void setGenerationOrder(GenerationOrder generationOrder) {
+        this.generationOrder = Objects.requireNonNull(generationOrder);
+    }
+
+    /**
+     * @return the cache of rule results of this environment, or {@code null} if it is off
+     */
+    public @Nullable RuleResultCache getRuleCache() {
+        return temporaryDepth == 0 ? ruleCache : null;
+    }
+
+    /**
+     * Keeps the results of {@link RuleList} and {@link fr.bananasmoothii.rulesgeneration.rules.ProximityRule} tests,
+     * so testing again at the same place is free until something changes around, see {@link RuleResultCache}. It is
+     * off by default: checking that a result is still valid costs a few region lookups, so it is only worth it with
+     * rules that are long to test.
+     * @param capacity the number of results kept, or 0 to turn the cache off
+     */
+    public void setRuleCacheCapacity(int capacity) {
+        ruleCache = capacity == 0 ? null : new RuleResultCache(this, capacity);
+    }
+
+    public UndoTrail getTrail() {
+        return trail;
+    }
+
+    /**
+     * Called by the {@link UndoTrail trail} when it has nothing left to undo
+     */
+    void trailEmptied() {
     }
 
     /**
@@ -307,9 +1102,10 @@ public class CubicChunkEnvironment implements Iterable<CubicChunkCoords> {
      */
     public void debugPrint() {
         System.out.println("xMin = " + xMin + " ;  xMax = " + xMax + " ;  yMin = " + yMin + " ;  yMax = " + yMax);
-        for (int x = xMin + xOffset; x <= xMax + xOffset; x++) {
-            for (int y = yMin + yOffset ; y <= yMax + yOffset; y++) {
-                @Nullable CubicChunk chunk = cubicChunks[x][y][zOffset];
+        if (isEmpty) return;
+        for (int x = xMin; x <= xMax; x++) {
+            for (int y = yMin; y <= yMax; y++) {
+                @Nullable CubicChunk chunk = get(x, y, 0);
                 if (chunk != null) {
                     int id = chunk.getId();
                     System.out.print(id < 10 && id >= 0 ? " " + id : String.valueOf(id));
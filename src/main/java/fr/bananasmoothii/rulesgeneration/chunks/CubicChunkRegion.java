@@ -0,0 +1,478 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size page of {@link #SIZE}x{@link #SIZE}x{@link #SIZE} cells of a {@link CubicChunkEnvironment}. The
+ * environment only creates regions where something is set, so the memory used grows with what is really generated
+ * and not with the bounding box of it.
+ * <p>
+ * Cells are stored in a flat array, the index of a cell being {@code x << 8 | y << 4 | z} (see {@link #index(int, int, int)}),
+ * so iterating in x, y, z order is iterating in memory order. The array doesn't hold {@link CubicChunk} references but
+ * "slots", that are {@link CubicChunk#getId()} + 1, 0 meaning there is nothing (see {@link #slotOf(CubicChunk)}). The
+ * {@link CubicChunk} is found back with {@link CubicChunk#getInstance(int)}. Slots are stored in a {@code short[]}
+ * (2 bytes per cell) as long as all ids fit in 16 bits, and in an {@code int[]} after that.
+ */
+final class CubicChunkRegion {
+
+    static final int SHIFT = 4;
+    static final int SIZE = 1 << SHIFT;
+    static final int MASK = SIZE - 1;
+    static final int VOLUME = SIZE * SIZE * SIZE;
+    /** slot meaning there is nothing in that cell */
+    static final int EMPTY = 0;
+    private static final int MAX_SHORT_SLOT = 0xFFFF;
+
+    /** region coordinates, that are cell coordinates {@code >> SHIFT} */
+    final int regionX, regionY, regionZ;
+
+    /** the slots, null once {@link #intSlots} is used instead */
+    private short @Nullable [] shortSlots = new short[VOLUME];
+    private int @Nullable [] intSlots;
+    /** number of non-empty cells */
+    private int population;
+    /**
+     * 3D prefix sums, by tracked type (see {@link CubicChunkEnvironment#count(int, int, int, int, int, int, int)}):
+     * {@code counts[tracked][index(x, y, z)]} is the number of cells of that type in [0; x] x [0; y] x [0; z].
+     * Null while there is no cell of that type here.
+     */
+    private short @Nullable [] @Nullable [] counts;
+    /**
+     * Occupancy bitboards by plane (see {@link CubicChunkEnvironment#row(int, int, int, int)}): bit z of
+     * {@code planes[plane][x << 4 | y]} is set if the cell x, y, z is of the type of that plane. Null while there is
+     * no cell of that type here.
+     */
+    private char @Nullable [] @Nullable [] planes;
+    /** same as {@link #planes}, for all non-empty cells */
+    private final char[] occupied = new char[SIZE * SIZE];
+    /** one bit per cell, see {@link CubicChunkEnvironment#validateDirty()}. Null while nothing is dirty */
+    private long @Nullable [] dirty;
+    /**
+     * {@link CubicChunkEnvironment#modificationStamp() stamp} of the last change in this region, and in each block of
+     * 4x4x4 cells of it. See {@link CubicChunkEnvironment#changedSince(long, int, int, int, int, int, int)}
+     */
+    private long stamp;
+    private final long[] blockStamps = new long[64];
+    /**
+     * when this region was last looked up by the environment, for the least recently used order of
+     * {@link CubicChunkEnvironment#evictColdRegions()}
+     */
+    long lastUse;
+    /**
+     * the environment whose {@link CubicChunkEnvironment#residentMemory()} counts this region, told when arrays are
+     * allocated here. Null while it is not in an environment.
+     */
+    @Nullable CubicChunkEnvironment owner;
+
+    CubicChunkRegion(int regionX, int regionY, int regionZ) {
+        this.regionX = regionX;
+        this.regionY = regionY;
+        this.regionZ = regionZ;
+    }
+
+    /**
+     * Copy constructor, copies the slots with {@link System#arraycopy(Object, int, Object, int, int)}
+     */
+    CubicChunkRegion(CubicChunkRegion other) {
+        this(other.regionX, other.regionY, other.regionZ);
+        population = other.population;
+        stamp = other.stamp;
+        System.arraycopy(other.blockStamps, 0, blockStamps, 0, blockStamps.length);
+        if (other.shortSlots != null) {
+            System.arraycopy(other.shortSlots, 0, shortSlots, 0, VOLUME);
+        } else {
+            shortSlots = null;
+            intSlots = new int[VOLUME];
+            System.arraycopy(other.intSlots, 0, intSlots, 0, VOLUME);
+        }
+        if (other.counts != null) {
+            counts = new short[other.counts.length][];
+            for (int i = 0; i < counts.length; i++) {
+                if (other.counts[i] != null) counts[i] = other.counts[i].clone();
+            }
+        }
+        System.arraycopy(other.occupied, 0, occupied, 0, occupied.length);
+        if (other.planes != null) {
+            planes = new char[other.planes.length][];
+            for (int i = 0; i < planes.length; i++) {
+                if (other.planes[i] != null) planes[i] = other.planes[i].clone();
+            }
+        }
+    }
+
+    static int slotOf(@Nullable CubicChunk chunk) {
+        return chunk == null ? EMPTY : chunk.getId() + 1;
+    }
+
+    static @Nullable CubicChunk chunkOf(int slot) {
+        return slot == EMPTY ? null : CubicChunk.getInstance(slot - 1);
+    }
+
+    /**
+     * @param x any cell coordinate, only the last {@link #SHIFT} bits are used (same for y and z)
+     * @return the index of that cell in its region
+     */
+    static int index(int x, int y, int z) {
+        return (x & MASK) << (SHIFT << 1) | (y & MASK) << SHIFT | (z & MASK);
+    }
+
+    /**
+     * Packs region coordinates into one {@code long}, 21 bits per axis.
+     */
+    static long key(int regionX, int regionY, int regionZ) {
+        return ((long) regionX & 0x1FFFFF) << 42 | ((long) regionY & 0x1FFFFF) << 21 | ((long) regionZ & 0x1FFFFF);
+    }
+
+    static int regionXOfKey(long key) {
+        return (int) (key << 1 >> 43); // sign-extends the 21 bits
+    }
+
+    static int regionYOfKey(long key) {
+        return (int) (key << 22 >> 43);
+    }
+
+    static int regionZOfKey(long key) {
+        return (int) (key << 43 >> 43);
+    }
+
+    /**
+     * @return the key of the region containing that cell
+     * @see #key(int, int, int)
+     */
+    static long keyOfCell(int x, int y, int z) {
+        return key(x >> SHIFT, y >> SHIFT, z >> SHIFT);
+    }
+
+    @Nullable CubicChunk get(int index) {
+        return chunkOf(getSlot(index));
+    }
+
+    /**
+     * @return the previous slot
+     */
+    int set(int index, @Nullable CubicChunk chunk) {
+        return setSlot(index, slotOf(chunk));
+    }
+
+    int getSlot(int index) {
+        //noinspection ConstantConditions
+        return shortSlots != null ? shortSlots[index] & MAX_SHORT_SLOT : intSlots[index];
+    }
+
+    /**
+     * @return the previous slot
+     */
+    int setSlot(int index, int slot) {
+        int old = getSlot(index);
+        if (old == EMPTY) {
+            if (slot != EMPTY) {
+                population++;
+                occupied[index >> SHIFT] |= 1 << (index & MASK);
+            }
+        } else if (slot == EMPTY) {
+            population--;
+            occupied[index >> SHIFT] &= ~(1 << (index & MASK));
+        }
+        if (shortSlots != null) {
+            if (slot <= MAX_SHORT_SLOT) {
+                shortSlots[index] = (short) slot;
+                return old;
+            }
+            widen();
+        }
+        //noinspection ConstantConditions
+        intSlots[index] = slot;
+        return old;
+    }
+
+    /**
+     * Sets all cells of an empty region from a palette, see {@link RegionFileStorage}. The slot arrays, the population
+     * and the occupancy rows are written directly, without the checks of {@link #setSlot(int, int)}.
+     * @param localIndexes the index in the palette of each cell (unsigned)
+     * @param paletteSlots the slot of each palette index
+     */
+    void loadSlots(byte[] localIndexes, int[] paletteSlots) {
+        widenFor(paletteSlots);
+        for (int index = 0; index < VOLUME; index++) {
+            loadSlot(index, paletteSlots[localIndexes[index] & 0xFF]);
+        }
+    }
+
+    /**
+     * @see #loadSlots(byte[], int[])
+     */
+    void loadSlots(short[] localIndexes, int[] paletteSlots) {
+        widenFor(paletteSlots);
+        for (int index = 0; index < VOLUME; index++) {
+            loadSlot(index, paletteSlots[localIndexes[index] & MAX_SHORT_SLOT]);
+        }
+    }
+
+    private void widenFor(int[] paletteSlots) {
+        if (shortSlots == null) return;
+        for (int slot : paletteSlots) {
+            if (slot > MAX_SHORT_SLOT) {
+                widen();
+                return;
+            }
+        }
+    }
+
+    private void loadSlot(int index, int slot) {
+        if (slot == EMPTY) return; // a region to load is empty
+        population++;
+        occupied[index >> SHIFT] |= 1 << (index & MASK);
+        if (shortSlots != null) shortSlots[index] = (short) slot;
+        //noinspection ConstantConditions
+        else intSlots[index] = slot;
+    }
+
+    /**
+     * switches from {@link #shortSlots} to {@link #intSlots}
+     */
+    private void widen() {
+        int[] ints = new int[VOLUME];
+        //noinspection ConstantConditions
+        for (int i = 0; i < VOLUME; i++) {
+            ints[i] = shortSlots[i] & MAX_SHORT_SLOT;
+        }
+        intSlots = ints;
+        shortSlots = null;
+        grew(2L * VOLUME);
+    }
+
+    /**
+     * Remembers that the cell at that index changed at that stamp
+     */
+    void touch(int index, long stamp) {
+        this.stamp = stamp;
+        blockStamps[index >> 6 & 0x30 | index >> 4 & 0xC | index >> 2 & 3] = stamp;
+    }
+
+    /**
+     * @return true if a cell of the box (all inclusive, coordinates inside this region) may have changed after that
+     * stamp. It is precise to the block of 4x4x4 cells.
+     */
+    boolean changedSince(long since, int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        if (stamp <= since) return false;
+        for (int x = xFrom >> 2; x <= xTo >> 2; x++) {
+            for (int y = yFrom >> 2; y <= yTo >> 2; y++) {
+                for (int z = zFrom >> 2; z <= zTo >> 2; z++) {
+                    if (blockStamps[x << 4 | y << 2 | z] > since) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds delta to the count of a tracked type at that index, so it adds delta to all prefix sums "after" it.
+     */
+    void addToCounts(int tracked, int index, int delta) {
+        short[] prefixSums = countsFor(tracked);
+        int x0 = index >> (SHIFT << 1), y0 = index >> SHIFT & MASK, z0 = index & MASK;
+        for (int x = x0; x < SIZE; x++) {
+            for (int y = y0; y < SIZE; y++) {
+                int base = x << (SHIFT << 1) | y << SHIFT;
+                for (int z = z0; z < SIZE; z++) {
+                    prefixSums[base | z] += delta;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes all prefix sums of a tracked type from scratch
+     */
+    void buildCounts(int tracked, int slot) {
+        short[] prefixSums = null;
+        for (int index = 0; index < VOLUME; index++) {
+            if (getSlot(index) == slot) {
+                prefixSums = countsFor(tracked);
+                prefixSums[index] = 1;
+            }
+        }
+        if (prefixSums == null) return;
+        // sum along z, then y, then x
+        for (int i = 0; i < VOLUME; i++) {
+            if ((i & MASK) != 0) prefixSums[i] += prefixSums[i - 1];
+        }
+        for (int i = 0; i < VOLUME; i++) {
+            if ((i >> SHIFT & MASK) != 0) prefixSums[i] += prefixSums[i - SIZE];
+        }
+        for (int i = SIZE * SIZE; i < VOLUME; i++) {
+            prefixSums[i] += prefixSums[i - SIZE * SIZE];
+        }
+    }
+
+    private short[] countsFor(int tracked) {
+        if (counts == null) counts = new short[tracked + 1][];
+        else if (tracked >= counts.length) counts = Arrays.copyOf(counts, tracked + 1);
+        short[] prefixSums = counts[tracked];
+        if (prefixSums == null) {
+            prefixSums = new short[VOLUME];
+            counts[tracked] = prefixSums;
+            grew(2L * VOLUME);
+        }
+        return prefixSums;
+    }
+
+    /**
+     * @return the number of cells of a tracked type in [x0; x1] x [y0; y1] x [z0; z1] (coordinates inside this
+     * region, all inclusive)
+     */
+    int count(int tracked, int x0, int y0, int z0, int x1, int y1, int z1) {
+        if (counts == null || tracked >= counts.length) return 0;
+        short[] p = counts[tracked];
+        if (p == null) return 0;
+        return prefixSum(p, x1, y1, z1)
+                - prefixSum(p, x0 - 1, y1, z1) - prefixSum(p, x1, y0 - 1, z1) - prefixSum(p, x1, y1, z0 - 1)
+                + prefixSum(p, x0 - 1, y0 - 1, z1) + prefixSum(p, x0 - 1, y1, z0 - 1) + prefixSum(p, x1, y0 - 1, z0 - 1)
+                - prefixSum(p, x0 - 1, y0 - 1, z0 - 1);
+    }
+
+    /**
+     * Same as {@link #count(int, int, int, int, int, int, int)} for empty cells, with the {@link #occupied} bitboards
+     */
+    int countEmpty(int x0, int y0, int z0, int x1, int y1, int z1) {
+        int rowMask = (2 << z1) - (1 << z0);
+        int result = 0;
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                result += Integer.bitCount(~occupied[x << SHIFT | y] & rowMask);
+            }
+        }
+        return result;
+    }
+
+    private static int prefixSum(short[] prefixSums, int x, int y, int z) {
+        if (x < 0 || y < 0 || z < 0) return 0;
+        return prefixSums[x << (SHIFT << 1) | y << SHIFT | z];
+    }
+
+    /**
+     * Sets or clears the bit of that cell in a plane
+     */
+    void setInPlane(int plane, int index, boolean value) {
+        char[] rows = planeFor(plane);
+        if (value) rows[index >> SHIFT] |= 1 << (index & MASK);
+        else rows[index >> SHIFT] &= ~(1 << (index & MASK));
+    }
+
+    /**
+     * Computes a plane from scratch
+     */
+    void buildPlane(int plane, int slot) {
+        for (int index = 0; index < VOLUME; index++) {
+            if (getSlot(index) == slot) planeFor(plane)[index >> SHIFT] |= 1 << (index & MASK);
+        }
+    }
+
+    private char[] planeFor(int plane) {
+        if (planes == null) planes = new char[plane + 1][];
+        else if (plane >= planes.length) planes = Arrays.copyOf(planes, plane + 1);
+        char[] rows = planes[plane];
+        if (rows == null) {
+            rows = new char[SIZE * SIZE];
+            planes[plane] = rows;
+            grew(2L * rows.length);
+        }
+        return rows;
+    }
+
+    /**
+     * @param x only the last {@link #SHIFT} bits are used (same for y)
+     * @return the 16 bits of the row along z at x, y in that plane, bit z being the cell x, y, z
+     */
+    int row(int plane, int x, int y) {
+        if (planes == null || plane >= planes.length) return 0;
+        char[] rows = planes[plane];
+        return rows == null ? 0 : rows[(x & MASK) << SHIFT | (y & MASK)];
+    }
+
+    /**
+     * @return same as {@link #row(int, int, int)}, for all non-empty cells
+     */
+    int occupiedRow(int x, int y) {
+        return occupied[(x & MASK) << SHIFT | (y & MASK)];
+    }
+
+    /**
+     * @return {@code true} if that cell was not dirty before
+     */
+    boolean markDirty(int index) {
+        if (dirty == null) {
+            dirty = new long[VOLUME >> 6];
+            grew(8L * dirty.length);
+        }
+        long bit = 1L << index;
+        if ((dirty[index >> 6] & bit) != 0) return false;
+        dirty[index >> 6] |= bit;
+        return true;
+    }
+
+    void clearDirty(int index) {
+        if (dirty != null) dirty[index >> 6] &= ~(1L << index);
+    }
+
+    /**
+     * @return true if no lasting change was ever made here, only temporary ones
+     */
+    boolean neverChanged() {
+        return stamp == 0 && !hasDirty();
+    }
+
+    /**
+     * @return {@code true} if a cell of this region is dirty
+     */
+    boolean hasDirty() {
+        if (dirty == null) return false;
+        for (long bits : dirty) {
+            if (bits != 0) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells the {@link #owner} that an array was allocated here
+     */
+    private void grew(long bytes) {
+        if (owner != null) owner.regionGrew(bytes);
+    }
+
+    /**
+     * @return about how many bytes this region uses, arrays included. What is allocated after the region is in an
+     * environment must also be given to {@link #grew(long)}.
+     */
+    long memoryUsage() {
+        long bytes = 64 + 8L * blockStamps.length + 2L * occupied.length + (shortSlots != null ? 2L * VOLUME : 4L * VOLUME);
+        if (counts != null) {
+            for (short[] prefixSums : counts) {
+                if (prefixSums != null) bytes += 2L * VOLUME;
+            }
+        }
+        if (planes != null) {
+            for (char[] rows : planes) {
+                if (rows != null) bytes += 2L * rows.length;
+            }
+        }
+        if (dirty != null) bytes += 8L * dirty.length;
+        return bytes;
+    }
+
+    boolean isEmpty() {
+        return population == 0;
+    }
+
+    @Override
+    public String toString() {
+        return "CubicChunkRegion{" +
+                "regionX=" + regionX +
+                ", regionY=" + regionY +
+                ", regionZ=" + regionZ +
+                ", population=" + population +
+                '}';
+    }
+}
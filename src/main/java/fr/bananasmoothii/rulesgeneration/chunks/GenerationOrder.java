@@ -0,0 +1,19 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+/**
+ * In which order {@link CubicChunkEnvironment#generate(int, int, int, int, int, int)} fills the cells of a box, see
+ * {@link CubicChunkEnvironment#setGenerationOrder(GenerationOrder)}
+ */
+public enum GenerationOrder {
+    /**
+     * Shells growing from the middle of the box. Each cell gets a random {@link CubicChunk}, whatever is around, and
+     * the solver repairs what is wrong after.
+     */
+    SHELLS,
+    /**
+     * Always the cell where the fewest {@link CubicChunk}s can still go ("minimum entropy"), with one of them. What
+     * can go in each cell is kept up to date as cells are filled, and there is a lot less to repair. See
+     * {@link MinEntropyGenerator}
+     */
+    MIN_ENTROPY
+}
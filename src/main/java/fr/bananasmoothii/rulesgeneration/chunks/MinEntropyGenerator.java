@@ -0,0 +1,602 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.CoordinateRandom;
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+import fr.bananasmoothii.rulesgeneration.rules.CompiledRule;
+import fr.bananasmoothii.rulesgeneration.rules.ProximityRule;
+import fr.bananasmoothii.rulesgeneration.rules.RelativeRule;
+import fr.bananasmoothii.rulesgeneration.rules.Rule;
+import fr.bananasmoothii.rulesgeneration.rules.RuleList;
+import fr.bananasmoothii.rulesgeneration.solvers.SolverResult;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generates a box in the {@link GenerationOrder#MIN_ENTROPY} order. Each empty cell of the box has a number of
+ * candidates: the {@link CubicChunk}s whose rules are still {@link RuleList#possible possible} there, and that are not
+ * forbidden there by a {@link RelativeRule} of a neighbor. The cell with the fewest candidates is filled first, with
+ * one of its candidates.
+ * <p>
+ * The rules of each chunk are split in what all of them need (going into nested {@link LogicalOperator#AND AND} lists):
+ * <ul>
+ *     <li>{@link RelativeRule}s look at one cell, so they are decided once, when that cell is filled, and never
+ *     tested again</li>
+ *     <li>{@link ProximityRule}s keep, for each cell and candidate, the number of filled cells around that are not
+ *     what they count. Filling a cell only adds one to that number, and the candidate goes when there are not enough
+ *     empty cells left for the minimum amount.</li>
+ *     <li>anything else is {@link CompiledRule#possible tested} again when a cell it can see is filled</li>
+ * </ul>
+ * So when a cell is filled, only the candidates whose rules can see that cell are updated, and for most rules that
+ * is not even an evaluation. The {@link RelativeRule}s of the chunk that was put there also remove the candidates
+ * they forbid around it (the rules of neighbors in {@link LogicalOperator#OR OR} lists and their
+ * {@link ProximityRule}s are not looked at, the solver takes care of them).
+ * <p>
+ * The solver can change cells too. When it did, the cells it changed are found with
+ * {@link CubicChunkEnvironment#changedSince(long, int, int, int, int, int, int)} and the candidates of the cells
+ * around them are computed again from scratch, as a cell that is emptied or replaced can make things possible again.
+ * <p>
+ * Cells are kept in a binary heap keyed on their number of candidates. When that number changes, the cell is just
+ * added again with the new number, and the old entries are skipped when they come out.
+ * <p>
+ * The solver is still called after each cell, for cells with no candidate (they get a random chunk like
+ * {@link GenerationOrder#SHELLS}) and for what empty cells can't tell.
+ */
+final class MinEntropyGenerator {
+
+    /** see {@link CubicChunkEnvironment#randomAt(int, int, int, int)} */
+    private static final int RANDOM_STREAM = 5;
+    /** with a reach of 0 nothing changes around, with an unknown reach we look at direct neighbors only */
+    private static final int UNKNOWN_REACH = 1;
+    private static final int FILLED = -1, NOT_COUNTED = -2;
+
+    /** a {@link RelativeRule} that all the rules of a chunk need */
+    private static final class Leaf {
+        final RelativeRule rule;
+        final int chunk;
+        /** by slot */
+        final boolean[] accepted;
+        /** {@link #words} longs, bit i is for {@link #chunks}[i] */
+        final long[] acceptedChunks;
+
+        Leaf(RelativeRule rule, int chunk, boolean[] accepted, long[] acceptedChunks) {
+            this.rule = rule;
+            this.chunk = chunk;
+            this.accepted = accepted;
+            this.acceptedChunks = acceptedChunks;
+        }
+    }
+
+    /** a {@link ProximityRule} that all the rules of a chunk need */
+    private static final class Count {
+        final ProximityRule rule;
+        final int chunk, index;
+        /** by slot, true for what the rule counts */
+        final boolean[] counted;
+        /** the chunk can't go there when more cells than that around are filled with something not counted */
+        final int maxBlocking;
+
+        Count(ProximityRule rule, int chunk, int index, boolean[] counted) {
+            this.rule = rule;
+            this.chunk = chunk;
+            this.index = index;
+            this.counted = counted;
+            int side = 2 * rule.radius + 1;
+            maxBlocking = side * side * side - 1 - rule.minAmount;
+        }
+    }
+
+    /** any other rule that all the rules of a chunk need */
+    private static final class Other {
+        final CompiledRule rule;
+        final int chunk, reach;
+
+        Other(CompiledRule rule, int chunk, int reach) {
+            this.rule = rule;
+            this.chunk = chunk;
+            this.reach = reach;
+        }
+    }
+
+    private final CubicChunkEnvironment environment;
+    private final int xFrom, yFrom, zFrom, xSize, ySize, zSize;
+    private final CubicChunk[] chunks;
+    private final int reach;
+
+    private final Leaf[] leaves;
+    private final Count[] counts;
+    private final Other[] others;
+    /** the same, by index in {@link #chunks} */
+    private final Leaf[][] leavesOf;
+    private final Count[][] countsOf;
+    private final Other[][] othersOf;
+
+    /** number of candidates of each cell of the box, or {@link #FILLED}, or {@link #NOT_COUNTED} */
+    private final int[] candidateCounts;
+    /** {@link #words} longs for each cell, bit i is for {@link #chunks}[i] */
+    private final long[] candidates;
+    private final int words;
+    /** candidates of a cell with nothing around */
+    private final long[] initialCandidates;
+    /**
+     * For each cell and each {@link Count}, the number of filled cells around that it doesn't count. Only right while
+     * the chunk of the count is a candidate there.
+     */
+    private final int[] blocking;
+    /** id -> index in {@link #chunks} */
+    private final int[] chunkIndexes;
+    /**
+     * Slot of each cell of the box and {@link #reach} around, as the candidates were last computed with. Used to find
+     * what the solver changed.
+     */
+    private final int[] known;
+    /** cells whose count changed since the last {@link #flush()} */
+    private int[] touched = new int[64];
+    private int touchedSize;
+    private final boolean[] isTouched;
+    /** the last {@link #pass} each cell was computed again in, so it is not done twice */
+    private final int[] recomputedIn;
+    private int pass;
+    /** candidate count << 40 | tie-breaker << 32 | cell index */
+    private long[] heap = new long[64];
+    private int heapSize;
+
+    MinEntropyGenerator(CubicChunkEnvironment environment, int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        this.environment = environment;
+        this.xFrom = xFrom;
+        this.yFrom = yFrom;
+        this.zFrom = zFrom;
+        xSize = xTo - xFrom + 1;
+        ySize = yTo - yFrom + 1;
+        zSize = zTo - zFrom + 1;
+        chunks = CubicChunk.allAvailable().toArray(new CubicChunk[0]);
+        words = (chunks.length + 63) >> 6;
+        chunkIndexes = new int[CubicChunk.maxId() + 1];
+        for (int i = 0; i < chunks.length; i++) {
+            chunkIndexes[chunks[i].getId()] = i;
+        }
+
+        List<Leaf> allLeaves = new ArrayList<>();
+        List<Count> allCounts = new ArrayList<>();
+        List<Other> allOthers = new ArrayList<>();
+        leavesOf = new Leaf[chunks.length][];
+        countsOf = new Count[chunks.length][];
+        othersOf = new Other[chunks.length][];
+        int maxReach = 0;
+        for (int i = 0; i < chunks.length; i++) {
+            List<Leaf> chunkLeaves = new ArrayList<>();
+            List<Count> chunkCounts = new ArrayList<>();
+            List<Other> chunkOthers = new ArrayList<>();
+            split(chunks[i].rules, i, chunkLeaves, chunkCounts, chunkOthers, allCounts.size());
+            leavesOf[i] = chunkLeaves.toArray(new Leaf[0]);
+            countsOf[i] = chunkCounts.toArray(new Count[0]);
+            othersOf[i] = chunkOthers.toArray(new Other[0]);
+            allLeaves.addAll(chunkLeaves);
+            allCounts.addAll(chunkCounts);
+            allOthers.addAll(chunkOthers);
+            for (Leaf leaf : chunkLeaves) maxReach = Math.max(maxReach, leaf.rule.reach());
+            for (Count count : chunkCounts) maxReach = Math.max(maxReach, count.rule.radius);
+            for (Other other : chunkOthers) maxReach = Math.max(maxReach, other.reach);
+        }
+        leaves = allLeaves.toArray(new Leaf[0]);
+        counts = allCounts.toArray(new Count[0]);
+        others = allOthers.toArray(new Other[0]);
+        reach = maxReach;
+
+        int volume = Math.multiplyExact(Math.multiplyExact(xSize, ySize), zSize);
+        candidateCounts = new int[volume];
+        Arrays.fill(candidateCounts, NOT_COUNTED);
+        candidates = new long[Math.multiplyExact(volume, words)];
+        blocking = new int[Math.multiplyExact(volume, counts.length)];
+        isTouched = new boolean[volume];
+        recomputedIn = new int[volume];
+        known = new int[Math.multiplyExact(Math.multiplyExact(xSize + 2 * reach, ySize + 2 * reach), zSize + 2 * reach)];
+        initialCandidates = new long[words];
+        for (int i = 0; i < chunks.length; i++) {
+            boolean possible = true;
+            for (Count count : countsOf[i]) {
+                if (count.maxBlocking < 0) possible = false;
+            }
+            if (possible) initialCandidates[i >> 6] |= 1L << i;
+        }
+    }
+
+    /**
+     * Puts the rules that rule needs in the lists
+     * @param countIndex the index of the next {@link Count}
+     * @return the index of the next {@link Count}
+     */
+    private int split(Rule rule, int chunk, List<Leaf> leaves, List<Count> counts, List<Other> others, int countIndex) {
+        if (rule instanceof RelativeRule) {
+            RelativeRule relativeRule = (RelativeRule) rule;
+            boolean[] accepted = slots(relativeRule.what, relativeRule.shouldBePresent);
+            long[] acceptedChunks = new long[words];
+            for (int i = 0; i < chunks.length; i++) {
+                if (accepted[chunks[i].getId() + 1]) acceptedChunks[i >> 6] |= 1L << i;
+            }
+            leaves.add(new Leaf(relativeRule, chunk, accepted, acceptedChunks));
+        } else if (rule instanceof ProximityRule) {
+            ProximityRule proximityRule = (ProximityRule) rule;
+            counts.add(new Count(proximityRule, chunk, countIndex++, slots(proximityRule.what, true)));
+        } else if (rule instanceof RuleList && ((RuleList<?>) rule).logicalOperator == LogicalOperator.AND) {
+            for (Rule child : (RuleList<?>) rule) {
+                countIndex = split(child, chunk, leaves, counts, others, countIndex);
+            }
+        } else {
+            CompiledRule compiled = rule instanceof RuleList ? ((RuleList<?>) rule).compiled() : CompiledRule.compile(rule);
+            others.add(new Other(compiled, chunk, compiled.reach() == -1 ? UNKNOWN_REACH : compiled.reach()));
+        }
+        return countIndex;
+    }
+
+    /**
+     * @return for each slot, if it is in what (or not in what if {@code in} is false)
+     */
+    private static boolean[] slots(CubicChunk[] what, boolean in) {
+        boolean[] slots = new boolean[CubicChunk.maxId() + 2];
+        Arrays.fill(slots, !in);
+        for (CubicChunk chunk : what) {
+            slots[CubicChunkRegion.slotOf(chunk)] = in;
+        }
+        return slots;
+    }
+
+    /**
+     * Generates every empty cell of the box (all inclusive)
+     * @return the worst {@link SolverResult} of all cells generated
+     */
+    SolverResult generate() {
+        for (int x = -reach; x < xSize + reach; x++) {
+            for (int y = -reach; y < ySize + reach; y++) {
+                for (int z = -reach; z < zSize + reach; z++) {
+                    known[knownIndex(x, y, z)] = environment.getId(xFrom + x, yFrom + y, zFrom + z) + 1;
+                }
+            }
+        }
+        // only the cells near what already exists (inside the box or not) have less than every chunk
+        pass++;
+        for (int x = -reach; x < xSize + reach; x++) {
+            for (int y = -reach; y < ySize + reach; y++) {
+                for (int z = -reach; z < zSize + reach; z++) {
+                    if (known[knownIndex(x, y, z)] != CubicChunkRegion.EMPTY) recomputeAround(x, y, z);
+                }
+            }
+        }
+        for (int cell = 0; cell < candidateCounts.length; cell++) {
+            if (candidateCounts[cell] != NOT_COUNTED) continue;
+            int from = cell * words;
+            System.arraycopy(initialCandidates, 0, candidates, from, words);
+            setCount(cell, bitCount(from));
+        }
+        SolverResult result = SolverResult.SOLVED;
+        while (heapSize != 0) {
+            long entry = pop();
+            int cell = (int) entry;
+            if (candidateCounts[cell] != (int) (entry >>> 40)) continue; // outdated
+            result = result.worst(place(cell));
+        }
+        return result;
+    }
+
+    private int cell(int x, int y, int z) {
+        return (x * ySize + y) * zSize + z;
+    }
+
+    /**
+     * @return the index of that cell (relative to the box, up to {@link #reach} outside of it) in {@link #known}
+     */
+    private int knownIndex(int x, int y, int z) {
+        return ((x + reach) * (ySize + 2 * reach) + y + reach) * (zSize + 2 * reach) + z + reach;
+    }
+
+    private boolean inBox(int x, int y, int z) {
+        return x >= 0 && x < xSize && y >= 0 && y < ySize && z >= 0 && z < zSize;
+    }
+
+    private int bitCount(int from) {
+        int count = 0;
+        for (int word = 0; word < words; word++) {
+            count += Long.bitCount(candidates[from + word]);
+        }
+        return count;
+    }
+
+    private boolean isCandidate(int cell, int chunk) {
+        return (candidates[cell * words + (chunk >> 6)] & 1L << chunk) != 0;
+    }
+
+    private void setCount(int cell, int count) {
+        candidateCounts[cell] = count;
+        int z = cell % zSize, y = cell / zSize % ySize, x = cell / zSize / ySize;
+        // ties are broken randomly, otherwise the box would be filled like a sweep
+        long tieBreaker = CoordinateRandom.hash(environment.seed, xFrom + x, yFrom + y, zFrom + z, count) & 0xFF;
+        push((long) count << 40 | tieBreaker << 32 | cell);
+    }
+
+    /**
+     * Puts one of the candidates there, or a random chunk if there is none, and lets the solver make rules valid
+     */
+    private SolverResult place(int cell) {
+        int z = cell % zSize, y = cell / zSize % ySize, x = cell / zSize / ySize;
+        int worldX = xFrom + x, worldY = yFrom + y, worldZ = zFrom + z;
+        int count = candidateCounts[cell];
+        if (count == 0) {
+            long stamp = environment.modificationStamp();
+            SolverResult result = environment.regenerate(worldX, worldY, worldZ);
+            catchUp(stamp);
+            return result;
+        }
+        int chosen = environment.randomAt(worldX, worldY, worldZ, RANDOM_STREAM).nextInt(count);
+        int chunk = -1;
+        for (int word = 0, from = cell * words; chunk == -1; word++) {
+            long bits = candidates[from + word];
+            int bitCount = Long.bitCount(bits);
+            if (chosen < bitCount) {
+                for (; chosen > 0; chosen--) bits &= bits - 1;
+                chunk = word << 6 | Long.numberOfTrailingZeros(bits);
+            } else {
+                chosen -= bitCount;
+            }
+        }
+        environment.set(chunks[chunk], worldX, worldY, worldZ);
+        long stamp = environment.modificationStamp();
+        candidateCounts[cell] = FILLED;
+        known[knownIndex(x, y, z)] = CubicChunkRegion.slotOf(chunks[chunk]);
+        placed(x, y, z, chunk);
+        flush();
+        SolverResult result = environment.getSolver().solve(worldX, worldY, worldZ);
+        if (environment.modificationStamp() != stamp) catchUp(stamp);
+        return result;
+    }
+
+    /**
+     * Updates the candidates that can see x, y, z (relative to the box) now that this chunk is there
+     * @param chunk index in {@link #chunks}
+     */
+    private void placed(int x, int y, int z, int chunk) {
+        int slot = chunks[chunk].getId() + 1;
+        for (Leaf leaf : leaves) {
+            RelativeRule rule = leaf.rule;
+            int nx = x - rule.relativeX, ny = y - rule.relativeY, nz = z - rule.relativeZ;
+            if (!inBox(nx, ny, nz)) continue;
+            int cell = cell(nx, ny, nz);
+            if (candidateCounts[cell] < 0 || !isCandidate(cell, leaf.chunk)) continue;
+            GenerationMetrics.ruleEvaluated(rule.getClass());
+            if (!leaf.accepted[slot]) remove(cell, leaf.chunk);
+        }
+        for (Count count : counts) {
+            if (count.counted[slot]) continue;
+            int radius = count.rule.radius;
+            for (int nx = Math.max(x - radius, 0), nxEnd = Math.min(x + radius, xSize - 1); nx <= nxEnd; nx++) {
+                for (int ny = Math.max(y - radius, 0), nyEnd = Math.min(y + radius, ySize - 1); ny <= nyEnd; ny++) {
+                    for (int nz = Math.max(z - radius, 0), nzEnd = Math.min(z + radius, zSize - 1); nz <= nzEnd; nz++) {
+                        int cell = cell(nx, ny, nz);
+                        if (candidateCounts[cell] < 0 || !isCandidate(cell, count.chunk)) continue;
+                        if (++blocking[cell * counts.length + count.index] > count.maxBlocking) remove(cell, count.chunk);
+                    }
+                }
+            }
+        }
+        for (Other other : others) {
+            int otherReach = other.reach;
+            for (int nx = Math.max(x - otherReach, 0), nxEnd = Math.min(x + otherReach, xSize - 1); nx <= nxEnd; nx++) {
+                for (int ny = Math.max(y - otherReach, 0), nyEnd = Math.min(y + otherReach, ySize - 1); ny <= nyEnd; ny++) {
+                    for (int nz = Math.max(z - otherReach, 0), nzEnd = Math.min(z + otherReach, zSize - 1); nz <= nzEnd; nz++) {
+                        int cell = cell(nx, ny, nz);
+                        if (candidateCounts[cell] < 0 || !isCandidate(cell, other.chunk)) continue;
+                        if (!other.rule.possible(environment, xFrom + nx, yFrom + ny, zFrom + nz)) remove(cell, other.chunk);
+                    }
+                }
+            }
+        }
+        // what the rules of that chunk forbid around it
+        for (Leaf leaf : leavesOf[chunk]) {
+            RelativeRule rule = leaf.rule;
+            int nx = x + rule.relativeX, ny = y + rule.relativeY, nz = z + rule.relativeZ;
+            if (!inBox(nx, ny, nz)) continue;
+            int cell = cell(nx, ny, nz);
+            if (candidateCounts[cell] < 0) continue;
+            int from = cell * words;
+            for (int word = 0; word < words; word++) {
+                candidates[from + word] &= leaf.acceptedChunks[word];
+            }
+            int count = bitCount(from);
+            if (count != candidateCounts[cell]) {
+                candidateCounts[cell] = count;
+                touch(cell);
+            }
+        }
+    }
+
+    private void remove(int cell, int chunk) {
+        candidates[cell * words + (chunk >> 6)] &= ~(1L << chunk);
+        candidateCounts[cell]--;
+        touch(cell);
+    }
+
+    private void touch(int cell) {
+        if (isTouched[cell]) return;
+        isTouched[cell] = true;
+        if (touchedSize == touched.length) touched = Arrays.copyOf(touched, touchedSize << 1);
+        touched[touchedSize++] = cell;
+    }
+
+    /**
+     * Adds the cells whose count changed to the heap again
+     */
+    private void flush() {
+        for (int i = 0; i < touchedSize; i++) {
+            int cell = touched[i];
+            isTouched[cell] = false;
+            if (candidateCounts[cell] >= 0) setCount(cell, candidateCounts[cell]);
+        }
+        touchedSize = 0;
+    }
+
+    /**
+     * Finds the cells that changed since that stamp (the solver changed them), and updates the candidates around.
+     * Cells that were filled are like {@link #placed(int, int, int, int) placed} cells, but cells that were emptied or
+     * replaced can make things possible again, so the cells around are {@link #recompute(int, int, int) computed
+     * again}, after, so that they don't count anything twice.
+     */
+    private void catchUp(long stamp) {
+        int[] changes = new int[16]; // x, y, z (relative to the box), old slot
+        int changeCount = 0;
+        int xTo = xFrom + xSize - 1 + reach, yTo = yFrom + ySize - 1 + reach, zTo = zFrom + zSize - 1 + reach;
+        // blocks of 4x4x4 cells, like changedSince
+        for (int bx = (xFrom - reach) >> 2; bx <= xTo >> 2; bx++) {
+            int blockXFrom = Math.max(bx << 2, xFrom - reach), blockXTo = Math.min((bx << 2) + 3, xTo);
+            for (int by = (yFrom - reach) >> 2; by <= yTo >> 2; by++) {
+                int blockYFrom = Math.max(by << 2, yFrom - reach), blockYTo = Math.min((by << 2) + 3, yTo);
+                for (int bz = (zFrom - reach) >> 2; bz <= zTo >> 2; bz++) {
+                    int blockZFrom = Math.max(bz << 2, zFrom - reach), blockZTo = Math.min((bz << 2) + 3, zTo);
+                    if (!environment.changedSince(stamp, blockXFrom, blockYFrom, blockZFrom, blockXTo, blockYTo, blockZTo)) continue;
+                    for (int x = blockXFrom; x <= blockXTo; x++) {
+                        for (int y = blockYFrom; y <= blockYTo; y++) {
+                            for (int z = blockZFrom; z <= blockZTo; z++) {
+                                int slot = environment.getId(x, y, z) + 1;
+                                int index = knownIndex(x - xFrom, y - yFrom, z - zFrom);
+                                if (known[index] == slot) continue;
+                                if (changeCount * 4 == changes.length) changes = Arrays.copyOf(changes, changes.length << 1);
+                                changes[changeCount * 4] = x - xFrom;
+                                changes[changeCount * 4 + 1] = y - yFrom;
+                                changes[changeCount * 4 + 2] = z - zFrom;
+                                changes[changeCount * 4 + 3] = known[index];
+                                changeCount++;
+                                known[index] = slot;
+                            }
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < changeCount * 4; i += 4) {
+            int x = changes[i], y = changes[i + 1], z = changes[i + 2];
+            if (inBox(x, y, z) && known[knownIndex(x, y, z)] != CubicChunkRegion.EMPTY) candidateCounts[cell(x, y, z)] = FILLED;
+        }
+        for (int i = 0; i < changeCount * 4; i += 4) {
+            int x = changes[i], y = changes[i + 1], z = changes[i + 2];
+            int slot = known[knownIndex(x, y, z)];
+            if (changes[i + 3] == CubicChunkRegion.EMPTY) placed(x, y, z, chunkIndexes[slot - 1]);
+        }
+        pass++;
+        for (int i = 0; i < changeCount * 4; i += 4) {
+            if (changes[i + 3] != CubicChunkRegion.EMPTY) recomputeAround(changes[i], changes[i + 1], changes[i + 2]);
+        }
+        flush();
+    }
+
+    /**
+     * {@link #recompute(int, int, int) recomputes} the cells of the box whose rules can see x, y, z (relative to the
+     * box), and that cell too if it is in the box
+     */
+    private void recomputeAround(int x, int y, int z) {
+        for (int nx = Math.max(x - reach, 0), nxEnd = Math.min(x + reach, xSize - 1); nx <= nxEnd; nx++) {
+            for (int ny = Math.max(y - reach, 0), nyEnd = Math.min(y + reach, ySize - 1); ny <= nyEnd; ny++) {
+                for (int nz = Math.max(z - reach, 0), nzEnd = Math.min(z + reach, zSize - 1); nz <= nzEnd; nz++) {
+                    if (recomputedIn[cell(nx, ny, nz)] != pass) recompute(nx, ny, nz);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the candidates of that cell (relative to the box) from scratch
+     */
+    private void recompute(int x, int y, int z) {
+        int cell = cell(x, y, z);
+        int worldX = xFrom + x, worldY = yFrom + y, worldZ = zFrom + z;
+        recomputedIn[cell] = pass;
+        if (environment.getId(worldX, worldY, worldZ) != CubicChunkEnvironment.NO_ID) {
+            candidateCounts[cell] = FILLED;
+            return;
+        }
+        int from = cell * words;
+        for (int word = 0; word < words; word++) {
+            long bits = initialCandidates[word];
+            for (long left = bits; left != 0; left &= left - 1) {
+                int chunk = word << 6 | Long.numberOfTrailingZeros(left);
+                if (!possible(cell, chunk, worldX, worldY, worldZ)) bits &= ~(1L << chunk);
+            }
+            candidates[from + word] = bits;
+        }
+        // what the neighbors forbid
+        for (int nx = x - reach; nx <= x + reach; nx++) {
+            for (int ny = y - reach; ny <= y + reach; ny++) {
+                for (int nz = z - reach; nz <= z + reach; nz++) {
+                    int slot = known[knownIndex(nx, ny, nz)];
+                    if (slot == CubicChunkRegion.EMPTY) continue;
+                    for (Leaf leaf : leavesOf[chunkIndexes[slot - 1]]) {
+                        RelativeRule rule = leaf.rule;
+                        if (nx + rule.relativeX != x || ny + rule.relativeY != y || nz + rule.relativeZ != z) continue;
+                        for (int word = 0; word < words; word++) {
+                            candidates[from + word] &= leaf.acceptedChunks[word];
+                        }
+                    }
+                }
+            }
+        }
+        setCount(cell, bitCount(from));
+    }
+
+    /**
+     * @return if the rules of that chunk are possible in that empty cell, with the {@link #blocking} counts computed
+     * again
+     */
+    private boolean possible(int cell, int chunk, int x, int y, int z) {
+        for (Leaf leaf : leavesOf[chunk]) {
+            RelativeRule rule = leaf.rule;
+            GenerationMetrics.ruleEvaluated(rule.getClass());
+            if (!leaf.accepted[environment.getId(x + rule.relativeX, y + rule.relativeY, z + rule.relativeZ) + 1]) return false;
+        }
+        for (Count count : countsOf[chunk]) {
+            GenerationMetrics.ruleEvaluated(count.rule.getClass());
+            int radius = count.rule.radius;
+            int blockingCells = 0;
+            for (int cx = x - radius; cx <= x + radius; cx++) {
+                for (int cy = y - radius; cy <= y + radius; cy++) {
+                    for (int cz = z - radius; cz <= z + radius; cz++) {
+                        int slot = environment.getId(cx, cy, cz) + 1;
+                        if (slot != CubicChunkRegion.EMPTY && !count.counted[slot]) blockingCells++;
+                    }
+                }
+            }
+            blocking[cell * counts.length + count.index] = blockingCells;
+            if (blockingCells > count.maxBlocking) return false;
+        }
+        for (Other other : othersOf[chunk]) {
+            if (!other.rule.possible(environment, x, y, z)) return false;
+        }
+        return true;
+    }
+
+    private void push(long entry) {
+        if (heapSize == heap.length) heap = Arrays.copyOf(heap, heapSize << 1);
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >> 1;
+            if (heap[parent] <= entry) break;
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = entry;
+    }
+
+    private long pop() {
+        long top = heap[0];
+        long last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) child++;
+            if (last <= heap[child]) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = last;
+        return top;
+    }
+}
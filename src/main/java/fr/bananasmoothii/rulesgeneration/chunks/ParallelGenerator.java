@@ -0,0 +1,184 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.solvers.SolverResult;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Generates a box of a {@link CubicChunkEnvironment} with several threads, in two phases:
+ * <ol>
+ *     <li>the box is cut in blocks of {@link #getBlockSize()} cells (aligned on regions). Each block is generated in
+ *     its own private environment, with the same {@link CubicChunkEnvironment#seed}, so blocks don't depend on each
+ *     other and run at the same time on the {@link ForkJoinPool}. The private environment starts
+ *     with what the main environment already has around the block, copied by the calling thread before the blocks
+ *     start, as reading a {@link CubicChunkEnvironment} is not thread-safe (it remembers the last region, may load
+ *     regions from its storage...).</li>
+ *     <li>blocks are copied in the main environment, always in the same order, then every cell that is close enough
+ *     to a block border for its rules to see another block is solved again, in the main environment and with the
+ *     same rules as usual.</li>
+ * </ol>
+ * All random values come from {@link CubicChunkEnvironment#randomAt(int, int, int, int)}, that only depends on the
+ * seed and on the coordinates, so for the same seed the result doesn't depend on the number of threads or on the
+ * order threads run in.
+ */
+public class ParallelGenerator {
+
+    public static final int DEFAULT_BLOCK_SIZE = 32;
+
+    private final CubicChunkEnvironment environment;
+    private final ForkJoinPool pool;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+
+    public ParallelGenerator(CubicChunkEnvironment environment, ForkJoinPool pool) {
+        this.environment = environment;
+        this.pool = pool;
+    }
+
+    /**
+     * Generates every empty cell in [xFrom; xTo] x [yFrom; yTo] x [zFrom; zTo]
+     * @return the worst {@link SolverResult} of both phases
+     */
+    public SolverResult generate(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+        if (xTo < xFrom || yTo < yFrom || zTo < zFrom) throw new IllegalArgumentException("To coordinates must be greater than From coordinates");
+        final int reach = CubicChunk.maxReach();
+
+        List<Block> blocks = new ArrayList<>();
+        for (int x = Math.floorDiv(xFrom, blockSize) * blockSize; x <= xTo; x += blockSize) {
+            for (int y = Math.floorDiv(yFrom, blockSize) * blockSize; y <= yTo; y += blockSize) {
+                for (int z = Math.floorDiv(zFrom, blockSize) * blockSize; z <= zTo; z += blockSize) {
+                    blocks.add(new Block(Math.max(x, xFrom), Math.max(y, yFrom), Math.max(z, zFrom),
+                            Math.min(x + blockSize - 1, xTo), Math.min(y + blockSize - 1, yTo), Math.min(z + blockSize - 1, zTo)));
+                }
+            }
+        }
+
+        // phase 1: blocks in parallel, workers only use their private environment
+        for (Block block : blocks) {
+            block.prepare(Math.max(reach, 0));
+        }
+        List<ForkJoinTask<SolverResult>> tasks = new ArrayList<>(blocks.size());
+        for (Block block : blocks) {
+            tasks.add(pool.submit(block::generate));
+        }
+        SolverResult result = SolverResult.SOLVED;
+        for (ForkJoinTask<SolverResult> task : tasks) {
+            result = result.worst(task.join());
+        }
+
+        // phase 2: copy and reconcile borders, in a fixed order
+        for (Block block : blocks) {
+            block.copyToMainEnvironment();
+        }
+        for (Block block : blocks) {
+            result = result.worst(block.reconcile(reach, xFrom, yFrom, zFrom, xTo, yTo, zTo));
+        }
+        return result;
+    }
+
+    private final class Block {
+        /** inclusive */
+        final int xFrom, yFrom, zFrom, xTo, yTo, zTo;
+        @Nullable CubicChunkEnvironment generated;
+
+        Block(int xFrom, int yFrom, int zFrom, int xTo, int yTo, int zTo) {
+            this.xFrom = xFrom;
+            this.yFrom = yFrom;
+            this.zFrom = zFrom;
+            this.xTo = xTo;
+            this.yTo = yTo;
+            this.zTo = zTo;
+        }
+
+        /**
+         * Creates the private environment with what already exists around the block. Must be called by the thread
+         * that owns the main environment.
+         */
+        void prepare(int reach) {
+            int size = blockSize + 2 * reach;
+            CubicChunkEnvironment privateEnvironment = new CubicChunkEnvironment(environment.seed, size, size);
+            privateEnvironment.setGenerationOrder(environment.getGenerationOrder());
+            environment.forEachPresent(xFrom - reach, yFrom - reach, zFrom - reach, xTo + reach, yTo + reach, zTo + reach,
+                    (x, y, z, id) -> privateEnvironment.set(CubicChunk.getInstance(id), x, y, z));
+            generated = privateEnvironment;
+        }
+
+        /**
+         * Generates the block in its private environment, can run on any thread
+         */
+        SolverResult generate() {
+            CubicChunkEnvironment privateEnvironment = generated;
+            if (privateEnvironment == null) throw new IllegalStateException("block not prepared");
+            SolverResult result;
+            if (xTo > xFrom && yTo > yFrom && zTo > zFrom) {
+                result = privateEnvironment.generate(xFrom, yFrom, zFrom, xTo, yTo, zTo);
+            } else {
+                result = SolverResult.SOLVED;
+            }
+            // the shells of generate() may miss cells when the block is flat, and may go outside
+            for (int x = xFrom; x <= xTo; x++) {
+                for (int y = yFrom; y <= yTo; y++) {
+                    for (int z = zFrom; z <= zTo; z++) {
+                        result = result.worst(privateEnvironment.generate(x, y, z));
+                    }
+                }
+            }
+            return result;
+        }
+
+        void copyToMainEnvironment() {
+            CubicChunkEnvironment privateEnvironment = generated;
+            if (privateEnvironment == null) throw new IllegalStateException("block not generated");
+            for (int x = xFrom; x <= xTo; x++) {
+                for (int y = yFrom; y <= yTo; y++) {
+                    for (int z = zFrom; z <= zTo; z++) {
+                        if (environment.get(x, y, z) == null) environment.set(privateEnvironment.get(x, y, z), x, y, z);
+                    }
+                }
+            }
+            generated = null;
+        }
+
+        /**
+         * Solves again the cells that are at most "reach" far from a border of this block that is inside the box
+         * (all cells if the reach is unknown)
+         */
+        SolverResult reconcile(int reach, int boxXFrom, int boxYFrom, int boxZFrom, int boxXTo, int boxYTo, int boxZTo) {
+            SolverResult result = SolverResult.SOLVED;
+            if (reach == 0) return result;
+            for (int x = xFrom; x <= xTo; x++) {
+                for (int y = yFrom; y <= yTo; y++) {
+                    for (int z = zFrom; z <= zTo; z++) {
+                        if (reach != -1 && !nearInnerBorder(x, y, z, reach, boxXFrom, boxYFrom, boxZFrom, boxXTo, boxYTo, boxZTo))
+                            continue;
+                        if (environment.get(x, y, z) != null) result = result.worst(environment.getSolver().solve(x, y, z));
+                    }
+                }
+            }
+            return result;
+        }
+
+        private boolean nearInnerBorder(int x, int y, int z, int reach,
+                                        int boxXFrom, int boxYFrom, int boxZFrom, int boxXTo, int boxYTo, int boxZTo) {
+            return (xFrom > boxXFrom && x - xFrom < reach) || (xTo < boxXTo && xTo - x < reach)
+                    || (yFrom > boxYFrom && y - yFrom < reach) || (yTo < boxYTo && yTo - y < reach)
+                    || (zFrom > boxZFrom && z - zFrom < reach) || (zTo < boxZTo && zTo - z < reach);
+        }
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * @param blockSize the size of the blocks generated at the same time, must be a multiple of 16 (the size of
+     *                  regions)
+     */
+    public void setBlockSize(int blockSize) {
+        if (blockSize <= 0 || blockSize % CubicChunkRegion.SIZE != 0) throw new IllegalArgumentException("blockSize must be a positive multiple of 16");
+        this.blockSize = blockSize;
+    }
+}
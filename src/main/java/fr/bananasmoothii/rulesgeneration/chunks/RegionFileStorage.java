@@ -0,0 +1,338 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.LongObjectHashMap;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Saves a {@link CubicChunkEnvironment} in a directory, with one file per {@link CubicChunkRegion region} and an index
+ * file, and loads it back lazily: {@link #load(long)} only reads the index, and each region file is read the first
+ * time something in that region is needed. Files are read with {@link FileChannel#read(ByteBuffer)} into a buffer
+ * kept for the next reads, and not mapped: a mapped file can't be replaced or deleted before the mapping is garbage
+ * collected on some systems, and {@link #save(CubicChunkEnvironment)} and
+ * {@link #evict(CubicChunkEnvironment, CubicChunkRegion[], int)} would fail.
+ * <p>
+ * A region file is:
+ * <ul>
+ *     <li>a header: {@link #REGION_MAGIC}, {@link #VERSION}, the region coordinates (3 ints), the size of the
+ *     palette (int) and the number of bytes per cell (1 or 2)</li>
+ *     <li>the palette: the {@link CubicChunk#getId() ids} (ints) used in that region. Index 0 of the palette is always
+ *     "nothing" and is not written, so the first id is index 1</li>
+ *     <li>the palette index of each of the 4096 cells, in the order of {@link CubicChunkRegion#index(int, int, int)}</li>
+ * </ul>
+ * The index file is {@link #INDEX_MAGIC}, {@link #VERSION}, the bounds of the environment, the number of regions and
+ * their {@link CubicChunkRegion#key(int, int, int) keys} (longs), sorted.
+ * <p>
+ * An environment loaded from a storage stays bound to it, so {@link #save(CubicChunkEnvironment)} only writes the
+ * regions that were loaded. Ids that don't exist anymore when loading are loaded as nothing.
+ * <p>
+ * It is also where a {@link CubicChunkEnvironment#enableStreaming(RegionFileStorage, long) streaming} environment puts
+ * the regions it doesn't want to keep in memory, see {@link #evict(CubicChunkEnvironment, CubicChunkRegion[], int)}.
+ */
+public class RegionFileStorage {
+
+    public static final int REGION_MAGIC = 0x52474352; // "RGCR"
+    public static final int INDEX_MAGIC = 0x52474349; // "RGCI"
+    public static final int VERSION = 1;
+    private static final String INDEX_FILE = "index.bin";
+    private static final int REGION_HEADER_SIZE = 4 * 6 + 1;
+
+    private final Path directory;
+
+    /** keys of the regions that are on disk for the environment loaded from here, sorted */
+    private long[] storedKeys = new long[0];
+    /** if the region of that key was already loaded (it could have been removed since, that's not a reason to load it again) */
+    private boolean[] loaded = new boolean[0];
+    private @Nullable CubicChunkEnvironment boundEnvironment;
+    /** where files are read, grown if a file doesn't fit */
+    private ByteBuffer readBuffer = ByteBuffer.allocate(REGION_HEADER_SIZE + 4 * CubicChunkRegion.VOLUME + 2 * CubicChunkRegion.VOLUME);
+
+    public RegionFileStorage(Path directory) {
+        this.directory = directory;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return {@code true} if something was saved there
+     */
+    public boolean exists() {
+        return Files.isRegularFile(directory.resolve(INDEX_FILE));
+    }
+
+    private Path regionFile(int regionX, int regionY, int regionZ) {
+        return directory.resolve("r." + regionX + '.' + regionY + '.' + regionZ + ".region");
+    }
+
+    /**
+     * Writes all regions of the environment, and removes the files of regions that don't exist anymore
+     */
+    public synchronized void save(CubicChunkEnvironment environment) throws IOException {
+        Files.createDirectories(directory);
+        if (boundEnvironment != environment) {
+            // everything is written from memory, so the environment must be fully loaded
+            environment.loadAllRegions();
+            for (long key : storedKeys) {
+                Files.deleteIfExists(regionFile(CubicChunkRegion.regionXOfKey(key), CubicChunkRegion.regionYOfKey(key), CubicChunkRegion.regionZOfKey(key)));
+            }
+            storedKeys = new long[0];
+            loaded = new boolean[0];
+        }
+        LongObjectHashMap<CubicChunkRegion> regions = environment.regions();
+        long[] keys = new long[regions.size() + storedKeys.length];
+        int keyCount = 0;
+        int[] localIndexes = new int[CubicChunk.maxId() + 2];
+        ByteBuffer buffer = ByteBuffer.allocate(REGION_HEADER_SIZE + 4 * CubicChunkRegion.VOLUME + 2 * CubicChunkRegion.VOLUME);
+        for (int i = 0; i < regions.capacity(); i++) {
+            CubicChunkRegion region = regions.valueAt(i);
+            if (region == null) continue;
+            keys[keyCount++] = regions.keyAt(i);
+            writeRegionFile(region, buffer, localIndexes);
+        }
+        for (int i = 0; i < storedKeys.length; i++) {
+            if (!loaded[i]) {
+                keys[keyCount++] = storedKeys[i]; // still on disk, untouched
+            } else if (regions.get(storedKeys[i]) == null) {
+                // it was loaded, then emptied
+                Files.deleteIfExists(regionFile(CubicChunkRegion.regionXOfKey(storedKeys[i]), CubicChunkRegion.regionYOfKey(storedKeys[i]), CubicChunkRegion.regionZOfKey(storedKeys[i])));
+            }
+        }
+        keys = Arrays.copyOf(keys, keyCount);
+        Arrays.sort(keys);
+        writeIndex(environment, keys);
+        storedKeys = keys;
+        loaded = new boolean[keys.length];
+        Arrays.fill(loaded, true);
+        for (int i = 0; i < keys.length; i++) {
+            if (regions.get(keys[i]) == null) loaded[i] = false;
+        }
+        boundEnvironment = environment;
+    }
+
+    /**
+     * Binds that environment to this storage without writing anything, for
+     * {@link CubicChunkEnvironment#enableStreaming(RegionFileStorage, long)}. If another environment was stored here,
+     * its regions are deleted.
+     */
+    synchronized void bind(CubicChunkEnvironment environment) throws IOException {
+        if (boundEnvironment == environment) return;
+        for (long key : storedKeys) {
+            Files.deleteIfExists(regionFile(CubicChunkRegion.regionXOfKey(key), CubicChunkRegion.regionYOfKey(key), CubicChunkRegion.regionZOfKey(key)));
+        }
+        storedKeys = new long[0];
+        loaded = new boolean[0];
+        boundEnvironment = environment;
+    }
+
+    /**
+     * Writes the first {@code count} regions of the bound environment, that it is about to forget. They are given back
+     * by {@link #loadRegion(long)} the next time they are needed, like regions that were never loaded. The index is
+     * written too, so what is on disk is still usable if the environment is never {@link #save(CubicChunkEnvironment) saved}.
+     */
+    synchronized void evict(CubicChunkEnvironment environment, CubicChunkRegion[] regions, int count) throws IOException {
+        if (boundEnvironment != environment) throw new IllegalStateException("that environment is not bound to this storage");
+        Files.createDirectories(directory);
+        int[] localIndexes = new int[CubicChunk.maxId() + 2];
+        ByteBuffer buffer = ByteBuffer.allocate(REGION_HEADER_SIZE + 4 * CubicChunkRegion.VOLUME + 2 * CubicChunkRegion.VOLUME);
+        long[] newKeys = new long[count];
+        int newKeyCount = 0;
+        for (int i = 0; i < count; i++) {
+            CubicChunkRegion region = regions[i];
+            writeRegionFile(region, buffer, localIndexes);
+            long key = CubicChunkRegion.key(region.regionX, region.regionY, region.regionZ);
+            int stored = Arrays.binarySearch(storedKeys, key);
+            if (stored >= 0) loaded[stored] = false;
+            else newKeys[newKeyCount++] = key;
+        }
+        if (newKeyCount != 0) {
+            long[] keys = Arrays.copyOf(storedKeys, storedKeys.length + newKeyCount);
+            System.arraycopy(newKeys, 0, keys, storedKeys.length, newKeyCount);
+            Arrays.sort(keys);
+            boolean[] keysLoaded = new boolean[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                int stored = Arrays.binarySearch(storedKeys, keys[i]);
+                keysLoaded[i] = stored >= 0 && loaded[stored]; // the new ones are not loaded
+            }
+            storedKeys = keys;
+            loaded = keysLoaded;
+        }
+        writeIndex(environment, storedKeys);
+    }
+
+    private void writeRegionFile(CubicChunkRegion region, ByteBuffer buffer, int[] localIndexes) throws IOException {
+        buffer.clear();
+        writeRegion(region, buffer, localIndexes);
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(regionFile(region.regionX, region.regionY, region.regionZ),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    private static void writeRegion(CubicChunkRegion region, ByteBuffer buffer, int[] localIndexes) {
+        // palette, localIndexes[slot] is the index in the palette (0 = not in the palette yet)
+        int[] palette = new int[16];
+        int paletteSize = 0;
+        for (int index = 0; index < CubicChunkRegion.VOLUME; index++) {
+            int slot = region.getSlot(index);
+            if (slot == CubicChunkRegion.EMPTY || localIndexes[slot] != 0) continue;
+            if (paletteSize == palette.length) palette = Arrays.copyOf(palette, paletteSize * 2);
+            palette[paletteSize++] = slot;
+            localIndexes[slot] = paletteSize;
+        }
+        boolean bytes = paletteSize < 256;
+        buffer.putInt(REGION_MAGIC).putInt(VERSION)
+                .putInt(region.regionX).putInt(region.regionY).putInt(region.regionZ)
+                .putInt(paletteSize).put((byte) (bytes ? 1 : 2));
+        for (int i = 0; i < paletteSize; i++) {
+            buffer.putInt(palette[i] - 1);
+        }
+        for (int index = 0; index < CubicChunkRegion.VOLUME; index++) {
+            int slot = region.getSlot(index);
+            int localIndex = slot == CubicChunkRegion.EMPTY ? 0 : localIndexes[slot];
+            if (bytes) buffer.put((byte) localIndex);
+            else buffer.putShort((short) localIndex);
+        }
+        for (int i = 0; i < paletteSize; i++) {
+            localIndexes[palette[i]] = 0;
+        }
+    }
+
+    private void writeIndex(CubicChunkEnvironment environment, long[] keys) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4 * 2 + 1 + 4 * 6 + 4 + 8 * keys.length);
+        buffer.putInt(INDEX_MAGIC).putInt(VERSION).put((byte) (environment.isEmpty() ? 1 : 0));
+        int[] bounds = environment.bounds();
+        for (int bound : bounds) {
+            buffer.putInt(bound);
+        }
+        buffer.putInt(keys.length);
+        for (long key : keys) {
+            buffer.putLong(key);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(directory.resolve(INDEX_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the index and returns a new environment bound to this storage, its regions will be read when needed.
+     * @throws IOException if there is no index or if it is not valid
+     */
+    public synchronized CubicChunkEnvironment load(long seed) throws IOException {
+        CubicChunkEnvironment environment;
+        try (FileChannel channel = FileChannel.open(directory.resolve(INDEX_FILE), StandardOpenOption.READ)) {
+            ByteBuffer buffer = read(channel);
+            if (buffer.getInt() != INDEX_MAGIC) throw new IOException("not an index file");
+            checkVersion(buffer.getInt());
+            boolean isEmpty = buffer.get() != 0;
+            int[] bounds = new int[6];
+            for (int i = 0; i < bounds.length; i++) {
+                bounds[i] = buffer.getInt();
+            }
+            long[] keys = new long[buffer.getInt()];
+            buffer.asLongBuffer().get(keys);
+            storedKeys = keys;
+            loaded = new boolean[keys.length];
+            environment = new CubicChunkEnvironment(seed, 16, 50);
+            environment.restoreBounds(isEmpty, bounds);
+        }
+        environment.setStorage(this);
+        boundEnvironment = environment;
+        return environment;
+    }
+
+    private static void checkVersion(int version) throws IOException {
+        if (version != VERSION) throw new IOException("unsupported version " + version + ", expected " + VERSION);
+    }
+
+    /**
+     * Called by the environment when a region is not in memory
+     * @return the region read from its file, or {@code null} if it is not on disk or was already loaded
+     * @throws UncheckedIOException if the file can't be read
+     */
+    synchronized @Nullable CubicChunkRegion loadRegion(long key) {
+        int i = Arrays.binarySearch(storedKeys, key);
+        if (i < 0 || loaded[i]) return null;
+        loaded[i] = true;
+        try {
+            return readRegion(regionFile(CubicChunkRegion.regionXOfKey(key), CubicChunkRegion.regionYOfKey(key), CubicChunkRegion.regionZOfKey(key)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * @return the keys of the regions on disk that were not loaded yet
+     */
+    synchronized long[] unloadedKeys() {
+        long[] keys = new long[storedKeys.length];
+        int count = 0;
+        for (int i = 0; i < storedKeys.length; i++) {
+            if (!loaded[i]) keys[count++] = storedKeys[i];
+        }
+        return Arrays.copyOf(keys, count);
+    }
+
+    /**
+     * Reads the whole file in {@link #readBuffer}
+     * @return the buffer, ready to be read
+     */
+    private ByteBuffer read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) throw new IOException("file too big: " + size + " bytes");
+        if (size > readBuffer.capacity()) readBuffer = ByteBuffer.allocate((int) size);
+        ByteBuffer buffer = readBuffer;
+        buffer.clear().limit((int) size);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new EOFException();
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private CubicChunkRegion readRegion(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer buffer = read(channel);
+            if (buffer.getInt() != REGION_MAGIC) throw new IOException(file + " is not a region file");
+            checkVersion(buffer.getInt());
+            CubicChunkRegion region = new CubicChunkRegion(buffer.getInt(), buffer.getInt(), buffer.getInt());
+            int[] paletteSlots = new int[buffer.getInt() + 1];
+            int bytesPerCell = buffer.get();
+            for (int i = 1; i < paletteSlots.length; i++) {
+                int id = buffer.getInt();
+                paletteSlots[i] = CubicChunk.getInstance(id) == null ? CubicChunkRegion.EMPTY : id + 1;
+            }
+            if (bytesPerCell == 1) {
+                byte[] localIndexes = new byte[CubicChunkRegion.VOLUME];
+                buffer.get(localIndexes);
+                region.loadSlots(localIndexes, paletteSlots);
+            } else {
+                short[] localIndexes = new short[CubicChunkRegion.VOLUME];
+                buffer.asShortBuffer().get(localIndexes);
+                region.loadSlots(localIndexes, paletteSlots);
+            }
+            return region;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RegionFileStorage{" +
+                "directory=" + directory +
+                ", storedRegions=" + storedKeys.length +
+                '}';
+    }
+}
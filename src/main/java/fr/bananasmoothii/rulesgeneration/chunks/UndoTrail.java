@@ -0,0 +1,152 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+
+import java.util.Arrays;
+
+/**
+ * A journal of the changes made with {@link CubicChunkEnvironment#setUndoable(CubicChunk, int, int, int)}, like the
+ * trail of a SAT solver. Each entry is the coordinates of a changed cell and its previous slot
+ * ({@link CubicChunk#getId() id} + 1, 0 meaning there was nothing), stored as 4 {@code int}s in one array, so
+ * recording a change allocates nothing.
+ * <p>
+ * To be able to undo something, take a {@link #mark()} before, and {@link #rollback(int) roll back} to it after. That
+ * undoes everything recorded since the mark, in reverse order, so it costs only the number of changes since the
+ * mark. Marks are like a stack: rolling back to a mark also undoes what was done after the marks taken later. When
+ * changes are final, {@link #commit(int)} forgets them so the trail doesn't grow forever.
+ * <p>
+ * Between a mark and the end of the trail you can also read what changed with {@link #x(int)}, {@link #y(int)} and
+ * {@link #z(int)}.
+ * <p>
+ * Changes that are only tried, like when a {@link fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList} is
+ * validated, are made between {@link #markTrial()} and {@link #rollbackTrial(int)}: they are temporary changes, that
+ * don't make cells dirty, don't grow the bounds and don't change the stamp of the environment.
+ */
+public final class UndoTrail {
+
+    private static final int ENTRY_SIZE = 4;
+
+    private final CubicChunkEnvironment environment;
+    /** x, y, z, old slot (~old slot if the change was temporary) */
+    private int[] entries = new int[ENTRY_SIZE * 64];
+    /** number of entries (not multiplied by ENTRY_SIZE) */
+    private int size;
+
+    UndoTrail(CubicChunkEnvironment environment) {
+        this.environment = environment;
+    }
+
+    void record(int x, int y, int z, int oldSlot, boolean temporary) {
+        int i = size * ENTRY_SIZE;
+        if (i == entries.length) entries = Arrays.copyOf(entries, entries.length << 1);
+        entries[i] = x;
+        entries[i + 1] = y;
+        entries[i + 2] = z;
+        entries[i + 3] = temporary ? ~oldSlot : oldSlot;
+        size++;
+    }
+
+    /**
+     * @return a mark for {@link #rollback(int)} and {@link #commit(int)}, that is just the current {@link #size()}
+     */
+    public int mark() {
+        return size;
+    }
+
+    /**
+     * Undoes all changes recorded after that mark, last change first. Temporary changes are undone temporarily too.
+     */
+    public void rollback(int mark) {
+        checkMark(mark);
+        GenerationMetrics.undone(size - mark);
+        while (size > mark) {
+            size--;
+            int i = size * ENTRY_SIZE;
+            int oldSlot = entries[i + 3];
+            if (oldSlot < 0) environment.setSlotTemporarily(entries[i], entries[i + 1], entries[i + 2], ~oldSlot);
+            else environment.setSlot(entries[i], entries[i + 1], entries[i + 2], oldSlot);
+        }
+        if (size == 0) environment.trailEmptied();
+    }
+
+    /**
+     * Like {@link #mark()}, but the changes made with {@link CubicChunkEnvironment#setUndoable(CubicChunk, int, int, int)}
+     * until {@link #rollbackTrial(int)} are temporary. They must all be rolled back, not committed.
+     */
+    public int markTrial() {
+        environment.beginTemporary();
+        return size;
+    }
+
+    /**
+     * Undoes the changes made since {@link #markTrial()} returned that mark, and ends the trial
+     */
+    public void rollbackTrial(int mark) {
+        try {
+            rollback(mark);
+        } finally {
+            environment.endTemporary();
+        }
+    }
+
+    /**
+     * Forgets all changes recorded after that mark, so they can't be undone anymore
+     */
+    public void commit(int mark) {
+        checkMark(mark);
+        size = mark;
+        if (size == 0) environment.trailEmptied();
+    }
+
+    /**
+     * Forgets everything
+     */
+    public void clear() {
+        size = 0;
+        environment.trailEmptied();
+    }
+
+    private void checkMark(int mark) {
+        if (mark < 0 || mark > size)
+            throw new IllegalArgumentException("invalid mark " + mark + ", the trail has " + size + " entries (it was already rolled back or committed)");
+    }
+
+    /**
+     * @return the number of changes that can be undone
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param entry between 0 (inclusive) and {@link #size()} (exclusive)
+     * @return the x coordinate of that change
+     */
+    public int x(int entry) {
+        return entries[entry * ENTRY_SIZE];
+    }
+
+    public int y(int entry) {
+        return entries[entry * ENTRY_SIZE + 1];
+    }
+
+    public int z(int entry) {
+        return entries[entry * ENTRY_SIZE + 2];
+    }
+
+    /**
+     * @return the {@link CubicChunk#getId() id} that was there before that change, or
+     * {@link CubicChunkEnvironment#NO_ID} if there was nothing
+     */
+    public int oldId(int entry) {
+        int oldSlot = entries[entry * ENTRY_SIZE + 3];
+        return (oldSlot < 0 ? ~oldSlot : oldSlot) - 1;
+    }
+
+    @Override
+    public String toString() {
+        return "UndoTrail{" +
+                "size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,258 @@
+package fr.bananasmoothii.rulesgeneration.generators;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.chunks.RegionFileStorage;
+import org.bukkit.World;
+import org.bukkit.block.data.BlockData;
+import org.bukkit.generator.ChunkGenerator;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link ChunkGenerator} that fills minecraft chunks with the {@link CubicChunk}s of a {@link CubicChunkEnvironment}.
+ * A minecraft chunk (16x256x16 blocs) is a column of 16 cells of the environment, the cell (x, y, z) being the
+ * {@link CubicChunk} placed at chunk x, z and at height y * 16.
+ * <p>
+ * Solving the environment can be long, so columns can be {@link #precomputeAround(World, int, int, int) precomputed} ahead
+ * of players by a background thread. When the server asks for a chunk, it is then usually just copying blocs.
+ * {@link CubicChunkEnvironment} is not thread-safe, so every access to it is synchronized on it, and background
+ * tasks are one column each so the server thread never waits long.
+ * <p>
+ * With a memory budget, the environment is {@link CubicChunkEnvironment#enableStreaming(RegionFileStorage, long) streaming}
+ * to the {@code rulesgeneration} folder of the world: regions far from the columns given to
+ * {@link #keepLoadedAround(int[])} are written there by the background thread when the budget is exceeded, and the
+ * environment is loaded back from there when the server restarts.
+ */
+public class RulesChunkGenerator extends ChunkGenerator {
+
+    public static final int DEFAULT_MAX_PENDING_COLUMNS = 256;
+
+    private final int height;
+    /** see {@link CubicChunkEnvironment#enableStreaming(RegionFileStorage, long)}, 0 if streaming is off */
+    private final long memoryBudget;
+    /** radius, then chunk x and z of each column, see {@link #keepLoadedAround(int[])} */
+    private volatile int[] anchorColumns = {0};
+    private volatile @Nullable CubicChunkEnvironment environment;
+    private final ThreadPoolExecutor precomputeExecutor;
+    /** columns waiting in {@link #precomputeExecutor}, see {@link #columnKey(int, int)} */
+    private final Set<Long> pendingColumns = ConcurrentHashMap.newKeySet();
+    /** columns entirely generated, so {@link #precomputeAround(World, int, int, int)} doesn't need the lock to skip them */
+    private final Set<Long> generatedColumns = ConcurrentHashMap.newKeySet();
+
+    public RulesChunkGenerator() {
+        this(16, DEFAULT_MAX_PENDING_COLUMNS);
+    }
+
+    /**
+     * @param height number of cells per column (16 for a world of 256 blocs high)
+     * @param maxPendingColumns the maximum number of columns waiting to be precomputed, other columns are ignored
+     *                          until there is room again
+     */
+    public RulesChunkGenerator(int height, int maxPendingColumns) {
+        this(height, maxPendingColumns, 0);
+    }
+
+    /**
+     * @param memoryBudget in bytes, how much memory the environment may use before regions are written to disk, or 0
+     *                     to keep everything in memory (and lose it when the server stops)
+     */
+    public RulesChunkGenerator(int height, int maxPendingColumns, long memoryBudget) {
+        if (height < 1) throw new IllegalArgumentException("height must be >= 1");
+        if (memoryBudget < 0) throw new IllegalArgumentException("memoryBudget must be >= 0");
+        this.height = height;
+        this.memoryBudget = memoryBudget;
+        precomputeExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(maxPendingColumns), runnable -> {
+                    Thread thread = new Thread(runnable, "RulesGeneration precompute");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    /**
+     * @return the environment of that world, created with the world seed the first time (or loaded from the world
+     * folder if streaming is on)
+     * @throws UncheckedIOException if streaming is on and the environment could not be loaded
+     */
+    public CubicChunkEnvironment getEnvironment(World world) {
+        CubicChunkEnvironment environment = this.environment;
+        if (environment == null) {
+            synchronized (this) {
+                environment = this.environment;
+                if (environment == null) {
+                    environment = createEnvironment(world);
+                    this.environment = environment;
+                }
+            }
+        }
+        return environment;
+    }
+
+    private CubicChunkEnvironment createEnvironment(World world) {
+        if (memoryBudget == 0) return new CubicChunkEnvironment(world.getSeed(), height);
+        RegionFileStorage storage = new RegionFileStorage(world.getWorldFolder().toPath().resolve("rulesgeneration"));
+        CubicChunkEnvironment environment;
+        try {
+            environment = storage.exists() ? storage.load(world.getSeed()) : new CubicChunkEnvironment(world.getSeed(), height);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        environment.enableStreaming(storage, memoryBudget);
+        return environment;
+    }
+
+    @Override
+    public @NotNull ChunkData generateChunkData(@NotNull World world, @NotNull Random random, int chunkX, int chunkZ, @NotNull BiomeGrid biome) {
+        ChunkData chunkData = createChunkData(world);
+        CubicChunkEnvironment environment = getEnvironment(world);
+        int cells = Math.min(height, world.getMaxHeight() >> 4);
+        CubicChunk[] column = new CubicChunk[cells];
+        synchronized (environment) {
+            generateColumn(environment, chunkX, chunkZ);
+            for (int y = 0; y < cells; y++) {
+                column[y] = environment.get(chunkX, y, chunkZ);
+            }
+        }
+        // templates don't change, no need to hold the lock while copying
+        BlockData[] buffer = new BlockData[CubicChunk.VOLUME];
+        for (int y = 0; y < cells; y++) {
+            CubicChunk template = column[y];
+            if (template != null) copy(template, chunkData, y << 4, buffer);
+        }
+        return chunkData;
+    }
+
+    private static void copy(CubicChunk template, ChunkData chunkData, int baseY, BlockData[] buffer) {
+        BlockData uniform = template.uniform();
+        if (uniform != null) {
+            chunkData.setRegion(0, baseY, 0, 16, baseY + 16, 16, uniform);
+            return;
+        }
+        template.copyTo(buffer, 0);
+        for (int i = 0; i < CubicChunk.VOLUME; i++) {
+            BlockData blockData = buffer[i];
+            // same order as CubicChunk#copyTo
+            if (blockData != null) chunkData.setBlock(i & 15, baseY + (i >> 8), i >> 4 & 15, blockData);
+        }
+    }
+
+    /**
+     * Generates every cell of that column that is not generated yet. Must be called while holding the lock of the
+     * environment.
+     */
+    private void generateColumn(CubicChunkEnvironment environment, int chunkX, int chunkZ) {
+        Long key = columnKey(chunkX, chunkZ);
+        if (generatedColumns.contains(key)) return;
+        for (int y = 0; y < height; y++) {
+            environment.generate(chunkX, y, chunkZ);
+        }
+        // the solver already checked what it generated. Left dirty, these cells would pin their regions in memory
+        // (see evictColdRegions) and the dirty journal would grow forever.
+        environment.clearDirty();
+        generatedColumns.add(key);
+    }
+
+    /**
+     * Asks the background thread to generate all columns in a square of that radius around that column, closest
+     * columns first. Columns that are already generated or already waiting are skipped, and if too many columns are
+     * waiting the rest is dropped (it will be asked again next time). This never waits for the environment, so it can
+     * be called from the server thread.
+     */
+    public void precomputeAround(World world, int chunkX, int chunkZ, int radius) {
+        CubicChunkEnvironment environment = getEnvironment(world);
+        for (int r = 0; r <= radius; r++) {
+            for (int x = chunkX - r; x <= chunkX + r; x++) {
+                for (int z = chunkZ - r; z <= chunkZ + r; z++) {
+                    if (Math.abs(x - chunkX) != r && Math.abs(z - chunkZ) != r) continue; // only the ring
+                    if (precomputeExecutor.getQueue().remainingCapacity() == 0) return;
+                    precompute(environment, x, z);
+                }
+            }
+        }
+    }
+
+    private void precompute(CubicChunkEnvironment environment, int chunkX, int chunkZ) {
+        Long key = columnKey(chunkX, chunkZ);
+        if (generatedColumns.contains(key) || !pendingColumns.add(key)) return;
+        precomputeExecutor.execute(() -> {
+            try {
+                synchronized (environment) {
+                    generateColumn(environment, chunkX, chunkZ);
+                    if (environment.isStreaming()) evictColdRegions(environment);
+                }
+            } finally {
+                pendingColumns.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Regions in that radius around these columns are not evicted when streaming (the others are only evicted if
+     * the memory budget is exceeded, least recently used first). It replaces the columns given last time, and it never
+     * waits for the environment, so it can be called from the server thread.
+     * @param radiusAndColumns the radius in chunks, then the chunk x and z of each column
+     */
+    public void keepLoadedAround(int[] radiusAndColumns) {
+        if (radiusAndColumns.length % 2 != 1) throw new IllegalArgumentException("expected a radius then pairs of coordinates");
+        anchorColumns = radiusAndColumns.clone();
+    }
+
+    /**
+     * Must be called while holding the lock of the environment
+     */
+    private void evictColdRegions(CubicChunkEnvironment environment) {
+        int[] columns = anchorColumns;
+        environment.clearAnchors();
+        for (int i = 1; i < columns.length; i += 2) {
+            environment.addAnchor(columns[i], height / 2, columns[i + 1], Math.max(columns[0], height / 2));
+        }
+        environment.evictColdRegions();
+    }
+
+    private static long columnKey(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the number of columns waiting to be precomputed
+     */
+    public int pendingColumns() {
+        return pendingColumns.size();
+    }
+
+    /**
+     * Stops the background thread, pending columns are dropped
+     */
+    public void shutdown() {
+        precomputeExecutor.shutdownNow();
+        pendingColumns.clear();
+    }
+
+    /**
+     * Writes the whole environment in the world folder if streaming is on, so it is there when the server restarts.
+     * Waits for the background thread to finish the column it is working on.
+     */
+    public void save() throws IOException {
+        CubicChunkEnvironment environment = this.environment;
+        if (environment == null || memoryBudget == 0) return;
+        synchronized (environment) {
+            RegionFileStorage storage = environment.getStorage();
+            if (storage != null) storage.save(environment);
+        }
+    }
+
+    public int getHeight() {
+        return height;
+    }
+}
@@ -0,0 +1,196 @@
+package fr.bananasmoothii.rulesgeneration.metrics;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.management.*;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and {@link Histogram}s of what the generation does, for all environments of the JVM. Everything is
+ * disabled by default (or enabled with {@code -Drulesgeneration.metrics=true}): the record methods then only read
+ * one volatile boolean, and the JIT inlines them, so the cost is close to nothing. When enabled, counters are
+ * {@link LongAdder}s so threads generating at the same time don't fight for the same cache line.
+ * <p>
+ * Read them with {@link #snapshot()} or with JMX after {@link #registerMBean()}, see {@link GenerationMetricsMXBean}.
+ */
+public final class GenerationMetrics {
+
+    public static final String OBJECT_NAME = "fr.bananasmoothii.rulesgeneration:type=GenerationMetrics";
+
+    private static volatile boolean enabled = Boolean.getBoolean("rulesgeneration.metrics");
+    private static volatile long resetTime = System.nanoTime();
+
+    /** the counters by rule class, {@link #ruleEvaluationsByClass} is only there to list them */
+    private static final ClassValue<LongAdder> ruleEvaluations = new ClassValue<LongAdder>() {
+        @Override
+        protected LongAdder computeValue(Class<?> type) {
+            return ruleEvaluationsByClass.computeIfAbsent(type, t -> new LongAdder());
+        }
+    };
+    private static final Map<Class<?>, LongAdder> ruleEvaluationsByClass = new ConcurrentHashMap<>();
+    static final LongAdder suggestionsCreated = new LongAdder();
+    static final LongAdder undoneChanges = new LongAdder();
+    static final LongAdder cellsPlaced = new LongAdder();
+    static final LongAdder regionsCreated = new LongAdder();
+    static final LongAdder regionsEvicted = new LongAdder();
+    static final LongAdder boundsGrown = new LongAdder();
+    static final LongAdder ruleCacheHits = new LongAdder();
+    static final LongAdder ruleCacheMisses = new LongAdder();
+    static final Histogram suggestionListSizes = new Histogram();
+    static final Histogram validateDepths = new Histogram();
+    static final Histogram generateNanos = new Histogram();
+
+    private static @Nullable ObjectName registeredName;
+
+    private GenerationMetrics() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static void setEnabled(boolean enabled) {
+        GenerationMetrics.enabled = enabled;
+    }
+
+    /**
+     * A {@link fr.bananasmoothii.rulesgeneration.rules.Rule Rule} of that class was tested once
+     */
+    public static void ruleEvaluated(Class<?> ruleClass) {
+        if (enabled) ruleEvaluations.get(ruleClass).increment();
+    }
+
+    public static void suggestionCreated() {
+        if (enabled) suggestionsCreated.increment();
+    }
+
+    /**
+     * @param size the number of suggestions in the list when it was validated
+     * @param depth the number of changed cells whose rules were checked
+     */
+    public static void suggestionListValidated(int size, int depth) {
+        if (enabled) {
+            suggestionListSizes.record(size);
+            validateDepths.record(depth);
+        }
+    }
+
+    /**
+     * @param changes the number of cells set back to what they were
+     */
+    public static void undone(int changes) {
+        if (enabled) undoneChanges.add(changes);
+    }
+
+    /**
+     * Something was put in a cell
+     */
+    public static void cellPlaced() {
+        if (enabled) cellsPlaced.increment();
+    }
+
+    /**
+     * The environment had to allocate a new region
+     */
+    public static void regionCreated() {
+        if (enabled) regionsCreated.increment();
+    }
+
+    /**
+     * A streaming environment wrote that many regions to its storage and forgot them
+     */
+    public static void regionsEvicted(int count) {
+        if (enabled) regionsEvicted.add(count);
+    }
+
+    /**
+     * The bounds of an environment grew
+     */
+    public static void boundsGrown() {
+        if (enabled) boundsGrown.increment();
+    }
+
+    /**
+     * A {@link fr.bananasmoothii.rulesgeneration.rules.RuleResultCache RuleResultCache} had the result
+     */
+    public static void ruleCacheHit() {
+        if (enabled) ruleCacheHits.increment();
+    }
+
+    /**
+     * A {@link fr.bananasmoothii.rulesgeneration.rules.RuleResultCache RuleResultCache} didn't have the result, or
+     * it was out of date
+     */
+    public static void ruleCacheMissed() {
+        if (enabled) ruleCacheMisses.increment();
+    }
+
+    /**
+     * @return {@link System#nanoTime()}, or 0 if metrics are disabled, to give to {@link #generated(long)}
+     */
+    public static long startTimer() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * A generate call ended
+     * @param start what {@link #startTimer()} returned at the start of the call
+     */
+    public static void generated(long start) {
+        if (start != 0 && enabled) generateNanos.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Sets everything back to 0
+     */
+    public static void reset() {
+        for (LongAdder adder : ruleEvaluationsByClass.values()) {
+            adder.reset();
+        }
+        suggestionsCreated.reset();
+        undoneChanges.reset();
+        cellsPlaced.reset();
+        regionsCreated.reset();
+        regionsEvicted.reset();
+        boundsGrown.reset();
+        ruleCacheHits.reset();
+        ruleCacheMisses.reset();
+        suggestionListSizes.reset();
+        validateDepths.reset();
+        generateNanos.reset();
+        resetTime = System.nanoTime();
+    }
+
+    /**
+     * @return the values of every counter now. Values are read one by one while other threads may still be
+     * recording, so they may be slightly out of sync with each other.
+     */
+    public static MetricsSnapshot snapshot() {
+        return new MetricsSnapshot(ruleEvaluationsByClass, suggestionsCreated.sum(), undoneChanges.sum(),
+                cellsPlaced.sum(), regionsCreated.sum(), regionsEvicted.sum(), boundsGrown.sum(), ruleCacheHits.sum(),
+                ruleCacheMisses.sum(), suggestionListSizes.snapshot(),
+                validateDepths.snapshot(), generateNanos.snapshot(), System.nanoTime() - resetTime);
+    }
+
+    /**
+     * Registers a {@link GenerationMetricsMXBean} in the platform MBean server as {@link #OBJECT_NAME}, if it is not
+     * there yet
+     */
+    public static synchronized void registerMBean() throws JMException {
+        if (registeredName != null) return;
+        ObjectName name = new ObjectName(OBJECT_NAME);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (!server.isRegistered(name)) server.registerMBean(new GenerationMetricsBean(), name);
+        registeredName = name;
+    }
+
+    public static synchronized void unregisterMBean() throws JMException {
+        if (registeredName == null) return;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(registeredName)) server.unregisterMBean(registeredName);
+        registeredName = null;
+    }
+}
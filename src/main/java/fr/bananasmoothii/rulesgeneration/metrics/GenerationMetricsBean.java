@@ -0,0 +1,126 @@
+package fr.bananasmoothii.rulesgeneration.metrics;
+
+import java.util.Map;
+
+/**
+ * Registered by {@link GenerationMetrics#registerMBean()}
+ */
+final class GenerationMetricsBean implements GenerationMetricsMXBean {
+
+    private static final double NANOS_PER_MILLI = 1_000_000d;
+
+    @Override
+    public boolean isEnabled() {
+        return GenerationMetrics.isEnabled();
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        GenerationMetrics.setEnabled(enabled);
+    }
+
+    @Override
+    public void reset() {
+        GenerationMetrics.reset();
+    }
+
+    @Override
+    public Map<String, Long> getRuleEvaluations() {
+        return GenerationMetrics.snapshot().ruleEvaluations;
+    }
+
+    @Override
+    public long getTotalRuleEvaluations() {
+        return GenerationMetrics.snapshot().totalRuleEvaluations();
+    }
+
+    @Override
+    public long getSuggestionsCreated() {
+        return GenerationMetrics.suggestionsCreated.sum();
+    }
+
+    @Override
+    public double getSuggestionListSizeMean() {
+        return GenerationMetrics.suggestionListSizes.snapshot().mean();
+    }
+
+    @Override
+    public long getSuggestionListSizeP99() {
+        return GenerationMetrics.suggestionListSizes.snapshot().percentile(0.99);
+    }
+
+    @Override
+    public double getValidateDepthMean() {
+        return GenerationMetrics.validateDepths.snapshot().mean();
+    }
+
+    @Override
+    public long getValidateDepthP99() {
+        return GenerationMetrics.validateDepths.snapshot().percentile(0.99);
+    }
+
+    @Override
+    public long getUndoneChanges() {
+        return GenerationMetrics.undoneChanges.sum();
+    }
+
+    @Override
+    public long getCellsPlaced() {
+        return GenerationMetrics.cellsPlaced.sum();
+    }
+
+    @Override
+    public double getCellsPlacedPerSecond() {
+        return GenerationMetrics.snapshot().cellsPlacedPerSecond();
+    }
+
+    @Override
+    public double getRuleEvaluationsPerCell() {
+        return GenerationMetrics.snapshot().ruleEvaluationsPerCell();
+    }
+
+    @Override
+    public long getGenerateCalls() {
+        return GenerationMetrics.generateNanos.snapshot().count;
+    }
+
+    @Override
+    public double getGenerateMeanMillis() {
+        return GenerationMetrics.generateNanos.snapshot().mean() / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public double getGenerateP99Millis() {
+        return GenerationMetrics.generateNanos.snapshot().percentile(0.99) / NANOS_PER_MILLI;
+    }
+
+    @Override
+    public long getRegionsCreated() {
+        return GenerationMetrics.regionsCreated.sum();
+    }
+
+    @Override
+    public long getRegionsEvicted() {
+        return GenerationMetrics.regionsEvicted.sum();
+    }
+
+    @Override
+    public long getBoundsGrown() {
+        return GenerationMetrics.boundsGrown.sum();
+    }
+
+    @Override
+    public long getRuleCacheHits() {
+        return GenerationMetrics.ruleCacheHits.sum();
+    }
+
+    @Override
+    public long getRuleCacheMisses() {
+        return GenerationMetrics.ruleCacheMisses.sum();
+    }
+
+    @Override
+    public double getRuleCacheHitRate() {
+        return GenerationMetrics.snapshot().ruleCacheHitRate();
+    }
+}
@@ -0,0 +1,57 @@
+package fr.bananasmoothii.rulesgeneration.metrics;
+
+import java.util.Map;
+
+/**
+ * What {@link GenerationMetrics} shows in JMX (for exemple in JConsole or VisualVM), under
+ * {@link GenerationMetrics#OBJECT_NAME}. Each getter reads the current value, durations are in milliseconds.
+ */
+public interface GenerationMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    void reset();
+
+    /** by rule class name */
+    Map<String, Long> getRuleEvaluations();
+
+    long getTotalRuleEvaluations();
+
+    long getSuggestionsCreated();
+
+    double getSuggestionListSizeMean();
+
+    long getSuggestionListSizeP99();
+
+    double getValidateDepthMean();
+
+    long getValidateDepthP99();
+
+    long getUndoneChanges();
+
+    long getCellsPlaced();
+
+    double getCellsPlacedPerSecond();
+
+    double getRuleEvaluationsPerCell();
+
+    long getGenerateCalls();
+
+    double getGenerateMeanMillis();
+
+    double getGenerateP99Millis();
+
+    long getRegionsCreated();
+
+    long getRegionsEvicted();
+
+    long getBoundsGrown();
+
+    long getRuleCacheHits();
+
+    long getRuleCacheMisses();
+
+    double getRuleCacheHitRate();
+}
@@ -0,0 +1,123 @@
+package fr.bananasmoothii.rulesgeneration.metrics;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A thread-safe histogram of non-negative values with one bucket per power of 2: bucket 0 is for 0, bucket i for
+ * values in [2^(i-1); 2^i[. Recording is one {@link Long#numberOfLeadingZeros(long)} and two {@link LongAdder}
+ * increments, so it can be used from hot paths and from several threads without contention. Percentiles are only
+ * precise to a factor 2, which is enough to see where time goes.
+ */
+public final class Histogram {
+
+    /** {@link Long#MAX_VALUE} is in bucket 63 */
+    static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+
+    public Histogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    static int bucketOf(long value) {
+        return 64 - Long.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * @param value negative values are counted as 0
+     */
+    public void record(long value) {
+        if (value < 0) value = 0;
+        buckets[bucketOf(value)].increment();
+        sum.add(value);
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        sum.reset();
+    }
+
+    /**
+     * The values recorded while taking the snapshot may be partly counted
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts, sum.sum());
+    }
+
+    public static final class Snapshot {
+        private final long[] counts;
+        public final long count;
+        public final long sum;
+
+        Snapshot(long[] counts, long sum) {
+            this.counts = counts;
+            long count = 0;
+            for (long c : counts) count += c;
+            this.count = count;
+            this.sum = sum;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param fraction for exemple 0.99 for the 99th percentile
+         * @return the upper bound of the bucket containing that percentile (2^i - 1 for bucket i), or 0 if nothing was
+         * recorded
+         */
+        public long percentile(double fraction) {
+            if (count == 0) return 0;
+            long wanted = (long) Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= wanted && counts[i] != 0) return upperBound(i);
+            }
+            return upperBound(BUCKETS - 1);
+        }
+
+        /**
+         * @return the upper bound of the highest bucket used
+         */
+        public long max() {
+            for (int i = BUCKETS - 1; i >= 0; i--) {
+                if (counts[i] != 0) return upperBound(i);
+            }
+            return 0;
+        }
+
+        private static long upperBound(int bucket) {
+            return (1L << bucket) - 1;
+        }
+
+        /**
+         * @return the count of each bucket, see {@link Histogram}
+         */
+        public long[] buckets() {
+            return counts.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "Histogram{" +
+                    "count=" + count +
+                    ", mean=" + mean() +
+                    ", p50=" + percentile(0.5) +
+                    ", p99=" + percentile(0.99) +
+                    ", max=" + max() +
+                    ", buckets=" + Arrays.toString(Arrays.copyOf(counts, max() == 0 ? 1 : bucketOf(max()) + 1)) +
+                    '}';
+        }
+    }
+}
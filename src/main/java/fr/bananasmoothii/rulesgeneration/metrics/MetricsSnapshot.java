@@ -0,0 +1,109 @@
+package fr.bananasmoothii.rulesgeneration.metrics;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The values of {@link GenerationMetrics} at some point, see {@link GenerationMetrics#snapshot()}. It doesn't change
+ * after.
+ */
+public final class MetricsSnapshot {
+
+    /** by rule class name, sorted */
+    public final Map<String, Long> ruleEvaluations;
+    public final long suggestionsCreated;
+    public final long undoneChanges;
+    public final long cellsPlaced;
+    public final long regionsCreated;
+    public final long regionsEvicted;
+    public final long boundsGrown;
+    public final long ruleCacheHits;
+    public final long ruleCacheMisses;
+    public final Histogram.Snapshot suggestionListSizes;
+    /** number of changed cells checked by each {@link fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList#validate()} */
+    public final Histogram.Snapshot validateDepths;
+    /** duration of each {@link fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment#generate(int, int, int, int, int, int) generate} call */
+    public final Histogram.Snapshot generateNanos;
+    /** time since the metrics were {@link GenerationMetrics#reset() reset} (or since the class was loaded) */
+    public final long elapsedNanos;
+
+    MetricsSnapshot(Map<Class<?>, LongAdder> ruleEvaluations, long suggestionsCreated, long undoneChanges,
+                    long cellsPlaced, long regionsCreated, long regionsEvicted, long boundsGrown, long ruleCacheHits, long ruleCacheMisses,
+                    Histogram.Snapshot suggestionListSizes,
+                    Histogram.Snapshot validateDepths, Histogram.Snapshot generateNanos, long elapsedNanos) {
+        Map<String, Long> evaluations = new TreeMap<>();
+        for (Map.Entry<Class<?>, LongAdder> entry : ruleEvaluations.entrySet()) {
+            long sum = entry.getValue().sum();
+            if (sum != 0) evaluations.put(entry.getKey().getName(), sum);
+        }
+        this.ruleEvaluations = Collections.unmodifiableMap(evaluations);
+        this.suggestionsCreated = suggestionsCreated;
+        this.undoneChanges = undoneChanges;
+        this.cellsPlaced = cellsPlaced;
+        this.regionsCreated = regionsCreated;
+        this.regionsEvicted = regionsEvicted;
+        this.boundsGrown = boundsGrown;
+        this.ruleCacheHits = ruleCacheHits;
+        this.ruleCacheMisses = ruleCacheMisses;
+        this.suggestionListSizes = suggestionListSizes;
+        this.validateDepths = validateDepths;
+        this.generateNanos = generateNanos;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * @return the sum of {@link #ruleEvaluations}
+     */
+    public long totalRuleEvaluations() {
+        long total = 0;
+        for (long count : ruleEvaluations.values()) total += count;
+        return total;
+    }
+
+    /**
+     * @return {@link #totalRuleEvaluations()} divided by {@link #cellsPlaced}, what a cell costs on average, repairs
+     * included
+     */
+    public double ruleEvaluationsPerCell() {
+        return cellsPlaced == 0 ? 0 : totalRuleEvaluations() / (double) cellsPlaced;
+    }
+
+    /**
+     * @return the part of rule cache lookups that were hits, between 0 and 1
+     */
+    public double ruleCacheHitRate() {
+        long lookups = ruleCacheHits + ruleCacheMisses;
+        return lookups == 0 ? 0 : ruleCacheHits / (double) lookups;
+    }
+
+    /**
+     * @return {@link #cellsPlaced} divided by {@link #elapsedNanos}, in cells per second
+     */
+    public double cellsPlacedPerSecond() {
+        return elapsedNanos <= 0 ? 0 : cellsPlaced * (double) TimeUnit.SECONDS.toNanos(1) / elapsedNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "MetricsSnapshot{" +
+                "ruleEvaluations=" + ruleEvaluations +
+                ", suggestionsCreated=" + suggestionsCreated +
+                ", undoneChanges=" + undoneChanges +
+                ", cellsPlaced=" + cellsPlaced +
+                ", cellsPlacedPerSecond=" + cellsPlacedPerSecond() +
+                ", ruleEvaluationsPerCell=" + ruleEvaluationsPerCell() +
+                ", regionsCreated=" + regionsCreated +
+                ", regionsEvicted=" + regionsEvicted +
+                ", boundsGrown=" + boundsGrown +
+                ", ruleCacheHits=" + ruleCacheHits +
+                ", ruleCacheMisses=" + ruleCacheMisses +
+                ", suggestionListSizes=" + suggestionListSizes +
+                ", validateDepths=" + validateDepths +
+                ", generateNanos=" + generateNanos +
+                ", elapsedNanos=" + elapsedNanos +
+                '}';
+    }
+}
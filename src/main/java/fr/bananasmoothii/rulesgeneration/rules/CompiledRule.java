@@ -0,0 +1,626 @@
+package fr.bananasmoothii.rulesgeneration.rules;
+
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link Rule} tree turned into flat tables, so that {@link #test(CubicChunkEnvironment, int, int, int)} is only
+ * a few loops over arrays: no virtual calls, no {@code what[]} arrays and nothing allocated.
+ * <p>
+ * There are four types of nodes:
+ * <ul>
+ *     <li>leaves, from {@link RelativeRule}s: a relative offset and a bitset of the accepted "slots", a slot being
+ *     {@link CubicChunk#getId()} + 1 and 0 meaning there is nothing (so the id from
+ *     {@link CubicChunkEnvironment#getId(int, int, int)} + 1). Leaves of the same group with the same offset are
+ *     merged together when that doesn't change the result.</li>
+ *     <li>groups, from {@link RuleList}s: valid if at least {@code threshold} children are valid. The threshold is
+ *     the number of children for {@link LogicalOperator#AND AND} and {@link RuleList#minAmount} for
+ *     {@link LogicalOperator#OR OR}.</li>
+ *     <li>counts, from {@link ProximityRule}s: they use {@link ProximityRule#count(CubicChunkEnvironment, int, int, int)}
+ *     instead of testing all the {@link RelativeRule}s inside.</li>
+ *     <li>opaque nodes, for any other {@link Rule}: they just call {@link Rule#test(CubicChunkEnvironment, int, int, int)}.</li>
+ * </ul>
+ * Node 0 is the root.
+ * <p>
+ * With the {@link Backend#METHOD_HANDLES} backend, the tables are also turned into a tree of {@link MethodHandle}s:
+ * offsets and bitsets are bound as constants, leaves accepting one type (or all but one) are a single comparison, and
+ * groups are chains of {@link MethodHandles#guardWithTest(MethodHandle, MethodHandle, MethodHandle) guardWithTest}
+ * that stop as soon as the result is known. If the handles can't be built, the tables are used.
+ * @see RuleList#compiled()
+ */
+public final class CompiledRule {
+
+    static final byte LEAF = 0, GROUP = 1, COUNT = 2, OPAQUE = 3;
+
+    /**
+     * How {@link #test(CubicChunkEnvironment, int, int, int)} runs
+     */
+    public enum Backend {
+        /** loops over the tables */
+        INTERPRETER,
+        /** a {@link MethodHandle} tree built when compiling */
+        METHOD_HANDLES
+    }
+
+    private static volatile Backend backend = Backend.INTERPRETER;
+
+    private final byte[] types;
+    /* leaves */
+    private final int[] dx, dy, dz;
+    private final long[][] acceptedSlots;
+    /** if the slot is too big for acceptedSlots (the CubicChunk was created after compiling) */
+    private final boolean[] acceptsOthers;
+    /* groups, children of node i are childIndexes[childStart[i]] to childIndexes[childStart[i] + childCount[i] - 1] */
+    private final int[] threshold, childStart, childCount, childIndexes;
+    /* counts */
+    private final ProximityRule[] proximityRules;
+    /* opaque nodes */
+    private final Rule[] opaqueRules;
+    /** class of the rule of each node, for {@link GenerationMetrics#ruleEvaluated(Class)} */
+    private final Class<?>[] ruleClasses;
+    /**
+     * Where the counters of each group that is neither AND nor OR start in the scratch array of
+     * {@link #testRow(CubicChunkEnvironment, int, int, int, long)}, each one having threshold + 1 of them. Groups
+     * inside each other are tested at the same time, so they all have their own place.
+     */
+    private final int[] scratchStart;
+    /** scratch arrays of {@link #testRow(CubicChunkEnvironment, int, int, int, long)}, sized when compiling */
+    private final long[] atLeastScratch;
+    private final int[] countScratch;
+    /** the same compiled rule can be tested by several threads, only one of them uses the scratch arrays at a time */
+    private final AtomicBoolean scratchInUse = new AtomicBoolean();
+
+    private final int reach;
+    /** see {@link Backend#METHOD_HANDLES}, null with the interpreter */
+    private final @Nullable MethodHandle handle;
+
+    private CompiledRule(Builder builder) {
+        int n = builder.nodes.size();
+        types = new byte[n];
+        dx = new int[n];
+        dy = new int[n];
+        dz = new int[n];
+        acceptedSlots = new long[n][];
+        acceptsOthers = new boolean[n];
+        threshold = new int[n];
+        childStart = new int[n];
+        childCount = new int[n];
+        proximityRules = new ProximityRule[n];
+        opaqueRules = new Rule[n];
+        ruleClasses = new Class<?>[n];
+        scratchStart = new int[n];
+        List<Integer> children = new ArrayList<>();
+        int reach = 0;
+        boolean unknownReach = false;
+        int scratchSize = 0;
+        boolean hasCounts = false;
+        for (int i = 0; i < n; i++) {
+            Node node = builder.nodes.get(i);
+            types[i] = node.type;
+            ruleClasses[i] = node.ruleClass;
+            switch (node.type) {
+                case LEAF:
+                    dx[i] = node.dx;
+                    dy[i] = node.dy;
+                    dz[i] = node.dz;
+                    acceptedSlots[i] = node.acceptedSlots;
+                    acceptsOthers[i] = node.acceptsOthers;
+                    reach = Math.max(reach, Math.max(Math.abs(node.dx), Math.max(Math.abs(node.dy), Math.abs(node.dz))));
+                    break;
+                case GROUP:
+                    threshold[i] = node.threshold;
+                    childStart[i] = children.size();
+                    childCount[i] = node.children.size();
+                    children.addAll(node.children);
+                    if (node.threshold > 1 && node.threshold < childCount[i]) {
+                        scratchStart[i] = scratchSize;
+                        scratchSize += node.threshold + 1;
+                    }
+                    break;
+                case COUNT:
+                    proximityRules[i] = (ProximityRule) node.opaqueRule;
+                    threshold[i] = node.threshold;
+                    reach = Math.max(reach, proximityRules[i].radius);
+                    hasCounts = true;
+                    break;
+                case OPAQUE:
+                    opaqueRules[i] = node.opaqueRule;
+                    int opaqueReach = node.opaqueRule.reach();
+                    if (opaqueReach < 0) unknownReach = true;
+                    else reach = Math.max(reach, opaqueReach);
+                    break;
+            }
+        }
+        childIndexes = new int[children.size()];
+        for (int i = 0; i < childIndexes.length; i++) {
+            childIndexes[i] = children.get(i);
+        }
+        this.reach = unknownReach ? -1 : reach;
+        atLeastScratch = new long[scratchSize];
+        countScratch = new int[hasCounts ? 64 : 0];
+        handle = backend == Backend.METHOD_HANDLES ? Handles.tryBuild(this) : null;
+    }
+
+    public static Backend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Changes the backend of rules compiled from now on, and makes every {@link RuleList} compile again
+     */
+    public static void setBackend(Backend backend) {
+        CompiledRule.backend = backend;
+        RuleList.rulesChanged();
+    }
+
+    /**
+     * @return {@code true} if this rule runs as a {@link MethodHandle}, {@code false} if it uses the interpreter
+     * (because it is the backend, or because the handles could not be built)
+     */
+    public boolean usesMethodHandles() {
+        return handle != null;
+    }
+
+    /**
+     * Compiles that rule and everything inside. The result doesn't follow later changes of the rule.
+     */
+    public static CompiledRule compile(Rule rule) {
+        Builder builder = new Builder();
+        builder.add(rule);
+        return new CompiledRule(builder);
+    }
+
+    /**
+     * Same result as {@link Rule#test(CubicChunkEnvironment, int, int, int)} of the rule that was compiled
+     */
+    public boolean test(CubicChunkEnvironment environment, int x, int y, int z) {
+        MethodHandle handle = this.handle;
+        if (handle == null) return test(0, environment, x, y, z);
+        try {
+            return (boolean) handle.invokeExact(environment, x, y, z);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            throw new IllegalStateException(t); // nothing in the handles throws checked exceptions
+        }
+    }
+
+    private boolean test(int node, CubicChunkEnvironment environment, int x, int y, int z) {
+        GenerationMetrics.ruleEvaluated(ruleClasses[node]);
+        switch (types[node]) {
+            case LEAF:
+                return accepts(node, environment.getId(x + dx[node], y + dy[node], z + dz[node]) + 1);
+            case GROUP:
+                int needed = threshold[node];
+                if (needed <= 0) return true;
+                int remaining = childCount[node];
+                for (int i = childStart[node], end = i + remaining; i < end; i++) {
+                    if (test(childIndexes[i], environment, x, y, z)) {
+                        if (--needed == 0) return true;
+                    }
+                    if (--remaining < needed) return false;
+                }
+                return false;
+            case COUNT:
+                return proximityRules[node].count(environment, x, y, z) >= threshold[node];
+            default:
+                return opaqueRules[node].test(environment, x, y, z);
+        }
+    }
+
+    /**
+     * Tests 64 cells along z at once, with the {@link CubicChunkEnvironment#row(int, int, int, int) rows} of the
+     * environment: a leaf is the OR of the rows of its accepted slots (or the complement of the rows of the others),
+     * read at the offset of the leaf, AND groups are ANDs of rows, OR
+     * groups are ORs, and other thresholds are counted with bit-sliced counters. Counts use
+     * {@link ProximityRule#countRow(CubicChunkEnvironment, int, int, int, long, int[])}, opaque nodes are still tested
+     * cell by cell.
+     * @param cells bit i set if the cell x, y, zFrom + i should be tested
+     * @return bit i set if the rule is valid in the cell x, y, zFrom + i. Only bits of {@code cells} can be set.
+     */
+    public long testRow(CubicChunkEnvironment environment, int x, int y, int zFrom, long cells) {
+        if (cells == 0) return 0;
+        if (!scratchInUse.compareAndSet(false, true)) {
+            // another thread is testing this rule
+            return testRow(0, environment, x, y, zFrom, cells, new long[atLeastScratch.length], new int[countScratch.length]);
+        }
+        try {
+            return testRow(0, environment, x, y, zFrom, cells, atLeastScratch, countScratch);
+        } finally {
+            scratchInUse.set(false);
+        }
+    }
+
+    private long testRow(int node, CubicChunkEnvironment environment, int x, int y, int zFrom, long cells, long[] atLeast, int[] counts) {
+        GenerationMetrics.ruleEvaluated(ruleClasses[node]);
+        switch (types[node]) {
+            case LEAF: {
+                long[] bits = acceptedSlots[node];
+                boolean negated = acceptsOthers[node];
+                long result = 0;
+                // only the slots that are not like the others, usually one or two
+                for (int word = 0; word < bits.length; word++) {
+                    long different = negated ? ~bits[word] : bits[word];
+                    while (different != 0) {
+                        int slot = word << 6 | Long.numberOfTrailingZeros(different);
+                        different &= different - 1;
+                        result |= environment.row(slot - 1, x + dx[node], y + dy[node], zFrom + dz[node]);
+                    }
+                }
+                return (negated ? ~result : result) & cells;
+            }
+            case GROUP: {
+                int needed = threshold[node];
+                if (needed <= 0) return cells;
+                int count = childCount[node];
+                if (needed > count) return 0;
+                int start = childStart[node], end = start + count;
+                if (needed == count) {
+                    long valid = cells;
+                    for (int i = start; i < end && valid != 0; i++) {
+                        valid &= testRow(childIndexes[i], environment, x, y, zFrom, valid, atLeast, counts);
+                    }
+                    return valid;
+                }
+                if (needed == 1) {
+                    long valid = 0;
+                    for (int i = start; i < end && valid != cells; i++) {
+                        valid |= testRow(childIndexes[i], environment, x, y, zFrom, cells & ~valid, atLeast, counts);
+                    }
+                    return valid;
+                }
+                // atLeast[from + k] has the cells where at least k children are valid so far
+                int from = scratchStart[node];
+                atLeast[from] = cells;
+                Arrays.fill(atLeast, from + 1, from + needed + 1, 0);
+                for (int i = start; i < end; i++) {
+                    long pending = cells & ~atLeast[from + needed];
+                    if (pending == 0) break;
+                    long childValid = testRow(childIndexes[i], environment, x, y, zFrom, pending, atLeast, counts);
+                    for (int k = needed; k > 0; k--) {
+                        atLeast[from + k] |= atLeast[from + k - 1] & childValid;
+                    }
+                }
+                return atLeast[from + needed];
+            }
+            case COUNT: {
+                proximityRules[node].countRow(environment, x, y, zFrom, cells, counts);
+                long result = 0;
+                for (long remaining = cells; remaining != 0; remaining &= remaining - 1) {
+                    int i = Long.numberOfTrailingZeros(remaining);
+                    if (counts[i] >= threshold[node]) result |= 1L << i;
+                }
+                return result;
+            }
+            default: {
+                long result = 0;
+                for (long remaining = cells; remaining != 0; remaining &= remaining - 1) {
+                    int i = Long.numberOfTrailingZeros(remaining);
+                    if (opaqueRules[node].test(environment, x, y, zFrom + i)) result |= 1L << i;
+                }
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Like {@link #test(CubicChunkEnvironment, int, int, int)}, but empty cells could still become anything: it is
+     * {@code false} only if the rule can't be valid whatever is put in the empty cells around. Opaque nodes are
+     * always possible, as there is no way to know.
+     */
+    public boolean possible(CubicChunkEnvironment environment, int x, int y, int z) {
+        return possible(0, environment, x, y, z);
+    }
+
+    private boolean possible(int node, CubicChunkEnvironment environment, int x, int y, int z) {
+        GenerationMetrics.ruleEvaluated(ruleClasses[node]);
+        switch (types[node]) {
+            case LEAF:
+                int slot = environment.getId(x + dx[node], y + dy[node], z + dz[node]) + 1;
+                return slot == 0 || accepts(node, slot);
+            case GROUP:
+                int needed = threshold[node];
+                if (needed <= 0) return true;
+                int remaining = childCount[node];
+                for (int i = childStart[node], end = i + remaining; i < end; i++) {
+                    if (possible(childIndexes[i], environment, x, y, z)) {
+                        if (--needed == 0) return true;
+                    }
+                    if (--remaining < needed) return false;
+                }
+                return false;
+            case COUNT:
+                ProximityRule proximityRule = proximityRules[node];
+                int missing = threshold[node] - proximityRule.count(environment, x, y, z);
+                if (missing <= 0) return true;
+                // enough empty cells around to put the missing ones ?
+                int radius = proximityRule.radius;
+                for (int cx = x - radius; cx <= x + radius; cx++) {
+                    for (int cy = y - radius; cy <= y + radius; cy++) {
+                        for (int cz = z - radius; cz <= z + radius; cz++) {
+                            if ((cx != x || cy != y || cz != z) && environment.getId(cx, cy, cz) == CubicChunkEnvironment.NO_ID) {
+                                if (--missing == 0) return true;
+                            }
+                        }
+                    }
+                }
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private boolean accepts(int node, int slot) {
+        long[] bits = acceptedSlots[node];
+        int word = slot >>> 6;
+        if (word >= bits.length) return acceptsOthers[node];
+        return (bits[word] & 1L << slot) != 0;
+    }
+
+    /**
+     * @return the maximum distance (on any axis) from the tested cell that this rule looks at, or -1 if it is unknown
+     * because there are rules that couldn't be compiled and whose {@link Rule#reach()} is -1
+     */
+    public int reach() {
+        return reach;
+    }
+
+    /**
+     * @return the number of nodes, mostly for debugging
+     */
+    public int size() {
+        return types.length;
+    }
+
+    /**
+     * Builds the {@link MethodHandle} tree of {@link Backend#METHOD_HANDLES}. Every handle has the type of
+     * {@link #TYPE}, the same as {@link #test(CubicChunkEnvironment, int, int, int)}, and records its evaluation in
+     * the {@link GenerationMetrics} like the interpreter does.
+     */
+    private static final class Handles {
+        static final MethodType TYPE = MethodType.methodType(boolean.class, CubicChunkEnvironment.class, int.class, int.class, int.class);
+        static final MethodHandle TRUE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, true), 0, TYPE.parameterList());
+        static final MethodHandle FALSE = MethodHandles.dropArguments(MethodHandles.constant(boolean.class, false), 0, TYPE.parameterList());
+        static final MethodHandle TEST_BITS, TEST_IS, TEST_IS_NOT, TEST_COUNT, TEST_OPAQUE, RECORD;
+
+        static {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                TEST_BITS = lookup.findStatic(Handles.class, "leaf", TYPE.insertParameterTypes(0, Class.class, int.class, int.class, int.class, long[].class, boolean.class));
+                TEST_IS = lookup.findStatic(Handles.class, "leafIs", TYPE.insertParameterTypes(0, Class.class, int.class, int.class, int.class, int.class));
+                TEST_IS_NOT = lookup.findStatic(Handles.class, "leafIsNot", TYPE.insertParameterTypes(0, Class.class, int.class, int.class, int.class, int.class));
+                TEST_COUNT = lookup.findStatic(Handles.class, "count", TYPE.insertParameterTypes(0, ProximityRule.class, int.class));
+                TEST_OPAQUE = lookup.findStatic(Handles.class, "opaque", TYPE.insertParameterTypes(0, Class.class, Rule.class));
+                RECORD = lookup.findStatic(Handles.class, "record", MethodType.methodType(void.class, Class.class, CubicChunkEnvironment.class, int.class, int.class, int.class));
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        /**
+         * @return the handle of that rule, or {@code null} if method handles are not available
+         */
+        static @Nullable MethodHandle tryBuild(CompiledRule rule) {
+            try {
+                return new Handles(rule).build(0);
+            } catch (RuntimeException | LinkageError e) {
+                // ExceptionInInitializerError and NoClassDefFoundError are LinkageErrors
+                return null;
+            }
+        }
+
+        private final CompiledRule rule;
+
+        private Handles(CompiledRule rule) {
+            this.rule = rule;
+        }
+
+        MethodHandle build(int node) {
+            Class<?> ruleClass = rule.ruleClasses[node];
+            switch (rule.types[node]) {
+                case LEAF:
+                    return leafHandle(node, ruleClass);
+                case GROUP:
+                    int start = rule.childStart[node], count = rule.childCount[node];
+                    MethodHandle[] children = new MethodHandle[count];
+                    for (int i = 0; i < count; i++) {
+                        children[i] = build(rule.childIndexes[start + i]);
+                    }
+                    MethodHandle group = atLeast(rule.threshold[node], children, 0, new HashMap<>());
+                    return MethodHandles.foldArguments(group, RECORD.bindTo(ruleClass));
+                case COUNT:
+                    MethodHandle countHandle = MethodHandles.insertArguments(TEST_COUNT, 0, rule.proximityRules[node], rule.threshold[node]);
+                    return MethodHandles.foldArguments(countHandle, RECORD.bindTo(ruleClass));
+                default:
+                    return MethodHandles.insertArguments(TEST_OPAQUE, 0, ruleClass, rule.opaqueRules[node]);
+            }
+        }
+
+        /**
+         * Leaves accepting only one slot, or all slots but one, are a comparison with that slot, the others test the
+         * bitset
+         */
+        private MethodHandle leafHandle(int node, Class<?> ruleClass) {
+            long[] bits = rule.acceptedSlots[node];
+            boolean acceptsOthers = rule.acceptsOthers[node];
+            int ones = 0, onlySlot = -1, onlyMissingSlot = -1;
+            for (int word = 0; word < bits.length; word++) {
+                ones += Long.bitCount(bits[word]);
+                if (bits[word] != 0) onlySlot = word << 6 | Long.numberOfTrailingZeros(bits[word]);
+                if (bits[word] != -1L) onlyMissingSlot = word << 6 | Long.numberOfTrailingZeros(~bits[word]);
+            }
+            int dx = rule.dx[node], dy = rule.dy[node], dz = rule.dz[node];
+            if (!acceptsOthers && ones == 1)
+                return MethodHandles.insertArguments(TEST_IS, 0, ruleClass, dx, dy, dz, onlySlot);
+            if (acceptsOthers && ones == (bits.length << 6) - 1)
+                return MethodHandles.insertArguments(TEST_IS_NOT, 0, ruleClass, dx, dy, dz, onlyMissingSlot);
+            return MethodHandles.insertArguments(TEST_BITS, 0, ruleClass, dx, dy, dz, bits, acceptsOthers);
+        }
+
+        /**
+         * @return a handle that is {@code true} if at least {@code needed} children from {@code from} are, testing
+         * them in order and stopping as soon as the result is known, like the interpreter. With AND it is a chain of
+         * "if child then next else false", with OR a chain of "if child then true else next". Handles are shared
+         * between branches, so there are at most children * needed of them.
+         */
+        private MethodHandle atLeast(int needed, MethodHandle[] children, int from, Map<Long, MethodHandle> built) {
+            if (needed <= 0) return TRUE;
+            if (children.length - from < needed) return FALSE;
+            Long key = (long) needed << 32 | from;
+            MethodHandle handle = built.get(key);
+            if (handle == null) {
+                handle = MethodHandles.guardWithTest(children[from],
+                        atLeast(needed - 1, children, from + 1, built),
+                        atLeast(needed, children, from + 1, built));
+                built.put(key, handle);
+            }
+            return handle;
+        }
+
+        private static boolean leaf(Class<?> ruleClass, int dx, int dy, int dz, long[] bits, boolean acceptsOthers,
+                                    CubicChunkEnvironment environment, int x, int y, int z) {
+            GenerationMetrics.ruleEvaluated(ruleClass);
+            int slot = environment.getId(x + dx, y + dy, z + dz) + 1;
+            int word = slot >>> 6;
+            if (word >= bits.length) return acceptsOthers;
+            return (bits[word] & 1L << slot) != 0;
+        }
+
+        private static boolean leafIs(Class<?> ruleClass, int dx, int dy, int dz, int slot,
+                                      CubicChunkEnvironment environment, int x, int y, int z) {
+            GenerationMetrics.ruleEvaluated(ruleClass);
+            return environment.getId(x + dx, y + dy, z + dz) + 1 == slot;
+        }
+
+        private static boolean leafIsNot(Class<?> ruleClass, int dx, int dy, int dz, int slot,
+                                         CubicChunkEnvironment environment, int x, int y, int z) {
+            GenerationMetrics.ruleEvaluated(ruleClass);
+            return environment.getId(x + dx, y + dy, z + dz) + 1 != slot;
+        }
+
+        private static boolean count(ProximityRule proximityRule, int threshold, CubicChunkEnvironment environment, int x, int y, int z) {
+            return proximityRule.count(environment, x, y, z) >= threshold;
+        }
+
+        private static boolean opaque(Class<?> ruleClass, Rule opaqueRule, CubicChunkEnvironment environment, int x, int y, int z) {
+            GenerationMetrics.ruleEvaluated(ruleClass);
+            return opaqueRule.test(environment, x, y, z);
+        }
+
+        private static void record(Class<?> ruleClass, CubicChunkEnvironment environment, int x, int y, int z) {
+            GenerationMetrics.ruleEvaluated(ruleClass);
+        }
+    }
+
+    private static final class Node {
+        byte type;
+        int dx, dy, dz;
+        long[] acceptedSlots;
+        boolean acceptsOthers;
+        int threshold;
+        List<Integer> children;
+        /** for counts and opaque nodes */
+        Rule opaqueRule;
+        Class<?> ruleClass;
+    }
+
+    private static final class Builder {
+        final List<Node> nodes = new ArrayList<>();
+        /** number of slots that exist now, so the size of bitsets */
+        final int slots = CubicChunk.maxId() + 2;
+
+        /**
+         * @return the index of the node
+         */
+        int add(Rule rule) {
+            Node node = new Node();
+            int index = nodes.size();
+            nodes.add(node);
+            node.ruleClass = rule.getClass();
+            if (rule instanceof RelativeRule) {
+                RelativeRule relativeRule = (RelativeRule) rule;
+                node.type = LEAF;
+                node.dx = relativeRule.relativeX;
+                node.dy = relativeRule.relativeY;
+                node.dz = relativeRule.relativeZ;
+                node.acceptedSlots = new long[(slots + 63) >>> 6];
+                for (CubicChunk what : relativeRule.what) {
+                    int slot = what == null ? 0 : what.getId() + 1;
+                    node.acceptedSlots[slot >>> 6] |= 1L << slot;
+                }
+                node.acceptsOthers = !relativeRule.shouldBePresent;
+                if (!relativeRule.shouldBePresent) {
+                    for (int i = 0; i < node.acceptedSlots.length; i++) {
+                        node.acceptedSlots[i] = ~node.acceptedSlots[i];
+                    }
+                }
+            } else if (rule instanceof ProximityRule) {
+                node.type = COUNT;
+                node.opaqueRule = rule;
+                node.threshold = ((ProximityRule) rule).minAmount;
+            } else if (rule instanceof RuleList) {
+                RuleList<?> ruleList = (RuleList<?>) rule;
+                node.type = GROUP;
+                node.children = new ArrayList<>(ruleList.size());
+                for (Rule child : ruleList) {
+                    int childIndex = add(child);
+                    if (!mergeInto(node, ruleList, childIndex)) node.children.add(childIndex);
+                }
+                node.threshold = ruleList.logicalOperator == LogicalOperator.AND ? node.children.size() : ruleList.minAmount;
+            } else {
+                node.type = OPAQUE;
+                node.opaqueRule = rule;
+            }
+            return index;
+        }
+
+        /**
+         * Tries to merge a leaf in another leaf of the group having the same offset: with AND, both must accept so
+         * the bitsets are ANDed, with OR and minAmount = 1, one of them must accept so they are ORed.
+         * @return {@code true} if it was merged, the child node is then removed
+         */
+        private boolean mergeInto(Node group, RuleList<?> ruleList, int childIndex) {
+            Node child = nodes.get(childIndex);
+            if (child.type != LEAF) return false;
+            boolean and = ruleList.logicalOperator == LogicalOperator.AND;
+            if (!and && ruleList.minAmount != 1) return false;
+            for (int otherIndex : group.children) {
+                Node other = nodes.get(otherIndex);
+                if (other.type != LEAF || other.dx != child.dx || other.dy != child.dy || other.dz != child.dz) continue;
+                for (int i = 0; i < other.acceptedSlots.length; i++) {
+                    if (and) other.acceptedSlots[i] &= child.acceptedSlots[i];
+                    else other.acceptedSlots[i] |= child.acceptedSlots[i];
+                }
+                other.acceptsOthers = and ? other.acceptsOthers && child.acceptsOthers : other.acceptsOthers || child.acceptsOthers;
+                // child is the last node added (it is a leaf so it has no children)
+                nodes.remove(childIndex);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledRule{" +
+                "nodes=" + types.length +
+                ", reach=" + reach +
+                ", types=" + Arrays.toString(types) +
+                ", methodHandles=" + (handle != null) +
+                '}';
+    }
+}
@@ -1,21 +1,42 @@
 package fr.bananasmoothii.rulesgeneration.rules;
 
-import fr.bananasmoothii.rulesgeneration.LogicalOperator;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+
+import java.util.Arrays;
 
 /**
  * A rules that ensures there are min "minAmount" "what" in a radius of "radius"
+ * <p>
+ * The {@link RelativeRule}s of this list are only used to make suggestions. {@link #test(CubicChunkEnvironment, int, int, int) test}
+ * uses {@link CubicChunkEnvironment#count(int, int, int, int, int, int, int)} instead, so its cost doesn't depend on
+ * the radius.
  */
 public class ProximityRule extends RuleList<RelativeRule> {
     public final int radius;
+    public final CubicChunk[] what;
+    private final int[] whatIds;
 
     public ProximityRule(int radius, CubicChunk... what) {
         this(radius, 1, what);
     }
 
     public ProximityRule(int radius, int minAmount, CubicChunk... what) {
-        super(LogicalOperator.OR, minAmount);
+        super(minAmount);
         this.radius = radius;
+        this.what = what;
+        int[] ids = new int[what.length];
+        for (int i = 0; i < what.length; i++) {
+            ids[i] = what[i] == null ? CubicChunkEnvironment.NO_ID : what[i].getId();
+        }
+        // each id once, or a cell would be counted once per time it is in what
+        Arrays.sort(ids);
+        int distinct = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (i == 0 || ids[i] != ids[i - 1]) ids[distinct++] = ids[i];
+        }
+        whatIds = Arrays.copyOf(ids, distinct);
         for (int x = -radius; x <= radius; x++) {
             for (int y = -radius; y <= radius; y++) {
                 for (int z = -radius; z <= radius; z++) {
@@ -25,4 +46,82 @@ public class ProximityRule extends RuleList<RelativeRule> {
             }
         }
     }
+
+    /**
+     * Uses the {@link CubicChunkEnvironment#getRuleCache() rule cache} of the environment if there is one
+     */
+    @Override
+    public boolean test(CubicChunkEnvironment environment, int x, int y, int z) {
+        RuleResultCache cache = environment.getRuleCache();
+        if (cache != null) {
+            int cached = cache.get(this, radius, x, y, z);
+            if (cached != RuleResultCache.MISS) return cached == 1;
+        }
+        GenerationMetrics.ruleEvaluated(getClass());
+        boolean result = count(environment, x, y, z) >= minAmount;
+        if (cache != null) cache.put(this, radius, x, y, z, result);
+        return result;
+    }
+
+    @Override
+    public boolean concerns(int xConcerned, int yConcerned, int zConcerned, int xApplied, int yApplied, int zApplied) {
+        int dx = Math.abs(xConcerned - xApplied), dy = Math.abs(yConcerned - yApplied), dz = Math.abs(zConcerned - zApplied);
+        return dx <= radius && dy <= radius && dz <= radius && (dx | dy | dz) != 0;
+    }
+
+    @Override
+    public int reach() {
+        return radius;
+    }
+
+    /**
+     * @return the number of "what" in the radius, not counting the center
+     */
+    public int count(CubicChunkEnvironment environment, int x, int y, int z) {
+        int count = 0;
+        int center = environment.getId(x, y, z);
+        for (int id : whatIds) {
+            count += environment.count(id, x - radius, y - radius, z - radius, x + radius, y + radius, z + radius);
+            if (id == center) count--;
+        }
+        return count;
+    }
+
+    /**
+     * {@link #count(CubicChunkEnvironment, int, int, int)} for 64 cells along z. For each id and each column of the
+     * cube around, two {@link CubicChunkEnvironment#row(int, int, int, int) rows} are read, and the count of a cell is
+     * the number of bits in a window of 2 * radius + 1 bits that slides along them.
+     * @param cells bit i set if the count of the cell x, y, zFrom + i is needed
+     * @param counts where the counts are put, at index i for the cell x, y, zFrom + i
+     */
+    public void countRow(CubicChunkEnvironment environment, int x, int y, int zFrom, long cells, int[] counts) {
+        if (radius > 31) { // the window would not fit in a long
+            for (long remaining = cells; remaining != 0; remaining &= remaining - 1) {
+                int i = Long.numberOfTrailingZeros(remaining);
+                counts[i] = count(environment, x, y, zFrom + i);
+            }
+            return;
+        }
+        for (long remaining = cells; remaining != 0; remaining &= remaining - 1) {
+            counts[Long.numberOfTrailingZeros(remaining)] = 0;
+        }
+        long window = (1L << (2 * radius + 1)) - 1;
+        for (int id : whatIds) {
+            for (int cx = x - radius; cx <= x + radius; cx++) {
+                for (int cy = y - radius; cy <= y + radius; cy++) {
+                    long low = environment.row(id, cx, cy, zFrom - radius);
+                    long high = environment.row(id, cx, cy, zFrom - radius + 64);
+                    for (long remaining = cells; remaining != 0; remaining &= remaining - 1) {
+                        int i = Long.numberOfTrailingZeros(remaining);
+                        long bits = i == 0 ? low : low >>> i | high << (64 - i);
+                        counts[i] += Long.bitCount(bits & window);
+                    }
+                }
+            }
+            long center = environment.row(id, x, y, zFrom) & cells;
+            for (; center != 0; center &= center - 1) {
+                counts[Long.numberOfTrailingZeros(center)]--;
+            }
+        }
+    }
 }
@@ -1,7 +1,9 @@
 package fr.bananasmoothii.rulesgeneration.rules;
 
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
 import fr.bananasmoothii.rulesgeneration.suggestions.SimpleSuggestion;
 import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
 import org.jetbrains.annotations.Nullable;
@@ -19,7 +21,10 @@ public class RelativeRule extends Rule {
     public final int relativeY;
     public final int relativeZ;
     public final boolean shouldBePresent;
-    public final CubicChunk[] what;
+    /** {@code null} means an empty cell */
+    public final @Nullable CubicChunk[] what;
+    /** ids of {@link #what}, so {@link #test(CubicChunkEnvironment, int, int, int) test} only compares ints */
+    private final int[] whatIds;
 
     public RelativeRule(int relativeX, int relativeY, int relativeZ, CubicChunk... what) {
         this(relativeX, relativeY, relativeZ, true, what);
@@ -32,13 +37,17 @@ public class RelativeRule extends Rule {
         this.relativeZ = relativeZ;
         this.shouldBePresent = shouldBePresent;
         this.what = what;
+        whatIds = new int[what.length];
+        for (int i = 0; i < what.length; i++) {
+            whatIds[i] = what[i] == null ? CubicChunkEnvironment.NO_ID : what[i].getId();
+        }
     }
 
     @Override
     public @Nullable SuggestionList testAndSuggest(CubicChunkEnvironment environment, int x, int y, int z) {
         if (test(environment, x, y, z)) return null;
 
-        SuggestionList suggestions = new SuggestionList(environment);
+        SuggestionList suggestions = new SuggestionList(environment, LogicalOperator.OR, x, y, z);
         if (shouldBePresent) {
             for (CubicChunk chunk : what) {
                 suggestions.add(new SimpleSuggestion(environment, x + relativeX, y + relativeY, z + relativeZ, chunk));
@@ -63,18 +72,24 @@ public class RelativeRule extends Rule {
 
     @Override
     public boolean test(CubicChunkEnvironment environment, int x, int y, int z) {
-        CubicChunk present = environment.get(x + relativeX, y + relativeY, z + relativeZ);
-        for (CubicChunk what1 : what) {
+        GenerationMetrics.ruleEvaluated(getClass());
+        int present = environment.getId(x + relativeX, y + relativeY, z + relativeZ);
+        for (int what1 : whatIds) {
             if (what1 == present) return shouldBePresent;
         }
         return !shouldBePresent;
     }
-/*
+
     @Override
     public boolean concerns(int xConcerned, int yConcerned, int zConcerned, int xApplied, int yApplied, int zApplied) {
         return xConcerned - xApplied == relativeX && yConcerned - yApplied == relativeY && zConcerned - zApplied == relativeZ;
     }
-*/
+
+    @Override
+    public int reach() {
+        return Math.max(Math.abs(relativeX), Math.max(Math.abs(relativeY), Math.abs(relativeZ)));
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
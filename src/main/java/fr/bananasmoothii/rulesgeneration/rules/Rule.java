@@ -17,10 +17,11 @@ public abstract class Rule {
         if (suggestions != null) {
             suggestions.validate();
             suggestions.apply();
+            suggestions.commit();
         }
     }
 
-    /*
+    /**
      * This is an indicator telling if, applied at a position x, y, zApplied, the value of
      * {@link #test(CubicChunkEnvironment, int, int, int) test} could change if x, y, zConcerned are changed.
      *
@@ -29,7 +30,20 @@ public abstract class Rule {
      * this returning {@code false} must imply that you can mess with the concerned chunk without worrying.
      * @return {@code false} if the value of {@link #test(CubicChunkEnvironment, int, int, int) test} will never move, no
      *      matter what you do to x, y and zConcerned, if the rule is applied at x, y and zApplied.
-     *
-    public abstract boolean concerns(int xConcerned, int yConcerned, int zConcerned, int xApplied, int yApplied, int zApplied);
+     * By default this always returns {@code true}, which is always right but makes
+     * {@link CubicChunkEnvironment#validateDirty()} re-check more cells than needed.
+     * @see CubicChunkEnvironment#validateDirty()
      */
+    public boolean concerns(int xConcerned, int yConcerned, int zConcerned, int xApplied, int yApplied, int zApplied) {
+        return true;
+    }
+
+    /**
+     * @return the maximum distance (on any axis) between where the rule is applied and a cell it
+     * {@link #concerns(int, int, int, int, int, int) concerns}, or -1 if it can be anywhere. By default it is -1, so
+     * rules that don't override it are re-checked everywhere.
+     */
+    public int reach() {
+        return -1;
+    }
 }
@@ -0,0 +1,221 @@
+package fr.bananasmoothii.rulesgeneration.rules;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tells which rules can see a cell, so when a cell changes we know exactly which cells around need to be checked again.
+ * It is built from the {@link CubicChunk#rules rules} of all {@link CubicChunk}s: for each {@link CubicChunk} type T,
+ * it has the list of rules mentioning T, with their owner (the {@link CubicChunk} having that rule) and the offset
+ * from the owner to the cell they look at.
+ * <p>
+ * The result of a {@link RelativeRule} only depends on whether what is at its offset is in its "what" or not (even when
+ * {@link RelativeRule#shouldBePresent} is {@code false}), and same for a {@link ProximityRule} in its radius. So when
+ * a cell goes from A to B, only the rules mentioning A or B can change. Other rules are indexed as "wildcards" that
+ * can be concerned by any change in their {@link Rule#reach() reach}, or make {@link #hasUnknownReach()} true if
+ * their reach is unknown.
+ * <p>
+ * Use {@link #current()}, it is built again when rules change.
+ */
+public final class RuleDependencyIndex {
+
+    private static final Dependency[] NO_DEPENDENCY = new Dependency[0];
+    private static @Nullable RuleDependencyIndex current;
+
+    /** {@link RuleList#modifications()} when this was built */
+    private final int builtAtModification;
+    /** by slot ({@link CubicChunk#getId() id} + 1) of the changed cell */
+    private final Dependency[][] bySlot;
+    private final Dependency[] wildcards;
+    private final boolean unknownReach;
+
+    /**
+     * A rule of {@link #owner} that looks at the cell {@link #dx}, {@link #dy}, {@link #dz} relatively to the owner,
+     * or at all cells in a cube of {@link #radius} (without the center) if the radius is not -1.
+     */
+    public static final class Dependency {
+        public final CubicChunk owner;
+        public final Rule rule;
+        public final int dx, dy, dz, radius;
+        /** ids mentioned by the rule, sorted */
+        private final int[] ids;
+
+        Dependency(CubicChunk owner, Rule rule, int dx, int dy, int dz, int radius, int[] ids) {
+            this.owner = owner;
+            this.rule = rule;
+            this.dx = dx;
+            this.dy = dy;
+            this.dz = dz;
+            this.radius = radius;
+            this.ids = ids;
+        }
+
+        boolean mentions(int id) {
+            return Arrays.binarySearch(ids, id) >= 0;
+        }
+
+        @Override
+        public String toString() {
+            return "Dependency{" +
+                    "owner=" + owner +
+                    ", rule=" + rule +
+                    ", dx=" + dx +
+                    ", dy=" + dy +
+                    ", dz=" + dz +
+                    ", radius=" + radius +
+                    '}';
+        }
+    }
+
+    @FunctionalInterface
+    public interface DependentVisitor {
+        /**
+         * x, y, z is the cell whose rule needs to be checked again, and what is in there is {@link Dependency#owner}
+         */
+        void visit(int x, int y, int z, Dependency dependency);
+    }
+
+    private RuleDependencyIndex() {
+        builtAtModification = RuleList.modifications();
+        List<List<Dependency>> bySlot = new ArrayList<>();
+        List<Dependency> wildcards = new ArrayList<>();
+        boolean unknownReach = false;
+        for (CubicChunk owner : CubicChunk.allAvailable()) {
+            unknownReach |= index(owner, owner.rules, bySlot, wildcards);
+        }
+        this.bySlot = new Dependency[bySlot.size()][];
+        for (int i = 0; i < this.bySlot.length; i++) {
+            List<Dependency> dependencies = bySlot.get(i);
+            this.bySlot[i] = dependencies == null ? NO_DEPENDENCY : dependencies.toArray(NO_DEPENDENCY);
+        }
+        this.wildcards = wildcards.toArray(NO_DEPENDENCY);
+        this.unknownReach = unknownReach;
+    }
+
+    /**
+     * @return {@code true} if there is a rule with an unknown reach
+     */
+    private static boolean index(CubicChunk owner, Rule rule, List<List<Dependency>> bySlot, List<Dependency> wildcards) {
+        if (rule instanceof RelativeRule) {
+            RelativeRule relativeRule = (RelativeRule) rule;
+            add(bySlot, relativeRule.what, new Dependency(owner, rule, relativeRule.relativeX, relativeRule.relativeY,
+                    relativeRule.relativeZ, -1, idsOf(relativeRule.what)));
+        } else if (rule instanceof ProximityRule) {
+            ProximityRule proximityRule = (ProximityRule) rule;
+            add(bySlot, proximityRule.what, new Dependency(owner, rule, 0, 0, 0, proximityRule.radius, idsOf(proximityRule.what)));
+        } else if (rule instanceof RuleList) {
+            boolean unknownReach = false;
+            for (Rule child : (RuleList<?>) rule) {
+                unknownReach |= index(owner, child, bySlot, wildcards);
+            }
+            return unknownReach;
+        } else {
+            int reach = rule.reach();
+            if (reach < 0) return true;
+            wildcards.add(new Dependency(owner, rule, 0, 0, 0, reach, new int[0]));
+        }
+        return false;
+    }
+
+    private static int[] idsOf(CubicChunk[] what) {
+        int[] ids = new int[what.length];
+        for (int i = 0; i < what.length; i++) {
+            ids[i] = what[i] == null ? CubicChunkEnvironment.NO_ID : what[i].getId();
+        }
+        Arrays.sort(ids);
+        return ids;
+    }
+
+    private static void add(List<List<Dependency>> bySlot, CubicChunk[] what, Dependency dependency) {
+        for (CubicChunk chunk : what) {
+            int slot = chunk == null ? 0 : chunk.getId() + 1; // null is an empty cell
+            while (bySlot.size() <= slot) bySlot.add(null);
+            List<Dependency> dependencies = bySlot.get(slot);
+            if (dependencies == null) {
+                dependencies = new ArrayList<>();
+                bySlot.set(slot, dependencies);
+            }
+            if (!dependencies.contains(dependency)) dependencies.add(dependency);
+        }
+    }
+
+    /**
+     * @return the index for the current rules, built again if a {@link RuleList} changed since last time
+     */
+    public static synchronized RuleDependencyIndex current() {
+        RuleDependencyIndex index = current;
+        if (index == null || index.builtAtModification != RuleList.modifications()) {
+            index = new RuleDependencyIndex();
+            current = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return {@code true} if some rules have an unknown {@link Rule#reach() reach}, so
+     * {@link #forEachDependent(CubicChunkEnvironment, int, int, int, int, int, DependentVisitor)} can't find all
+     * the cells to check
+     */
+    public boolean hasUnknownReach() {
+        return unknownReach;
+    }
+
+    /**
+     * Calls the visitor for every rule that could have a different result because the cell x, y, z went from oldId
+     * to newId, with the coordinates of the cell having that rule. Only cells where the owner of the rule is really
+     * present are visited.
+     * @param oldId the previous {@link CubicChunk#getId() id} or {@link CubicChunkEnvironment#NO_ID}
+     * @param newId the new {@link CubicChunk#getId() id} or {@link CubicChunkEnvironment#NO_ID}
+     */
+    public void forEachDependent(CubicChunkEnvironment environment, int x, int y, int z, int oldId, int newId, DependentVisitor visitor) {
+        if (oldId == newId) return;
+        for (Dependency dependency : dependenciesOf(oldId)) {
+            visit(environment, x, y, z, dependency, visitor);
+        }
+        for (Dependency dependency : dependenciesOf(newId)) {
+            // already visited with oldId
+            if (dependency.mentions(oldId)) continue;
+            visit(environment, x, y, z, dependency, visitor);
+        }
+        for (Dependency dependency : wildcards) {
+            visit(environment, x, y, z, dependency, visitor);
+        }
+    }
+
+    private Dependency[] dependenciesOf(int id) {
+        int slot = id + 1;
+        return slot < bySlot.length ? bySlot[slot] : NO_DEPENDENCY;
+    }
+
+    private static void visit(CubicChunkEnvironment environment, int x, int y, int z, Dependency dependency, DependentVisitor visitor) {
+        int ownerId = dependency.owner.getId();
+        if (dependency.radius < 0) {
+            int ownerX = x - dependency.dx, ownerY = y - dependency.dy, ownerZ = z - dependency.dz;
+            if (environment.getId(ownerX, ownerY, ownerZ) == ownerId) visitor.visit(ownerX, ownerY, ownerZ, dependency);
+            return;
+        }
+        int radius = dependency.radius;
+        for (int ownerX = x - radius; ownerX <= x + radius; ownerX++) {
+            for (int ownerY = y - radius; ownerY <= y + radius; ownerY++) {
+                for (int ownerZ = z - radius; ownerZ <= z + radius; ownerZ++) {
+                    if (ownerX == x && ownerY == y && ownerZ == z && dependency.rule instanceof ProximityRule) continue;
+                    if (environment.getId(ownerX, ownerY, ownerZ) == ownerId) visitor.visit(ownerX, ownerY, ownerZ, dependency);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RuleDependencyIndex{" +
+                "types=" + bySlot.length +
+                ", wildcards=" + wildcards.length +
+                ", unknownReach=" + unknownReach +
+                '}';
+    }
+}
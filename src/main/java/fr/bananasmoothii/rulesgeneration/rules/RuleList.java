@@ -8,6 +8,8 @@ import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Range;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
 /**
  * list of rules, with a {@link LogicalOperator} to know how to proceed.
@@ -20,6 +22,25 @@ public class RuleList<R extends Rule> extends Rule implements List<R> {
     public final LogicalOperator logicalOperator;
     public final @Range(from = 1, to = Integer.MAX_VALUE) int minAmount;
 
+    /**
+     * Incremented each time any RuleList is modified, for what depends on all the rules (the {@link RuleResultCache}
+     * and the {@link RuleDependencyIndex})
+     */
+    private static final AtomicInteger modifications = new AtomicInteger();
+    /** incremented by {@link #rulesChanged()}, makes every RuleList compile again */
+    private static volatile int recompilations;
+    /** see {@link CubicChunkEnvironment#randomAt(int, int, int, int)} */
+    private static final int RANDOM_STREAM = 1;
+    /**
+     * Incremented each time this list, or a RuleList inside it, is modified, so {@link #compiled()} knows when it has
+     * to compile again. Modifications go up through {@link #parents}.
+     */
+    private volatile int version;
+    /** RuleLists this one is in, once per time it was added */
+    private final List<RuleList<?>> parents = new ArrayList<>(1);
+    private @Nullable CompiledRule compiled;
+    private int compiledAtVersion, compiledAtRecompilation;
+
     /**
      * New instance with {@link LogicalOperator#AND}
      * @see #RuleList(LogicalOperator) constructor with a logical operator
@@ -56,7 +77,9 @@ public class RuleList<R extends Rule> extends Rule implements List<R> {
 
     @Override
     public @Nullable SuggestionList testAndSuggest(CubicChunkEnvironment environment, int x, int y, int z) {
-        SuggestionList suggestions = new SuggestionList(environment, logicalOperator);
+        // most of the time the rules are valid, so don't allocate anything in that case
+        if (test(environment, x, y, z)) return null;
+        SuggestionList suggestions = new SuggestionList(environment, logicalOperator, x, y, z);
         // shouldn't need to validate suggestions here as they are built based on the rules
         switch (logicalOperator) {
             case AND:
@@ -68,17 +91,18 @@ public class RuleList<R extends Rule> extends Rule implements List<R> {
                 return suggestions.isEmpty() ? null : suggestions;
             case OR:
                 // first test if everything is ok, continue with suggestions only after
-                RuleList<R> wrongRules = new RuleList<>(LogicalOperator.OR);
+                List<R> wrongRules = new ArrayList<>();
                 for (R rule : list) {
                     if (!rule.test(environment, x, y, z)) wrongRules.add(rule);
                 }
                 if (list.size() - wrongRules.size() >= minAmount) return null;
                 // there are wrong rules, we need to make suggestions.
                 // first, randomly pick some rules (we pick "minAmount" of them)
-                RuleList<R> rulesIWantToValidate = new RuleList<>(LogicalOperator.OR);
+                List<R> rulesIWantToValidate = new ArrayList<>(minAmount);
+                Random random = environment.randomAt(x, y, z, RANDOM_STREAM);
                 for (int i = 0; i < minAmount; i++) {
                     if (wrongRules.size() == 0) break;
-                    int pick = environment.random.nextInt(wrongRules.size());
+                    int pick = random.nextInt(wrongRules.size());
                     rulesIWantToValidate.add(wrongRules.get(pick));
                     wrongRules.remove(pick);
                 }
@@ -93,27 +117,94 @@ public class RuleList<R extends Rule> extends Rule implements List<R> {
         }
     }
 
+    /**
+     * @see CompiledRule#possible(CubicChunkEnvironment, int, int, int)
+     */
+    public boolean possible(CubicChunkEnvironment environment, int x, int y, int z) {
+        return compiled().possible(environment, x, y, z);
+    }
+
+    /**
+     * Uses the {@link #compiled() compiled} version of this list, and the
+     * {@link CubicChunkEnvironment#getRuleCache() rule cache} of the environment if there is one.
+     */
     @Override
     public boolean test(CubicChunkEnvironment environment, int x, int y, int z) {
-        switch (logicalOperator) {
-            case AND:
-                for (R rule : list) {
-                    if (!rule.test(environment, x, y, z)) return false;
-                }
-                return true;
-            case OR:
-                int validatedRules = 0;
-                for (R rule : list) {
-                    if (rule.test(environment, x, y, z)) {
-                        if (validatedRules > minAmount) return true;
-                        validatedRules++;
-                    }
-                }
-                return false;
+        CompiledRule compiled = compiled();
+        RuleResultCache cache = environment.getRuleCache();
+        if (cache == null) return compiled.test(environment, x, y, z);
+        int cached = cache.get(this, compiled.reach(), x, y, z);
+        if (cached != RuleResultCache.MISS) return cached == 1;
+        boolean result = compiled.test(environment, x, y, z);
+        cache.put(this, compiled.reach(), x, y, z, result);
+        return result;
+    }
 
-            default:
-                throw new IllegalStateException("Unexpected value: " + logicalOperator);
+    @Override
+    public boolean concerns(int xConcerned, int yConcerned, int zConcerned, int xApplied, int yApplied, int zApplied) {
+        for (R rule : list) {
+            if (rule.concerns(xConcerned, yConcerned, zConcerned, xApplied, yApplied, zApplied)) return true;
         }
+        return false;
+    }
+
+    /**
+     * @return the {@link CompiledRule#reach() reach} of the {@link #compiled() compiled} version
+     */
+    @Override
+    public int reach() {
+        return compiled().reach();
+    }
+
+    /**
+     * @return this list compiled with {@link CompiledRule#compile(Rule)}. It is compiled again only if this list or a
+     * RuleList inside it was modified since last time. Modifications made through {@link #iterator()},
+     * {@link #listIterator()} or {@link #subList(int, int)} are not seen, call {@link #rulesChanged()} after doing that.
+     */
+    public CompiledRule compiled() {
+        CompiledRule compiled = this.compiled;
+        int version = this.version, recompilation = recompilations;
+        if (compiled == null || compiledAtVersion != version || compiledAtRecompilation != recompilation) {
+            compiled = CompiledRule.compile(this);
+            this.compiled = compiled;
+            compiledAtVersion = version;
+            compiledAtRecompilation = recompilation;
+        }
+        return compiled;
+    }
+
+    /**
+     * @return a number that changes each time a RuleList is modified
+     */
+    static int modifications() {
+        return modifications.get();
+    }
+
+    /**
+     * Tells all RuleLists that they need to be compiled again, for when they were modified in a way they can't see
+     */
+    public static void rulesChanged() {
+        recompilations++;
+        modifications.incrementAndGet();
+    }
+
+    /**
+     * Called by every method that modifies this list
+     */
+    private void changed() {
+        version++;
+        for (RuleList<?> parent : parents) {
+            parent.changed();
+        }
+        if (parents.isEmpty()) modifications.incrementAndGet(); // once, at the top
+    }
+
+    private void link(@Nullable Object rule) {
+        if (rule instanceof RuleList) ((RuleList<?>) rule).parents.add(this);
+    }
+
+    private void unlink(@Nullable Object rule) {
+        if (rule instanceof RuleList) ((RuleList<?>) rule).parents.remove(this);
     }
 
     @Override
@@ -151,12 +242,18 @@ public class RuleList<R extends Rule> extends Rule implements List<R> {
 
     @Override
     public boolean add(R rule) {
-        return list.add(rule);
+        list.add(rule);
+        link(rule);
+        changed();
+        return true;
     }
 
     @Override
     public boolean remove(Object o) {
-        return list.remove(o);
+        int index = list.indexOf(o);
+        if (index == -1) return false;
+        remove(index);
+        return true;
     }
 
     @Override
@@ -166,27 +263,51 @@ public class RuleList<R extends Rule> extends Rule implements List<R> {
 
     @Override
     public boolean addAll(@NotNull Collection<? extends R> c) {
-        return list.addAll(c);
+        return addAll(list.size(), c);
     }
 
     @Override
     public boolean addAll(int index, @NotNull Collection<? extends R> c) {
-        return list.addAll(index, c);
+        if (!list.addAll(index, c)) return false;
+        for (R rule : c) {
+            link(rule);
+        }
+        changed();
+        return true;
     }
 
     @Override
     public boolean removeAll(@NotNull Collection<?> c) {
-        return list.removeAll(c);
+        return removeIf(c::contains);
     }
 
     @Override
     public boolean retainAll(@NotNull Collection<?> c) {
-        return list.retainAll(c);
+        return removeIf(rule -> !c.contains(rule));
+    }
+
+    @Override
+    public boolean removeIf(@NotNull Predicate<? super R> filter) {
+        boolean removed = false;
+        for (Iterator<R> iterator = list.iterator(); iterator.hasNext(); ) {
+            R rule = iterator.next();
+            if (filter.test(rule)) {
+                iterator.remove();
+                unlink(rule);
+                removed = true;
+            }
+        }
+        if (removed) changed();
+        return removed;
     }
 
     @Override
     public void clear() {
+        for (R rule : list) {
+            unlink(rule);
+        }
         list.clear();
+        changed();
     }
 
     @Override
@@ -196,17 +317,26 @@ public class RuleList<R extends Rule> extends Rule implements List<R> {
 
     @Override
     public R set(int index, R element) {
-        return list.set(index, element);
+        R old = list.set(index, element);
+        unlink(old);
+        link(element);
+        changed();
+        return old;
     }
 
     @Override
     public void add(int index, R element) {
         list.add(index, element);
+        link(element);
+        changed();
     }
 
     @Override
     public R remove(int index) {
-        return list.remove(index);
+        R old = list.remove(index);
+        unlink(old);
+        changed();
+        return old;
     }
 
     @Override
@@ -0,0 +1,168 @@
+package fr.bananasmoothii.rulesgeneration.rules;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Results of {@link Rule#test(CubicChunkEnvironment, int, int, int) tests} at some coordinates, so the same test at
+ * the same place is not done again as long as nothing changed around. There is one per
+ * {@link CubicChunkEnvironment}, see {@link CubicChunkEnvironment#setRuleCacheCapacity(int)}.
+ * <p>
+ * An entry is the rule (by identity), the coordinates, the result and the
+ * {@link CubicChunkEnvironment#modificationStamp() stamp} of when it was computed. It is out of date as soon as
+ * something changed in the footprint of the rule, that is the cube of its {@link Rule#reach() reach} around the
+ * coordinates (see {@link CubicChunkEnvironment#changedSince(long, int, int, int, int, int, int)}), or when any
+ * {@link RuleList} was modified. Rules with an unknown reach are never cached.
+ * <p>
+ * The size is fixed: entries are in sets of {@link #WAYS}, the set being chosen by a hash of the key. When a set is
+ * full, what is removed is chosen with the clock algorithm: each entry has a "referenced" bit that is set when it is
+ * used, the hand of the set goes round clearing them and stops at the first entry whose bit was already cleared.
+ */
+public final class RuleResultCache {
+
+    public static final int WAYS = 4;
+    /** returned by {@link #get(Rule, int, int, int, int)} when there is no result, or it is out of date */
+    public static final int MISS = -1;
+
+    private final CubicChunkEnvironment environment;
+    private final @Nullable Rule[] rules;
+    private final int[] xs, ys, zs;
+    private final long[] stamps;
+    private final boolean[] results, referenced;
+    /** clock hand of each set, between 0 and {@link #WAYS} - 1 */
+    private final byte[] hands;
+    private final int setMask;
+    /** see {@link RuleList#modifications()} */
+    private int rulesModification;
+    private long hits, misses;
+
+    /**
+     * @param capacity the maximum number of results kept, rounded down to a power of 2
+     */
+    public RuleResultCache(CubicChunkEnvironment environment, int capacity) {
+        if (capacity < WAYS) throw new IllegalArgumentException("capacity must be at least " + WAYS);
+        this.environment = environment;
+        int sets = Integer.highestOneBit(capacity / WAYS);
+        setMask = sets - 1;
+        int size = sets * WAYS;
+        rules = new Rule[size];
+        xs = new int[size];
+        ys = new int[size];
+        zs = new int[size];
+        stamps = new long[size];
+        results = new boolean[size];
+        referenced = new boolean[size];
+        hands = new byte[sets];
+        rulesModification = RuleList.modifications();
+    }
+
+    /**
+     * @param reach the {@link Rule#reach() reach} of that rule
+     * @return 1 or 0 if the result of that test is known and still valid, {@link #MISS} otherwise
+     */
+    public int get(Rule rule, int reach, int x, int y, int z) {
+        if (reach < 0) return MISS;
+        checkRules();
+        int set = firstOfSet(rule, x, y, z);
+        for (int i = set; i < set + WAYS; i++) {
+            if (rules[i] == rule && xs[i] == x && ys[i] == y && zs[i] == z) {
+                if (environment.changedSince(stamps[i], x - reach, y - reach, z - reach, x + reach, y + reach, z + reach)) {
+                    rules[i] = null;
+                    break;
+                }
+                referenced[i] = true;
+                hits++;
+                GenerationMetrics.ruleCacheHit();
+                return results[i] ? 1 : 0;
+            }
+        }
+        misses++;
+        GenerationMetrics.ruleCacheMissed();
+        return MISS;
+    }
+
+    /**
+     * Remembers the result of that test, that was just computed
+     * @param reach the {@link Rule#reach() reach} of that rule
+     */
+    public void put(Rule rule, int reach, int x, int y, int z, boolean result) {
+        if (reach < 0) return;
+        checkRules();
+        int set = firstOfSet(rule, x, y, z);
+        int entry = -1;
+        for (int i = set; i < set + WAYS; i++) {
+            if (rules[i] == null || rules[i] == rule && xs[i] == x && ys[i] == y && zs[i] == z) {
+                entry = i;
+                break;
+            }
+        }
+        if (entry == -1) entry = victim(set);
+        rules[entry] = rule;
+        xs[entry] = x;
+        ys[entry] = y;
+        zs[entry] = z;
+        stamps[entry] = environment.modificationStamp();
+        results[entry] = result;
+        referenced[entry] = false;
+    }
+
+    /**
+     * Removes every result
+     */
+    public void clear() {
+        Arrays.fill(rules, null);
+    }
+
+    public int capacity() {
+        return rules.length;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the part of {@link #get(Rule, int, int, int, int)} calls that found a result, between 0 and 1
+     */
+    public double hitRate() {
+        long lookups = hits + misses;
+        return lookups == 0 ? 0 : hits / (double) lookups;
+    }
+
+    private void checkRules() {
+        int modification = RuleList.modifications();
+        if (modification != rulesModification) {
+            clear();
+            rulesModification = modification;
+        }
+    }
+
+    private int firstOfSet(Rule rule, int x, int y, int z) {
+        long hash = System.identityHashCode(rule) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ x) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ y) * 0x9E3779B97F4A7C15L;
+        hash = (hash ^ z) * 0x9E3779B97F4A7C15L;
+        return ((int) (hash >>> 32) & setMask) * WAYS;
+    }
+
+    /**
+     * @return the entry of that set to replace, chosen by the clock
+     */
+    private int victim(int set) {
+        int setIndex = set / WAYS;
+        int hand = hands[setIndex];
+        while (referenced[set + hand]) {
+            referenced[set + hand] = false;
+            hand = (hand + 1) % WAYS;
+        }
+        hands[setIndex] = (byte) ((hand + 1) % WAYS);
+        return set + hand;
+    }
+}
@@ -0,0 +1,430 @@
+package fr.bananasmoothii.rulesgeneration.solvers;
+
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.LongObjectHashMap;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkCoords;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.chunks.UndoTrail;
+import fr.bananasmoothii.rulesgeneration.rules.Rule;
+import fr.bananasmoothii.rulesgeneration.rules.RuleDependencyIndex;
+import fr.bananasmoothii.rulesgeneration.rules.RuleList;
+import fr.bananasmoothii.rulesgeneration.suggestions.SimpleSuggestion;
+import fr.bananasmoothii.rulesgeneration.suggestions.Suggestion;
+import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A {@link Solver} that searches, instead of going forward whatever happens like the {@link WorklistSolver}. It
+ * never changes a cell that an earlier decision of the same {@link #solve()} placed, and when it is stuck it jumps
+ * straight back to the decision that caused it (conflict-directed backjumping), undoing everything after it with the
+ * {@link UndoTrail}.
+ * <p>
+ * A decision is made for each cell whose rules are not valid: its alternatives are the suggestions that would each
+ * fix one of its rules. In {@link LogicalOperator#OR OR} lists every rule that is not valid gives alternatives (not
+ * only a few picked at random like {@link RuleList#testAndSuggest(CubicChunkEnvironment, int, int, int)} does), and
+ * in {@link LogicalOperator#AND AND} lists only the first rule that is not valid does, the cell is checked again
+ * after anyway. A suggestion list where everything must be applied gives one alternative for each combination of
+ * the alternatives of its elements. They are tried in a random order weighted by {@link Suggestion#shouldFollow()}. After an alternative is applied, the cell,
+ * the changed cells and the cells whose rules look at them (found with the {@link RuleDependencyIndex}) are checked.
+ * <p>
+ * An alternative that would change a cell placed by an earlier decision is not tried, and that decision is
+ * remembered as part of the conflict. When no alternative is left, the search goes back to the most recent decision
+ * of the conflict (and not just the previous one), that tries its next alternative. If there is no such decision,
+ * the rules can't be made valid: everything done during the {@link #solve()} is undone and the result is
+ * {@link SolverResult#UNSATISFIABLE}. The number of alternatives tried is bounded by {@link #getMaxNodes()}.
+ */
+public class BackjumpingSolver implements Solver {
+
+    public static final int DEFAULT_MAX_NODES = 10_000;
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 1 << 16;
+    /** see {@link CubicChunkEnvironment#randomAt(int, int, int, int)} */
+    private static final int RANDOM_STREAM = 4;
+    /** above that, an AND suggestion list is one alternative instead of one per combination of its elements */
+    private static final int MAX_COMBINATIONS = 64;
+
+    private final CubicChunkEnvironment environment;
+    private int maxNodes, maxQueueSize;
+
+    /**
+     * pending checks, x, y, z triples from {@link #head} (not multiplied by 3) to {@link #tail}. Entries before
+     * {@link #head} are kept as long as a decision may need them back, see {@link Decision#head}.
+     */
+    private int[] pending = new int[3 * 64];
+    private int head, tail;
+    private final List<Decision> decisions = new ArrayList<>();
+    /** the decision that placed each cell, by {@link #key(int, int, int)} */
+    private final LongObjectHashMap<Decision> owners = new LongObjectHashMap<>();
+    /** alternatives tried in the current solve() */
+    private int nodes;
+    private int backjumps;
+
+    public BackjumpingSolver(CubicChunkEnvironment environment) {
+        this(environment, DEFAULT_MAX_QUEUE_SIZE, DEFAULT_MAX_NODES);
+    }
+
+    public BackjumpingSolver(CubicChunkEnvironment environment, int maxQueueSize, int maxNodes) {
+        this.environment = environment;
+        setMaxQueueSize(maxQueueSize);
+        setMaxNodes(maxNodes);
+    }
+
+    private static final class Decision {
+        /** the cell whose rules were not valid */
+        final int x, y, z;
+        final int depth;
+        final Suggestion[] alternatives;
+        /**
+         * the checks that were pending when the decision was taken, from head to tail in {@link #pending}. Nothing is
+         * written there while the decision exists, as checks are only added after the tail and the tail only goes
+         * back to the tail of a decision.
+         */
+        int head, tail;
+        /** index of the next alternative to try */
+        int next;
+        /** mark of the trail before the current alternative */
+        int mark;
+        /** depths of the earlier decisions that are part of the conflicts of the alternatives tried so far */
+        final BitSet conflicts = new BitSet();
+
+        Decision(int x, int y, int z, int depth, Suggestion[] alternatives, int head, int tail) {
+            this.x = x;
+            this.y = y;
+            this.z = z;
+            this.depth = depth;
+            this.alternatives = alternatives;
+            this.head = head;
+            this.tail = tail;
+        }
+    }
+
+    @Override
+    public boolean enqueue(int x, int y, int z) {
+        if (tail - head >= maxQueueSize) return false;
+        if (tail * 3 == pending.length) {
+            // what is before the first decision is not needed anymore
+            int from = decisions.isEmpty() ? head : decisions.get(0).head;
+            int size = tail - from;
+            if (from > size) {
+                System.arraycopy(pending, from * 3, pending, 0, size * 3);
+            } else {
+                pending = Arrays.copyOfRange(pending, from * 3, from * 3 + (pending.length << 1));
+            }
+            head -= from;
+            tail = size;
+            for (Decision decision : decisions) {
+                decision.head -= from;
+                decision.tail -= from;
+            }
+        }
+        int i = tail * 3;
+        pending[i] = x;
+        pending[i + 1] = y;
+        pending[i + 2] = z;
+        tail++;
+        return true;
+    }
+
+    @Override
+    public SolverResult solve() {
+        UndoTrail trail = environment.getTrail();
+        int start = trail.mark();
+        RuleDependencyIndex index = RuleDependencyIndex.current();
+        nodes = 0;
+        backjumps = 0;
+        try {
+            while (head < tail) {
+                int i = head * 3;
+                int x = pending[i], y = pending[i + 1], z = pending[i + 2];
+                head++;
+
+                @Nullable CubicChunk chunk = environment.get(x, y, z);
+                if (chunk == null) continue;
+                if (chunk.rules.test(environment, x, y, z)) continue;
+                Decision decision = new Decision(x, y, z, decisions.size(), alternativesOf(chunk.rules, x, y, z), head, tail);
+                decisions.add(decision);
+                SolverResult result = advance(decision, trail, index);
+                if (result == null) result = backjump(decision, trail, index, start);
+                if (result != SolverResult.SOLVED) return result;
+            }
+            trail.commit(start);
+            return SolverResult.SOLVED;
+        } finally {
+            if (trail.size() > start) trail.commit(start); // limits: what was done is kept
+            clear();
+        }
+    }
+
+    /**
+     * Tries the next alternatives of that decision until one can be applied
+     * @return {@link SolverResult#SOLVED} if one was applied, {@code null} if there is none left, or
+     * {@link SolverResult#STEP_LIMIT_REACHED} / {@link SolverResult#QUEUE_LIMIT_REACHED}
+     */
+    private @Nullable SolverResult advance(Decision decision, UndoTrail trail, RuleDependencyIndex index) {
+        while (decision.next < decision.alternatives.length) {
+            Suggestion alternative = decision.alternatives[decision.next++];
+            if (!canApply(alternative, decision)) continue;
+            if (nodes >= maxNodes) return SolverResult.STEP_LIMIT_REACHED;
+            nodes++;
+            int mark = alternative.applyTracked();
+            decision.mark = mark;
+            for (int entry = mark; entry < trail.size(); entry++) {
+                int x = trail.x(entry), y = trail.y(entry), z = trail.z(entry);
+                owners.put(key(x, y, z), decision);
+                if (!enqueue(x, y, z)) return SolverResult.QUEUE_LIMIT_REACHED;
+                if (!index.hasUnknownReach()) {
+                    boolean[] queueFull = new boolean[1];
+                    index.forEachDependent(environment, x, y, z, trail.oldId(entry), environment.getId(x, y, z),
+                            (dependentX, dependentY, dependentZ, dependency) -> {
+                                if (!enqueue(dependentX, dependentY, dependentZ)) queueFull[0] = true;
+                            });
+                    if (queueFull[0]) return SolverResult.QUEUE_LIMIT_REACHED;
+                }
+            }
+            if (!enqueue(decision.x, decision.y, decision.z)) return SolverResult.QUEUE_LIMIT_REACHED;
+            return SolverResult.SOLVED;
+        }
+        return null;
+    }
+
+    /**
+     * @return {@code false} if that alternative would change a cell placed by a decision (the owners are then added
+     * to the conflicts of the decision) or if it would change nothing
+     */
+    private boolean canApply(Suggestion alternative, Decision decision) {
+        if (alternative instanceof SimpleSuggestion) {
+            SimpleSuggestion simple = (SimpleSuggestion) alternative;
+            if (environment.get(simple.x, simple.y, simple.z) == simple.what) return false;
+            return !isOwned(simple.x, simple.y, simple.z, decision);
+        }
+        boolean can = true;
+        for (CubicChunkCoords change : alternative.applyWouldChange()) {
+            if (isOwned(change.x, change.y, change.z, decision)) can = false;
+        }
+        return can;
+    }
+
+    private boolean isOwned(int x, int y, int z, Decision decision) {
+        @Nullable Decision owner = owners.get(key(x, y, z));
+        if (owner == null) return false;
+        decision.conflicts.set(owner.depth);
+        return true;
+    }
+
+    /**
+     * Called when the decision has no alternative left: goes back to the latest decision of its conflicts and tries
+     * its next alternative, again and again until one works.
+     * @return {@link SolverResult#SOLVED} if the search can go on
+     */
+    private SolverResult backjump(Decision failed, UndoTrail trail, RuleDependencyIndex index, int start) {
+        BitSet conflict = conflictOf(failed);
+        decisions.remove(decisions.size() - 1);
+        while (true) {
+            int target = conflict.length() - 1;
+            if (target < 0) {
+                undoFrom(start, trail);
+                decisions.clear();
+                return SolverResult.UNSATISFIABLE;
+            }
+            backjumps++;
+            Decision decision = decisions.get(target);
+            undoFrom(decision.mark, trail);
+            decisions.subList(target + 1, decisions.size()).clear();
+            head = decision.head;
+            tail = decision.tail;
+            conflict.clear(target);
+            decision.conflicts.or(conflict);
+            SolverResult result = advance(decision, trail, index);
+            if (result != null) return result;
+            conflict = conflictOf(decision);
+            decisions.remove(decisions.size() - 1);
+        }
+    }
+
+    /**
+     * @return the conflicts of the alternatives of that decision, and the decision that placed its cell as changing
+     * that cell would also remove the rules that are not valid
+     */
+    private BitSet conflictOf(Decision decision) {
+        BitSet conflict = (BitSet) decision.conflicts.clone();
+        @Nullable Decision owner = owners.get(key(decision.x, decision.y, decision.z));
+        if (owner != null && owner.depth < decision.depth) conflict.set(owner.depth);
+        return conflict;
+    }
+
+    /**
+     * Undoes everything after that mark of the trail, and forgets who placed these cells
+     */
+    private void undoFrom(int mark, UndoTrail trail) {
+        for (int entry = mark; entry < trail.size(); entry++) {
+            owners.remove(key(trail.x(entry), trail.y(entry), trail.z(entry)));
+        }
+        trail.rollback(mark);
+    }
+
+    /**
+     * @return the suggestions that would each fix one rule, shuffled with weights {@link Suggestion#shouldFollow()}
+     * + 100 like in {@link SuggestionList}
+     */
+    private Suggestion[] alternativesOf(Rule rule, int x, int y, int z) {
+        List<Suggestion> alternatives = new ArrayList<>();
+        addAlternatives(rule, x, y, z, alternatives);
+        Suggestion[] array = alternatives.toArray(new Suggestion[0]);
+        // weighted random order (Efraimidis-Spirakis): sort by random^(1/weight), biggest first
+        Random random = environment.randomAt(x, y, z, RANDOM_STREAM);
+        double[] keys = new double[array.length];
+        Integer[] order = new Integer[array.length];
+        for (int i = 0; i < array.length; i++) {
+            float weight = array[i].shouldFollow() + 100;
+            keys[i] = weight <= 0 ? -1 : Math.pow(random.nextDouble(), 1d / weight);
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(keys[b], keys[a]));
+        Suggestion[] sorted = new Suggestion[array.length];
+        for (int i = 0; i < array.length; i++) {
+            sorted[i] = array[order[i]];
+        }
+        return sorted;
+    }
+
+    private void addAlternatives(Rule rule, int x, int y, int z, List<Suggestion> alternatives) {
+        if (rule instanceof RuleList) {
+            RuleList<?> ruleList = (RuleList<?>) rule;
+            for (Rule child : ruleList) {
+                if (child.test(environment, x, y, z)) continue;
+                addAlternatives(child, x, y, z, alternatives);
+                if (ruleList.logicalOperator == LogicalOperator.AND) return;
+            }
+            return;
+        }
+        @Nullable SuggestionList suggestions = rule.testAndSuggest(environment, x, y, z);
+        if (suggestions != null) addAlternatives(suggestions, alternatives);
+    }
+
+    private void addAlternatives(Suggestion suggestion, List<Suggestion> alternatives) {
+        if (!(suggestion instanceof SuggestionList)) {
+            alternatives.add(suggestion);
+            return;
+        }
+        SuggestionList list = (SuggestionList) suggestion;
+        if (list.isEmpty()) return;
+        if (list.logicalOperator == LogicalOperator.OR) {
+            for (Suggestion element : list) {
+                addAlternatives(element, alternatives);
+            }
+            return;
+        }
+        // all elements must be applied together: one alternative for each combination of their alternatives
+        List<List<Suggestion>> combinations = new ArrayList<>();
+        combinations.add(new ArrayList<>());
+        List<Suggestion> elementAlternatives = new ArrayList<>();
+        for (Suggestion element : list) {
+            elementAlternatives.clear();
+            addAlternatives(element, elementAlternatives);
+            if (elementAlternatives.isEmpty()) continue;
+            if (combinations.size() * elementAlternatives.size() > MAX_COMBINATIONS) {
+                // too many, the whole list is one alternative and its OR lists choose at random
+                alternatives.add(list);
+                return;
+            }
+            List<List<Suggestion>> next = new ArrayList<>(combinations.size() * elementAlternatives.size());
+            for (List<Suggestion> combination : combinations) {
+                for (Suggestion elementAlternative : elementAlternatives) {
+                    List<Suggestion> longer = new ArrayList<>(combination);
+                    longer.add(elementAlternative);
+                    next.add(longer);
+                }
+            }
+            combinations = next;
+        }
+        for (List<Suggestion> combination : combinations) {
+            if (combination.isEmpty()) continue;
+            if (combination.size() == 1) {
+                alternatives.add(combination.get(0));
+                continue;
+            }
+            SuggestionList and = new SuggestionList(environment, LogicalOperator.AND, list.originX, list.originY, list.originZ);
+            and.addAll(combination);
+            alternatives.add(and);
+        }
+    }
+
+    private static long key(int x, int y, int z) {
+        return ((long) x & 0xFFFFFF) << 40 | ((long) z & 0xFFFFFF) << 16 | ((long) y & 0xFFFF);
+    }
+
+    /**
+     * drops all pending checks and decisions
+     */
+    public void clear() {
+        head = 0;
+        tail = 0;
+        decisions.clear();
+        owners.clear();
+    }
+
+    /**
+     * @return {@code true} if the queue is more than half full or if more than half the nodes are used
+     */
+    @Override
+    public boolean isUnderPressure() {
+        return tail - head > maxQueueSize >> 1 || nodes > maxNodes >> 1;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * @param maxQueueSize the maximum number of pending checks, must be at least 1
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        if (maxQueueSize < 1) throw new IllegalArgumentException("maxQueueSize must be >= 1");
+        if (maxQueueSize < tail - head) throw new IllegalStateException("there are already more pending checks than that");
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public int getMaxNodes() {
+        return maxNodes;
+    }
+
+    /**
+     * @param maxNodes the maximum number of alternatives tried in one {@link #solve()}, must be at least 1
+     */
+    public void setMaxNodes(int maxNodes) {
+        if (maxNodes < 1) throw new IllegalArgumentException("maxNodes must be >= 1");
+        this.maxNodes = maxNodes;
+    }
+
+    /**
+     * @return the number of alternatives tried during the last (or current) {@link #solve()}
+     */
+    @Override
+    public int getSteps() {
+        return nodes;
+    }
+
+    /**
+     * @return the number of times the last (or current) {@link #solve()} went back to an earlier decision
+     */
+    public int getBackjumps() {
+        return backjumps;
+    }
+
+    @Override
+    public String toString() {
+        return "BackjumpingSolver{" +
+                "maxQueueSize=" + maxQueueSize +
+                ", maxNodes=" + maxNodes +
+                ", pending=" + (tail - head) +
+                ", decisions=" + decisions.size() +
+                ", nodes=" + nodes +
+                '}';
+    }
+}
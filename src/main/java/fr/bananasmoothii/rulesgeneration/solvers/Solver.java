@@ -0,0 +1,47 @@
+package fr.bananasmoothii.rulesgeneration.solvers;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+
+/**
+ * Something that makes the {@link CubicChunk#rules rules} of the {@link CubicChunk}s of a
+ * {@link CubicChunkEnvironment} valid. You {@link #enqueue(int, int, int) enqueue} the cells that need to be checked,
+ * then you call {@link #solve()}.
+ */
+public interface Solver {
+
+    /**
+     * Adds a cell to the cells that will be checked on the next {@link #solve()}
+     * @return {@code false} if the cell could not be added because of a limit of the solver
+     */
+    boolean enqueue(int x, int y, int z);
+
+    /**
+     * Checks every enqueued cell, and the cells that changed because of that, until everything is valid or until a
+     * limit of the solver is reached. The pending checks are dropped in the latter case.
+     */
+    SolverResult solve();
+
+    /**
+     * Shortcut for {@link #enqueue(int, int, int)} and then {@link #solve()}
+     */
+    default SolverResult solve(int x, int y, int z) {
+        if (!enqueue(x, y, z)) return SolverResult.QUEUE_LIMIT_REACHED;
+        return solve();
+    }
+
+    /**
+     * @return {@code true} if the solver is getting close to one of its limits, so it would be better not to add
+     * more work
+     */
+    boolean isUnderPressure();
+
+    /**
+     * @return the number of steps done so far in the current (or last) {@link #solve()}. It is used as the "attempt"
+     * of {@link CubicChunkEnvironment#randomAt(int, int, int, int)}, so it must only depend on what the solver did
+     * since the start of {@link #solve()}.
+     */
+    default int getSteps() {
+        return 0;
+    }
+}
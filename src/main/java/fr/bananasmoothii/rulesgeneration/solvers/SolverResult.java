@@ -0,0 +1,29 @@
+package fr.bananasmoothii.rulesgeneration.solvers;
+
+/**
+ * What a {@link Solver} reports after {@link Solver#solve()}
+ */
+public enum SolverResult {
+    /** every pending check was done and no rule asked for more changes */
+    SOLVED,
+    /** there were more pending checks than the solver allows, the rest was dropped */
+    QUEUE_LIMIT_REACHED,
+    /** the solver did as many steps as it allows, the remaining checks were dropped */
+    STEP_LIMIT_REACHED,
+    /**
+     * the solver searched everything it could and there is no way to make the rules valid, everything it did was
+     * undone (only {@link BackjumpingSolver} can tell that)
+     */
+    UNSATISFIABLE;
+
+    public boolean isSuccess() {
+        return this == SOLVED;
+    }
+
+    /**
+     * @return the worst of both results, so you can combine the results of several solves
+     */
+    public SolverResult worst(SolverResult other) {
+        return other.ordinal() > ordinal() ? other : this;
+    }
+}
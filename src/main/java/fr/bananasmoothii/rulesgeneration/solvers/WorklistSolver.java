@@ -0,0 +1,160 @@
+package fr.bananasmoothii.rulesgeneration.solvers;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.chunks.UndoTrail;
+import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A {@link Solver} that doesn't use recursion: the cells to check are in a queue on the heap, so the stack usage is
+ * constant, and the amount of work is bounded by {@link #getMaxQueueSize()} and {@link #getMaxSteps()}.
+ * <p>
+ * One step is: take a cell from the queue, test the {@link CubicChunk#rules rules} of what is in it, and if they are
+ * not valid, {@link SuggestionList#validate() validate} and {@link SuggestionList#applyTracked() apply} the
+ * suggestions. Every cell that changed (read from the {@link UndoTrail}) is then added to the queue, and that cell too,
+ * to make sure its rules are now valid.
+ */
+public class WorklistSolver implements Solver {
+
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 1 << 16;
+    public static final int DEFAULT_MAX_STEPS = 10_000;
+
+    private final CubicChunkEnvironment environment;
+    private int maxQueueSize, maxSteps;
+
+    /** ring buffer of x, y, z triples */
+    private int[] queue = new int[3 * 64];
+    /** index of the first element (not multiplied by 3) and number of elements */
+    private int head, size;
+    /** steps done in the current solve() */
+    private int steps;
+
+    public WorklistSolver(CubicChunkEnvironment environment) {
+        this(environment, DEFAULT_MAX_QUEUE_SIZE, DEFAULT_MAX_STEPS);
+    }
+
+    public WorklistSolver(CubicChunkEnvironment environment, int maxQueueSize, int maxSteps) {
+        this.environment = environment;
+        setMaxQueueSize(maxQueueSize);
+        setMaxSteps(maxSteps);
+    }
+
+    @Override
+    public boolean enqueue(int x, int y, int z) {
+        if (size >= maxQueueSize) return false;
+        int capacity = queue.length / 3;
+        if (size == capacity) {
+            // grow and unwrap the ring
+            int[] newQueue = new int[Math.min(capacity << 1, maxQueueSize) * 3];
+            int firstPart = Math.min(size, capacity - head);
+            System.arraycopy(queue, head * 3, newQueue, 0, firstPart * 3);
+            System.arraycopy(queue, 0, newQueue, firstPart * 3, (size - firstPart) * 3);
+            queue = newQueue;
+            head = 0;
+            capacity = queue.length / 3;
+        }
+        int i = head + size;
+        if (i >= capacity) i -= capacity;
+        i *= 3;
+        queue[i] = x;
+        queue[i + 1] = y;
+        queue[i + 2] = z;
+        size++;
+        return true;
+    }
+
+    @Override
+    public SolverResult solve() {
+        UndoTrail trail = environment.getTrail();
+        steps = 0;
+        try {
+            while (size > 0) {
+                if (steps >= maxSteps) return SolverResult.STEP_LIMIT_REACHED;
+                steps++;
+                int i = head * 3;
+                int x = queue[i], y = queue[i + 1], z = queue[i + 2];
+                if (++head == queue.length / 3) head = 0;
+                size--;
+
+                @Nullable CubicChunk chunk = environment.get(x, y, z);
+                if (chunk == null) continue;
+                @Nullable SuggestionList suggestions = chunk.rules.testAndSuggest(environment, x, y, z);
+                if (suggestions == null) continue;
+                suggestions.validate();
+                int mark = suggestions.applyTracked();
+                try {
+                    for (int entry = mark; entry < trail.size(); entry++) {
+                        if (!enqueue(trail.x(entry), trail.y(entry), trail.z(entry))) return SolverResult.QUEUE_LIMIT_REACHED;
+                    }
+                } finally {
+                    // the changes are kept, no need to remember how to undo them
+                    trail.commit(mark);
+                }
+                if (!enqueue(x, y, z)) return SolverResult.QUEUE_LIMIT_REACHED;
+            }
+            return SolverResult.SOLVED;
+        } finally {
+            clear();
+        }
+    }
+
+    /**
+     * drops all pending checks
+     */
+    public void clear() {
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * @return {@code true} if the queue is more than half full or if more than half the steps are done
+     */
+    @Override
+    public boolean isUnderPressure() {
+        return size > maxQueueSize >> 1 || steps > maxSteps >> 1;
+    }
+
+    public int getMaxQueueSize() {
+        return maxQueueSize;
+    }
+
+    /**
+     * @param maxQueueSize the maximum number of pending checks, must be at least 1
+     */
+    public void setMaxQueueSize(int maxQueueSize) {
+        if (maxQueueSize < 1) throw new IllegalArgumentException("maxQueueSize must be >= 1");
+        if (maxQueueSize < size) throw new IllegalStateException("there are already more pending checks than that");
+        this.maxQueueSize = maxQueueSize;
+    }
+
+    public int getMaxSteps() {
+        return maxSteps;
+    }
+
+    /**
+     * @param maxSteps the maximum number of steps for one {@link #solve()}, must be at least 1
+     */
+    public void setMaxSteps(int maxSteps) {
+        if (maxSteps < 1) throw new IllegalArgumentException("maxSteps must be >= 1");
+        this.maxSteps = maxSteps;
+    }
+
+    /**
+     * @return the number of steps done during the last (or current) {@link #solve()}
+     */
+    @Override
+    public int getSteps() {
+        return steps;
+    }
+
+    @Override
+    public String toString() {
+        return "WorklistSolver{" +
+                "maxQueueSize=" + maxQueueSize +
+                ", maxSteps=" + maxSteps +
+                ", pending=" + size +
+                ", steps=" + steps +
+                '}';
+    }
+}
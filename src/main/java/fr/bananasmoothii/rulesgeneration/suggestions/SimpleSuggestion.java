@@ -42,6 +42,11 @@ public class SimpleSuggestion extends Suggestion {
         return new CubicChunkCoords[] {new CubicChunkCoords(what, x, y, z)};
     }
 
+    @Override
+    protected void applyChanges() {
+        environment.setUndoable(what, x, y, z);
+    }
+
     @Override
     public float shouldFollow() {
         return shouldFollow;
@@ -3,13 +3,11 @@ package fr.bananasmoothii.rulesgeneration.suggestions;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkCoords;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.chunks.UndoTrail;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
 import org.jetbrains.annotations.Contract;
-import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.Range;
 
-import java.util.ArrayList;
-import java.util.Objects;
-
 /**
  * A suggestion is one or more changes to the link {@link CubicChunkEnvironment}. Suggestions are not thread-safe.
  */
@@ -19,25 +17,49 @@ public abstract class Suggestion {
 
     public Suggestion(CubicChunkEnvironment environment) {
         this.environment = environment;
+        GenerationMetrics.suggestionCreated();
     }
 
-    protected @Nullable ArrayList<CubicChunkCoords> changed;
+    /** where the changes of the last {@link #apply()} start in the {@link UndoTrail}, -1 if it can't be undone */
+    protected int undoMark = -1;
 
     /**
+     * The changes are recorded in the {@link CubicChunkEnvironment#getTrail() trail} so they can be undone: when you
+     * know you won't {@link #undo()} them, {@link #commit()} them, or the trail will keep growing.
      * @return all what changed after you called this method.
+     * @see #applyTracked()
      */
     public CubicChunkCoords[] apply() {
         CubicChunkCoords[] toChange = applyWouldChange();
-        changed = new ArrayList<>();
+        undoMark = environment.getTrail().mark();
         for (CubicChunkCoords cubicChunkCoords : toChange) {
-            changed.add(
-                    new CubicChunkCoords(environment.get(cubicChunkCoords.x, cubicChunkCoords.y, cubicChunkCoords.z),
-                            cubicChunkCoords.x, cubicChunkCoords.y, cubicChunkCoords.z));
-            environment.set(cubicChunkCoords);
+            environment.setUndoable(cubicChunkCoords.cubicChunk, cubicChunkCoords.x, cubicChunkCoords.y, cubicChunkCoords.z);
         }
         return toChange;
     }
 
+    /**
+     * Same as {@link #apply()}, but without allocating anything (if the suggestion overrides
+     * {@link #applyChanges()}). What changed is in the {@link CubicChunkEnvironment#getTrail() trail}, from the
+     * returned mark to the end. Like with {@link #apply()}, {@link #undo()} or {@link #commit()} them after.
+     * @return the mark of the trail before the changes, that can also be used with {@link UndoTrail#rollback(int)}
+     */
+    public int applyTracked() {
+        undoMark = environment.getTrail().mark();
+        applyChanges();
+        return undoMark;
+    }
+
+    /**
+     * Makes the changes with {@link CubicChunkEnvironment#setUndoable(CubicChunk, int, int, int)}. By default it uses
+     * {@link #applyWouldChange()}, override it if you can do it without allocating.
+     */
+    protected void applyChanges() {
+        for (CubicChunkCoords cubicChunkCoords : applyWouldChange()) {
+            environment.setUndoable(cubicChunkCoords.cubicChunk, cubicChunkCoords.x, cubicChunkCoords.y, cubicChunkCoords.z);
+        }
+    }
+
     /**
      * @return all what would change if you call {@link #apply()}.
      */
@@ -45,21 +67,34 @@ public abstract class Suggestion {
     public abstract CubicChunkCoords[] applyWouldChange();
 
     /**
-     * @throws NullPointerException if {@link #apply()} was not called
+     * Undoes the last {@link #apply()}. As it uses the {@link UndoTrail}, undos must be done in reverse order of the
+     * applies: this also undoes everything applied after this suggestion.
+     * @throws IllegalStateException if {@link #apply()} was not called
      * @see #canUndo()
      */
     public void undo() {
-        for (CubicChunkCoords changed1 : Objects.requireNonNull(changed, "as warned in the JavaDoc, apply() was not called")) {
-            environment.set(changed1.cubicChunk, changed1.x, changed1.y, changed1.z);
-        }
-        changed = null;
+        if (!canUndo()) throw new IllegalStateException("as warned in the JavaDoc, apply() was not called");
+        environment.getTrail().rollback(undoMark);
+        undoMark = -1;
+    }
+
+    /**
+     * Makes the last {@link #apply()} final, so its changes are removed from the {@link UndoTrail}. Like undos,
+     * commits must be done in reverse order of the applies: this also commits everything applied after this
+     * suggestion.
+     * @throws IllegalStateException if {@link #apply()} was not called
+     */
+    public void commit() {
+        if (!canUndo()) throw new IllegalStateException("as warned in the JavaDoc, apply() was not called");
+        environment.getTrail().commit(undoMark);
+        undoMark = -1;
     }
 
     /**
      * tells whether you can call{@link #undo()}
      */
     public boolean canUndo() {
-        return changed != null;
+        return undoMark >= 0 && undoMark <= environment.getTrail().size();
     }
 
     /**
@@ -1,14 +1,15 @@
 package fr.bananasmoothii.rulesgeneration.suggestions;
 
-import fr.bananasmoothii.rulesgeneration.FloatRangeMap;
+import fr.bananasmoothii.rulesgeneration.AliasSampler;
 import fr.bananasmoothii.rulesgeneration.LogicalOperator;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkCoords;
 import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.chunks.UndoTrail;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
 import fr.bananasmoothii.rulesgeneration.rules.Rule;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.jetbrains.annotations.Range;
 
 import java.util.*;
 
@@ -20,15 +21,29 @@ public class SuggestionList extends Suggestion implements List<Suggestion> {
 
     final List<Suggestion> list;
     public final LogicalOperator logicalOperator;
+    public final int originX, originY, originZ;
+    /** see {@link CubicChunkEnvironment#randomAt(int, int, int, int)} */
+    private static final int CHOOSE_RANDOM_STREAM = 2, VALIDATE_RANDOM_STREAM = 3;
 
     public SuggestionList(CubicChunkEnvironment environment) {
         this(environment, LogicalOperator.OR);
     }
 
     public SuggestionList(CubicChunkEnvironment environment, LogicalOperator logicalOperator) {
+        this(environment, logicalOperator, 0, 0, 0);
+    }
+
+    /**
+     * @param originX, originY, originZ where the rule that made these suggestions was tested, for
+     *                 {@link CubicChunkEnvironment#randomAt(int, int, int, int)}
+     */
+    public SuggestionList(CubicChunkEnvironment environment, LogicalOperator logicalOperator, int originX, int originY, int originZ) {
         super(environment);
         list = new ArrayList<>();
         this.logicalOperator = logicalOperator;
+        this.originX = originX;
+        this.originY = originY;
+        this.originZ = originZ;
     }
 
     @Override
@@ -60,79 +75,134 @@ public class SuggestionList extends Suggestion implements List<Suggestion> {
     }
 
     @Nullable Suggestion chosenSuggestion;
+    /** built by {@link #choose()} and kept until the list changes */
+    private @Nullable AliasSampler sampler;
 
     /**
      * This is useful only when {@link #logicalOperator} is {@link LogicalOperator#OR OR}. It picks one suggestion based
      * on {@link Suggestion#shouldFollow()}. The result, {@link #chosenSuggestion}, will be {@code null} if
-     * {@link #logicalOperator} is not {@link LogicalOperator#OR OR}.
+     * {@link #logicalOperator} is not {@link LogicalOperator#OR OR} or if the list is empty.
      *
-     * This uses a {@link FloatRangeMap} where all node size are the value of {@link Suggestion#shouldFollow()} + 100.
-     * So for exemple, If element A has a size of 3, B 8 and C 4, the map will look like {@code AAABBBBBBBBCCCC}. We can
-     * see here that if you pick a random element, there are more chances to get B.
+     * Each suggestion has a weight of {@link Suggestion#shouldFollow()} + 100, and the pick is made by an
+     * {@link AliasSampler}, with the random values of {@link CubicChunkEnvironment#randomAt(int, int, int, int)} at
+     * the origin of this list. So for exemple, If element A has a weight of 3, B 8 and C 4, B has 8 chances out of 15. The
+     * sampler is only built again when the list changes, so choosing again is O(1). If you change the
+     * {@link Suggestion#shouldFollow()} of an element, call {@link #listChanged()}.
      */
     void choose() {
         if (logicalOperator == LogicalOperator.OR) {
-            float lastRangeTo = 0f;
-            FloatRangeMap<Suggestion> map = new FloatRangeMap<>();
-            for (Suggestion suggestion : list) {
-                @Range(from = 0, to = 200) float nodeSize = suggestion.shouldFollow() + 100;
-                map.put(lastRangeTo, lastRangeTo + nodeSize, suggestion);
-                lastRangeTo += nodeSize;
+            if (list.isEmpty()) {
+                chosenSuggestion = null;
+                return;
             }
-            chosenSuggestion = map.get(environment.random.nextInt((int) (lastRangeTo * 1000)) / 1000f);
+            if (sampler == null) {
+                float[] weights = new float[list.size()];
+                for (int i = 0; i < weights.length; i++) {
+                    weights[i] = list.get(i).shouldFollow() + 100;
+                }
+                sampler = new AliasSampler(weights);
+            }
+            chosenSuggestion = list.get(sampler.sample(environment.randomAt(originX, originY, originZ, CHOOSE_RANDOM_STREAM)));
         }
     }
 
     /**
-     * Be sure everything that will be changed if that suggestion is applied is valid according to the rules of each
-     * {@link CubicChunk} changed
+     * Forgets the {@link #chosenSuggestion} and the sampler used by {@link #choose()}. This is called by every method
+     * modifying the list.
      */
-    public void validate() {
-        ArrayList<Runnable> todo = new ArrayList<>();
+    public void listChanged() {
+        chosenSuggestion = null;
+        sampler = null;
+    }
+
+    @Override
+    protected void applyChanges() {
+        if (list.isEmpty()) return;
         switch (logicalOperator) {
             case OR:
                 if (chosenSuggestion == null) choose();
-                for (CubicChunkCoords change : chosenSuggestion.apply()) {
-                    if (change.cubicChunk == null) continue;
-                    for (Rule rule : change.cubicChunk.rules) {
-                        // if the suggestion isn't valid according to all rules, should it just remove that suggestion...
-                        if (list.size() > 1 && (Thread.currentThread().getStackTrace().length > 100 || environment.random.nextBoolean())) {
-                            if (!rule.test(environment, change.x, change.y, change.z)) {
-                                todo.add(() -> list.remove(chosenSuggestion));
-                            }
-                        // ...or try to add other suggestions so the rule is valid
-                        } else {
-                            SuggestionList newSuggestions = rule.testAndSuggest(environment, change.x, change.y, change.z);
-                            if (newSuggestions != null) {
-                                //newSuggestions.validate();
-                                todo.add(() -> list.addAll(newSuggestions));
-                            }
-                        }
-                    }
-                }
-                chosenSuggestion.undo();
+                //noinspection ConstantConditions
+                chosenSuggestion.applyChanges();
                 break;
             case AND:
-                ArrayList<CubicChunkCoords> changes = new ArrayList<>();
                 for (Suggestion suggestion : list) {
-                    changes.addAll(Arrays.asList(suggestion.apply()));
-                    todo.add(suggestion::undo);
+                    suggestion.applyChanges();
                 }
-                for (CubicChunkCoords change : changes) {
-                    if (change.cubicChunk == null) continue;
-                    for (Rule rule : change.cubicChunk.rules) {
-                        SuggestionList newSuggestions = rule.testAndSuggest(environment, change.x, change.y, change.z);
-                        if (newSuggestions != null) {
-                            //newSuggestions.validate();
-                            list.addAll(newSuggestions);
+                break;
+        }
+    }
+
+    /**
+     * Be sure everything that will be changed if that suggestion is applied is valid according to the rules of each
+     * {@link CubicChunk} changed. The changes are tried temporarily and undone with the {@link UndoTrail}, see
+     * {@link UndoTrail#markTrial()}.
+     */
+    public void validate() {
+        UndoTrail trail = environment.getTrail();
+        ArrayList<Runnable> todo = new ArrayList<>();
+        int size = list.size();
+        // the todo changes the list, so chosenSuggestion is forgotten by the first one
+        Suggestion chosen = null;
+        if (logicalOperator == LogicalOperator.OR) {
+            if (chosenSuggestion == null) choose();
+            if (chosenSuggestion == null) return; // empty list
+            chosen = chosenSuggestion;
+        }
+        int mark = trail.markTrial(), checked = 0;
+        try {
+            switch (logicalOperator) {
+                case OR:
+                    Random random = environment.randomAt(originX, originY, originZ, VALIDATE_RANDOM_STREAM);
+                    chosen.applyChanges();
+                    checked = trail.size() - mark;
+                    for (int entry = mark; entry < trail.size(); entry++) {
+                        int x = trail.x(entry), y = trail.y(entry), z = trail.z(entry);
+                        CubicChunk changed = environment.get(x, y, z);
+                        if (changed == null) continue;
+                        for (Rule rule : changed.rules) {
+                            // if the suggestion isn't valid according to all rules, should it just remove that suggestion...
+                            if (list.size() > 1 && (environment.getSolver().isUnderPressure() || random.nextBoolean())) {
+                                if (!rule.test(environment, x, y, z)) {
+                                    Suggestion toRemove = chosen;
+                                    todo.add(() -> remove(toRemove));
+                                }
+                            // ...or try to add other suggestions so the rule is valid
+                            } else {
+                                SuggestionList newSuggestions = rule.testAndSuggest(environment, x, y, z);
+                                if (newSuggestions != null) {
+                                    //newSuggestions.validate();
+                                    todo.add(() -> addAll(newSuggestions));
+                                }
+                            }
                         }
                     }
-                }
-                break;
+                    break;
+                case AND:
+                    for (Suggestion suggestion : list) {
+                        suggestion.applyChanges();
+                    }
+                    checked = trail.size() - mark;
+                    for (int entry = mark; entry < trail.size(); entry++) {
+                        int x = trail.x(entry), y = trail.y(entry), z = trail.z(entry);
+                        CubicChunk changed = environment.get(x, y, z);
+                        if (changed == null) continue;
+                        for (Rule rule : changed.rules) {
+                            SuggestionList newSuggestions = rule.testAndSuggest(environment, x, y, z);
+                            if (newSuggestions != null) {
+                                //newSuggestions.validate();
+                                addAll(newSuggestions);
+                            }
+                        }
+                    }
+                    break;
+            }
+        } finally {
+            trail.rollbackTrial(mark);
         }
         for (int i = todo.size() - 1; i >= 0; i--) {
             todo.get(i).run();
         }
+        GenerationMetrics.suggestionListValidated(size, checked);
     }
 
     /**
@@ -195,61 +265,61 @@ public class SuggestionList extends Suggestion implements List<Suggestion> {
 
     @Override
     public Suggestion set(int index, Suggestion element) {
-        chosenSuggestion = null;
+        listChanged();
         return list.set(index, element);
     }
 
     @Override
     public boolean add(Suggestion suggestion) {
-        chosenSuggestion = null;
+        listChanged();
         return list.add(suggestion);
     }
 
     @Override
     public void add(int index, Suggestion element) {
-        chosenSuggestion = null;
+        listChanged();
         list.add(index, element);
     }
 
     @Override
     public Suggestion remove(int index) {
-        chosenSuggestion = null;
+        listChanged();
         return list.remove(index);
     }
 
     @Override
     public boolean remove(Object o) {
-        chosenSuggestion = null;
+        listChanged();
         return list.remove(o);
     }
 
     @Override
     public void clear() {
-        chosenSuggestion = null;
+        listChanged();
         list.clear();
     }
 
     @Override
     public boolean addAll(@NotNull Collection<? extends Suggestion> c) {
-        chosenSuggestion = null;
+        listChanged();
         return list.addAll(c);
     }
 
     @Override
     public boolean addAll(int index, @NotNull Collection<? extends Suggestion> c) {
-        chosenSuggestion = null;
+        listChanged();
         return list.addAll(index, c);
     }
 
     @Override
     public boolean removeAll(@NotNull Collection<?> c) {
-        chosenSuggestion = null;
+        listChanged();
         return list.removeAll(c);
     }
 
     @Override
     public boolean retainAll(@NotNull Collection<?> c) {
-        chosenSuggestion = null;
+        listChanged();
         return list.retainAll(c);
     }
 
@@ -0,0 +1,168 @@
+package fr.bananasmoothii.rulesgeneration.templates;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * A minimal reader for the NBT format of minecraft, enough for schematics and structure files. Compounds are read as
+ * {@link Map}s, lists as {@link List}s, arrays as {@code byte[]}, {@code int[]} and {@code long[]}, and other tags as
+ * their boxed type ({@link Byte}, {@link Short}, {@link Integer}, {@link Long}, {@link Float}, {@link Double},
+ * {@link String}).
+ * <p>
+ * Tags with some names can be skipped: their payload is read but not kept, so reading only the header of a big file
+ * doesn't allocate its content.
+ */
+public final class NbtReader {
+
+    private static final byte END = 0, BYTE = 1, SHORT = 2, INT = 3, LONG = 4, FLOAT = 5, DOUBLE = 6, BYTE_ARRAY = 7,
+            STRING = 8, LIST = 9, COMPOUND = 10, INT_ARRAY = 11, LONG_ARRAY = 12;
+
+    private final DataInputStream in;
+    private final Set<String> skipped;
+
+    private NbtReader(DataInputStream in, Set<String> skipped) {
+        this.in = in;
+        this.skipped = skipped;
+    }
+
+    /**
+     * @see #read(InputStream, Set)
+     */
+    public static Map<String, Object> read(Path file, Set<String> skipped) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            return read(in, skipped);
+        }
+    }
+
+    /**
+     * Reads the root compound, gzipped or not
+     * @param skipped names of the tags that will not be in the result, at any depth
+     */
+    public static Map<String, Object> read(InputStream in, Set<String> skipped) throws IOException {
+        BufferedInputStream buffered = new BufferedInputStream(in);
+        buffered.mark(2);
+        int first = buffered.read(), second = buffered.read();
+        buffered.reset();
+        InputStream raw = first == 0x1f && second == 0x8b ? new BufferedInputStream(new GZIPInputStream(buffered)) : buffered;
+        NbtReader reader = new NbtReader(new DataInputStream(raw), skipped);
+        byte type = reader.in.readByte();
+        if (type != COMPOUND) throw new IOException("the root tag is not a compound");
+        reader.in.readUTF(); // name of the root, most of the time empty
+        return reader.readCompound();
+    }
+
+    public static Map<String, Object> read(InputStream in) throws IOException {
+        return read(in, Collections.emptySet());
+    }
+
+    private Map<String, Object> readCompound() throws IOException {
+        Map<String, Object> compound = new HashMap<>();
+        while (true) {
+            byte type = in.readByte();
+            if (type == END) return compound;
+            String name = in.readUTF();
+            if (skipped.contains(name)) skip(type);
+            else compound.put(name, readPayload(type));
+        }
+    }
+
+    private @NotNull Object readPayload(byte type) throws IOException {
+        switch (type) {
+            case BYTE: return in.readByte();
+            case SHORT: return in.readShort();
+            case INT: return in.readInt();
+            case LONG: return in.readLong();
+            case FLOAT: return in.readFloat();
+            case DOUBLE: return in.readDouble();
+            case BYTE_ARRAY:
+                byte[] bytes = new byte[length()];
+                in.readFully(bytes);
+                return bytes;
+            case STRING: return in.readUTF();
+            case LIST:
+                byte elementType = in.readByte();
+                int size = length();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readPayload(elementType));
+                }
+                return list;
+            case COMPOUND: return readCompound();
+            case INT_ARRAY:
+                int[] ints = new int[length()];
+                for (int i = 0; i < ints.length; i++) {
+                    ints[i] = in.readInt();
+                }
+                return ints;
+            case LONG_ARRAY:
+                long[] longs = new long[length()];
+                for (int i = 0; i < longs.length; i++) {
+                    longs[i] = in.readLong();
+                }
+                return longs;
+            default:
+                throw new IOException("unknown tag type " + type);
+        }
+    }
+
+    private void skip(byte type) throws IOException {
+        switch (type) {
+            case BYTE: skipBytes(1); break;
+            case SHORT: skipBytes(2); break;
+            case INT: case FLOAT: skipBytes(4); break;
+            case LONG: case DOUBLE: skipBytes(8); break;
+            case BYTE_ARRAY: skipBytes(length()); break;
+            case STRING: skipBytes(in.readUnsignedShort()); break;
+            case LIST:
+                byte elementType = in.readByte();
+                int size = length();
+                for (int i = 0; i < size; i++) {
+                    skip(elementType);
+                }
+                break;
+            case COMPOUND:
+                while (true) {
+                    byte childType = in.readByte();
+                    if (childType == END) break;
+                    skipBytes(in.readUnsignedShort()); // name
+                    skip(childType);
+                }
+                break;
+            case INT_ARRAY: skipBytes(4L * length()); break;
+            case LONG_ARRAY: skipBytes(8L * length()); break;
+            default:
+                throw new IOException("unknown tag type " + type);
+        }
+    }
+
+    private int length() throws IOException {
+        int length = in.readInt();
+        if (length < 0) throw new IOException("negative length");
+        return length;
+    }
+
+    private void skipBytes(long count) throws IOException {
+        while (count > 0) {
+            long skipped = in.skip(count);
+            if (skipped <= 0) {
+                if (in.read() == -1) throw new EOFException();
+                skipped = 1;
+            }
+            count -= skipped;
+        }
+    }
+}
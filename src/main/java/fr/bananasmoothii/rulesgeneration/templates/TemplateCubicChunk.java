@@ -0,0 +1,136 @@
+package fr.bananasmoothii.rulesgeneration.templates;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.Range;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * A {@link CubicChunk} whose blocs come from a file, read only when they are first needed (see
+ * {@link CubicChunk#deferBlocks()}). Created by {@link TemplateLoader}, that only reads the header of the file.
+ */
+public class TemplateCubicChunk extends CubicChunk {
+
+    public final Path file;
+    public final TemplateLoader.Format format;
+    /** turns the block states of the file into {@link BlockData}s, see {@link TemplateLoader#SERVER_BLOCK_DATAS} */
+    private final Function<String, BlockData> blockDatas;
+
+    TemplateCubicChunk(Path file, TemplateLoader.Format format, int id, @Range(from = -100, to = 100) float rarity,
+                       Function<String, BlockData> blockDatas) {
+        super(id, rarity, false);
+        this.file = file;
+        this.format = format;
+        this.blockDatas = blockDatas;
+        deferBlocks();
+    }
+
+    @Override
+    protected void materialize() {
+        Map<String, Object> root;
+        try {
+            root = NbtReader.read(file, TemplateLoader.IGNORED_TAGS);
+        } catch (IOException e) {
+            throw new UncheckedIOException("could not read " + file, e);
+        }
+        switch (format) {
+            case SPONGE_SCHEMATIC:
+                materializeSchematic(TemplateLoader.schematicRoot(root));
+                break;
+            case STRUCTURE:
+                materializeStructure(root);
+                break;
+        }
+    }
+
+    /**
+     * Blocs are varints in "BlockData" ("Blocks.Data" since version 3), in y, z, x order, and are indexes in
+     * "Palette", that maps block states to indexes
+     */
+    @SuppressWarnings("unchecked")
+    private void materializeSchematic(Map<String, Object> schematic) {
+        Map<String, Object> blocks = schematic.containsKey("Blocks") ? (Map<String, Object>) schematic.get("Blocks") : schematic;
+        Map<String, Object> palette = (Map<String, Object>) blocks.get("Palette");
+        byte[] data = (byte[]) blocks.get(blocks.containsKey("Data") ? "Data" : "BlockData");
+        if (palette == null || data == null) throw new IllegalStateException(file + " has no blocks");
+        int max = 0;
+        for (Object index : palette.values()) {
+            max = Math.max(max, (Integer) index);
+        }
+        BlockData[] blockDatas = new BlockData[max + 1];
+        for (Map.Entry<String, Object> entry : palette.entrySet()) {
+            blockDatas[(Integer) entry.getValue()] = this.blockDatas.apply(entry.getKey());
+        }
+        int i = 0;
+        for (int index = 0; index < VOLUME && i < data.length; index++) {
+            int value = 0, shift = 0;
+            byte b;
+            do {
+                b = data[i++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            set(blockDatas[value], index & 15, index >> 8, index >> 4 & 15);
+        }
+    }
+
+    /**
+     * Blocs are compounds {pos: [x, y, z], state: index in palette} in "blocks", and the palette is a list of
+     * compounds {Name: "minecraft:stone", Properties: {...}}. Missing blocs (structure void) are left null.
+     */
+    @SuppressWarnings("unchecked")
+    private void materializeStructure(Map<String, Object> root) {
+        List<Object> palette = (List<Object>) root.get("palette");
+        if (palette == null) {
+            // several palettes (for exemple for shipwrecks), take the first one
+            List<Object> palettes = (List<Object>) root.get("palettes");
+            palette = palettes == null || palettes.isEmpty() ? Collections.emptyList() : (List<Object>) palettes.get(0);
+        }
+        BlockData[] blockDatas = new BlockData[palette.size()];
+        for (int i = 0; i < blockDatas.length; i++) {
+            blockDatas[i] = this.blockDatas.apply(blockState((Map<String, Object>) palette.get(i)));
+        }
+        List<Object> blocks = (List<Object>) root.get("blocks");
+        if (blocks == null) return;
+        for (Object block : blocks) {
+            Map<String, Object> blockCompound = (Map<String, Object>) block;
+            List<Object> pos = (List<Object>) blockCompound.get("pos");
+            set(blockDatas[(Integer) blockCompound.get("state")], (Integer) pos.get(0), (Integer) pos.get(1), (Integer) pos.get(2));
+        }
+    }
+
+    /**
+     * @return for exemple "minecraft:oak_stairs[facing=east,half=bottom]"
+     */
+    @SuppressWarnings("unchecked")
+    static String blockState(Map<String, Object> paletteEntry) {
+        String name = (String) paletteEntry.get("Name");
+        Map<String, Object> properties = (Map<String, Object>) paletteEntry.get("Properties");
+        if (properties == null || properties.isEmpty()) return name;
+        StringBuilder builder = new StringBuilder(name).append('[');
+        boolean first = true;
+        for (Map.Entry<String, Object> property : properties.entrySet()) {
+            if (!first) builder.append(',');
+            builder.append(property.getKey()).append('=').append(property.getValue());
+            first = false;
+        }
+        return builder.append(']').toString();
+    }
+
+    @Override
+    public String toString() {
+        return "TemplateCubicChunk{" +
+                "id=" + getId() +
+                ", rarity=" + rarity +
+                ", file=" + file +
+                ", materialized=" + isMaterialized() +
+                '}';
+    }
+}
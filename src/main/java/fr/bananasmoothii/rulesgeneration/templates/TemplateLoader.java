@@ -0,0 +1,230 @@
+package fr.bananasmoothii.rulesgeneration.templates;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import org.bukkit.Bukkit;
+import org.bukkit.block.data.BlockData;
+import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.Range;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Loads {@link CubicChunk} templates of 16x16x16 blocs from files: Sponge schematics ({@code .schem}, as made by
+ * WorldEdit) and vanilla structures ({@code .nbt}, as made by structure blocks). Only the size is read when loading,
+ * the blocs are read the first time the template is used, see {@link TemplateCubicChunk}.
+ */
+public final class TemplateLoader {
+
+    private static final Logger LOGGER = Logger.getLogger(TemplateLoader.class.getName());
+
+    /**
+     * Makes {@link BlockData}s with {@link Bukkit#createBlockData(String)}, so it needs a server. Without one (in
+     * tests for exemple), give your own function to {@link #loadDirectory(Path, int, Function)} or
+     * {@link #load(Path, int, float, Function)}.
+     */
+    public static final Function<String, BlockData> SERVER_BLOCK_DATAS = Bukkit::createBlockData;
+
+    /** first id given to templates by {@link #loadDirectory(Path)}, far enough from the chunks made in code */
+    public static final int DEFAULT_FIRST_ID = 1000;
+    /** file of a template directory remembering the id of each template, see {@link #loadDirectory(Path, int)} */
+    public static final String IDS_FILE = "template-ids.properties";
+
+    public enum Format {
+        /** {@code .schem} files, versions 2 and 3 */
+        SPONGE_SCHEMATIC,
+        /** {@code .nbt} files of structure blocks */
+        STRUCTURE;
+
+        public static @Nullable Format of(Path file) {
+            String name = file.getFileName().toString().toLowerCase();
+            if (name.endsWith(".schem")) return SPONGE_SCHEMATIC;
+            if (name.endsWith(".nbt")) return STRUCTURE;
+            return null;
+        }
+    }
+
+    /** tags never needed */
+    static final Set<String> IGNORED_TAGS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "Entities", "BlockEntities", "Biomes", "entities", "Metadata")));
+    /** tags not needed for reading the size, that are the big ones */
+    private static final Set<String> HEADER_SKIPPED_TAGS;
+
+    static {
+        Set<String> headerSkipped = new HashSet<>(IGNORED_TAGS);
+        headerSkipped.addAll(Arrays.asList("Blocks", "BlockData", "Palette", "blocks", "palette", "palettes"));
+        HEADER_SKIPPED_TAGS = Collections.unmodifiableSet(headerSkipped);
+    }
+
+    private TemplateLoader() {
+    }
+
+    /**
+     * Same as {@link #loadDirectory(Path, int)} with ids starting at {@link #DEFAULT_FIRST_ID}
+     */
+    public static List<TemplateCubicChunk> loadDirectory(Path directory) throws IOException {
+        return loadDirectory(directory, DEFAULT_FIRST_ID);
+    }
+
+    /**
+     * Loads all templates of that directory (not recursively). Files that are not 16x16x16 or that can't be read are
+     * logged and ignored.
+     * <p>
+     * Ids are what is saved in {@link fr.bananasmoothii.rulesgeneration.chunks.RegionFileStorage}, so a template must
+     * keep its id from one start to the other, even if files are added or removed. The id of each file name is
+     * remembered in {@link #IDS_FILE} in the directory, and only files that are not in it yet get a new id.
+     * @param firstId the id of the first new file (in alphabetical order) if no id was given yet, after that new files
+     *                get the ids after the biggest one already given (ids of removed files are never given again)
+     * @return the templates, that are now {@link CubicChunk#allAvailable() available}
+     */
+    public static List<TemplateCubicChunk> loadDirectory(Path directory, int firstId) throws IOException {
+        return loadDirectory(directory, firstId, SERVER_BLOCK_DATAS);
+    }
+
+    /**
+     * Same as {@link #loadDirectory(Path, int)}, with a function that turns block states like
+     * {@code "minecraft:oak_stairs[facing=east]"} into {@link BlockData}s (only called when templates are first used)
+     */
+    public static List<TemplateCubicChunk> loadDirectory(Path directory, int firstId, Function<String, BlockData> blockDatas) throws IOException {
+        List<TemplateCubicChunk> templates = new ArrayList<>();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path file : stream) {
+                if (Files.isRegularFile(file) && Format.of(file) != null) files.add(file);
+            }
+        }
+        // so ids don't depend on the order of the file system
+        Collections.sort(files);
+        Map<String, Integer> ids = assignIds(directory, files, firstId);
+        for (Path file : files) {
+            try {
+                templates.add(load(file, ids.get(file.getFileName().toString()), 0f, blockDatas));
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.log(Level.WARNING, "Could not load template " + file + ": " + e.getMessage());
+            }
+        }
+        return templates;
+    }
+
+    /**
+     * Reads the ids given before from the {@link #IDS_FILE}, gives new ids to the files that are not in it, and writes
+     * it back if something was added
+     * @param files sorted
+     * @return the id by file name
+     */
+    static Map<String, Integer> assignIds(Path directory, List<Path> files, int firstId) throws IOException {
+        Path idsFile = directory.resolve(IDS_FILE);
+        Properties saved = new Properties();
+        if (Files.isRegularFile(idsFile)) {
+            try (Reader reader = Files.newBufferedReader(idsFile, StandardCharsets.UTF_8)) {
+                saved.load(reader);
+            }
+        }
+        Map<String, Integer> ids = new HashMap<>();
+        int nextId = firstId;
+        for (String name : saved.stringPropertyNames()) {
+            try {
+                int id = Integer.parseInt(saved.getProperty(name).trim());
+                ids.put(name, id);
+                nextId = Math.max(nextId, id + 1);
+            } catch (NumberFormatException e) {
+                throw new IOException("invalid id for " + name + " in " + idsFile + ": " + saved.getProperty(name));
+            }
+        }
+        boolean added = false;
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (ids.containsKey(name)) continue;
+            ids.put(name, nextId);
+            saved.setProperty(name, Integer.toString(nextId));
+            nextId++;
+            added = true;
+        }
+        if (added) {
+            try (Writer writer = Files.newBufferedWriter(idsFile, StandardCharsets.UTF_8)) {
+                saved.store(writer, "ids of the templates, saved worlds depend on them so don't change them");
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Reads the size of the template and registers it with the next {@link CubicChunk#nextId() id}
+     * @throws IOException if it can't be read, if it is not 16x16x16 or if the format is unknown
+     */
+    public static TemplateCubicChunk load(Path file, @Range(from = -100, to = 100) float rarity) throws IOException {
+        return load(file, CubicChunk.nextId(), rarity);
+    }
+
+    /**
+     * Reads the size of the template and registers it with that id
+     * @throws IOException if it can't be read, if it is not 16x16x16 or if the format is unknown
+     * @throws IllegalArgumentException if the id is already taken
+     */
+    public static TemplateCubicChunk load(Path file, int id, @Range(from = -100, to = 100) float rarity) throws IOException {
+        return load(file, id, rarity, SERVER_BLOCK_DATAS);
+    }
+
+    /**
+     * @param blockDatas see {@link #loadDirectory(Path, int, Function)}
+     * @see #load(Path, int, float)
+     */
+    public static TemplateCubicChunk load(Path file, int id, @Range(from = -100, to = 100) float rarity,
+                                          Function<String, BlockData> blockDatas) throws IOException {
+        Format format = Format.of(file);
+        if (format == null) throw new IOException("unknown template format");
+        Map<String, Object> root = NbtReader.read(file, HEADER_SKIPPED_TAGS);
+        int width, height, length;
+        switch (format) {
+            case SPONGE_SCHEMATIC:
+                Map<String, Object> schematic = schematicRoot(root);
+                width = number(schematic.get("Width")) & 0xFFFF;
+                height = number(schematic.get("Height")) & 0xFFFF;
+                length = number(schematic.get("Length")) & 0xFFFF;
+                break;
+            case STRUCTURE:
+                List<?> size = (List<?>) root.get("size");
+                if (size == null || size.size() != 3) throw new IOException("no size");
+                width = number(size.get(0));
+                height = number(size.get(1));
+                length = number(size.get(2));
+                break;
+            default:
+                throw new IllegalStateException("Unexpected value: " + format);
+        }
+        if (width != 16 || height != 16 || length != 16)
+            throw new IOException("the template is " + width + "x" + height + "x" + length + ", it must be 16x16x16");
+        return new TemplateCubicChunk(file, format, id, rarity, blockDatas);
+    }
+
+    /**
+     * Since version 3, everything is in a "Schematic" compound
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> schematicRoot(Map<String, Object> root) {
+        Object schematic = root.get("Schematic");
+        return schematic instanceof Map ? (Map<String, Object>) schematic : root;
+    }
+
+    private static int number(@Nullable Object tag) throws IOException {
+        if (!(tag instanceof Number)) throw new IOException("missing size");
+        return ((Number) tag).intValue();
+    }
+}
@@ -0,0 +1,38 @@
+package fr.bananasmoothii.rulesgeneration;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AliasSamplerTest {
+
+    @Test
+    void followsWeights() {
+        float[] weights = {1f, 3f, 0f, 6f, -5f};
+        AliasSampler sampler = new AliasSampler(weights);
+        Random random = new Random(10);
+        int[] picks = new int[weights.length];
+        int samples = 200_000;
+        for (int i = 0; i < samples; i++) {
+            picks[sampler.sample(random)]++;
+        }
+        assertEquals(0, picks[2]);
+        assertEquals(0, picks[4]);
+        assertEquals(0.1, picks[0] / (double) samples, 0.01);
+        assertEquals(0.3, picks[1] / (double) samples, 0.01);
+        assertEquals(0.6, picks[3] / (double) samples, 0.01);
+    }
+
+    @Test
+    void onlyZeroWeightsIsUniform() {
+        AliasSampler sampler = new AliasSampler(new float[] {0f, 0f});
+        Random random = new Random(11);
+        int firsts = 0;
+        for (int i = 0; i < 10_000; i++) {
+            if (sampler.sample(random) == 0) firsts++;
+        }
+        assertEquals(0.5, firsts / 10_000.0, 0.03);
+    }
+}
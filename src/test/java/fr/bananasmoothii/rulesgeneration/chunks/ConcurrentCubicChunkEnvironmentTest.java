@@ -0,0 +1,247 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.rules.RelativeRule;
+import fr.bananasmoothii.rulesgeneration.suggestions.SimpleSuggestion;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ConcurrentCubicChunkEnvironmentTest {
+
+    static final CubicChunk[] chunks = {
+            new CubicChunk(120, 0f, false) {}, new CubicChunk(121, 0f, false) {},
+            new CubicChunk(122, 0f, false) {}, new CubicChunk(123, 0f, false) {}
+    };
+
+    /**
+     * Each writer fills its own slab, growing the environment all the time, while readers check that a cell is
+     * always nothing or what its writer puts there
+     */
+    @Test
+    void writersAndReadersShareTheEnvironment() throws Exception {
+        ConcurrentCubicChunkEnvironment environment = new ConcurrentCubicChunkEnvironment(13, 8);
+        assertEquals(8, environment.getStripeCount());
+        ExecutorService executor = Executors.newFixedThreadPool(6);
+        try {
+            AtomicBoolean writing = new AtomicBoolean(true);
+            List<Future<?>> readers = new ArrayList<>();
+            for (int reader = 0; reader < 2; reader++) {
+                readers.add(executor.submit(() -> {
+                    int i = 0;
+                    do {
+                        int writer = i & 3, x = i * 7 % 40, z = i * 13 % 40;
+                        CubicChunk chunk = environment.get(x, writer * 20, z);
+                        if (chunk != null) assertSame(chunks[writer], chunk);
+                        i++;
+                    } while (writing.get());
+                }));
+            }
+            List<Future<?>> writers = new ArrayList<>();
+            for (int writer = 0; writer < 4; writer++) {
+                int y = writer * 20;
+                CubicChunk chunk = chunks[writer];
+                writers.add(executor.submit(() -> {
+                    for (int x = 0; x < 40; x++) {
+                        for (int z = 0; z < 40; z++) {
+                            environment.set(chunk, x, y, z);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : writers) future.get();
+            writing.set(false);
+            for (Future<?> future : readers) future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int writer = 0; writer < 4; writer++) {
+            assertEquals(40 * 40, environment.count(chunks[writer].getId(), 0, writer * 20, 0, 39, writer * 20, 39));
+        }
+        assertEquals(4 * 3 * 3, environment.regionCount());
+        assertArrayEquals(new int[] {0, 0, 0, 39, 60, 39}, environment.bounds());
+        assertEquals(4 * 40 * 40, environment.dirtyCount());
+    }
+
+    @Test
+    void eachCellIsClaimedOnce() throws Exception {
+        ConcurrentCubicChunkEnvironment environment = new ConcurrentCubicChunkEnvironment(14);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        int claimed = 0;
+        try {
+            List<Future<Integer>> workers = new ArrayList<>();
+            for (CubicChunk chunk : chunks) {
+                workers.add(executor.submit(() -> {
+                    int count = 0;
+                    for (int x = 0; x < 1000; x++) {
+                        if (environment.compareAndSet(null, chunk, x, 0, 0)) count++;
+                    }
+                    return count;
+                }));
+            }
+            for (Future<Integer> future : workers) claimed += future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1000, claimed);
+        for (int x = 0; x < 1000; x++) {
+            assertNotNull(environment.get(x, 0, 0));
+        }
+        assertFalse(environment.compareAndSet(null, chunks[0], 0, 0, 0));
+        CubicChunk there = environment.get(0, 0, 0);
+        assertTrue(environment.compareAndSet(there, null, 0, 0, 0));
+        assertNull(environment.get(0, 0, 0));
+    }
+
+    /**
+     * Each worker empties its own region again and again, and must never see an older "regions replaced" stamp than
+     * the one of its own change. Another thread checks that it never goes back.
+     */
+    @Test
+    void regionsReplacedNeverGoesBack() throws Exception {
+        ConcurrentCubicChunkEnvironment environment = new ConcurrentCubicChunkEnvironment(16);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            AtomicBoolean working = new AtomicBoolean(true);
+            Future<?> observer = executor.submit(() -> {
+                long seen = 0;
+                do {
+                    long replacedAt = environment.regionsReplacedAt();
+                    assertTrue(replacedAt >= seen, replacedAt + " after " + seen);
+                    seen = replacedAt;
+                } while (working.get());
+            });
+            List<Future<?>> workers = new ArrayList<>();
+            for (int worker = 0; worker < 3; worker++) {
+                int x = worker * 16;
+                CubicChunk chunk = chunks[worker];
+                workers.add(executor.submit(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        environment.set(chunk, x, 0, 0);
+                        long before = environment.modificationStamp();
+                        environment.set(null, x, 0, 0);
+                        assertTrue(environment.regionsReplacedAt() > before);
+                        assertTrue(environment.changedSince(before, x, 0, 0, x, 0, 0));
+                    }
+                }));
+            }
+            for (Future<?> future : workers) future.get();
+            working.set(false);
+            observer.get();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(0, environment.regionCount());
+    }
+
+    /**
+     * Only generating and validating are synchronized on the environment, a thread holding it (like a long generation)
+     * doesn't stop others from setting and reading cells
+     */
+    @Test
+    void cellsCanBeSetDuringABulkOperation() throws Exception {
+        ConcurrentCubicChunkEnvironment environment = new ConcurrentCubicChunkEnvironment(15);
+        CountDownLatch locked = new CountDownLatch(1), done = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            executor.submit(() -> {
+                synchronized (environment) {
+                    locked.countDown();
+                    done.await();
+                }
+                return null;
+            });
+            locked.await();
+            Future<?> writes = executor.submit(() -> {
+                for (int x = 0; x < 40; x++) {
+                    environment.set(chunks[x & 3], x, 0, 0);
+                }
+                assertTrue(environment.compareAndSet(chunks[0], null, 0, 0, 0));
+                assertEquals(10, environment.count(chunks[1].getId(), 0, 0, 0, 39, 0, 0));
+                assertEquals(1L, environment.row(chunks[1].getId(), 1, 0, 0));
+                assertEquals(0L, environment.row(chunks[1].getId(), 2, 0, 0));
+                assertArrayEquals(new int[] {0, 0, 0, 39, 0, 0}, environment.bounds());
+                assertEquals(40, environment.dirtyCount());
+                int[] present = new int[1];
+                environment.forEachPresent((x, y, z, id) -> present[0]++);
+                assertEquals(39, present[0]);
+            });
+            writes.get(10, TimeUnit.SECONDS);
+        } finally {
+            done.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A change in the trail may be undone, other threads must not see it or write over it before it is committed or
+     * rolled back
+     */
+    @Test
+    void changesThatCanBeUndoneAreNotShared() throws Exception {
+        ConcurrentCubicChunkEnvironment environment = new ConcurrentCubicChunkEnvironment(17);
+        SimpleSuggestion suggestion = new SimpleSuggestion(environment, 5, 0, 0, chunks[0]);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            suggestion.apply();
+            Future<CubicChunk> read = executor.submit(() -> environment.get(5, 0, 0));
+            Future<?> write = executor.submit(() -> environment.set(chunks[1], 5, 0, 0));
+            Thread.sleep(100);
+            assertFalse(read.isDone());
+            assertFalse(write.isDone());
+            suggestion.undo();
+            write.get(10, TimeUnit.SECONDS);
+            assertNotSame(chunks[0], read.get(10, TimeUnit.SECONDS));
+            assertSame(chunks[1], environment.get(5, 0, 0));
+
+            suggestion.apply();
+            write = executor.submit(() -> environment.set(chunks[2], 5, 0, 0));
+            Thread.sleep(100);
+            assertFalse(write.isDone());
+            suggestion.commit();
+            write.get(10, TimeUnit.SECONDS);
+            assertSame(chunks[2], environment.get(5, 0, 0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * While a thread generates (so it tries suggestions and undoes some), another one sets cells in the same place.
+     * An undo of the generator must never put back what was there before these cells were set.
+     */
+    @Test
+    void cellsCanBeSetDuringGeneration() throws Exception {
+        ConcurrentCubicChunkEnvironment environment = new ConcurrentCubicChunkEnvironment(18);
+        CubicChunk left = new CubicChunk(124, 0f, false) {}, right = new CubicChunk(125, 0f, false) {};
+        left.rules.add(new RelativeRule(1, 0, 0, right));
+        right.rules.add(new RelativeRule(-1, 0, 0, left));
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<?> generation = executor.submit(() -> environment.generate(0, 0, 0, 31, 3, 31));
+            Future<?> writes = executor.submit(() -> {
+                for (int i = 0; i < 32 * 4 * 32; i += 7) {
+                    environment.set(chunks[3], i >> 7, i >> 5 & 3, i & 31);
+                }
+            });
+            writes.get(60, TimeUnit.SECONDS);
+            generation.get(60, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+            left.rules.clear();
+            right.rules.clear();
+        }
+        for (int i = 0; i < 32 * 4 * 32; i += 7) {
+            assertNotNull(environment.get(i >> 7, i >> 5 & 3, i & 31));
+        }
+        assertEquals(0, environment.getTrail().size());
+    }
+}
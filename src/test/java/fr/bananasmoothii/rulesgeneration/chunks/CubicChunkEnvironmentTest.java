@@ -0,0 +1,468 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.LongObjectHashMap;
+import fr.bananasmoothii.rulesgeneration.metrics.GenerationMetrics;
+import fr.bananasmoothii.rulesgeneration.rules.ProximityRule;
+import fr.bananasmoothii.rulesgeneration.rules.RelativeRule;
+import fr.bananasmoothii.rulesgeneration.rules.Rule;
+import fr.bananasmoothii.rulesgeneration.solvers.Solver;
+import fr.bananasmoothii.rulesgeneration.solvers.SolverResult;
+import fr.bananasmoothii.rulesgeneration.suggestions.SimpleSuggestion;
+import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CubicChunkEnvironmentTest {
+
+    static final CubicChunk air = CubicChunk.AIR_CHUNK;
+
+    @Test
+    void setAndGetAnywhere() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(1);
+        int[][] coords = {{0, 0, 0}, {-1, -1, -1}, {15, 16, 17}, {-1000, 3, 250}, {70000, -70000, 5}};
+        for (int[] c : coords) {
+            assertNull(environment.get(c[0], c[1], c[2]));
+            environment.set(air, c[0], c[1], c[2]);
+        }
+        for (int[] c : coords) {
+            assertSame(air, environment.get(c[0], c[1], c[2]));
+        }
+        assertNull(environment.get(1, 0, 0));
+        assertNull(environment.get(-1000, 3, 249));
+    }
+
+    @Test
+    void ids() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(4);
+        assertEquals(CubicChunkEnvironment.NO_ID, environment.getId(3, 4, 5));
+        environment.set(air, 3, 4, 5);
+        assertEquals(air.getId(), environment.getId(3, 4, 5));
+        assertSame(air, CubicChunk.getInstance(air.getId()));
+        environment.set(null, 3, 4, 5);
+        assertEquals(CubicChunkEnvironment.NO_ID, environment.getId(3, 4, 5));
+    }
+
+    @Test
+    void regionsFollowPopulatedCells() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(2);
+        for (int x = 0; x < 16; x++) {
+            for (int z = 0; z < 16; z++) {
+                environment.set(air, x, 5, z);
+            }
+        }
+        assertEquals(1, environment.regionCount());
+        environment.set(air, 1000, 1000, 1000);
+        environment.set(air, -1000, -1000, -1000);
+        assertEquals(3, environment.regionCount());
+        environment.set(null, 1000, 1000, 1000);
+        assertEquals(2, environment.regionCount());
+        assertNull(environment.get(1000, 1000, 1000));
+    }
+
+    @Test
+    void countsFollowChanges() {
+        Random random = new Random(9);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(random.nextLong());
+        int id = air.getId();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 400; i++) {
+                environment.set(random.nextBoolean() ? air : null, random.nextInt(40) - 20, random.nextInt(40) - 20, random.nextInt(40) - 20);
+            }
+            for (int i = 0; i < 50; i++) {
+                int x0 = random.nextInt(40) - 20, y0 = random.nextInt(40) - 20, z0 = random.nextInt(40) - 20;
+                int x1 = x0 + random.nextInt(20), y1 = y0 + random.nextInt(20), z1 = z0 + random.nextInt(20);
+                int expected = 0;
+                for (int x = x0; x <= x1; x++) {
+                    for (int y = y0; y <= y1; y++) {
+                        for (int z = z0; z <= z1; z++) {
+                            if (environment.getId(x, y, z) == id) expected++;
+                        }
+                    }
+                }
+                assertEquals(expected, environment.count(id, x0, y0, z0, x1, y1, z1));
+            }
+        }
+    }
+
+    @Test
+    void rowsFollowChanges() {
+        Random random = new Random(10);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(random.nextLong());
+        int id = air.getId();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 400; i++) {
+                environment.set(random.nextBoolean() ? air : null, random.nextInt(8), random.nextInt(8), random.nextInt(100) - 50);
+            }
+            for (int i = 0; i < 50; i++) {
+                int x = random.nextInt(8), y = random.nextInt(8), zFrom = random.nextInt(100) - 80; // rarely aligned on regions
+                long expectedAir = 0, expectedEmpty = 0;
+                for (int bit = 0; bit < 64; bit++) {
+                    int there = environment.getId(x, y, zFrom + bit);
+                    if (there == id) expectedAir |= 1L << bit;
+                    if (there == CubicChunkEnvironment.NO_ID) expectedEmpty |= 1L << bit;
+                }
+                assertEquals(expectedAir, environment.row(id, x, y, zFrom));
+                assertEquals(expectedEmpty, environment.row(CubicChunkEnvironment.NO_ID, x, y, zFrom));
+            }
+        }
+        assertEquals(0L, environment.row(id + 1, 0, 0, 0)); // nothing of that id here
+        assertEquals(-1L, environment.row(CubicChunkEnvironment.NO_ID, 0, 0, 1000));
+    }
+
+    @Test
+    void residentMemoryIsKeptUpToDate() {
+        Random random = new Random(11);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(random.nextLong());
+        CubicChunk other = new CubicChunk(107, 0f, false) {};
+        assertEquals(0, environment.residentMemory());
+        for (int i = 0; i < 2000; i++) {
+            environment.set(random.nextBoolean() ? air : other, random.nextInt(80) - 40, random.nextInt(40) - 20, random.nextInt(80) - 40);
+        }
+        assertEquals(sumOfRegions(environment), environment.residentMemory());
+        environment.count(air.getId(), -40, -20, -40, 40, 20, 40);
+        environment.row(other.getId(), 3, 4, -40);
+        environment.set(new CubicChunk(70000, 0f, false) {}, 0, 0, 0); // its slot doesn't fit in a short
+        assertEquals(sumOfRegions(environment), environment.residentMemory());
+        environment.clearDirty();
+        for (int x = -40; x < 40; x++) {
+            for (int y = -20; y < 20; y++) {
+                for (int z = -40; z < 40; z++) {
+                    if (x >= 0 || y >= 0 || z >= 0) environment.set(null, x, y, z);
+                }
+            }
+        }
+        assertEquals(sumOfRegions(environment), environment.residentMemory());
+    }
+
+    private static long sumOfRegions(CubicChunkEnvironment environment) {
+        LongObjectHashMap<CubicChunkRegion> regions = environment.regions();
+        long bytes = 0;
+        for (int i = 0; i < regions.capacity(); i++) {
+            CubicChunkRegion region = regions.valueAt(i);
+            if (region != null) bytes += region.memoryUsage();
+        }
+        return bytes;
+    }
+
+    @Test
+    void parallelGenerationDoesNotDependOnThreads() {
+        CubicChunkEnvironment single = new CubicChunkEnvironment(12);
+        CubicChunkEnvironment multi = new CubicChunkEnvironment(12);
+        ForkJoinPool onePool = new ForkJoinPool(1), fourPool = new ForkJoinPool(4);
+        try {
+            single.generateParallel(-8, 0, -8, 23, 7, 23, onePool);
+            multi.generateParallel(-8, 0, -8, 23, 7, 23, fourPool);
+        } finally {
+            onePool.shutdown();
+            fourPool.shutdown();
+        }
+        for (int x = -8; x <= 23; x++) {
+            for (int y = 0; y <= 7; y++) {
+                for (int z = -8; z <= 23; z++) {
+                    assertNotNull(single.get(x, y, z));
+                    assertEquals(single.getId(x, y, z), multi.getId(x, y, z));
+                }
+            }
+        }
+    }
+
+    /**
+     * "left" needs a "right" on its right and "right" a "left" on its left. There are already "right"s on the first
+     * column of the second block, the first block can't see their rules so only the second phase puts "left"s next to
+     * them. (Some "right"s can be replaced by the rules of other chunks, that don't have to be valid.)
+     */
+    @Test
+    void parallelGenerationRepairsBlockBorders() {
+        CubicChunk left = new CubicChunk(130, 0f, false) {}, right = new CubicChunk(131, 0f, false) {};
+        left.rules.add(new RelativeRule(1, 0, 0, right));
+        right.rules.add(new RelativeRule(-1, 0, 0, left));
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(13);
+            for (int y = 0; y <= 3; y++) {
+                for (int z = 0; z <= 15; z++) {
+                    environment.set(right, 16, y, z);
+                }
+            }
+            ParallelGenerator generator = new ParallelGenerator(environment, pool);
+            generator.setBlockSize(16);
+            generator.generate(0, 0, 0, 31, 3, 15);
+            int rights = 0;
+            for (int y = 0; y <= 3; y++) {
+                for (int z = 0; z <= 15; z++) {
+                    if (environment.get(16, y, z) != right) continue;
+                    rights++;
+                    assertSame(left, environment.get(15, y, z), "at 15, " + y + ", " + z);
+                }
+            }
+            assertTrue(rights > 32);
+        } finally {
+            pool.shutdown();
+            left.rules.clear();
+            right.rules.clear();
+        }
+    }
+
+    @Test
+    void generationDoesNotDependOnWhatWasGeneratedBefore() {
+        CubicChunkEnvironment first = new CubicChunkEnvironment(21);
+        CubicChunkEnvironment second = new CubicChunkEnvironment(21);
+        first.generate(500, 0, 500, 515, 3, 515);
+        first.generate(0, 0, 0, 15, 3, 15);
+        second.generate(0, 0, 0, 15, 3, 15);
+        for (int x = 0; x <= 15; x++) {
+            for (int y = 0; y <= 3; y++) {
+                for (int z = 0; z <= 15; z++) {
+                    assertEquals(first.getId(x, y, z), second.getId(x, y, z));
+                }
+            }
+        }
+        assertSame(first.randomAt(1, 2, 3, 0), first.randomAt(1, 2, 3, 0));
+        assertEquals(first.randomAt(1, 2, 3, 0).nextLong(), second.randomAt(1, 2, 3, 0).nextLong());
+        assertNotEquals(first.randomAt(1, 2, 3, 0).nextLong(), first.randomAt(1, 2, 3, 1).nextLong());
+    }
+
+    @Test
+    void iteratorCoversInclusiveBounds() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(3);
+        environment.set(air, -2, 0, 1);
+        environment.set(air, 2, 3, -1);
+        int count = 0, present = 0;
+        for (CubicChunkCoords coords : environment) {
+            count++;
+            if (coords.cubicChunk != null) present++;
+        }
+        assertEquals(5 * 4 * 3, count);
+        assertEquals(2, present);
+    }
+
+    @Test
+    void forEachCoversInclusiveBoundsInMemoryOrder() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(6);
+        environment.set(air, -2, 0, 1);
+        environment.set(air, 17, 3, -1);
+        environment.set(air, 1, 1, 1);
+        int[] count = new int[1];
+        List<String> present = new ArrayList<>();
+        environment.forEach((x, y, z, id) -> {
+            count[0]++;
+            if (id != CubicChunkEnvironment.NO_ID) present.add(x + "," + y + "," + z);
+        });
+        assertEquals(20 * 4 * 3, count[0]);
+        // region by region: x = -2 is in the region before the other two
+        assertEquals(Arrays.asList("-2,0,1", "1,1,1", "17,3,-1"), present);
+
+        List<String> presentOnly = new ArrayList<>();
+        environment.forEachPresent((x, y, z, id) -> {
+            assertEquals(air.getId(), id);
+            presentOnly.add(x + "," + y + "," + z);
+        });
+        assertEquals(present, presentOnly);
+
+        count[0] = 0;
+        environment.forEach(0, 0, 0, 15, 15, 15, (x, y, z, id) -> count[0]++);
+        assertEquals(16 * 16 * 16, count[0]);
+        presentOnly.clear();
+        environment.forEachPresent(0, 0, 0, 100, 100, 100, (x, y, z, id) -> presentOnly.add(x + "," + y + "," + z));
+        assertEquals(Collections.singletonList("1,1,1"), presentOnly);
+    }
+
+    @Test
+    void undoTrailRollsBack() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(5);
+        UndoTrail trail = environment.getTrail();
+        environment.set(air, 0, 0, 0);
+        int first = trail.mark();
+        environment.setUndoable(null, 0, 0, 0);
+        environment.setUndoable(air, 1, 2, 3);
+        int second = trail.mark();
+        environment.setUndoable(air, 40, 0, 0);
+        environment.setUndoable(null, 40, 0, 0);
+        assertEquals(4, trail.size());
+        assertEquals(air.getId(), trail.oldId(0));
+        assertEquals(CubicChunkEnvironment.NO_ID, trail.oldId(1));
+        assertEquals(2, trail.y(1));
+
+        trail.rollback(second);
+        assertNull(environment.get(40, 0, 0));
+        assertSame(air, environment.get(1, 2, 3));
+        trail.rollback(first);
+        assertSame(air, environment.get(0, 0, 0));
+        assertNull(environment.get(1, 2, 3));
+        assertEquals(1, environment.regionCount());
+        assertThrows(IllegalArgumentException.class, () -> trail.rollback(second));
+    }
+
+    @Test
+    void trialsLeaveNoTrace() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(6);
+        environment.setRuleCacheCapacity(16);
+        environment.set(air, 0, 0, 0);
+        environment.clearDirty();
+        long stamp = environment.modificationStamp();
+        int[] bounds = environment.bounds();
+        SuggestionList suggestions = new SuggestionList(environment, LogicalOperator.AND);
+        suggestions.add(new SimpleSuggestion(environment, 100, 0, 0, air));
+        suggestions.add(new SimpleSuggestion(environment, 0, 0, 0, null, 0f));
+        UndoTrail trail = environment.getTrail();
+        int mark = trail.markTrial();
+        suggestions.applyTracked();
+        assertNull(environment.getRuleCache()); // it wouldn't see these changes
+        assertSame(air, environment.get(100, 0, 0));
+        assertNull(environment.get(0, 0, 0));
+        trail.rollbackTrial(mark);
+        assertNotNull(environment.getRuleCache());
+        suggestions.validate();
+
+        assertNull(environment.get(100, 0, 0));
+        assertSame(air, environment.get(0, 0, 0));
+        assertEquals(0, environment.dirtyCount());
+        assertEquals(stamp, environment.modificationStamp());
+        assertArrayEquals(bounds, environment.bounds());
+        assertEquals(1, environment.regionCount());
+        assertEquals(0, trail.size());
+    }
+
+    @Test
+    void validateDirtyOnlyChecksDependentCells() {
+        CubicChunk lookingRight = new CubicChunk(103, 0f, false) {};
+        lookingRight.rules.add(new RelativeRule(2, 0, 0, lookingRight));
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(8);
+            List<String> checked = new ArrayList<>();
+            environment.setSolver(new Solver() {
+                @Override
+                public boolean enqueue(int x, int y, int z) {
+                    checked.add(x + "," + y + "," + z);
+                    return true;
+                }
+
+                @Override
+                public SolverResult solve() {
+                    return SolverResult.SOLVED;
+                }
+
+                @Override
+                public boolean isUnderPressure() {
+                    return false;
+                }
+            });
+            for (int x = 0; x < 20; x++) {
+                environment.set(lookingRight, x, 0, 0);
+            }
+            assertEquals(20, environment.dirtyCount());
+            environment.clearDirty();
+            assertEquals(SolverResult.SOLVED, environment.validateDirty());
+            assertTrue(checked.isEmpty());
+
+            environment.set(null, 10, 0, 0);
+            environment.set(lookingRight, 10, 0, 0);
+            assertEquals(1, environment.dirtyCount());
+            environment.validateDirty();
+            assertTrue(checked.isEmpty()); // it came back to what it was
+
+            environment.set(air, 10, 0, 0);
+            environment.set(air, 10, 0, 0); // no change
+            assertEquals(1, environment.dirtyCount());
+            environment.validateDirty();
+            assertEquals(0, environment.dirtyCount());
+            assertTrue(checked.contains("10,0,0"));
+            assertTrue(checked.contains("8,0,0"));
+            assertFalse(checked.contains("9,0,0"));
+            assertFalse(checked.contains("12,0,0"));
+        } finally {
+            lookingRight.rules.clear();
+        }
+    }
+
+    /**
+     * Two chunks that can't be next to themselves: the only solution is a checkerboard (with the other chunks of the
+     * tests in the middle, without rules). Choosing only among candidates, nothing has to be repaired.
+     */
+    @Test
+    void minEntropyOrderNeedsNoRepair() {
+        CubicChunk black = new CubicChunk(105, 0f, false) {};
+        CubicChunk white = new CubicChunk(106, 0f, false) {};
+        int[][] neighbors = {{1, 0, 0}, {-1, 0, 0}, {0, 1, 0}, {0, -1, 0}, {0, 0, 1}, {0, 0, -1}};
+        for (int[] neighbor : neighbors) {
+            black.rules.add(new RelativeRule(neighbor[0], neighbor[1], neighbor[2], false, black));
+            white.rules.add(new RelativeRule(neighbor[0], neighbor[1], neighbor[2], false, white));
+        }
+        // other tests put rules on their chunks, they are put back after
+        Map<CubicChunk, List<Rule>> otherRules = new HashMap<>();
+        for (CubicChunk chunk : CubicChunk.allAvailable()) {
+            if (chunk == black || chunk == white) continue;
+            otherRules.put(chunk, new ArrayList<>(chunk.rules));
+            chunk.rules.clear();
+        }
+        GenerationMetrics.reset();
+        GenerationMetrics.setEnabled(true);
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(10);
+            environment.setGenerationOrder(GenerationOrder.MIN_ENTROPY);
+            assertEquals(SolverResult.SOLVED, environment.generate(0, 0, 0, 7, 3, 7));
+            assertEquals(8 * 4 * 8, GenerationMetrics.snapshot().cellsPlaced);
+            for (int x = 0; x <= 7; x++) {
+                for (int y = 0; y <= 3; y++) {
+                    for (int z = 0; z <= 7; z++) {
+                        CubicChunk chunk = environment.get(x, y, z);
+                        assertNotNull(chunk);
+                        assertTrue(chunk.rules.test(environment, x, y, z));
+                    }
+                }
+            }
+        } finally {
+            GenerationMetrics.setEnabled(false);
+            GenerationMetrics.reset();
+            black.rules.clear();
+            white.rules.clear();
+            otherRules.forEach((chunk, rules) -> chunk.rules.addAll(rules));
+        }
+    }
+
+    @Test
+    void minEntropyOrderCountsWhatIsAround() {
+        CubicChunk stone = new CubicChunk(132, 0f, false) {};
+        CubicChunk crowded = new CubicChunk(133, 0f, false) {};
+        crowded.rules.add(new ProximityRule(1, 26, crowded)); // only crowded around, so never next to stone
+        Map<CubicChunk, List<Rule>> otherRules = new HashMap<>();
+        for (CubicChunk chunk : CubicChunk.allAvailable()) {
+            if (chunk == crowded) continue;
+            otherRules.put(chunk, new ArrayList<>(chunk.rules));
+            chunk.rules.clear();
+        }
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(12);
+            for (int x = 0; x <= 15; x++) {
+                for (int z = 0; z <= 15; z++) {
+                    environment.set(stone, x, 0, z);
+                    environment.set(stone, x, 3, z);
+                }
+            }
+            environment.setGenerationOrder(GenerationOrder.MIN_ENTROPY);
+            environment.generate(0, 1, 0, 15, 2, 15);
+            for (int x = 0; x <= 15; x++) {
+                for (int y = 1; y <= 2; y++) {
+                    for (int z = 0; z <= 15; z++) {
+                        assertNotNull(environment.get(x, y, z));
+                        assertNotSame(crowded, environment.get(x, y, z));
+                    }
+                }
+            }
+        } finally {
+            crowded.rules.clear();
+            otherRules.forEach((chunk, rules) -> chunk.rules.addAll(rules));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import org.bukkit.block.data.BlockData;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CubicChunkTest {
+
+    /** there is no server in tests, so no Bukkit.createBlockData */
+    public static BlockData blockData(String name) {
+        return (BlockData) Proxy.newProxyInstance(BlockData.class.getClassLoader(), new Class[]{BlockData.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "equals": return proxy == args[0];
+                        case "hashCode": return System.identityHashCode(proxy);
+                        default: return name;
+                    }
+                });
+    }
+
+    @Test
+    void paletteGrows() {
+        CubicChunk chunk = new CubicChunk(300, 0f, false) {};
+        BlockData[] blocks = new BlockData[100]; // needs 7 bits, that don't divide 64
+        for (int i = 0; i < blocks.length; i++) {
+            blocks[i] = blockData("block" + i);
+        }
+        BlockData[][][] expected = new BlockData[16][16][16];
+        Random random = new Random(5);
+        for (int i = 0; i < 20000; i++) {
+            int x = random.nextInt(16), y = random.nextInt(16), z = random.nextInt(16);
+            BlockData blockData = random.nextInt(10) == 0 ? null : blocks[random.nextInt(blocks.length)];
+            chunk.set(blockData, x, y, z);
+            expected[x][y][z] = blockData;
+        }
+        assertEquals(blocks.length, chunk.paletteSize());
+        BlockData[] all = new BlockData[CubicChunk.VOLUME + 3];
+        chunk.copyTo(all, 3);
+        BlockData[] layer = new BlockData[CubicChunk.LAYER_SIZE];
+        int i = 0;
+        for (BlockData iterated : chunk) {
+            assertSame(all[3 + i], iterated);
+            i++;
+        }
+        assertEquals(CubicChunk.VOLUME, i);
+        for (int y = 0; y < 16; y++) {
+            chunk.copyLayer(y, layer, 0);
+            for (int z = 0; z < 16; z++) {
+                for (int x = 0; x < 16; x++) {
+                    assertSame(expected[x][y][z], chunk.get(x, y, z));
+                    assertSame(expected[x][y][z], layer[z << 4 | x]);
+                    assertSame(expected[x][y][z], all[3 + (y << 8 | z << 4 | x)]);
+                }
+            }
+        }
+        assertNull(chunk.uniform());
+    }
+
+    @Test
+    void fillUsesOneEntry() {
+        CubicChunk chunk = new CubicChunk(301, 0f, false) {};
+        assertNull(chunk.uniform());
+        BlockData stone = blockData("stone");
+        chunk.set(blockData("dirt"), 1, 2, 3);
+        chunk.fill(stone);
+        assertEquals(1, chunk.paletteSize());
+        assertSame(stone, chunk.uniform());
+        assertSame(stone, chunk.get(15, 15, 15));
+        chunk.set((BlockData) null, 0, 0, 0);
+        assertNull(chunk.uniform());
+    }
+}
@@ -0,0 +1,105 @@
+package fr.bananasmoothii.rulesgeneration.chunks;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RegionFileStorageTest {
+
+    static final CubicChunk air = CubicChunk.AIR_CHUNK;
+    static final CubicChunk other = new CubicChunk(104, 0f, false) {};
+
+    @Test
+    void savedAndLoadedLazily() throws IOException {
+        Path directory = Files.createTempDirectory("regions");
+        Random random = new Random(6);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(random.nextLong());
+        for (int i = 0; i < 2000; i++) {
+            environment.set(random.nextBoolean() ? air : other, random.nextInt(100) - 50, random.nextInt(40) - 20, random.nextInt(100) - 50);
+        }
+        RegionFileStorage storage = new RegionFileStorage(directory);
+        assertFalse(storage.exists());
+        storage.save(environment);
+        assertTrue(storage.exists());
+
+        CubicChunkEnvironment loaded = new RegionFileStorage(directory).load(6);
+        assertEquals(0, loaded.regionCount());
+        assertArrayEquals(environment.bounds(), loaded.bounds());
+        assertNull(loaded.get(1000, 0, 0));
+        assertEquals(environment.getId(10, 5, -7), loaded.getId(10, 5, -7));
+        assertEquals(1, loaded.regionCount());
+        assertEquals(environment.count(other.getId(), -20, -20, -20, 20, 20, 20), loaded.count(other.getId(), -20, -20, -20, 20, 20, 20));
+        for (CubicChunkCoords coords : environment) {
+            assertSame(coords.cubicChunk, loaded.get(coords.x, coords.y, coords.z));
+        }
+        assertEquals(environment.regionCount(), loaded.regionCount());
+    }
+
+    @Test
+    void emptiedRegionsAreRemoved() throws IOException {
+        Path directory = Files.createTempDirectory("regions");
+        RegionFileStorage storage = new RegionFileStorage(directory);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(7);
+        environment.set(other, 0, 0, 0);
+        environment.set(air, 100, 0, 0);
+        storage.save(environment);
+
+        CubicChunkEnvironment loaded = storage.load(7);
+        loaded.set(null, 100, 0, 0);
+        loaded.set(other, -100, 0, 0);
+        storage.save(loaded);
+        assertFalse(Files.exists(directory.resolve("r.6.0.0.region")));
+
+        CubicChunkEnvironment reloaded = new RegionFileStorage(directory).load(7);
+        assertSame(other, reloaded.get(0, 0, 0));
+        assertSame(other, reloaded.get(-100, 0, 0));
+        assertNull(reloaded.get(100, 0, 0));
+        assertEquals(2, reloaded.regionCount());
+    }
+
+    @Test
+    void streamingEvictsColdRegionsAndReadsThemBack() throws IOException {
+        Path directory = Files.createTempDirectory("regions");
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(8);
+        for (int regionX = 0; regionX < 10; regionX++) {
+            environment.set(other, regionX * 16 + 15, 0, 0);
+            environment.set(air, regionX * 16 + 1, 3, 4);
+        }
+        assertEquals(10, environment.count(other.getId(), 0, 0, 0, 200, 0, 0)); // tracked, so regions have counts
+        environment.clearDirty();
+        long oneRegion = environment.residentMemory() / 10;
+        environment.enableStreaming(new RegionFileStorage(directory), 4 * oneRegion);
+        environment.addAnchor(0, 0, 0, 0);
+        environment.get(9 * 16, 0, 0);
+
+        assertEquals(7, environment.evictColdRegions());
+        assertEquals(3, environment.regionCount());
+        assertTrue(environment.residentMemory() <= 3 * oneRegion);
+        assertEquals(0, environment.evictColdRegions());
+
+        // a rule looking at the neighbour of region 4 reads it back
+        assertSame(other, environment.get(4 * 16 + 15, 0, 0));
+        assertEquals(4, environment.regionCount());
+        assertEquals(10, environment.count(other.getId(), 0, 0, 0, 200, 0, 0));
+        for (int regionX = 0; regionX < 10; regionX++) {
+            assertSame(other, environment.get(regionX * 16 + 15, 0, 0));
+            assertSame(air, environment.get(regionX * 16 + 1, 3, 4));
+            assertNull(environment.get(regionX * 16, 0, 0));
+        }
+
+        // changed after being read back, then evicted again
+        environment.set(null, 4 * 16 + 15, 0, 0);
+        environment.clearDirty();
+        environment.addAnchor(9 * 16, 0, 0, 0);
+        assertTrue(environment.evictColdRegions() > 0);
+        assertNull(environment.get(4 * 16 + 15, 0, 0));
+        environment.getStorage().save(environment);
+        CubicChunkEnvironment reloaded = new RegionFileStorage(directory).load(8);
+        assertEquals(9, reloaded.count(other.getId(), 0, 0, 0, 200, 0, 0));
+    }
+}
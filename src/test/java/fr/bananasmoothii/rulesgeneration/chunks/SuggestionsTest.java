@@ -8,6 +8,8 @@ import fr.bananasmoothii.rulesgeneration.suggestions.SimpleSuggestion;
 import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.*;
+
 public class SuggestionsTest {
 
     static CubicChunkEnvironment environment;
@@ -46,6 +48,9 @@ public class SuggestionsTest {
         for (CubicChunkCoords change : suggestions.apply()) {
             System.out.println(change);
         }
+        suggestions.commit();
+        assertEquals(0, environment.getTrail().size());
+        assertFalse(suggestions.canUndo());
         environment.debugPrint();
     }
 
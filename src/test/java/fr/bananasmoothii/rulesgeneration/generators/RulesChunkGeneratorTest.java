@@ -0,0 +1,61 @@
+package fr.bananasmoothii.rulesgeneration.generators;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import org.bukkit.World;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RulesChunkGeneratorTest {
+
+    /** there is no server in tests */
+    static World world(long seed, File folder) {
+        return (World) Proxy.newProxyInstance(World.class.getClassLoader(), new Class[]{World.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getSeed": return seed;
+                        case "getWorldFolder": return folder;
+                        case "getMaxHeight": return 256;
+                        case "getName": return "world";
+                        case "hashCode": return System.identityHashCode(proxy);
+                        case "equals": return proxy == args[0];
+                        default: return null;
+                    }
+                });
+    }
+
+    /**
+     * Nobody calls clearDirty or validateDirty here, like on a server: what was generated must still be allowed to
+     * leave memory.
+     */
+    @Test
+    void precomputedRegionsAreStreamedOut() throws IOException, InterruptedException {
+        Path folder = Files.createTempDirectory("world");
+        World world = world(14, folder.toFile());
+        long budget = 200_000;
+        RulesChunkGenerator generator = new RulesChunkGenerator(2, 10_000, budget);
+        try {
+            generator.precomputeAround(world, 0, 0, 40); // 6 by 6 regions of 16 by 16 columns
+            long deadline = System.currentTimeMillis() + 60_000;
+            while (generator.pendingColumns() > 0) {
+                assertTrue(System.currentTimeMillis() < deadline, "still " + generator.pendingColumns() + " columns to generate");
+                Thread.sleep(10);
+            }
+            CubicChunkEnvironment environment = generator.getEnvironment(world);
+            synchronized (environment) {
+                assertEquals(0, environment.dirtyCount());
+                assertTrue(environment.regionCount() < 36, environment.regionCount() + " regions in memory");
+                assertTrue(environment.residentMemory() <= budget);
+                assertNotNull(environment.get(40, 1, -40)); // read back
+            }
+        } finally {
+            generator.shutdown();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package fr.bananasmoothii.rulesgeneration.metrics;
+
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.chunks.UndoTrail;
+import fr.bananasmoothii.rulesgeneration.rules.RelativeRule;
+import fr.bananasmoothii.rulesgeneration.rules.RuleList;
+import org.junit.jupiter.api.Test;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class GenerationMetricsTest {
+
+    static final CubicChunk air = CubicChunk.AIR_CHUNK;
+
+    @Test
+    void histogramBuckets() {
+        Histogram histogram = new Histogram();
+        for (long value : new long[]{0, 1, 2, 3, 1000, -5}) {
+            histogram.record(value);
+        }
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(6, snapshot.count);
+        assertEquals(1006, snapshot.sum);
+        assertEquals(0, snapshot.percentile(0.3));
+        assertEquals(3, snapshot.percentile(0.8));
+        assertEquals(1023, snapshot.percentile(1));
+        assertEquals(1023, snapshot.max());
+        histogram.reset();
+        assertEquals(0, histogram.snapshot().count);
+    }
+
+    @Test
+    void recordsOnlyWhenEnabled() throws Exception {
+        GenerationMetrics.reset();
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(3);
+        environment.set(air, 0, 0, 0);
+        assertEquals(0, GenerationMetrics.snapshot().cellsPlaced);
+
+        GenerationMetrics.setEnabled(true);
+        try {
+            environment.set(air, 1, 0, 0);
+            environment.set(air, 100, 0, 0);
+            environment.set(air, 100, 0, 0); // no change
+            UndoTrail trail = environment.getTrail();
+            int mark = trail.mark();
+            environment.setUndoable(null, 1, 0, 0);
+            trail.rollback(mark);
+            new RelativeRule(1, 0, 0, air).test(environment, 0, 0, 0);
+            RuleList<RelativeRule> ruleList = new RuleList<>(LogicalOperator.AND);
+            ruleList.add(new RelativeRule(1, 0, 0, air));
+            ruleList.add(new RelativeRule(0, 1, 0, air));
+            ruleList.test(environment, 0, 0, 0);
+
+            MetricsSnapshot snapshot = GenerationMetrics.snapshot();
+            assertEquals(3, snapshot.cellsPlaced); // the rollback placed air again
+            assertEquals(1, snapshot.regionsCreated);
+            assertEquals(2, snapshot.boundsGrown);
+            assertEquals(1, snapshot.undoneChanges);
+            assertTrue(snapshot.ruleEvaluations.get(RelativeRule.class.getName()) >= 2);
+            assertEquals(1L, (long) snapshot.ruleEvaluations.get(RuleList.class.getName()));
+
+            GenerationMetrics.registerMBean();
+            try {
+                Object cellsPlaced = ManagementFactory.getPlatformMBeanServer()
+                        .getAttribute(new ObjectName(GenerationMetrics.OBJECT_NAME), "CellsPlaced");
+                assertEquals(3L, cellsPlaced);
+            } finally {
+                GenerationMetrics.unregisterMBean();
+            }
+        } finally {
+            GenerationMetrics.setEnabled(false);
+            GenerationMetrics.reset();
+        }
+    }
+}
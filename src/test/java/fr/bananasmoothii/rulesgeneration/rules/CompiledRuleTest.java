@@ -0,0 +1,269 @@
+package fr.bananasmoothii.rulesgeneration.rules;
+
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class CompiledRuleTest {
+
+    static final CubicChunk[] types = new CubicChunk[4];
+
+    static {
+        for (int i = 0; i < types.length; i++) {
+            types[i] = new CubicChunk(200 + i, 0f, false) {};
+        }
+    }
+
+    /**
+     * The plain object-tree evaluation, as a reference
+     */
+    static boolean interpret(Rule rule, CubicChunkEnvironment environment, int x, int y, int z) {
+        if (rule instanceof RelativeRule) return rule.test(environment, x, y, z);
+        RuleList<?> ruleList = (RuleList<?>) rule;
+        int valid = 0;
+        for (Rule child : ruleList) {
+            if (interpret(child, environment, x, y, z)) valid++;
+        }
+        return ruleList.logicalOperator == LogicalOperator.AND ? valid == ruleList.size() : valid >= ruleList.minAmount;
+    }
+
+    static Rule randomRule(Random random, int depth) {
+        if (random.nextInt(8) == 0) {
+            return new ProximityRule(1 + random.nextInt(2), 1 + random.nextInt(4), types[random.nextInt(types.length)]);
+        }
+        if (depth == 0 || random.nextInt(3) == 0) {
+            CubicChunk[] what = new CubicChunk[1 + random.nextInt(2)];
+            for (int i = 0; i < what.length; i++) {
+                what[i] = types[random.nextInt(types.length)];
+            }
+            // few different offsets so leaves get merged
+            return new RelativeRule(random.nextInt(3) - 1, random.nextInt(2), 0, random.nextBoolean(), what);
+        }
+        RuleList<Rule> list = random.nextBoolean()
+                ? new RuleList<>(LogicalOperator.AND)
+                : new RuleList<>(1 + random.nextInt(2));
+        int size = random.nextInt(5);
+        for (int i = 0; i < size; i++) {
+            list.add(randomRule(random, depth - 1));
+        }
+        return list;
+    }
+
+    @Test
+    void sameResultsAsObjectTree() {
+        Random random = new Random(7);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(random.nextLong());
+        for (int x = -3; x <= 3; x++) {
+            for (int y = -3; y <= 3; y++) {
+                int pick = random.nextInt(types.length + 1);
+                environment.set(pick == types.length ? null : types[pick], x, y, 0);
+            }
+        }
+        for (int i = 0; i < 300; i++) {
+            Rule rule = randomRule(random, 3);
+            CompiledRule compiled = CompiledRule.compile(rule);
+            for (int x = -2; x <= 2; x++) {
+                for (int y = -2; y <= 2; y++) {
+                    assertEquals(interpret(rule, environment, x, y, 0), compiled.test(environment, x, y, 0),
+                            "rule " + i + " at " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    void methodHandlesGiveTheSameResults() {
+        Random random = new Random(10);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(random.nextLong());
+        for (int x = -3; x <= 3; x++) {
+            for (int y = -3; y <= 3; y++) {
+                int pick = random.nextInt(types.length + 1);
+                environment.set(pick == types.length ? null : types[pick], x, y, 0);
+            }
+        }
+        CompiledRule.setBackend(CompiledRule.Backend.METHOD_HANDLES);
+        try {
+            for (int i = 0; i < 300; i++) {
+                Rule rule = randomRule(random, 3);
+                CompiledRule compiled = CompiledRule.compile(rule);
+                assertTrue(compiled.usesMethodHandles());
+                for (int x = -2; x <= 2; x++) {
+                    for (int y = -2; y <= 2; y++) {
+                        assertEquals(interpret(rule, environment, x, y, 0), compiled.test(environment, x, y, 0),
+                                "rule " + i + " at " + x + ", " + y);
+                    }
+                }
+            }
+        } finally {
+            CompiledRule.setBackend(CompiledRule.Backend.INTERPRETER);
+        }
+        assertFalse(CompiledRule.compile(new RelativeRule(1, 0, 0, types[0])).usesMethodHandles());
+    }
+
+    @Test
+    void rowsGiveTheSameResults() {
+        Random random = new Random(11);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(random.nextLong());
+        for (int x = -3; x <= 3; x++) {
+            for (int y = -3; y <= 3; y++) {
+                for (int z = -45; z <= 30; z++) {
+                    int pick = random.nextInt(types.length + 1);
+                    environment.set(pick == types.length ? null : types[pick], x, y, z);
+                }
+            }
+        }
+        for (int i = 0; i < 300; i++) {
+            Rule rule = randomRule(random, 3);
+            CompiledRule compiled = CompiledRule.compile(rule);
+            long cells = random.nextLong();
+            for (int x = -1; x <= 1; x++) {
+                for (int y = -1; y <= 1; y++) {
+                    long valid = compiled.testRow(environment, x, y, -40, cells);
+                    for (int bit = 0; bit < 64; bit++) {
+                        boolean expected = (cells & 1L << bit) != 0 && interpret(rule, environment, x, y, -40 + bit);
+                        assertEquals(expected, (valid & 1L << bit) != 0, "rule " + i + " at " + x + ", " + y + ", " + (-40 + bit));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void recompiledAfterChange() {
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(8);
+        environment.set(types[0], 0, 1, 0);
+        RuleList<Rule> outer = new RuleList<>(LogicalOperator.AND);
+        RuleList<Rule> inner = new RuleList<>(LogicalOperator.AND);
+        outer.add(inner);
+        assertTrue(outer.test(environment, 0, 0, 0));
+        inner.add(new RelativeRule(0, 1, 0, types[1]));
+        assertFalse(outer.test(environment, 0, 0, 0));
+        assertEquals(1, outer.compiled().reach());
+    }
+
+    @Test
+    void onlyModifiedListsAreCompiledAgain() {
+        RuleList<Rule> or = new RuleList<>(1);
+        or.add(new RelativeRule(1, 0, 0, types[0]));
+        or.add(new RelativeRule(-1, 0, 0, types[1]));
+        RuleList<Rule> other = new RuleList<>(LogicalOperator.AND);
+        other.add(new RelativeRule(0, 1, 0, types[2]));
+        CompiledRule compiledOther = other.compiled();
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(12);
+        int modifications = RuleList.modifications();
+        assertNotNull(or.testAndSuggest(environment, 0, 0, 0));
+        assertEquals(modifications, RuleList.modifications());
+
+        or.add(new RelativeRule(0, -1, 0, types[3]));
+        assertSame(compiledOther, other.compiled());
+        RuleList<Rule> inner = new RuleList<>(LogicalOperator.AND);
+        other.add(inner);
+        CompiledRule withInner = other.compiled();
+        assertNotSame(compiledOther, withInner);
+        inner.add(new RelativeRule(0, 0, 1, types[0]));
+        assertNotSame(withInner, other.compiled());
+        other.remove(inner);
+        CompiledRule withoutInner = other.compiled();
+        inner.add(new RelativeRule(0, 0, -1, types[0]));
+        assertSame(withoutInner, other.compiled());
+    }
+
+    @Test
+    void nullMeansAnEmptyCell() {
+        RelativeRule emptyOnTheRight = new RelativeRule(1, 0, 0, (CubicChunk) null);
+        RelativeRule notEmptyAbove = new RelativeRule(0, 1, 0, false, types[1], null);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(10);
+        environment.set(types[0], 0, 0, 0);
+        environment.set(types[2], 0, 1, 0);
+        CompiledRule compiledEmpty = CompiledRule.compile(emptyOnTheRight);
+        CompiledRule compiledNotEmpty = CompiledRule.compile(notEmptyAbove);
+        assertTrue(emptyOnTheRight.test(environment, 0, 0, 0));
+        assertTrue(compiledEmpty.test(environment, 0, 0, 0));
+        assertTrue(notEmptyAbove.test(environment, 0, 0, 0));
+        assertTrue(compiledNotEmpty.test(environment, 0, 0, 0));
+        assertEquals(1L, compiledEmpty.testRow(environment, 0, 0, 0, 1L));
+
+        types[0].rules.add(emptyOnTheRight);
+        try {
+            RuleDependencyIndex index = RuleDependencyIndex.current();
+            environment.set(types[1], 1, 0, 0);
+            assertFalse(compiledEmpty.test(environment, 0, 0, 0));
+            int[] visited = {0};
+            index.forEachDependent(environment, 1, 0, 0, CubicChunkEnvironment.NO_ID, types[1].getId(),
+                    (dependentX, dependentY, dependentZ, dependency) -> {
+                        assertEquals(0, dependentX | dependentY | dependentZ);
+                        visited[0]++;
+                    });
+            assertEquals(1, visited[0]);
+        } finally {
+            types[0].rules.clear();
+        }
+        environment.set(null, 0, 1, 0);
+        assertFalse(notEmptyAbove.test(environment, 0, 0, 0));
+        assertFalse(compiledNotEmpty.test(environment, 0, 0, 0));
+    }
+
+    @Test
+    void proximityRulesCanCountEmptyCells() {
+        ProximityRule emptyAround = new ProximityRule(1, 24, (CubicChunk) null);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(10);
+        // on the border of a region, so some of the cube is in regions that don't exist
+        environment.set(types[0], 0, 0, 0);
+        environment.set(types[1], 1, 0, 0);
+        environment.set(types[2], -1, -1, -1);
+        assertEquals(24, emptyAround.count(environment, 0, 0, 0));
+        assertEquals(24, emptyAround.count(environment, 0, 1, 0));
+        assertEquals(26, emptyAround.count(environment, 0, 5, 100));
+        assertTrue(emptyAround.test(environment, 0, 0, 0));
+        environment.set(types[2], 0, 1, 0);
+        assertFalse(emptyAround.test(environment, 0, 0, 0));
+        assertEquals(0L, CompiledRule.compile(emptyAround).testRow(environment, 0, 0, 0, 1L));
+        assertEquals(1L << 5, CompiledRule.compile(emptyAround).testRow(environment, 0, 0, 0, 1L | 1L << 5));
+    }
+
+    @Test
+    void proximityRulesCountEachCellOnce() {
+        ProximityRule twice = new ProximityRule(1, 2, types[0], types[0]);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(10);
+        environment.set(types[0], 1, 0, 0);
+        assertEquals(1, twice.count(environment, 0, 0, 0));
+        assertFalse(twice.test(environment, 0, 0, 0));
+        assertEquals(0L, CompiledRule.compile(twice).testRow(environment, 0, 0, 0, 1L));
+    }
+
+    @Test
+    void possibleTreatsEmptyCellsAsWildcards() {
+        RuleList<Rule> rules = new RuleList<>(LogicalOperator.AND);
+        rules.add(new RelativeRule(1, 0, 0, types[0]));
+        rules.add(new RelativeRule(-1, 0, 0, false, types[1]));
+        rules.add(new ProximityRule(1, 3, types[2]));
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(9);
+        assertFalse(rules.test(environment, 0, 0, 0));
+        assertTrue(rules.possible(environment, 0, 0, 0));
+        environment.set(types[3], 1, 0, 0);
+        assertFalse(rules.possible(environment, 0, 0, 0));
+        environment.set(types[0], 1, 0, 0);
+        environment.set(types[1], -1, 0, 0);
+        assertFalse(rules.possible(environment, 0, 0, 0));
+        environment.set(null, -1, 0, 0);
+        // 24 cells left around for 3 types[2]
+        for (int y = -1; y <= 1; y++) {
+            for (int z = -1; z <= 1; z++) {
+                if (y != 0 || z != 0) environment.set(types[3], 0, y, z);
+                environment.set(types[3], -1, y, z);
+                if (y != 0 || z != 0) environment.set(types[3], 1, y, z);
+            }
+        }
+        environment.set(null, -1, 0, 0);
+        assertFalse(rules.possible(environment, 0, 0, 0)); // one empty cell left
+        environment.set(types[2], 0, 1, 0);
+        environment.set(types[2], 0, -1, 0);
+        assertTrue(rules.possible(environment, 0, 0, 0));
+        assertFalse(rules.test(environment, 0, 0, 0));
+    }
+}
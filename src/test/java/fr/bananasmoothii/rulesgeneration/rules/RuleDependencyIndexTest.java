@@ -0,0 +1,101 @@
+package fr.bananasmoothii.rulesgeneration.rules;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RuleDependencyIndexTest {
+
+    static final CubicChunk[] types = CompiledRuleTest.types;
+
+    /**
+     * Any cell whose rules give another result after a change must be visited
+     */
+    @Test
+    void visitsEveryCellThatCanChange() {
+        Random random = new Random(11);
+        try {
+            for (int round = 0; round < 30; round++) {
+                for (CubicChunk type : types) {
+                    type.rules.clear();
+                    type.rules.add(CompiledRuleTest.randomRule(random, 2));
+                }
+                RuleDependencyIndex index = RuleDependencyIndex.current();
+                assertFalse(index.hasUnknownReach());
+                CubicChunkEnvironment environment = new CubicChunkEnvironment(random.nextLong());
+                for (int x = -5; x <= 5; x++) {
+                    for (int y = -5; y <= 5; y++) {
+                        int pick = random.nextInt(types.length + 1);
+                        environment.set(pick == types.length ? null : types[pick], x, y, 0);
+                    }
+                }
+                for (int i = 0; i < 20; i++) {
+                    int x = random.nextInt(5) - 2, y = random.nextInt(5) - 2;
+                    int pick = random.nextInt(types.length + 1);
+                    CubicChunk newChunk = pick == types.length ? null : types[pick];
+                    boolean[] before = results(environment, x, y);
+                    int oldId = environment.getId(x, y, 0);
+                    environment.set(newChunk, x, y, 0);
+                    boolean[] after = results(environment, x, y);
+
+                    Set<Integer> visited = new HashSet<>();
+                    index.forEachDependent(environment, x, y, 0, oldId, environment.getId(x, y, 0),
+                            (dependentX, dependentY, dependentZ, dependency) -> {
+                                assertSame(dependency.owner, environment.get(dependentX, dependentY, dependentZ));
+                                visited.add((dependentX - x + 3) * 7 + dependentY - y + 3);
+                            });
+                    for (int cell = 0; cell < before.length; cell++) {
+                        if (cell == 3 * 7 + 3) continue; // the changed cell itself, checked anyway
+                        if (before[cell] != after[cell]) assertTrue(visited.contains(cell), "round " + round + ", change " + i);
+                    }
+                }
+            }
+        } finally {
+            for (CubicChunk type : types) {
+                type.rules.clear();
+            }
+        }
+    }
+
+    /**
+     * A rule made outside of this plugin may not say what it concerns, so everything has to be re-checked
+     */
+    @Test
+    void rulesWithoutAReachAreUnknown() {
+        Rule opaque = new Rule() {
+            @Override
+            public SuggestionList testAndSuggest(CubicChunkEnvironment environment, int x, int y, int z) {
+                return null;
+            }
+        };
+        assertEquals(-1, opaque.reach());
+        assertTrue(opaque.concerns(100, 0, 0, 0, 0, 0));
+        try {
+            types[0].rules.add(opaque);
+            assertTrue(RuleDependencyIndex.current().hasUnknownReach());
+        } finally {
+            types[0].rules.clear();
+        }
+    }
+
+    /**
+     * results of the rules of the cells around x, y (z = 0), at most 3 cells away
+     */
+    private static boolean[] results(CubicChunkEnvironment environment, int x, int y) {
+        boolean[] results = new boolean[7 * 7];
+        for (int dx = -3; dx <= 3; dx++) {
+            for (int dy = -3; dy <= 3; dy++) {
+                CubicChunk chunk = environment.get(x + dx, y + dy, 0);
+                results[(dx + 3) * 7 + dy + 3] = chunk != null && chunk.rules.test(environment, x + dx, y + dy, 0);
+            }
+        }
+        return results;
+    }
+}
@@ -0,0 +1,63 @@
+package fr.bananasmoothii.rulesgeneration.rules;
+
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RuleResultCacheTest {
+
+    static final CubicChunk a = new CubicChunk(210, 0f, false) {}, b = new CubicChunk(211, 0f, false) {};
+
+    @Test
+    void resultsAreInvalidatedByChangesAround() {
+        RuleList<Rule> rules = new RuleList<>(LogicalOperator.AND);
+        rules.add(new RelativeRule(1, 0, 0, a));
+        rules.add(new RelativeRule(0, 1, 0, false, b));
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(11);
+        environment.setRuleCacheCapacity(64);
+        RuleResultCache cache = environment.getRuleCache();
+        assertNotNull(cache);
+
+        assertFalse(rules.test(environment, 0, 0, 0));
+        assertFalse(rules.test(environment, 0, 0, 0));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        environment.set(a, 1, 0, 0);
+        assertTrue(rules.test(environment, 0, 0, 0));
+        environment.set(b, 100, 100, 100); // far away
+        assertTrue(rules.test(environment, 0, 0, 0));
+        assertEquals(2, cache.getHits());
+        environment.set(b, 0, 1, 0);
+        assertFalse(rules.test(environment, 0, 0, 0));
+        environment.set(null, 0, 1, 0);
+        assertTrue(rules.test(environment, 0, 0, 0));
+        assertEquals(2, cache.getHits());
+
+        rules.add(new RelativeRule(-1, 0, 0, a));
+        assertFalse(rules.test(environment, 0, 0, 0));
+        assertEquals(2 / 7d, cache.hitRate(), 0.001);
+    }
+
+    @Test
+    void sizeIsBounded() {
+        ProximityRule rule = new ProximityRule(1, a);
+        CubicChunkEnvironment environment = new CubicChunkEnvironment(12);
+        environment.setRuleCacheCapacity(16);
+        RuleResultCache cache = environment.getRuleCache();
+        assertNotNull(cache);
+        assertEquals(16, cache.capacity());
+        for (int x = 0; x < 1000; x++) {
+            assertFalse(rule.test(environment, x, 0, 0));
+        }
+        // the last ones are most likely still there
+        for (int x = 990; x < 1000; x++) {
+            assertFalse(rule.test(environment, x, 0, 0));
+        }
+        assertTrue(cache.getHits() > 0);
+        assertEquals(1010, cache.getHits() + cache.getMisses());
+    }
+}
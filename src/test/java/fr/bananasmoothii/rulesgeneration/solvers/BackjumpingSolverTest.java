@@ -0,0 +1,159 @@
+package fr.bananasmoothii.rulesgeneration.solvers;
+
+import fr.bananasmoothii.rulesgeneration.LogicalOperator;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.rules.RelativeRule;
+import fr.bananasmoothii.rulesgeneration.rules.Rule;
+import fr.bananasmoothii.rulesgeneration.rules.RuleList;
+import fr.bananasmoothii.rulesgeneration.suggestions.SimpleSuggestion;
+import fr.bananasmoothii.rulesgeneration.suggestions.SuggestionList;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BackjumpingSolverTest {
+
+    static CubicChunk start, likely, unlikely, afterLikely, afterUnlikely, chain;
+
+    static {
+        start = new CubicChunk(110, 0f, false) {};
+        likely = new CubicChunk(111, 100f, false) {};
+        unlikely = new CubicChunk(112, -100f, false) {};
+        afterLikely = new CubicChunk(113, 0f, false) {};
+        afterUnlikely = new CubicChunk(114, 0f, false) {};
+        chain = new CubicChunk(115, 0f, false) {};
+    }
+
+    /**
+     * The checks that were pending when a decision was taken come back when the search jumps back to it, even if the
+     * queue had to grow in the meantime
+     */
+    @Test
+    void pendingChecksComeBackAfterABackjump() {
+        setUpLikelyOrUnlikely();
+        chain.rules.add(new RelativeRule(0, 1, 0, afterUnlikely));
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(8);
+            BackjumpingSolver solver = new BackjumpingSolver(environment);
+            environment.setSolver(solver);
+            environment.set(start, 0, 0, 0);
+            solver.enqueue(0, 0, 0);
+            for (int x = 0; x < 300; x++) { // more than the queue holds at first
+                environment.set(chain, x, 10, 0);
+                solver.enqueue(x, 10, 0);
+            }
+            assertEquals(SolverResult.SOLVED, solver.solve());
+            assertTrue(solver.getBackjumps() >= 1);
+            assertSame(unlikely, environment.get(1, 0, 0));
+            for (int x = 0; x < 300; x++) {
+                assertSame(afterUnlikely, environment.get(x, 11, 0), "x = " + x);
+            }
+        } finally {
+            clearRules();
+        }
+    }
+
+    /**
+     * A rule whose suggestion needs two cells at once: they are one alternative, not just the first cell
+     */
+    @Test
+    void suggestionsToApplyTogetherAreOneAlternative() {
+        start.rules.add(new Rule() {
+            @Override
+            public boolean test(CubicChunkEnvironment environment, int x, int y, int z) {
+                return environment.get(x + 1, y, z) == likely && environment.get(x + 2, y, z) == afterLikely;
+            }
+
+            @Override
+            public SuggestionList testAndSuggest(CubicChunkEnvironment environment, int x, int y, int z) {
+                if (test(environment, x, y, z)) return null;
+                SuggestionList both = new SuggestionList(environment, LogicalOperator.AND, x, y, z);
+                both.add(new SimpleSuggestion(environment, x + 1, y, z, likely));
+                both.add(new SimpleSuggestion(environment, x + 2, y, z, afterLikely));
+                return both;
+            }
+        });
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(9);
+            BackjumpingSolver solver = new BackjumpingSolver(environment);
+            environment.setSolver(solver);
+            environment.set(start, 0, 0, 0);
+            assertEquals(SolverResult.SOLVED, solver.solve(0, 0, 0));
+            assertEquals(1, solver.getSteps());
+            assertSame(likely, environment.get(1, 0, 0));
+            assertSame(afterLikely, environment.get(2, 0, 0));
+        } finally {
+            clearRules();
+        }
+    }
+
+    @Test
+    void jumpsBackToTheCause() {
+        setUpLikelyOrUnlikely();
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(6);
+            BackjumpingSolver solver = new BackjumpingSolver(environment);
+            environment.setSolver(solver);
+            environment.set(start, 0, 0, 0);
+            assertEquals(SolverResult.SOLVED, solver.solve(0, 0, 0));
+            assertSame(start, environment.get(0, 0, 0));
+            assertSame(unlikely, environment.get(1, 0, 0));
+            assertSame(afterUnlikely, environment.get(2, 0, 0));
+            assertTrue(solver.getBackjumps() >= 1);
+        } finally {
+            clearRules();
+        }
+    }
+
+    /**
+     * start wants likely or unlikely next to it, likely is tried first but what it needs can't be next to it, so the
+     * search has to go back to the first decision
+     */
+    private static void setUpLikelyOrUnlikely() {
+        RuleList<RelativeRule> likelyOrUnlikely = new RuleList<>(LogicalOperator.OR);
+        likelyOrUnlikely.add(new RelativeRule(1, 0, 0, likely));
+        likelyOrUnlikely.add(new RelativeRule(1, 0, 0, unlikely));
+        start.rules.add(likelyOrUnlikely);
+        likely.rules.add(new RelativeRule(1, 0, 0, afterLikely));
+        afterLikely.rules.add(new RelativeRule(-1, 0, 0, false, likely));
+        unlikely.rules.add(new RelativeRule(1, 0, 0, afterUnlikely));
+    }
+
+    private static void clearRules() {
+        for (CubicChunk chunk : new CubicChunk[]{start, likely, unlikely, afterLikely, afterUnlikely, chain}) {
+            chunk.rules.clear();
+        }
+    }
+
+    /**
+     * Same as above without unlikely: there is no solution. The worklist solver goes round in circles until its step
+     * limit, the backjumping solver finds out in a few nodes and undoes everything.
+     */
+    @Test
+    void unsatisfiableIsDetected() {
+        start.rules.add(new RelativeRule(1, 0, 0, likely));
+        likely.rules.add(new RelativeRule(1, 0, 0, afterLikely));
+        afterLikely.rules.add(new RelativeRule(-1, 0, 0, false, likely));
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(7);
+            BackjumpingSolver solver = new BackjumpingSolver(environment);
+            environment.setSolver(solver);
+            environment.set(start, 0, 0, 0);
+            assertEquals(SolverResult.UNSATISFIABLE, solver.solve(0, 0, 0));
+            assertTrue(solver.getSteps() < 10);
+            assertSame(start, environment.get(0, 0, 0));
+            assertNull(environment.get(1, 0, 0));
+            assertNull(environment.get(2, 0, 0));
+            assertEquals(0, environment.getTrail().size());
+
+            CubicChunkEnvironment other = new CubicChunkEnvironment(7);
+            other.set(start, 0, 0, 0);
+            assertEquals(SolverResult.STEP_LIMIT_REACHED, new WorklistSolver(other, 1000, 500).solve(0, 0, 0));
+        } finally {
+            start.rules.clear();
+            likely.rules.clear();
+            afterLikely.rules.clear();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package fr.bananasmoothii.rulesgeneration.solvers;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunk;
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkEnvironment;
+import fr.bananasmoothii.rulesgeneration.rules.RelativeRule;
+import org.junit.jupiter.api.Test;
+
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WorklistSolverTest {
+
+    static CubicChunk chain, needsPlainAbove, plain;
+
+    static {
+        chain = new CubicChunk(100, 0f, false) {};
+        needsPlainAbove = new CubicChunk(101, 0f, false) {};
+        plain = new CubicChunk(102, 0f, false) {};
+    }
+
+    /**
+     * A chunk that always needs another one of itself next to it never stops generating, the solver must stop it
+     */
+    @Test
+    void endlessChainStops() {
+        chain.rules.add(new RelativeRule(1, 0, 0, chain));
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(5);
+            WorklistSolver solver = new WorklistSolver(environment, 1000, 200);
+            environment.set(chain, 0, 0, 0);
+            assertEquals(SolverResult.STEP_LIMIT_REACHED, solver.solve(0, 0, 0));
+            assertEquals(200, solver.getSteps());
+            assertSame(chain, environment.get(99, 0, 0));
+
+            solver.setMaxQueueSize(1);
+            environment.set(chain, 1000, 0, 0);
+            assertEquals(SolverResult.QUEUE_LIMIT_REACHED, solver.solve(1000, 0, 0));
+        } finally {
+            chain.rules.clear();
+        }
+    }
+
+    @Test
+    void validRulesAreSolved() {
+        needsPlainAbove.rules.add(new RelativeRule(0, 1, 0, plain));
+        try {
+            CubicChunkEnvironment environment = new CubicChunkEnvironment(6);
+            environment.set(needsPlainAbove, 0, 0, 0);
+            assertEquals(SolverResult.SOLVED, new WorklistSolver(environment).solve(0, 0, 0));
+            assertSame(plain, environment.get(0, 1, 0));
+        } finally {
+            needsPlainAbove.rules.clear();
+        }
+    }
+}
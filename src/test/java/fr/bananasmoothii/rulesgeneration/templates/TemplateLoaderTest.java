@@ -0,0 +1,105 @@
+package fr.bananasmoothii.rulesgeneration.templates;
+
+import fr.bananasmoothii.rulesgeneration.chunks.CubicChunkTest;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class TemplateLoaderTest {
+
+    /**
+     * A version 2 Sponge schematic, stone everywhere except dirt at y = 15 and a stair at x = 1, y = 2, z = 3
+     */
+    static void writeSchematic(Path file, int size) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new GZIPOutputStream(Files.newOutputStream(file)))) {
+            out.writeByte(10);
+            out.writeUTF("Schematic");
+            out.writeByte(3);
+            out.writeUTF("Version");
+            out.writeInt(2);
+            for (String name : new String[]{"Width", "Height", "Length"}) {
+                out.writeByte(2);
+                out.writeUTF(name);
+                out.writeShort(size);
+            }
+            out.writeByte(10);
+            out.writeUTF("Palette");
+            String[] palette = {"minecraft:stone", "minecraft:dirt", "minecraft:oak_stairs[facing=east]"};
+            for (int i = 0; i < palette.length; i++) {
+                out.writeByte(3);
+                out.writeUTF(palette[i]);
+                out.writeInt(i);
+            }
+            out.writeByte(0);
+            out.writeByte(9); // an ignored list of compounds
+            out.writeUTF("BlockEntities");
+            out.writeByte(10);
+            out.writeInt(1);
+            out.writeByte(8);
+            out.writeUTF("Id");
+            out.writeUTF("minecraft:chest");
+            out.writeByte(0);
+            out.writeByte(7);
+            out.writeUTF("BlockData");
+            int volume = size * size * size;
+            out.writeInt(volume);
+            for (int index = 0; index < volume; index++) {
+                int x = index % size, z = index / size % size, y = index / (size * size);
+                out.writeByte(y == 15 ? 1 : x == 1 && y == 2 && z == 3 ? 2 : 0);
+            }
+            out.writeByte(0);
+        }
+    }
+
+    @Test
+    void schematicIsReadLazily() throws IOException {
+        Path directory = Files.createTempDirectory("templates");
+        writeSchematic(directory.resolve("a.schem"), 16);
+        writeSchematic(directory.resolve("too_small.schem"), 8);
+        Files.write(directory.resolve("readme.txt"), new byte[]{1, 2, 3});
+
+        // there is no server in tests, see CubicChunkTest
+        List<TemplateCubicChunk> templates = TemplateLoader.loadDirectory(directory, 1000, CubicChunkTest::blockData);
+        assertEquals(1, templates.size()); // too_small.schem and readme.txt are ignored
+        TemplateCubicChunk template = templates.get(0);
+        assertEquals(1000, template.getId());
+        assertFalse(template.isMaterialized());
+        assertEquals("minecraft:stone", template.get(0, 0, 0).getAsString());
+        assertTrue(template.isMaterialized());
+        assertEquals("minecraft:dirt", template.get(7, 15, 9).getAsString());
+        assertEquals("minecraft:oak_stairs[facing=east]", template.get(1, 2, 3).getAsString());
+        assertEquals("minecraft:stone", template.get(3, 2, 1).getAsString());
+        assertEquals(3, template.paletteSize());
+    }
+
+    /**
+     * Worlds are saved with ids, so adding a template must not change the id of the others
+     */
+    @Test
+    void idsStayTheSameWhenFilesAreAdded() throws IOException {
+        Path directory = Files.createTempDirectory("templates");
+        Path b = directory.resolve("b.schem"), c = directory.resolve("c.nbt");
+        Map<String, Integer> ids = TemplateLoader.assignIds(directory, Arrays.asList(b, c), 2000);
+        assertEquals(2000, (int) ids.get("b.schem"));
+        assertEquals(2001, (int) ids.get("c.nbt"));
+
+        Path a = directory.resolve("a.schem"); // before the others in alphabetical order
+        ids = TemplateLoader.assignIds(directory, Arrays.asList(a, b, c), 2000);
+        assertEquals(2000, (int) ids.get("b.schem"));
+        assertEquals(2001, (int) ids.get("c.nbt"));
+        assertEquals(2002, (int) ids.get("a.schem"));
+
+        ids = TemplateLoader.assignIds(directory, Arrays.asList(a, c), 2000); // b removed
+        assertEquals(2001, (int) ids.get("c.nbt"));
+        assertEquals(2002, (int) ids.get("a.schem"));
+    }
+}